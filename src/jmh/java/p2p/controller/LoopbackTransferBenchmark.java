@@ -0,0 +1,114 @@
+package p2p.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end upload and download over loopback HTTP against an in-process
+ * {@link FileController}, for several file sizes. Multiply the score by the size for
+ * bytes per second. Every upload sends the same content, so after the first one the blob
+ * store deduplicates and disk usage stays flat; the body is still received, hashed and
+ * written to a temporary file each time. Downloads hit the hot-share cache once it has
+ * admitted the file, as repeated downloads of a popular share would. The fork runs with
+ * TCP_NODELAY on, as {@code App} starts the server by default.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class LoopbackTransferBenchmark {
+    private static final String BOUNDARY = "----PeerPassBenchmarkBoundary";
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private Path dir;
+    private FileController controller;
+    private HttpClient client;
+    private URI uploadUri;
+    private URI downloadUri;
+    private byte[] uploadBody;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("loopback-bench");
+        ServerConfig config = new ServerConfig()
+                .setUploadDir(dir.toString())
+                .setTransferPort(-1)
+                .setIndexEnabled(false);
+        controller = new FileController(0, config);
+        controller.start();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String base = "http://localhost:" + controller.getPort();
+        uploadUri = URI.create(base + "/upload");
+
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 512);
+        out.write(("--" + BOUNDARY + "\r\n" +
+                   "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n" +
+                   "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        uploadBody = out.toByteArray();
+
+        downloadUri = URI.create(base + "/download/" + upload());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        controller.stop();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int upload() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uploadUri)
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(uploadBody))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Upload failed: " + response.statusCode() + " " + response.body());
+        }
+        return Integer.parseInt(response.body().replaceAll("[^0-9]", ""));
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(downloadUri).GET().build(),
+                                                    HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200 || response.body().length != size) {
+            throw new IllegalStateException("Download failed: " + response.statusCode());
+        }
+        return response.body().length;
+    }
+}
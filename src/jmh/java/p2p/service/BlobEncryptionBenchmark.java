@@ -0,0 +1,106 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Storing and serving a blob with and without encryption at rest. {@code write} runs the
+ * upload path (hash, encrypt, write, commit) and {@code read} sends the whole blob through
+ * the {@link TransferEngine} to a stream, as a download would; multiply the score by the
+ * size for bytes per second. {@code readRange} sends 64 KB at a random offset, which
+ * decrypts one or two chunks. Every write stores the same content, so the store
+ * deduplicates and disk usage stays flat.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlobEncryptionBenchmark {
+    private static final int RANGE = 64 * 1024;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private Path dir;
+    private BlobStore store;
+    private TransferEngine engine;
+    private byte[] content;
+    private String blobId;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("encryption-bench");
+        byte[] key = new byte[32];
+        ThreadLocalRandom.current().nextBytes(key);
+        store = new BlobStore(dir.toString(), new FileBlobBackend(dir.resolve("blobs")),
+                              encrypted ? new BlobEncryption(key) : null);
+        engine = new TransferEngine();
+        content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        blobId = write();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String write() throws IOException {
+        String id;
+        try (BlobStore.Writer writer = store.newWriter()) {
+            // In pieces the size of an upload read buffer
+            for (int offset = 0; offset < size; offset += 256 * 1024) {
+                writer.write(content, offset, Math.min(256 * 1024, size - offset));
+            }
+            id = writer.commit();
+        }
+        if (blobId != null) {
+            store.release(id);
+        }
+        return id;
+    }
+
+    @Benchmark
+    public TransferEngine.Path read() throws IOException {
+        try (FileChannel channel = store.openChannel(blobId)) {
+            return engine.send(channel, 0, size, OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public TransferEngine.Path readRange() throws IOException {
+        long position = ThreadLocalRandom.current().nextLong(size - RANGE);
+        try (FileChannel channel = store.openChannel(blobId)) {
+            return engine.send(channel, position, RANGE, OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The share registry under thread contention: registering a share (and removing it again,
+ * so the map stays at its preloaded size) and resolving a code to its file. Shares are
+ * kept in memory only, so journal fsyncs do not dominate. Change the thread count with
+ * {@code -t}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class FileSharerBenchmark {
+
+    @Param({"1000", "100000"})
+    public int shares;
+
+    private Path dir;
+    private FileSharer fileSharer;
+    private String blobId;
+    private int[] codes;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("file-sharer-bench");
+        BlobStore blobStore = new BlobStore(dir.toString());
+        try (BlobStore.Writer writer = blobStore.newWriter()) {
+            writer.write(new byte[1024]);
+            blobId = writer.commit();
+        }
+        fileSharer = new FileSharer(blobStore);
+        codes = new int[shares];
+        for (int i = 0; i < shares; i++) {
+            blobStore.acquire(blobId);
+            codes[i] = fileSharer.offerFile(blobId, "file-" + i + ".bin");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSharer.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int offerAndRemove() {
+        fileSharer.getBlobStore().acquire(blobId);
+        int code = fileSharer.offerFile(blobId, "bench.bin");
+        fileSharer.removeShare(code);
+        return code;
+    }
+
+    @Benchmark
+    public String getFilePath() {
+        return fileSharer.getFilePath(codes[ThreadLocalRandom.current().nextInt(codes.length)]);
+    }
+}
@@ -0,0 +1,85 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long {@link ShareIndex#recover()} takes at restart for growing numbers of shares,
+ * with most entries in the snapshot and a tenth of them still in the journal.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShareIndexRecoveryBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private Path dir;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("share-index-bench");
+        int journaled = entries / 10;
+        List<Share> snapshot = new ArrayList<>(entries - journaled);
+        for (int i = 0; i < entries - journaled; i++) {
+            snapshot.add(share(i));
+        }
+        ShareIndex writer = new ShareIndex(dir.toString(), Long.MAX_VALUE);
+        writer.recover();
+        writer.writeSnapshot(snapshot);
+        writer.start(() -> snapshot);
+        List<CompletableFuture<Void>> pending = new ArrayList<>(journaled);
+        for (int i = entries - journaled; i < entries; i++) {
+            pending.add(writer.put(share(i)));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+        writer.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Map<Integer, Share> recover() throws IOException {
+        Map<Integer, Share> recovered = new ShareIndex(dir.toString(), Long.MAX_VALUE).recover();
+        if (recovered.size() != entries) {
+            throw new IllegalStateException("Recovered " + recovered.size() + " of " + entries);
+        }
+        return recovered;
+    }
+
+    private static Share share(int i) {
+        long now = System.currentTimeMillis();
+        String blobId = String.format("%064x", i);
+        return new Share(100000 + i, blobId, "file-" + i + ".bin", 1024L * i, now, now + 86_400_000L, 0);
+    }
+}
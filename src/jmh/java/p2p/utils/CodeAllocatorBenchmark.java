@@ -0,0 +1,79 @@
+package p2p.utils;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Share-code allocation under contention: {@link CodeAllocator} against the scheme it
+ * replaced, a random code from a new {@link Random} retried with {@code putIfAbsent} until
+ * it sticks (the old {@code UploadUtils.generateCode} loop). Each operation allocates and
+ * releases one code, so the fill level stays where the setup put it. Change the thread
+ * count with {@code -t}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class CodeAllocatorBenchmark {
+    private static final int MIN = 100_000;
+    private static final int MAX = 999_999;
+
+    @Param({"0.0", "0.5", "0.9", "0.99"})
+    public double fill;
+
+    @Param({"false", "true"})
+    public boolean secure;
+
+    private CodeAllocator allocator;
+    private ConcurrentHashMap<Integer, Boolean> legacy;
+
+    @Setup
+    public void setup() {
+        allocator = new CodeAllocator(MIN, MAX, secure);
+        int target = (int) (allocator.getCapacity() * fill);
+        for (int i = 0; i < target; i++) {
+            allocator.allocate();
+        }
+        legacy = new ConcurrentHashMap<>();
+        while (legacy.size() < target) {
+            legacy.put(MIN + ThreadLocalRandom.current().nextInt(MAX - MIN + 1), Boolean.TRUE);
+        }
+    }
+
+    @Benchmark
+    public int allocateRelease() {
+        int code = allocator.allocate();
+        allocator.release(code);
+        return code;
+    }
+
+    @Benchmark
+    public int legacyRandomRetry() {
+        // The secure parameter does not apply to the old scheme
+        while (true) {
+            int code = MIN + new Random().nextInt(MAX - MIN + 1);
+            if (legacy.putIfAbsent(code, Boolean.TRUE) == null) {
+                legacy.remove(code);
+                return code;
+            }
+        }
+    }
+}
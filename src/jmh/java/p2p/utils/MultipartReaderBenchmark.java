@@ -0,0 +1,172 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.RequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing one multipart upload of the given size: {@link MultipartReader} handing slices of
+ * its buffer to a channel, against commons-fileupload's streaming iterator copied through a
+ * 1 MB array, which is how {@code UploadHandler} used to read uploads. The body is generated
+ * on the fly in 64 KB reads, like a socket, so multi-GB sizes need no memory. Part bodies
+ * go to a channel that discards them, leaving parsing as the measured cost. Score is
+ * milliseconds per upload; size / score gives the throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultipartReaderBenchmark {
+    private static final String BOUNDARY = "----PeerPassBenchmarkBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"16777216", "1073741824", "4294967296"})
+    public long size;
+
+    private byte[] block;
+    private byte[] head;
+    private byte[] tail;
+    private final DiscardChannel sink = new DiscardChannel();
+
+    @Setup
+    public void setup() {
+        block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        head = ("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+        tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public long multipartReader() throws IOException {
+        long total = 0;
+        try (MultipartReader reader = new MultipartReader(new SyntheticBody(), BOUNDARY)) {
+            MultipartReader.Part part;
+            while ((part = reader.next()) != null) {
+                total += part.transferTo(sink);
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long commonsFileUpload() throws IOException, FileUploadException {
+        FileItemIterator iter = new FileUpload().getItemIterator(new SyntheticRequestContext());
+        long total = 0;
+        byte[] buffer = new byte[1024 * 1024];
+        while (iter.hasNext()) {
+            FileItemStream item = iter.next();
+            try (InputStream in = item.openStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    total += sink.write(ByteBuffer.wrap(buffer, 0, read));
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Head, {@code size} bytes cycling through the random block, closing delimiter.
+     */
+    private class SyntheticBody extends InputStream {
+        private static final int MAX_READ = 64 * 1024;
+        private long position;
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long total = head.length + size + tail.length;
+            if (position >= total) {
+                return -1;
+            }
+            len = (int) Math.min(Math.min(len, MAX_READ), total - position);
+            int n;
+            if (position < head.length) {
+                n = Math.min(len, head.length - (int) position);
+                System.arraycopy(head, (int) position, b, off, n);
+            } else if (position < head.length + size) {
+                long offset = position - head.length;
+                int inBlock = (int) (offset % block.length);
+                n = (int) Math.min(Math.min(len, block.length - inBlock), size - offset);
+                System.arraycopy(block, inBlock, b, off, n);
+            } else {
+                int offset = (int) (position - head.length - size);
+                n = Math.min(len, tail.length - offset);
+                System.arraycopy(tail, offset, b, off, n);
+            }
+            position += n;
+            return n;
+        }
+    }
+
+    private class SyntheticRequestContext implements RequestContext {
+        @Override
+        public String getCharacterEncoding() {
+            return null;
+        }
+
+        @Override
+        public String getContentType() {
+            return "multipart/form-data; boundary=" + BOUNDARY;
+        }
+
+        @Override
+        public int getContentLength() {
+            long length = head.length + size + tail.length;
+            return length > Integer.MAX_VALUE ? -1 : (int) length;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new SyntheticBody();
+        }
+    }
+
+    private static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
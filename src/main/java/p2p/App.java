@@ -1,18 +1,29 @@
 package p2p;
 
+import java.util.Arrays;
 import java.util.Scanner;
 
+import p2p.client.LoadTest;
 import p2p.controller.FileController;
+import p2p.controller.ServerConfig;
+import p2p.utils.Settings;
 
 public class App {
     private static volatile boolean isRunning = true;
     private static FileController fileController;
     
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.fromEnvironment();
+        config.applyJvmSettings();
+        if (args.length > 0 && args[0].equals("loadtest")) {
+            LoadTest.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        int port = Settings.getInt("peerpass.http.port", 8080);
         try {
-            fileController = new FileController(8080);
+            fileController = new FileController(port, config);
             fileController.start();
-            System.out.println("PeerPass server started on port 8080");
+            System.out.println("PeerPass server started on port " + port);
             System.out.println("UI available at http://localhost:3000");
             
             // Add shutdown hook for graceful shutdown
@@ -32,7 +43,7 @@ public class App {
             }
 
         } catch (Exception ex) {
-            System.err.println("Failed to start the server at port 8080: " + ex.getMessage());
+            System.err.println("Failed to start the server at port " + port + ": " + ex.getMessage());
         }
     }
     
@@ -0,0 +1,101 @@
+package p2p.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import p2p.utils.MerkleTree;
+
+/**
+ * The chunk hashes of a share as served by {@code /manifest}, already checked against their
+ * Merkle root. Immutable.
+ */
+final class ChunkManifest {
+    private static final Pattern HEX_HASH = Pattern.compile("\"([0-9a-f]{64})\"");
+
+    final String sha256;
+    final long size;
+    final int chunkSize;
+    final List<byte[]> chunks;
+
+    private ChunkManifest(String sha256, long size, int chunkSize, List<byte[]> chunks) {
+        this.sha256 = sha256;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Fetches the manifest that goes with a {@code .../download/<code>} URL, or returns null
+     * if the server has none. A manifest that does not hash to its own root is an error.
+     */
+    static ChunkManifest fetch(String downloadUrl) throws IOException {
+        int at = downloadUrl.lastIndexOf("/download/");
+        if (at < 0) {
+            return null;
+        }
+        String manifestUrl = downloadUrl.substring(0, at) + "/manifest/" + downloadUrl.substring(at + "/download/".length());
+        HttpURLConnection conn = (HttpURLConnection) new URL(manifestUrl).openConnection();
+        String json;
+        try {
+            if (conn.getResponseCode() != 200) {
+                return null;
+            }
+            try (InputStream in = conn.getInputStream()) {
+                json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            conn.disconnect();
+        }
+
+        int chunksAt = json.indexOf("\"chunks\"");
+        Matcher matcher = HEX_HASH.matcher(json);
+        String sha256 = matcher.find() ? matcher.group(1) : null;
+        String root = matcher.find() ? matcher.group(1) : null;
+        List<byte[]> chunks = new ArrayList<>();
+        while (matcher.find() && matcher.start() > chunksAt) {
+            chunks.add(MerkleTree.fromHex(matcher.group(1)));
+        }
+        long size = numberField(json, "size");
+        int chunkSize = (int) numberField(json, "chunkSize");
+        if (root == null || chunksAt < 0 || chunkSize <= 0 || size < 0
+                || chunks.size() != MerkleTree.chunkCount(size, chunkSize)) {
+            throw new IOException("Malformed manifest from " + manifestUrl);
+        }
+        if (!Arrays.equals(MerkleTree.root(chunks), MerkleTree.fromHex(root))) {
+            throw new IOException("Manifest chunks do not match its root");
+        }
+        return new ChunkManifest(sha256, size, chunkSize, chunks);
+    }
+
+    int chunkCount() {
+        return chunks.size();
+    }
+
+    long chunkStart(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    int chunkLength(int chunk) {
+        return (int) (Math.min(size, chunkStart(chunk) + chunkSize) - chunkStart(chunk));
+    }
+
+    /**
+     * Whether {@code length} bytes of {@code data} are exactly the given chunk.
+     */
+    boolean verify(int chunk, byte[] data, int length) {
+        return length == chunkLength(chunk) && Arrays.equals(MerkleTree.leaf(data, 0, length), chunks.get(chunk));
+    }
+
+    private static long numberField(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\"\\s*:\\s*(\\d+)").matcher(json);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+}
@@ -0,0 +1,189 @@
+package p2p.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads a file through the resumable session API with several chunks in flight.
+ * The session id is kept next to the file in {@code <file>.peerpass-session}, so running
+ * the same command again after a failure only sends the chunks the server is missing.
+ *
+ * <pre>
+ * java -cp app.jar p2p.client.ChunkedUploader http://host:8080 big.iso [parallelism] [chunkSizeMB]
+ * </pre>
+ */
+public class ChunkedUploader {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Pattern SESSION = Pattern.compile("\"session\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern CHUNK_SIZE = Pattern.compile("\"chunkSize\"\\s*:\\s*(\\d+)");
+    private static final Pattern MISSING = Pattern.compile("\"missing\"\\s*:\\s*\\[([^\\]]*)\\]");
+    private static final Pattern PORT = Pattern.compile("\"port\"\\s*:\\s*(\\d+)");
+
+    private final String baseUrl;
+    private final int parallelism;
+    private final int chunkSize;
+
+    public ChunkedUploader(String baseUrl, int parallelism, int chunkSize) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.parallelism = Math.max(1, parallelism);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Uploads {@code file} and returns the share code.
+     */
+    public int upload(File file) throws IOException, InterruptedException {
+        Path stateFile = file.toPath().resolveSibling(file.getName() + ".peerpass-session");
+        String status = null;
+        if (Files.exists(stateFile)) {
+            String previous = new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8).trim();
+            status = request("GET", "/uploads/" + previous, 200, true);
+        }
+        if (status == null) {
+            status = request("POST", "/uploads?filename=" + URLEncoder.encode(file.getName(), StandardCharsets.UTF_8)
+                    + "&size=" + file.length() + "&chunkSize=" + chunkSize, 201, false);
+            Files.write(stateFile, match(SESSION, status).getBytes(StandardCharsets.UTF_8));
+        }
+
+        String session = match(SESSION, status);
+        long sessionChunkSize = Long.parseLong(match(CHUNK_SIZE, status));
+        List<Integer> missing = new ArrayList<>();
+        for (String index : match(MISSING, status).split(",")) {
+            if (!index.trim().isEmpty()) missing.add(Integer.parseInt(index.trim()));
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int index : missing) {
+                    futures.add(executor.submit(() -> {
+                        putChunk(channel, session, index, sessionChunkSize, file.length());
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        String result = request("POST", "/uploads/" + session + "/complete", 200, false);
+        Files.deleteIfExists(stateFile);
+        return Integer.parseInt(match(PORT, result));
+    }
+
+    private void putChunk(FileChannel channel, String session, int index, long sessionChunkSize, long fileSize)
+            throws IOException {
+        long offset = index * sessionChunkSize;
+        int length = (int) Math.min(sessionChunkSize, fileSize - offset);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File shrank while uploading");
+            }
+        }
+
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/uploads/" + session + "/chunks/" + index).openConnection();
+            conn.setRequestMethod("PUT");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(length);
+            try {
+                try (OutputStream out = conn.getOutputStream()) {
+                    out.write(buffer.array(), 0, length);
+                }
+                int status = conn.getResponseCode();
+                if (status == 204) {
+                    return;
+                }
+                lastError = new IOException("Chunk " + index + " rejected with status " + status);
+                if (status != 503) {
+                    break;
+                }
+                Thread.sleep(1000L * (attempt + 1));
+            } catch (IOException e) {
+                lastError = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } finally {
+                conn.disconnect();
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Sends a request without a body and returns the response text, or null when
+     * {@code allowMissing} is set and the server answered 404.
+     */
+    private String request(String method, String path, int expected, boolean allowMissing) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        try {
+            int status = conn.getResponseCode();
+            if (allowMissing && status == 404) {
+                return null;
+            }
+            if (status != expected) {
+                throw new IOException(method + " " + path + " failed with status " + status);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static String match(Pattern pattern, String json) throws IOException {
+        Matcher matcher = pattern.matcher(json);
+        if (!matcher.find()) {
+            throw new IOException("Unexpected response: " + json);
+        }
+        return matcher.group(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ChunkedUploader <server-url> <file> [parallelism] [chunkSizeMB]");
+            System.exit(1);
+        }
+        File file = new File(args[1]);
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) * 1024 * 1024 : 8 * 1024 * 1024;
+
+        long start = System.nanoTime();
+        int code = new ChunkedUploader(args[0], parallelism, chunkSize).upload(file);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Uploaded %s (%d bytes) in %.2fs, share code: %d%n", file.getName(), file.length(), seconds, code);
+    }
+}
@@ -0,0 +1,613 @@
+package p2p.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import p2p.controller.FileController;
+import p2p.controller.ServerConfig;
+import p2p.metrics.Histogram;
+
+/**
+ * Generates upload and download load against a server and reports throughput and latency
+ * per operation as JSON, so runs can be compared. Without {@code --target} it starts a
+ * server of its own on a free port and a temporary upload directory, configured from the
+ * usual {@code peerpass.*} settings.
+ *
+ * <p>Uploaders store files drawn from a size distribution, each with unique content so the
+ * store cannot deduplicate them; every upload is then downloaded {@code fanout} times by
+ * the downloaders. When no fresh share is waiting, downloaders fetch one of a few shares
+ * uploaded before the run starts. Workers are started evenly over the ramp-up.
+ *
+ * <p>With a rate set, each worker issues operations on a fixed schedule, and latency and
+ * time to first byte are measured from when an operation was due rather than when it was
+ * sent. A stall then counts against every operation that should have started during it,
+ * not just the one that was stuck (coordinated omission). The time from sending to
+ * completion is reported separately as the service time. With a rate of 0 a worker runs
+ * closed-loop and the two are the same.
+ *
+ * <pre>
+ * java -cp app.jar p2p.App loadtest --uploaders=2 --downloaders=8 --sizes=64k:60,1m:30,16m:10
+ * </pre>
+ */
+public class LoadTest {
+    private static final Pattern PORT = Pattern.compile("\"port\"\\s*:\\s*(\\d+)");
+    private static final int PRELOADED_SHARES = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * What to run; parsed from {@code --name=value} arguments.
+     */
+    public static class Workload {
+        private String target;
+        private int uploaders = 2;
+        private int downloaders = 8;
+        private long[] sizes = {64 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+        private int[] weights = {60, 30, 10};
+        private int fanout = 4;
+        private double rampSeconds = 5;
+        private double durationSeconds = 30;
+        private double uploadRate = 2;
+        private double downloadRate = 10;
+        private String output;
+
+        public static Workload parse(String[] args) {
+            Workload workload = new Workload();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --name=value: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "target": workload.setTarget(value); break;
+                    case "uploaders": workload.setUploaders(Integer.parseInt(value)); break;
+                    case "downloaders": workload.setDownloaders(Integer.parseInt(value)); break;
+                    case "sizes": workload.setSizes(value); break;
+                    case "fanout": workload.setFanout(Integer.parseInt(value)); break;
+                    case "ramp": workload.setRampSeconds(Double.parseDouble(value)); break;
+                    case "duration": workload.setDurationSeconds(Double.parseDouble(value)); break;
+                    case "upload-rate": workload.setUploadRate(Double.parseDouble(value)); break;
+                    case "download-rate": workload.setDownloadRate(Double.parseDouble(value)); break;
+                    case "output": workload.setOutput(value); break;
+                    default: throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            return workload;
+        }
+
+        /**
+         * Base URL of the server to load, such as {@code http://host:8080}; null to start one.
+         */
+        public Workload setTarget(String target) {
+            this.target = target == null || target.isEmpty() ? null : target.replaceAll("/+$", "");
+            return this;
+        }
+
+        public Workload setUploaders(int uploaders) {
+            this.uploaders = Math.max(0, uploaders);
+            return this;
+        }
+
+        public Workload setDownloaders(int downloaders) {
+            this.downloaders = Math.max(0, downloaders);
+            return this;
+        }
+
+        /**
+         * File sizes as comma-separated {@code size[:weight]} entries, with an optional
+         * {@code k}, {@code m} or {@code g} suffix, such as {@code 64k:60,1m:30,16m:10}.
+         */
+        public Workload setSizes(String spec) {
+            String[] entries = spec.split(",");
+            long[] sizes = new long[entries.length];
+            int[] weights = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                sizes[i] = parseSize(parts[0]);
+                weights[i] = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                if (sizes[i] < 0 || sizes[i] > Integer.MAX_VALUE - 16 || weights[i] <= 0) {
+                    throw new IllegalArgumentException("Bad size entry: " + entries[i]);
+                }
+            }
+            this.sizes = sizes;
+            this.weights = weights;
+            return this;
+        }
+
+        /**
+         * How many times each upload is downloaded during the run.
+         */
+        public Workload setFanout(int fanout) {
+            this.fanout = Math.max(1, fanout);
+            return this;
+        }
+
+        public Workload setRampSeconds(double rampSeconds) {
+            this.rampSeconds = Math.max(0, rampSeconds);
+            return this;
+        }
+
+        public Workload setDurationSeconds(double durationSeconds) {
+            this.durationSeconds = Math.max(0, durationSeconds);
+            return this;
+        }
+
+        /**
+         * Uploads per second per uploader; 0 to upload back to back.
+         */
+        public Workload setUploadRate(double uploadRate) {
+            this.uploadRate = Math.max(0, uploadRate);
+            return this;
+        }
+
+        /**
+         * Downloads per second per downloader; 0 to download back to back.
+         */
+        public Workload setDownloadRate(double downloadRate) {
+            this.downloadRate = Math.max(0, downloadRate);
+            return this;
+        }
+
+        /**
+         * File the JSON report is written to; null for standard output.
+         */
+        public Workload setOutput(String output) {
+            this.output = output;
+            return this;
+        }
+
+        long pickSize(Random random) {
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            int pick = random.nextInt(total);
+            for (int i = 0; i < sizes.length; i++) {
+                pick -= weights[i];
+                if (pick < 0) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
+
+        long maxSize() {
+            long max = 0;
+            for (long size : sizes) {
+                max = Math.max(max, size);
+            }
+            return max;
+        }
+
+        private static long parseSize(String text) {
+            String s = text.trim().toLowerCase(Locale.ROOT);
+            long unit = 1;
+            if (s.endsWith("k")) {
+                unit = 1024;
+            } else if (s.endsWith("m")) {
+                unit = 1024 * 1024;
+            } else if (s.endsWith("g")) {
+                unit = 1024 * 1024 * 1024;
+            }
+            if (unit > 1) {
+                s = s.substring(0, s.length() - 1);
+            }
+            return Long.parseLong(s) * unit;
+        }
+    }
+
+    /**
+     * A share waiting to be downloaded, with the number of downloads it has left.
+     */
+    private static class Upload {
+        final String code;
+        final long size;
+        final AtomicInteger remaining;
+
+        Upload(String code, long size, int fanout) {
+            this.code = code;
+            this.size = size;
+            this.remaining = new AtomicInteger(fanout);
+        }
+    }
+
+    /**
+     * Counters and histograms for one kind of operation. Times are recorded in
+     * microseconds.
+     */
+    private static class Operation {
+        final Histogram latency = new Histogram();
+        final Histogram serviceTime = new Histogram();
+        final Histogram firstByte = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final double rate;
+        final int workers;
+
+        Operation(double rate, int workers) {
+            this.rate = rate;
+            this.workers = workers;
+        }
+
+        void record(long intended, long sent, long headers, long done, long size) {
+            latency.record((done - intended) / 1000);
+            serviceTime.record((done - sent) / 1000);
+            firstByte.record((headers - intended) / 1000);
+            bytes.add(size);
+        }
+
+        void toJson(StringBuilder json, String name, double seconds) {
+            long count = latency.getCount();
+            json.append("    \"").append(name).append("\": {\n");
+            json.append("      \"workers\": ").append(workers).append(",\n");
+            json.append("      \"targetRatePerWorker\": ").append(format(rate)).append(",\n");
+            json.append("      \"coordinatedOmissionCorrected\": ").append(rate > 0).append(",\n");
+            json.append("      \"count\": ").append(count).append(",\n");
+            json.append("      \"errors\": ").append(errors.sum()).append(",\n");
+            json.append("      \"bytes\": ").append(bytes.sum()).append(",\n");
+            json.append("      \"opsPerSecond\": ").append(format(count / seconds)).append(",\n");
+            json.append("      \"bytesPerSecond\": ").append(format(bytes.sum() / seconds)).append(",\n");
+            appendTimes(json, "latencyMs", latency, ",");
+            appendTimes(json, "serviceTimeMs", serviceTime, ",");
+            appendTimes(json, "ttfbMs", firstByte, "");
+            json.append("    }");
+        }
+
+        private static void appendTimes(StringBuilder json, String name, Histogram histogram, String separator) {
+            long count = histogram.getCount();
+            json.append("      \"").append(name).append("\": {")
+                .append("\"p50\": ").append(millis(histogram.valueAtQuantile(0.50)))
+                .append(", \"p99\": ").append(millis(histogram.valueAtQuantile(0.99)))
+                .append(", \"p999\": ").append(millis(histogram.valueAtQuantile(0.999)))
+                .append(", \"max\": ").append(millis(histogram.getMax()))
+                .append(", \"mean\": ").append(millis(count == 0 ? 0 : histogram.getSum() / count))
+                .append("}").append(separator).append("\n");
+        }
+
+        private static String millis(long micros) {
+            return format(micros / 1000.0);
+        }
+    }
+
+    private final Workload workload;
+    private final Operation uploads;
+    private final Operation downloads;
+    private final ConcurrentLinkedDeque<Upload> pending = new ConcurrentLinkedDeque<>();
+    private final List<Upload> preloaded = new ArrayList<>();
+    private final AtomicLong uploadSequence = new AtomicLong();
+    private final byte[] content;
+    private String baseUrl;
+
+    public LoadTest(Workload workload) {
+        this.workload = workload;
+        this.uploads = new Operation(workload.uploadRate, workload.uploaders);
+        this.downloads = new Operation(workload.downloadRate, workload.downloaders);
+        this.content = new byte[(int) workload.maxSize() + 16];
+        new Random(42).nextBytes(content);
+    }
+
+    /**
+     * Runs the workload and returns the report.
+     */
+    public String run() throws IOException, InterruptedException {
+        if (workload.target != null) {
+            baseUrl = workload.target;
+            return execute();
+        }
+        Path dir = Files.createTempDirectory("peerpass-loadtest");
+        FileController controller = new FileController(0, ServerConfig.fromEnvironment()
+                .setUploadDir(dir.toString())
+                .setTransferPort(-1));
+        try {
+            controller.start();
+            baseUrl = "http://localhost:" + controller.getPort();
+            return execute();
+        } finally {
+            controller.stop();
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private String execute() throws IOException, InterruptedException {
+        // Something to download before the first upload of the run has finished
+        if (workload.downloaders > 0) {
+            Random random = new Random(7);
+            for (int i = 0; i < PRELOADED_SHARES; i++) {
+                long size = workload.pickSize(random);
+                preloaded.add(new Upload(upload(size), size, 0));
+            }
+        }
+
+        int workers = workload.uploaders + workload.downloaders;
+        long start = System.nanoTime();
+        long end = start + (long) ((workload.rampSeconds + workload.durationSeconds) * 1e9);
+        long rampStep = workers > 1 ? (long) (workload.rampSeconds * 1e9 / (workers - 1)) : 0;
+        List<Thread> threads = new ArrayList<>();
+        int placedUploaders = 0;
+        for (int i = 0; i < workers; i++) {
+            // Uploaders spread evenly among the downloaders, so both kinds ramp up together
+            boolean uploader = placedUploaders < (long) (i + 1) * workload.uploaders / workers;
+            if (uploader) {
+                placedUploaders++;
+            }
+            Operation operation = uploader ? uploads : downloads;
+            long firstStart = start + i * rampStep;
+            Thread thread = new Thread(() -> runWorker(operation, firstStart, end), "loadtest-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long lastReport = start;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(1000);
+                long now = System.nanoTime();
+                if (now - lastReport >= 5_000_000_000L) {
+                    lastReport = now;
+                    System.err.printf("%5.0fs  uploads %d (%d errors)  downloads %d (%d errors)%n",
+                                      (now - start) / 1e9, uploads.latency.getCount(), uploads.errors.sum(),
+                                      downloads.latency.getCount(), downloads.errors.sum());
+                }
+            }
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        return report(seconds);
+    }
+
+    /**
+     * Issues operations from {@code firstStart} until {@code end}, one every 1/rate seconds
+     * when a rate is set. An operation that falls behind its schedule starts as soon as the
+     * previous one finishes, and its latency still counts from when it was due.
+     */
+    private void runWorker(Operation operation, long firstStart, long end) {
+        long interval = operation.rate > 0 ? (long) (1e9 / operation.rate) : 0;
+        long intended = firstStart;
+        Random random = new Random(firstStart);
+        while (true) {
+            long now = System.nanoTime();
+            if (interval == 0) {
+                intended = Math.max(intended, now);
+            }
+            while (now < intended) {
+                LockSupport.parkNanos(intended - now);
+                now = System.nanoTime();
+            }
+            if (intended >= end || now >= end) {
+                return;
+            }
+            if (operation == uploads) {
+                timedUpload(intended, workload.pickSize(random));
+            } else {
+                timedDownload(intended, random);
+            }
+            if (interval > 0) {
+                intended += interval;
+            }
+        }
+    }
+
+    private void timedUpload(long intended, long size) {
+        long sent = System.nanoTime();
+        try {
+            HttpURLConnection conn = openUpload(size);
+            try {
+                int status = conn.getResponseCode();
+                long headers = System.nanoTime();
+                String body = readText(conn, status);
+                long done = System.nanoTime();
+                if (status != 200) {
+                    uploads.errors.increment();
+                    return;
+                }
+                uploads.record(intended, sent, headers, done, size);
+                pending.add(new Upload(match(body), size, workload.fanout));
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException e) {
+            uploads.errors.increment();
+        }
+    }
+
+    private void timedDownload(long intended, Random random) {
+        Upload share = nextShare(random);
+        long sent = System.nanoTime();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/download/" + share.code).openConnection();
+            try {
+                int status = conn.getResponseCode();
+                long headers = System.nanoTime();
+                if (status != 200) {
+                    readText(conn, status);
+                    downloads.errors.increment();
+                    return;
+                }
+                long received = 0;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try (InputStream in = conn.getInputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        received += n;
+                    }
+                }
+                long done = System.nanoTime();
+                if (received != share.size) {
+                    downloads.errors.increment();
+                    return;
+                }
+                downloads.record(intended, sent, headers, done, received);
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException e) {
+            downloads.errors.increment();
+        }
+    }
+
+    /**
+     * The oldest upload with downloads left, or a preloaded share when there is none.
+     */
+    private Upload nextShare(Random random) {
+        Upload share;
+        while ((share = pending.peekFirst()) != null) {
+            int left = share.remaining.decrementAndGet();
+            if (left <= 0) {
+                pending.remove(share);
+            }
+            if (left >= 0) {
+                return share;
+            }
+        }
+        return preloaded.get(random.nextInt(preloaded.size()));
+    }
+
+    /**
+     * Uploads a file of {@code size} bytes outside of any measurement and returns its code.
+     */
+    private String upload(long size) throws IOException {
+        HttpURLConnection conn = openUpload(size);
+        try {
+            int status = conn.getResponseCode();
+            String body = readText(conn, status);
+            if (status != 200) {
+                throw new IOException("Upload failed with status " + status + ": " + body);
+            }
+            return match(body);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Sends a multipart upload of {@code size} bytes and leaves the response to be read.
+     * The first 16 bytes are unique to the upload so no two store as the same blob.
+     */
+    private HttpURLConnection openUpload(long size) throws IOException {
+        long sequence = uploadSequence.incrementAndGet();
+        String boundary = "loadtest" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[] head = ("--" + boundary + "\r\n" +
+                       "Content-Disposition: form-data; name=\"file\"; filename=\"load-" + sequence + ".bin\"\r\n" +
+                       "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[16];
+        long nonce = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            prefix[i] = (byte) (sequence >>> (i * 8));
+            prefix[8 + i] = (byte) (nonce >>> (i * 8));
+        }
+        int prefixLength = (int) Math.min(16, size);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        conn.setFixedLengthStreamingMode(head.length + size + tail.length);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            out.write(prefix, 0, prefixLength);
+            long offset = prefixLength;
+            while (offset < size) {
+                int n = (int) Math.min(BUFFER_SIZE, size - offset);
+                out.write(content, (int) offset, n);
+                offset += n;
+            }
+            out.write(tail);
+        }
+        return conn;
+    }
+
+    private static String readText(HttpURLConnection conn, int status) throws IOException {
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            return in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String match(String json) throws IOException {
+        Matcher matcher = PORT.matcher(json);
+        if (!matcher.find()) {
+            throw new IOException("Unexpected response: " + json);
+        }
+        return matcher.group(1);
+    }
+
+    private String report(double seconds) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"target\": ").append(workload.target == null ? "null" : quote(workload.target)).append(",\n");
+        json.append("  \"workload\": {");
+        json.append("\"uploaders\": ").append(workload.uploaders);
+        json.append(", \"downloaders\": ").append(workload.downloaders);
+        json.append(", \"fanout\": ").append(workload.fanout);
+        json.append(", \"rampSeconds\": ").append(format(workload.rampSeconds));
+        json.append(", \"durationSeconds\": ").append(format(workload.durationSeconds));
+        json.append(", \"sizes\": [");
+        for (int i = 0; i < workload.sizes.length; i++) {
+            json.append(i > 0 ? ", " : "").append("{\"bytes\": ").append(workload.sizes[i])
+                .append(", \"weight\": ").append(workload.weights[i]).append("}");
+        }
+        json.append("]},\n");
+        json.append("  \"elapsedSeconds\": ").append(format(seconds)).append(",\n");
+        json.append("  \"operations\": {\n");
+        uploads.toJson(json, "upload", seconds);
+        json.append(",\n");
+        downloads.toJson(json, "download", seconds);
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public static void main(String[] args) throws Exception {
+        Workload workload;
+        try {
+            workload = Workload.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: App loadtest [--target=http://host:8080] [--uploaders=2] [--downloaders=8]");
+            System.err.println("                    [--sizes=64k:60,1m:30,16m:10] [--fanout=4] [--ramp=5] [--duration=30]");
+            System.err.println("                    [--upload-rate=2] [--download-rate=10] [--output=report.json]");
+            System.exit(1);
+            return;
+        }
+        String report = new LoadTest(workload).run();
+        if (workload.output != null) {
+            Files.write(Paths.get(workload.output), report.getBytes(StandardCharsets.UTF_8));
+            System.err.println("Report written to " + workload.output);
+        } else {
+            System.out.print(report);
+        }
+    }
+}
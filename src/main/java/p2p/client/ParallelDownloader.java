@@ -0,0 +1,350 @@
+package p2p.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import p2p.utils.MerkleTree;
+
+/**
+ * Downloads a share over several parallel range requests and writes every segment
+ * straight into its place in a preallocated output file.
+ *
+ * <p>When the server publishes a chunk manifest for the share, segments are cut on chunk
+ * boundaries and every chunk is hashed as it arrives. Chunks that do not match are fetched
+ * again on their own, so a damaged transfer costs one chunk rather than the whole file.
+ *
+ * <pre>
+ * java -cp app.jar p2p.client.ParallelDownloader http://host:8080/download/123456 [output] [connections]
+ * </pre>
+ */
+public class ParallelDownloader {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String url;
+    private final int connections;
+    private int refetchedChunks;
+    private int verifiedChunks;
+
+    public ParallelDownloader(String url, int connections) {
+        this.url = url;
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Downloads the share into {@code output}, or into a file named after the share in the
+     * current directory when {@code output} is null. Returns the file that was written.
+     */
+    public File download(File output) throws IOException, InterruptedException {
+        Probe probe = probe();
+        if (output == null) {
+            output = new File(probe.filename != null ? probe.filename : "download.bin");
+        }
+
+        Verifier verifier = probe.length > 0 ? fetchManifest(probe) : null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(output, "rw")) {
+            raf.setLength(probe.length);
+            FileChannel channel = raf.getChannel();
+
+            if (!probe.rangesSupported || probe.length == 0) {
+                fetchSegment(channel, 0, probe.length - 1, false, null, verifier);
+                if (verifier != null) {
+                    if (!verifier.failed.isEmpty()) {
+                        throw new IOException("Chunks " + verifier.failed + " failed verification and ranges are not supported");
+                    }
+                    verifiedChunks = verifier.verified.get();
+                }
+                return output;
+            }
+
+            int segments = (int) Math.min(connections, probe.length);
+            long segmentSize = (probe.length + segments - 1) / segments;
+            if (verifier != null) {
+                // Whole chunks per segment, so each chunk is hashed by one reader
+                segmentSize = (segmentSize + verifier.chunkSize - 1) / verifier.chunkSize * verifier.chunkSize;
+                segments = (int) ((probe.length + segmentSize - 1) / segmentSize);
+            }
+            long segmentBytes = segmentSize;
+            ExecutorService executor = Executors.newFixedThreadPool(segments);
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < segments; i++) {
+                    long first = i * segmentBytes;
+                    long last = Math.min(probe.length, first + segmentBytes) - 1;
+                    futures.add(executor.submit(() -> {
+                        fetchSegment(channel, first, last, true, probe.validator, verifier);
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (java.util.concurrent.ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            if (verifier != null) {
+                refetchFailedChunks(channel, probe, verifier);
+                verifiedChunks = verifier.verified.get();
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Chunks that passed verification during the last download.
+     */
+    public int getVerifiedChunks() {
+        return verifiedChunks;
+    }
+
+    /**
+     * Chunks that failed verification and were fetched again during the last download.
+     */
+    public int getRefetchedChunks() {
+        return refetchedChunks;
+    }
+
+    private void refetchFailedChunks(FileChannel channel, Probe probe, Verifier verifier) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && !verifier.failed.isEmpty(); attempt++) {
+            Set<Integer> chunks = new TreeSet<>(verifier.failed);
+            verifier.failed.clear();
+            for (int chunk : chunks) {
+                long first = (long) chunk * verifier.chunkSize;
+                long last = Math.min(probe.length, first + verifier.chunkSize) - 1;
+                refetchedChunks++;
+                fetchSegment(channel, first, last, true, probe.validator, verifier);
+            }
+        }
+        if (!verifier.failed.isEmpty()) {
+            throw new IOException("Chunks " + new TreeSet<>(verifier.failed) + " still fail verification after "
+                                  + MAX_ATTEMPTS + " attempts");
+        }
+    }
+
+    /**
+     * Fetches the chunk manifest that goes with the download URL, or returns null if the
+     * server has none. A manifest that describes other content than the download's entity
+     * tag is an error.
+     */
+    private Verifier fetchManifest(Probe probe) throws IOException {
+        ChunkManifest manifest = ChunkManifest.fetch(url);
+        if (manifest == null) {
+            return null;
+        }
+        if (manifest.size != probe.length || (probe.validator != null && probe.validator.matches("\"[0-9a-f]{64}\"")
+                && !probe.validator.equals("\"" + manifest.sha256 + "\""))) {
+            throw new IOException("Manifest describes different content than the download");
+        }
+        return new Verifier(manifest.chunkSize, manifest.size, manifest.chunks);
+    }
+
+    /**
+     * Asks for the first byte only, which tells us the total length, whether the server
+     * honours ranges, and the validator to pin every segment to the same version.
+     */
+    private Probe probe() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestProperty("Range", "bytes=0-0");
+        try {
+            int status = conn.getResponseCode();
+            Probe probe = new Probe();
+            probe.filename = parseFilename(conn.getHeaderField("Content-Disposition"));
+            probe.validator = conn.getHeaderField("ETag") != null
+                    ? conn.getHeaderField("ETag") : conn.getHeaderField("Last-Modified");
+            if (status == 206) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                probe.length = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+                probe.rangesSupported = true;
+            } else if (status == 200) {
+                probe.length = conn.getContentLengthLong();
+                if (probe.length < 0) {
+                    throw new IOException("Server did not report a content length");
+                }
+            } else {
+                throw new IOException("Unexpected status " + status + " from " + url);
+            }
+            return probe;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Fetches the inclusive range [first, last] with positional writes. With {@code ranged}
+     * every request asks for the bytes still missing, pinned to {@code validator} by
+     * If-Range when there is one, so a dropped connection resumes from the last written
+     * byte. Without it the server only sends the whole body, so a retry starts over at 0.
+     * With a verifier, {@code first} must be a chunk boundary.
+     */
+    private void fetchSegment(FileChannel channel, long first, long last, boolean ranged, String validator,
+                              Verifier verifier) throws IOException {
+        Verifier.ChunkCheck check = verifier == null ? null : verifier.new ChunkCheck(first);
+        long position = first;
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && position <= last; attempt++) {
+            if (!ranged && position > first) {
+                // The whole body is the only segment, so its chunk results can be dropped too
+                position = first;
+                if (verifier != null) {
+                    verifier.failed.clear();
+                    verifier.verified.set(0);
+                    check = verifier.new ChunkCheck(first);
+                }
+            }
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            if (ranged) {
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + last);
+                if (validator != null) {
+                    conn.setRequestProperty("If-Range", validator);
+                }
+            }
+            try {
+                int status = conn.getResponseCode();
+                if (ranged) {
+                    String contentRange = conn.getHeaderField("Content-Range");
+                    if (status != 206) {
+                        throw new IOException("Share changed or range refused (status " + status + ")");
+                    }
+                    if (contentRange == null || !contentRange.startsWith("bytes " + position + "-")) {
+                        throw new IOException("Server sent range " + contentRange + " for a request from byte " + position);
+                    }
+                } else if (status != 200) {
+                    throw new IOException("Unexpected status " + status + " from " + url);
+                }
+                try (InputStream in = conn.getInputStream()) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+                    int read;
+                    while (position <= last && (read = in.read(buffer)) != -1) {
+                        wrapper.clear().limit((int) Math.min(read, last - position + 1));
+                        if (check != null) {
+                            check.update(buffer, wrapper.limit());
+                        }
+                        while (wrapper.hasRemaining()) {
+                            position += channel.write(wrapper, position);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                lastError = e;
+            } finally {
+                conn.disconnect();
+            }
+        }
+        if (position <= last) {
+            throw lastError != null ? lastError : new IOException("Segment ended early at byte " + position);
+        }
+    }
+
+    static String parseFilename(String contentDisposition) {
+        if (contentDisposition == null) {
+            return null;
+        }
+        int start = contentDisposition.indexOf("filename=\"");
+        if (start < 0) {
+            return null;
+        }
+        start += "filename=\"".length();
+        int end = contentDisposition.indexOf('"', start);
+        return end < 0 ? null : new File(contentDisposition.substring(start, end)).getName();
+    }
+
+    /**
+     * Expected chunk hashes, and the chunks that did not match them.
+     */
+    private static class Verifier {
+        final int chunkSize;
+        final long size;
+        final List<byte[]> chunks;
+        final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+        final AtomicInteger verified = new AtomicInteger();
+
+        Verifier(int chunkSize, long size, List<byte[]> chunks) {
+            this.chunkSize = chunkSize;
+            this.size = size;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Hashes the bytes of one segment in order and checks each chunk as it completes.
+         */
+        class ChunkCheck {
+            private long position;
+            private MessageDigest digest = MerkleTree.newLeafDigest();
+
+            ChunkCheck(long position) {
+                this.position = position;
+            }
+
+            void update(byte[] data, int length) {
+                int offset = 0;
+                while (offset < length) {
+                    long chunkEnd = Math.min(size, (position / chunkSize + 1) * chunkSize);
+                    int n = (int) Math.min(length - offset, chunkEnd - position);
+                    digest.update(data, offset, n);
+                    offset += n;
+                    position += n;
+                    if (position == chunkEnd) {
+                        int chunk = (int) ((position - 1) / chunkSize);
+                        if (Arrays.equals(digest.digest(), chunks.get(chunk))) {
+                            verified.incrementAndGet();
+                        } else {
+                            failed.add(chunk);
+                        }
+                        digest = MerkleTree.newLeafDigest();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Probe {
+        long length;
+        boolean rangesSupported;
+        String filename;
+        String validator;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ParallelDownloader <download-url> [output-file] [connections]");
+            System.exit(1);
+        }
+        File output = args.length > 1 ? new File(args[1]) : null;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        long start = System.nanoTime();
+        ParallelDownloader downloader = new ParallelDownloader(args[0], connections);
+        File written = downloader.download(output);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Downloaded %s (%d bytes) in %.2fs over %d connections%n",
+                written.getName(), written.length(), seconds, connections);
+        if (downloader.getVerifiedChunks() > 0) {
+            System.out.printf("Verified %d chunks, fetched %d again%n",
+                    downloader.getVerifiedChunks(), downloader.getRefetchedChunks());
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package p2p.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads a share from other peers and the server at the same time, and serves the
+ * chunks it has to the other peers while it downloads and afterwards.
+ *
+ * <p>Peers find each other through the server's {@code /swarm} tracker. Chunks are the
+ * ones of the share's manifest, and every chunk is checked against it before it is written
+ * or served, so a peer cannot spread bad data; one that sends a bad chunk is not asked
+ * again. The rarest chunks among the known peers are fetched first, which spreads chunks
+ * through the swarm quickly. Each chunk comes from a random peer that has it, or from the
+ * server if none has, so a lone receiver simply downloads everything from the server.
+ *
+ * <p>Started on a complete file, the peer only seeds. Several peers can run on one machine,
+ * each with its own listen port:
+ * <pre>
+ * java p2p.client.SwarmPeer http://localhost:8080/download/123456 [output] [listen-port] [seed-seconds]
+ * </pre>
+ */
+public class SwarmPeer implements Closeable {
+    private static final int WORKERS = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int PEER_TIMEOUT_MILLIS = 5_000;
+    private static final int SERVER_TIMEOUT_MILLIS = 30_000;
+    private static final Pattern PEER = Pattern.compile("\\{\"url\": \"([^\"]+)\", \"have\": \"([A-Za-z0-9_-]*)\"\\}");
+    private static final Pattern INTERVAL = Pattern.compile("\"interval\":\\s*(\\d+)");
+
+    private final String downloadUrl;
+    private final String trackerUrl;
+    private final File output;
+    private final int listenPort;
+    private ChunkManifest manifest;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private HttpServer server;
+    private ScheduledExecutorService announcer;
+    private volatile long announceIntervalMillis = 5000;
+
+    // All guarded by this
+    private final BitSet have = new BitSet();
+    private final BitSet inFlight = new BitSet();
+    private Map<String, BitSet> peers = new HashMap<>();
+    private int[] availability = new int[0];
+    private int[] failures;
+
+    private final Set<String> banned = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger fromPeers = new AtomicInteger();
+    private final AtomicInteger fromServer = new AtomicInteger();
+    private final AtomicInteger served = new AtomicInteger();
+
+    /**
+     * @param downloadUrl the share's {@code .../download/<code>} URL
+     * @param listenPort  port to serve chunks on; 0 picks a free one
+     */
+    public SwarmPeer(String downloadUrl, File output, int listenPort) {
+        int at = downloadUrl.lastIndexOf("/download/");
+        if (at < 0) {
+            throw new IllegalArgumentException("Not a download URL: " + downloadUrl);
+        }
+        this.downloadUrl = downloadUrl;
+        this.trackerUrl = downloadUrl.substring(0, at) + "/swarm/" + downloadUrl.substring(at + "/download/".length());
+        this.output = output;
+        this.listenPort = listenPort;
+    }
+
+    /**
+     * Fetches the manifest, checks what the output file already holds, starts serving and
+     * joins the swarm.
+     */
+    public void start() throws IOException {
+        manifest = ChunkManifest.fetch(downloadUrl);
+        if (manifest == null) {
+            throw new IOException("The server has no chunk manifest for " + downloadUrl);
+        }
+        failures = new int[manifest.chunkCount()];
+        boolean existing = output.length() == manifest.size;
+        file = new RandomAccessFile(output, "rw");
+        file.setLength(manifest.size);
+        channel = file.getChannel();
+        if (existing) {
+            verifyExisting();
+        }
+        if (manifest.size == 0) {
+            have.set(0);
+        }
+
+        server = HttpServer.create(new InetSocketAddress(listenPort), 64);
+        server.createContext("/chunks/", this::serveChunk);
+        server.setExecutor(Executors.newFixedThreadPool(WORKERS, daemon("swarm-serve")));
+        server.start();
+
+        announcer = Executors.newSingleThreadScheduledExecutor(daemon("swarm-announce"));
+        announce(null);
+        announcer.schedule(this::announcePeriodically, announceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fetches every missing chunk, then tells the tracker this peer is complete.
+     */
+    public File download() throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, daemon("swarm-fetch"));
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < WORKERS; i++) {
+                futures.add(workers.submit(() -> {
+                    fetchChunks();
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        synchronized (this) {
+            if (have.cardinality() != manifest.chunkCount()) {
+                throw new IOException("Download ended with " + have.cardinality() + " of " + manifest.chunkCount() + " chunks");
+            }
+        }
+        announce("completed");
+        return output;
+    }
+
+    /**
+     * Keeps serving chunks to other peers; a negative time seeds until interrupted.
+     */
+    public void seed(long millis) throws InterruptedException {
+        if (millis < 0) {
+            Thread.sleep(Long.MAX_VALUE);
+        } else {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Leaves the swarm and stops serving.
+     */
+    @Override
+    public void close() throws IOException {
+        if (announcer != null) {
+            announcer.shutdownNow();
+            announce("stopped");
+        }
+        if (server != null) {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    public int getChunksFromPeers() {
+        return fromPeers.get();
+    }
+
+    public int getChunksFromServer() {
+        return fromServer.get();
+    }
+
+    public int getChunksServed() {
+        return served.get();
+    }
+
+    /**
+     * The port this peer serves chunks on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void fetchChunks() throws IOException {
+        byte[] buffer = new byte[manifest.chunkSize];
+        int chunk;
+        while ((chunk = claimChunk()) >= 0) {
+            boolean done = false;
+            try {
+                done = fetchChunk(chunk, buffer);
+            } finally {
+                finish(chunk, done);
+            }
+        }
+    }
+
+    /**
+     * Picks the missing chunk that the fewest known peers have, at random among equals, or
+     * returns -1 when every missing chunk is already being fetched.
+     */
+    private synchronized int claimChunk() throws IOException {
+        int best = -1;
+        int bestAvailability = Integer.MAX_VALUE;
+        int ties = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int chunk = have.nextClearBit(0); chunk < manifest.chunkCount(); chunk = have.nextClearBit(chunk + 1)) {
+            if (inFlight.get(chunk)) {
+                continue;
+            }
+            if (failures[chunk] >= MAX_ATTEMPTS) {
+                throw new IOException("Chunk " + chunk + " failed verification from every source");
+            }
+            int count = chunk < availability.length ? availability[chunk] : 0;
+            if (count < bestAvailability) {
+                best = chunk;
+                bestAvailability = count;
+                ties = 1;
+            } else if (count == bestAvailability && random.nextInt(++ties) == 0) {
+                best = chunk;
+            }
+        }
+        if (best >= 0) {
+            inFlight.set(best);
+        }
+        return best;
+    }
+
+    private synchronized void finish(int chunk, boolean done) {
+        inFlight.clear(chunk);
+        if (done) {
+            have.set(chunk);
+        } else {
+            failures[chunk]++;
+        }
+    }
+
+    /**
+     * Fetches one chunk from a peer that has it, falling back to the server, and writes it
+     * once verified. Returns false if no source delivered it intact.
+     */
+    private boolean fetchChunk(int chunk, byte[] buffer) throws IOException {
+        int length = manifest.chunkLength(chunk);
+        String peer = pickPeer(chunk);
+        if (peer != null) {
+            int read = get(peer + "/chunks/" + chunk, null, buffer, length, PEER_TIMEOUT_MILLIS);
+            if (read >= 0 && manifest.verify(chunk, buffer, read)) {
+                write(chunk, buffer, length);
+                fromPeers.incrementAndGet();
+                return true;
+            }
+            if (read >= 0) {
+                System.err.println("Peer " + peer + " sent a bad copy of chunk " + chunk + "; not asking it again");
+                banned.add(peer);
+            }
+            forget(peer);
+        }
+        long start = manifest.chunkStart(chunk);
+        int read = get(downloadUrl, "bytes=" + start + "-" + (start + length - 1), buffer, length, SERVER_TIMEOUT_MILLIS);
+        if (read >= 0 && manifest.verify(chunk, buffer, read)) {
+            write(chunk, buffer, length);
+            fromServer.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized String pickPeer(int chunk) {
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, BitSet> peer : peers.entrySet()) {
+            if (peer.getValue().get(chunk) && !banned.contains(peer.getKey())) {
+                candidates.add(peer.getKey());
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+    }
+
+    /**
+     * Stops asking a peer that failed until the next announce lists it again.
+     */
+    private synchronized void forget(String peer) {
+        BitSet chunks = peers.remove(peer);
+        if (chunks != null) {
+            for (int i = chunks.nextSetBit(0); i >= 0 && i < availability.length; i = chunks.nextSetBit(i + 1)) {
+                availability[i]--;
+            }
+        }
+    }
+
+    /**
+     * GETs up to {@code length} bytes into {@code buffer}. Returns the number read, or -1
+     * if the request failed or the body was longer.
+     */
+    private int get(String url, String range, byte[] buffer, int length, int timeoutMillis) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(timeoutMillis);
+            conn.setReadTimeout(timeoutMillis);
+            if (range != null) {
+                conn.setRequestProperty("Range", range);
+                // A different version of the share answers 200 with the whole file
+                conn.setRequestProperty("If-Range", "\"" + manifest.sha256 + "\"");
+            }
+            int status = conn.getResponseCode();
+            if (status != (range != null ? 206 : 200)) {
+                conn.disconnect();
+                return -1;
+            }
+            try (InputStream in = conn.getInputStream()) {
+                int read = in.readNBytes(buffer, 0, length);
+                return in.read() == -1 ? read : -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void write(int chunk, byte[] data, int length) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data, 0, length);
+        long position = manifest.chunkStart(chunk);
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Marks the chunks of an existing output file that are already correct.
+     */
+    private void verifyExisting() throws IOException {
+        byte[] buffer = new byte[manifest.chunkSize];
+        for (int chunk = 0; chunk < manifest.chunkCount(); chunk++) {
+            int length = manifest.chunkLength(chunk);
+            ByteBuffer dst = ByteBuffer.wrap(buffer, 0, length);
+            long position = manifest.chunkStart(chunk);
+            while (dst.hasRemaining() && channel.read(dst, position + dst.position()) >= 0) {
+                // Read until the chunk is complete
+            }
+            if (manifest.verify(chunk, buffer, dst.position())) {
+                synchronized (this) {
+                    have.set(chunk);
+                }
+            }
+        }
+    }
+
+    private void serveChunk(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            int chunk;
+            try {
+                chunk = Integer.parseInt(exchange.getRequestURI().getPath().substring("/chunks/".length()));
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            boolean present;
+            synchronized (this) {
+                present = chunk >= 0 && have.get(chunk);
+            }
+            if (!present || !exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] data = new byte[manifest.chunkLength(chunk)];
+            ByteBuffer dst = ByteBuffer.wrap(data);
+            long position = manifest.chunkStart(chunk);
+            while (dst.hasRemaining() && channel.read(dst, position + dst.position()) >= 0) {
+                // Read until the chunk is complete
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, data.length == 0 ? -1 : data.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(data);
+            }
+            served.incrementAndGet();
+        }
+    }
+
+    private void announcePeriodically() {
+        announce(null);
+        if (!announcer.isShutdown()) {
+            announcer.schedule(this::announcePeriodically, announceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends this peer's chunks to the tracker and takes over the peer list it returns.
+     * Failures are reported and the previous list is kept.
+     */
+    private void announce(String event) {
+        String bitmap;
+        synchronized (this) {
+            bitmap = Base64.getUrlEncoder().withoutPadding().encodeToString(have.toByteArray());
+        }
+        String url = trackerUrl + "?port=" + getPort() + "&have=" + bitmap + (event != null ? "&event=" + event : "");
+        String json;
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(SERVER_TIMEOUT_MILLIS);
+            conn.setReadTimeout(SERVER_TIMEOUT_MILLIS);
+            if (conn.getResponseCode() != 200) {
+                System.err.println("Tracker answered " + conn.getResponseCode() + " to an announce");
+                conn.disconnect();
+                return;
+            }
+            try (InputStream in = conn.getInputStream()) {
+                json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            System.err.println("Error announcing to the tracker: " + e.getMessage());
+            return;
+        }
+
+        Matcher interval = INTERVAL.matcher(json);
+        if (interval.find()) {
+            announceIntervalMillis = Math.max(1, Long.parseLong(interval.group(1))) * 1000;
+        }
+        Map<String, BitSet> listed = new HashMap<>();
+        int[] counts = new int[manifest.chunkCount()];
+        Matcher peer = PEER.matcher(json);
+        while (peer.find()) {
+            if (banned.contains(peer.group(1))) {
+                continue;
+            }
+            BitSet chunks = BitSet.valueOf(Base64.getUrlDecoder().decode(peer.group(2)));
+            listed.put(peer.group(1), chunks);
+            for (int i = chunks.nextSetBit(0); i >= 0 && i < counts.length; i = chunks.nextSetBit(i + 1)) {
+                counts[i]++;
+            }
+        }
+        synchronized (this) {
+            peers = listed;
+            availability = counts;
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The name the server gives the download, from a one-byte request.
+     */
+    private static String remoteFilename(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestProperty("Range", "bytes=0-0");
+        try {
+            conn.getResponseCode();
+            String filename = ParallelDownloader.parseFilename(conn.getHeaderField("Content-Disposition"));
+            return filename != null ? filename : "download.bin";
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SwarmPeer <download-url> [output] [listen-port] [seed-seconds]");
+            System.exit(1);
+        }
+        File output = new File(args.length > 1 ? args[1] : remoteFilename(args[0]));
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        long seedSeconds = args.length > 3 ? Long.parseLong(args[3]) : 60;
+
+        try (SwarmPeer peer = new SwarmPeer(args[0], output, port)) {
+            long start = System.nanoTime();
+            peer.start();
+            System.out.println("Serving chunks on port " + peer.getPort());
+            peer.download();
+            System.out.printf("Downloaded %s (%d bytes) in %.2fs: %d chunks from peers, %d from the server%n",
+                    output.getName(), output.length(), (System.nanoTime() - start) / 1e9,
+                    peer.getChunksFromPeers(), peer.getChunksFromServer());
+            if (seedSeconds != 0) {
+                System.out.println(seedSeconds < 0 ? "Seeding until interrupted" : "Seeding for " + seedSeconds + "s");
+                peer.seed(seedSeconds * 1000);
+            }
+            System.out.println("Served " + peer.getChunksServed() + " chunks to other peers");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package p2p.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import p2p.service.TransferServer;
+
+/**
+ * Downloads a share from the raw TCP transfer server.
+ *
+ * <pre>
+ * java -cp peerpass.jar p2p.client.TransferClient &lt;host&gt; &lt;port&gt; &lt;code&gt; [output]
+ * </pre>
+ */
+public class TransferClient {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: TransferClient <host> <port> <code> [output]");
+            System.exit(2);
+        }
+        Path output = download(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                               args.length > 3 ? Paths.get(args[3]) : null);
+        System.out.println("Saved " + output);
+    }
+
+    /**
+     * Fetches a share and writes it to {@code output}, or to the sender's filename in the
+     * working directory when that is null. Returns the path written.
+     */
+    public static Path download(String host, int port, int code, Path output) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(TransferServer.MAGIC);
+            out.writeByte(TransferServer.VERSION);
+            out.writeInt(code);
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String filename = null;
+            long length = -1;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.startsWith("Filename: ")) {
+                    filename = decodeFilename(line.substring("Filename: ".length()));
+                } else if (line.startsWith("Length: ")) {
+                    length = Long.parseLong(line.substring("Length: ".length()));
+                } else if (line.startsWith("Error: ")) {
+                    throw new IOException(line.substring("Error: ".length()));
+                }
+            }
+            if (filename == null || length < 0) {
+                throw new IOException("Malformed response headers");
+            }
+            if (output == null) {
+                // Never let the sender pick a path outside the working directory
+                String name = filename.replace('\\', '/').replaceAll("\\p{Cntrl}", "_");
+                name = name.substring(name.lastIndexOf('/') + 1);
+                if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                    throw new IOException("Unusable filename: " + TransferServer.encodeFilename(filename));
+                }
+                output = Paths.get(name);
+            }
+            long copied = Files.copy(in, output, StandardCopyOption.REPLACE_EXISTING);
+            if (copied != length) {
+                throw new IOException("Expected " + length + " bytes but received " + copied);
+            }
+            return output;
+        }
+    }
+
+    private static String decodeFilename(String value) throws IOException {
+        try {
+            return TransferServer.decodeFilename(value);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed in headers");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
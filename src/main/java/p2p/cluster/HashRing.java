@@ -0,0 +1,103 @@
+package p2p.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Consistent hashing of share codes onto the nodes of a cluster.
+ *
+ * <p>Every node is placed on a 64-bit ring at {@code virtualNodes} points, and a code
+ * belongs to the node at the first point at or after the code's hash. Adding a node only
+ * moves the codes that now fall just before its points, about 1/N of them, and removing one
+ * only moves its own codes; everything else keeps its owner. The many points per node even
+ * out the share of the ring each node gets.
+ *
+ * <p>Points and code hashes depend only on the node names and the code, so every node that
+ * is given the same node list computes the same owners. Immutable.
+ */
+public final class HashRing {
+    private final List<String> nodes;
+    // Ring positions, ascending, and the index of the node at each
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param nodes        node names, typically base URLs such as {@code http://10.0.0.5:8080}
+     * @param virtualNodes points per node on the ring
+     */
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Nodes need at least one point on the ring, not " + virtualNodes);
+        }
+        if (new HashSet<>(nodes).size() != nodes.size()) {
+            throw new IllegalArgumentException("Cluster nodes are listed more than once: " + nodes);
+        }
+        this.nodes = List.copyOf(nodes);
+        int count = nodes.size() * virtualNodes;
+        long[] hashes = new long[count];
+        MessageDigest digest = sha256();
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                byte[] hash = digest.digest((nodes.get(node) + "#" + i).getBytes(StandardCharsets.UTF_8));
+                long point = 0;
+                for (int b = 0; b < 8; b++) {
+                    point = point << 8 | (hash[b] & 0xff);
+                }
+                hashes[node * virtualNodes + i] = point;
+            }
+        }
+        // Ties are broken by list position so that every node sorts them the same way
+        int[] order = IntStream.range(0, count).boxed()
+                .sorted(Comparator.<Integer>comparingLong(i -> hashes[i]).thenComparingInt(i -> i))
+                .mapToInt(Integer::intValue).toArray();
+        this.points = new long[count];
+        this.owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    public String ownerOf(int code) {
+        int i = Arrays.binarySearch(points, hash(code));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return nodes.get(owners[i == points.length ? 0 : i]);
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Spreads consecutive codes over the ring (the MurmurHash3 finalizer); cheap enough to
+     * run for every code of the code space at startup.
+     */
+    static long hash(int code) {
+        long x = code;
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package p2p.cluster;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.service.BlobStore;
+import p2p.service.FileSharer;
+import p2p.service.Share;
+import p2p.service.ShareIndex;
+import p2p.utils.AsyncLogger;
+
+/**
+ * Moves shares this node holds but does not own to the node that does. That happens after a
+ * restart with a changed node list: a joining node takes over part of every other node's
+ * codes, and a node restarted with a list that leaves it out hands over everything, after
+ * which it can be shut down.
+ *
+ * <p>Each share goes over in one {@code POST /cluster/shares} request: the share record as
+ * the share index stores it, length-prefixed, followed by the content of its blobs in
+ * order. The local copy is removed once the owner has accepted it. Until then it is still
+ * served here, so downloads keep working while shares move. Shares whose owner is down are
+ * retried after a delay.
+ */
+public class ShareHandoff {
+    public static final String PATH = "/cluster/shares";
+
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final FileSharer fileSharer;
+    private final HashRing ring;
+    private final String self;
+    private final String secret;
+    private final long retryMillis;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder handedOff = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param self        this node's name on the ring
+     * @param secret      bearer token the other nodes expect
+     * @param retryMillis delay before shares that could not be handed over are tried again
+     */
+    public ShareHandoff(FileSharer fileSharer, HashRing ring, String self, String secret, long retryMillis) {
+        this.fileSharer = fileSharer;
+        this.ring = ring;
+        this.self = self;
+        this.secret = secret;
+        this.retryMillis = retryMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "share-handoff");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.execute(this::runPass);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    public long getHandedOffCount() {
+        return handedOff.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Hands over every live share owned elsewhere, and schedules another pass if any failed.
+     */
+    private void runPass() {
+        List<Share> foreign = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Share share : fileSharer.getShares()) {
+            // Expired and used-up shares are left to the reaper
+            if (!ring.ownerOf(share.getCode()).equals(self) && !share.isExpired(now) && !share.isExhausted()) {
+                foreign.add(share);
+            }
+        }
+        if (foreign.isEmpty()) {
+            return;
+        }
+        int moved = 0;
+        for (Share share : foreign) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            String owner = ring.ownerOf(share.getCode());
+            try {
+                send(share, owner);
+                fileSharer.removeShare(share);
+                handedOff.increment();
+                moved++;
+            } catch (IOException e) {
+                failures.increment();
+                AsyncLogger.shared().error("Error handing share %d to %s: %s", share.getCode(), owner, e.getMessage());
+            }
+        }
+        System.out.println("Handed " + moved + " of " + foreign.size() + " shares over to their owners");
+        if (moved < foreign.size() && !scheduler.isShutdown()) {
+            scheduler.schedule(this::runPass, retryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void send(Share share, String owner) throws IOException {
+        BlobStore blobStore = fileSharer.getBlobStore();
+        byte[] record = ShareIndex.encodeShare(share);
+        long length = 4 + record.length;
+        for (long size : blobSizes(share)) {
+            length += size;
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(owner + PATH).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(length);
+        conn.setConnectTimeout(TIMEOUT_MILLIS);
+        conn.setReadTimeout(TIMEOUT_MILLIS);
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        conn.setRequestProperty("Authorization", "Bearer " + secret);
+        try {
+            try (DataOutputStream out = new DataOutputStream(conn.getOutputStream())) {
+                out.writeInt(record.length);
+                out.write(record);
+                for (String blobId : share.getBlobIds()) {
+                    try (InputStream in = Channels.newInputStream(blobStore.openChannel(blobId))) {
+                        in.transferTo(out);
+                    }
+                }
+            }
+            int status = conn.getResponseCode();
+            if (status != 200 && status != 201) {
+                String message = "";
+                try (InputStream error = conn.getErrorStream()) {
+                    if (error != null) {
+                        message = ": " + new String(error.readAllBytes(), StandardCharsets.UTF_8);
+                    }
+                }
+                throw new IOException("Refused with status " + status + message);
+            }
+            conn.getInputStream().close();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Sizes of the blobs of a share, in the order of {@link Share#getBlobIds()}.
+     */
+    public static long[] blobSizes(Share share) {
+        if (!share.isArchive()) {
+            return new long[] {share.getSize()};
+        }
+        List<Share.Member> members = share.getMembers();
+        long[] sizes = new long[members.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = members.get(i).getSize();
+        }
+        return sizes;
+    }
+}
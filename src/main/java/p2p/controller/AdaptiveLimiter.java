@@ -0,0 +1,196 @@
+package p2p.controller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit with a bounded FIFO wait queue, whose limit follows observed latency
+ * in the style of a gradient limiter: while latency stays near its long-term average the
+ * limit creeps up, and when it rises the limit is cut in proportion.
+ *
+ * <p>Transfers take time proportional to their size, so latency samples are normalised to
+ * time per MiB moved before they are compared.
+ */
+public class AdaptiveLimiter {
+    private static final double BYTES_PER_UNIT = 1024 * 1024;
+    private static final double SMOOTHING = 0.2;
+    private static final double LONG_WINDOW_WEIGHT = 0.05;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private double longLatency;
+    private int inFlight;
+    private int waiting;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public AdaptiveLimiter(String name, int minLimit, int initialLimit, int maxLimit, int maxQueue) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * Takes a permit, waiting at most {@code maxWaitNanos} in the queue. Returns null when the
+     * queue is full or the wait deadline passes; the caller should then shed the request.
+     */
+    public Permit acquire(long maxWaitNanos) {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                return admit();
+            }
+            if (waiting >= maxQueue || maxWaitNanos <= 0) {
+                rejected.increment();
+                return null;
+            }
+            waiting++;
+            try {
+                long remaining = maxWaitNanos;
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        rejected.increment();
+                        return null;
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                return admit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.increment();
+                return null;
+            } finally {
+                waiting--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admit() {
+        inFlight++;
+        admitted.increment();
+        return new Permit(System.nanoTime());
+    }
+
+    private void release(long elapsedNanos, long bytes, boolean sample) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (sample) {
+                adjust(elapsedNanos / Math.max(1.0, bytes / BYTES_PER_UNIT));
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(double latency) {
+        if (longLatency == 0) {
+            longLatency = latency;
+        } else {
+            longLatency = longLatency * (1 - LONG_WINDOW_WEIGHT) + latency * LONG_WINDOW_WEIGHT;
+        }
+
+        // Do not grow a limit that is not being used; it would not be backed by any evidence
+        if (inFlight + 1 < limit / 2 && latency <= longLatency) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, longLatency / latency));
+        double queueAllowance = Math.sqrt(limit);
+        double target = limit * gradient + queueAllowance;
+        double previous = limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+        if ((int) limit > (int) previous) {
+            available.signalAll();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * A granted slot. Must be released exactly once.
+     */
+    public class Permit {
+        private final long startNanos;
+        private boolean released;
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Releases the slot. Only successful requests should pass {@code sample = true};
+         * fast failures would otherwise drag the latency baseline down.
+         */
+        public void release(long bytes, boolean sample) {
+            if (released) {
+                return;
+            }
+            released = true;
+            AdaptiveLimiter.this.release(System.nanoTime() - startNanos, bytes, sample);
+        }
+
+        public long elapsed(TimeUnit unit) {
+            return unit.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.service.BandwidthManager;
+import p2p.utils.HttpUtils;
+
+/**
+ * Runtime settings, guarded by {@code Authorization: Bearer <token>}:
+ * <pre>
+ * GET /admin/bandwidth                                  current limits in bytes per second
+ * PUT /admin/bandwidth?global=N&amp;connection=M           change them (0 is unlimited; omitted ones are kept)
+ * </pre>
+ * Without a configured token every request is refused with 404.
+ */
+class AdminHandler implements HttpHandler {
+    private final byte[] token;
+    private final BandwidthManager bandwidth;
+
+    AdminHandler(String token, BandwidthManager bandwidth) {
+        this.token = token == null ? null : ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.bandwidth = bandwidth;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (token == null) {
+            HttpUtils.sendText(exchange, 404, "Not Found");
+            return;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null
+                || !MessageDigest.isEqual(token, authorization.trim().getBytes(StandardCharsets.UTF_8))) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer");
+            HttpUtils.sendText(exchange, 401, "Unauthorized");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (!path.equals("/admin/bandwidth")) {
+            HttpUtils.sendText(exchange, 404, "Not Found");
+        } else if (method.equals("GET")) {
+            sendBandwidth(exchange);
+        } else if (method.equals("PUT") || method.equals("POST")) {
+            Map<String, String> params = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+            try {
+                long global = params.containsKey("global") ? Long.parseLong(params.get("global")) : bandwidth.getGlobalRate();
+                long connection = params.containsKey("connection") ? Long.parseLong(params.get("connection")) : bandwidth.getConnectionRate();
+                bandwidth.setLimits(global, connection);
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException
+                HttpUtils.sendText(exchange, 400, "Bad Request: " + e.getMessage());
+                return;
+            }
+            System.out.println("Bandwidth limits set to global=" + bandwidth.getGlobalRate()
+                               + ", connection=" + bandwidth.getConnectionRate() + " bytes/s");
+            sendBandwidth(exchange);
+        } else {
+            exchange.getResponseHeaders().add("Allow", "GET, PUT");
+            HttpUtils.sendText(exchange, 405, "Method Not Allowed");
+        }
+    }
+
+    private void sendBandwidth(HttpExchange exchange) throws IOException {
+        HttpUtils.sendJson(exchange, 200, "{\"global\": " + bandwidth.getGlobalRate()
+                                          + ", \"connection\": " + bandwidth.getConnectionRate() + "}");
+    }
+}
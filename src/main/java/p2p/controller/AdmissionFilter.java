@@ -0,0 +1,87 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Admits exchanges through an {@link AdaptiveLimiter} and answers 503 with
+ * {@code Retry-After} as soon as the limiter or the queue-time deadline says no,
+ * instead of letting the request wait indefinitely.
+ */
+public class AdmissionFilter extends Filter {
+    private final AdaptiveLimiter limiter;
+    private final long maxQueueNanos;
+    private final String retryAfterSeconds;
+
+    public AdmissionFilter(AdaptiveLimiter limiter, long maxQueueMillis) {
+        this.limiter = limiter;
+        this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMillis);
+        this.retryAfterSeconds = Long.toString(Math.max(1, (maxQueueMillis + 999) / 1000));
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        // Preflights are cheap and must not be refused, or the browser never sees the 503
+        if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            chain.doFilter(exchange);
+            return;
+        }
+
+        // Time spent in the executor queue counts against the same deadline
+        long remaining = maxQueueNanos - DispatchExecutor.queuedNanos();
+        AdaptiveLimiter.Permit permit = remaining > 0 ? limiter.acquire(remaining) : null;
+        if (permit == null) {
+            reject(exchange);
+            return;
+        }
+
+        boolean success = false;
+        try {
+            chain.doFilter(exchange);
+            int status = exchange.getResponseCode();
+            success = status >= 200 && status < 300;
+        } finally {
+            permit.release(transferredBytes(exchange), success);
+        }
+    }
+
+    private long transferredBytes(HttpExchange exchange) {
+        return Math.max(parseLength(exchange.getRequestHeaders().getFirst("Content-Length")),
+                        parseLength(exchange.getResponseHeaders().getFirst("Content-Length")));
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        // The server drains only a little of an unread body before dropping the connection,
+        // so shedding a large upload stays cheap
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Retry-After", retryAfterSeconds);
+        headers.add("Connection", "close");
+        String response = "Service Unavailable: server is busy, retry later";
+        exchange.sendResponseHeaders(503, response.getBytes().length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response.getBytes());
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Admission control for " + limiter.getName();
+    }
+}
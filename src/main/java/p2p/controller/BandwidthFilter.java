@@ -0,0 +1,91 @@
+package p2p.controller;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.service.BandwidthManager;
+
+/**
+ * Runs request and response bodies through a {@link BandwidthManager} transfer, so uploads
+ * are throttled as they are read and downloads as they are written.
+ */
+public class BandwidthFilter extends Filter {
+    private final BandwidthManager bandwidth;
+
+    public BandwidthFilter(BandwidthManager bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        BandwidthManager.Transfer transfer = bandwidth.open();
+        exchange.setStreams(new ThrottledInputStream(exchange.getRequestBody(), transfer),
+                            new ThrottledOutputStream(exchange.getResponseBody(), transfer));
+        chain.doFilter(exchange);
+    }
+
+    @Override
+    public String description() {
+        return "Bandwidth shaping";
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final BandwidthManager.Transfer transfer;
+
+        ThrottledInputStream(InputStream in, BandwidthManager.Transfer transfer) {
+            super(in);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                transfer.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Bytes already read are paid for afterwards; the debt delays the next read
+            int n = super.read(b, off, Math.min(len, BandwidthManager.CHUNK_BYTES));
+            if (n > 0) {
+                transfer.acquire(n);
+            }
+            return n;
+        }
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        private final BandwidthManager.Transfer transfer;
+
+        ThrottledOutputStream(OutputStream out, BandwidthManager.Transfer transfer) {
+            super(out);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            transfer.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, BandwidthManager.CHUNK_BYTES);
+                transfer.acquire(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.cluster.HashRing;
+import p2p.service.FileSharer;
+import p2p.utils.AsyncLogger;
+import p2p.utils.HttpUtils;
+
+/**
+ * Sends requests for share codes that another cluster node owns to that node, by proxying
+ * the response or, with {@code redirect}, answering {@code 307} so the client goes there
+ * itself. Must be installed on contexts whose paths start with {@code <context>/<code>}.
+ *
+ * <p>Shares this node still holds are served here whoever owns the code, which covers
+ * shares waiting to be handed over after the node list changed. Proxied requests are marked
+ * with {@value #FORWARDED_HEADER} and never forwarded again, so nodes that disagree about
+ * the node list cannot bounce a request between them. They also carry the cluster secret in
+ * {@value #AUTH_HEADER}, which is what lets the owner trust their {@code X-Forwarded-For}.
+ */
+class ClusterFilter extends Filter {
+    static final String FORWARDED_HEADER = "X-PeerPass-Forwarded";
+    static final String AUTH_HEADER = "X-PeerPass-Cluster-Auth";
+
+    private static final AsyncLogger LOG = AsyncLogger.shared();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+    // Describe one connection rather than the content; Date and Content-Length are set by the server
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-authenticate",
+            "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "host", "content-length", "date");
+
+    private final HashRing ring;
+    private final String self;
+    private final boolean redirect;
+    private final String secret;
+    private final FileSharer fileSharer;
+    private final LongAdder proxied = new LongAdder();
+    private final LongAdder redirected = new LongAdder();
+    private final LongAdder proxyErrors = new LongAdder();
+
+    ClusterFilter(HashRing ring, String self, boolean redirect, String secret, FileSharer fileSharer) {
+        this.ring = ring;
+        this.self = self;
+        this.redirect = redirect;
+        this.secret = secret;
+        this.fileSharer = fileSharer;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String owner = remoteOwner(exchange);
+        if (owner == null) {
+            chain.doFilter(exchange);
+            return;
+        }
+        URI uri = exchange.getRequestURI();
+        String target = owner + uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        if (redirect) {
+            redirected.increment();
+            HttpUtils.addCorsHeaders(exchange, "GET, OPTIONS");
+            exchange.getResponseHeaders().set("Location", target);
+            HttpUtils.sendEmpty(exchange, 307);
+        } else {
+            proxied.increment();
+            proxy(exchange, owner, target);
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Cluster routing";
+    }
+
+    long getProxiedCount() {
+        return proxied.sum();
+    }
+
+    long getRedirectedCount() {
+        return redirected.sum();
+    }
+
+    long getProxyErrorCount() {
+        return proxyErrors.sum();
+    }
+
+    /**
+     * The node to send this request to, or null to handle it here.
+     */
+    private String remoteOwner(HttpExchange exchange) {
+        // Other methods are answered here with the handler's usual error
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")
+                || exchange.getRequestHeaders().containsKey(FORWARDED_HEADER)) {
+            return null;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String prefix = exchange.getHttpContext().getPath() + "/";
+        if (!path.startsWith(prefix)) {
+            return null;
+        }
+        String rest = path.substring(prefix.length());
+        int slash = rest.indexOf('/');
+        int code;
+        try {
+            code = Integer.parseInt(slash < 0 ? rest : rest.substring(0, slash));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String owner = ring.ownerOf(code);
+        return owner.equals(self) || fileSharer.getShare(code) != null ? null : owner;
+    }
+
+    /**
+     * Relays the owner's response: status, end-to-end headers and body, which is streamed
+     * through one buffer without being stored.
+     */
+    private void proxy(HttpExchange exchange, String owner, String target) throws IOException {
+        HttpURLConnection conn;
+        int status;
+        try {
+            conn = (HttpURLConnection) new URL(target).openConnection();
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                if (!HOP_BY_HOP.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                    for (String value : header.getValue()) {
+                        conn.addRequestProperty(header.getKey(), value);
+                    }
+                }
+            }
+            conn.setRequestProperty(FORWARDED_HEADER, self);
+            conn.setRequestProperty(AUTH_HEADER, "Bearer " + secret);
+            String forwardedFor = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+            String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+            conn.setRequestProperty("X-Forwarded-For", forwardedFor == null ? client : forwardedFor + ", " + client);
+            status = conn.getResponseCode();
+        } catch (IOException e) {
+            proxyErrors.increment();
+            LOG.error("Error forwarding %s to %s: %s", exchange.getRequestURI(), owner, e.getMessage());
+            HttpUtils.sendText(exchange, 502, "Bad Gateway: " + owner + " is unreachable");
+            return;
+        }
+
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+                // The status line has a null name
+                if (header.getKey() != null && !HOP_BY_HOP.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                    headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+                }
+            }
+            InputStream body = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            long length = conn.getContentLengthLong();
+            if (body == null || length == 0 || status == 304 || status == 204) {
+                if (body != null) {
+                    body.close();
+                }
+                HttpUtils.sendEmpty(exchange, status);
+                return;
+            }
+            // Unknown length (-1) becomes a chunked response (0)
+            exchange.sendResponseHeaders(status, Math.max(length, 0));
+            try (InputStream in = body; OutputStream os = exchange.getResponseBody()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            proxyErrors.increment();
+            // Drop the connection rather than return a half-read one to the keep-alive pool
+            conn.disconnect();
+            throw e;
+        }
+    }
+}
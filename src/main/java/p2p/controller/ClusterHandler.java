@@ -0,0 +1,141 @@
+package p2p.controller;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.cluster.HashRing;
+import p2p.cluster.ShareHandoff;
+import p2p.service.BlobStore;
+import p2p.service.FileSharer;
+import p2p.service.Share;
+import p2p.service.ShareIndex;
+import p2p.utils.AsyncLogger;
+import p2p.utils.HttpUtils;
+
+/**
+ * Receives shares from other cluster nodes, sent by {@link ShareHandoff}:
+ * <pre>
+ * POST /cluster/shares    int record length, share record, blob contents in order
+ * </pre>
+ * The share keeps its code, which must belong to this node. Blob contents are checked
+ * against their ids. Sending the same share again is answered {@code 200}, so a node that
+ * failed after sending can simply retry. Requests need {@code Authorization: Bearer <secret>}
+ * with the cluster secret.
+ */
+class ClusterHandler implements HttpHandler {
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final HashRing ring;
+    private final String self;
+    private final byte[] token;
+    private final FileSharer fileSharer;
+
+    ClusterHandler(HashRing ring, String self, String secret, FileSharer fileSharer) {
+        this.ring = ring;
+        this.self = self;
+        this.token = ("Bearer " + secret).getBytes(StandardCharsets.UTF_8);
+        this.fileSharer = fileSharer;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null
+                || !MessageDigest.isEqual(token, authorization.trim().getBytes(StandardCharsets.UTF_8))) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer");
+            HttpUtils.sendText(exchange, 401, "Unauthorized");
+            return;
+        }
+        if (!exchange.getRequestURI().getPath().replaceAll("/+$", "").equals(ShareHandoff.PATH)) {
+            HttpUtils.sendText(exchange, 404, "Not Found");
+            return;
+        }
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            exchange.getResponseHeaders().add("Allow", "POST");
+            HttpUtils.sendText(exchange, 405, "Method Not Allowed");
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(exchange.getRequestBody());
+        Share share;
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+                HttpUtils.sendText(exchange, 400, "Bad Request: Invalid share record length " + length);
+                return;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            share = ShareIndex.decodeShare(record);
+        } catch (EOFException | BufferUnderflowException | IllegalArgumentException e) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: Malformed share record");
+            return;
+        }
+        String owner = ring.ownerOf(share.getCode());
+        if (!owner.equals(self)) {
+            HttpUtils.sendText(exchange, 421, "Misdirected Request: Share " + share.getCode() + " belongs to " + owner);
+            return;
+        }
+
+        BlobStore blobStore = fileSharer.getBlobStore();
+        List<String> blobIds = share.getBlobIds();
+        long[] sizes = ShareHandoff.blobSizes(share);
+        List<String> stored = new ArrayList<>();
+        try {
+            for (int i = 0; i < sizes.length; i++) {
+                String blobId = receiveBlob(in, sizes[i], blobStore);
+                stored.add(blobId);
+                if (!blobId.equals(blobIds.get(i))) {
+                    HttpUtils.sendText(exchange, 400, "Bad Request: Content of blob " + blobIds.get(i) + " does not match its id");
+                    return;
+                }
+            }
+            if (fileSharer.adopt(share)) {
+                stored = Collections.emptyList();
+                AsyncLogger.shared().info("Took over share %d (%s)", share.getCode(), share.getFilename());
+                HttpUtils.sendText(exchange, 201, "Created");
+                return;
+            }
+            Share existing = fileSharer.getShare(share.getCode());
+            if (existing != null && existing.getBlobIds().equals(blobIds)) {
+                HttpUtils.sendText(exchange, 200, "Already here");
+            } else {
+                HttpUtils.sendText(exchange, 409, "Conflict: Code " + share.getCode() + " is in use");
+            }
+        } catch (EOFException e) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: Body ended before all blobs were received");
+        } finally {
+            for (String blobId : stored) {
+                blobStore.release(blobId);
+            }
+        }
+    }
+
+    private static String receiveBlob(InputStream in, long size, BlobStore blobStore) throws IOException {
+        try (BlobStore.Writer out = blobStore.newWriter()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = size;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            return out.commit();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package p2p.controller;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps the server executor and remembers when each exchange was handed to it, so that
+ * handlers can tell how long the exchange sat in the executor queue before it ran.
+ */
+public class DispatchExecutor implements Executor {
+    private static final ThreadLocal<Long> DISPATCHED_AT = new ThreadLocal<>();
+
+    private final Executor delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public DispatchExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long dispatchedAt = System.nanoTime();
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                DISPATCHED_AT.set(dispatchedAt);
+                try {
+                    command.run();
+                } finally {
+                    DISPATCHED_AT.remove();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected because the executor is shutting down
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Exchanges handed to the executor that have not started running yet.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Nanoseconds the current exchange waited in the executor queue, or 0 when the
+     * current thread is not running a dispatched exchange.
+     */
+    public static long queuedNanos() {
+        Long dispatchedAt = DISPATCHED_AT.get();
+        return dispatchedAt == null ? 0 : System.nanoTime() - dispatchedAt;
+    }
+}
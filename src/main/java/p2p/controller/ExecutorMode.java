@@ -0,0 +1,49 @@
+package p2p.controller;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the HTTP server runs exchanges.
+ */
+public enum ExecutorMode {
+    /** Fixed pool of platform threads; a slow transfer holds its thread until it finishes. */
+    POOL,
+    /** One virtual thread per exchange, so stalled transfers only cost a small heap object. */
+    VIRTUAL;
+
+    public static ExecutorMode fromString(String value) {
+        for (ExecutorMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown executor mode: " + value);
+    }
+
+    /**
+     * Creates the executor for this mode. The build still targets Java 17, so virtual threads
+     * are looked up at runtime; on older runtimes we fall back to an unbounded platform pool,
+     * which keeps the non-starving behaviour at a higher per-connection cost.
+     */
+    public ExecutorService createExecutor(int poolSize) {
+        if (this == POOL) {
+            // Unbounded: the HTTP server cannot answer an exchange the executor rejects and
+            // just drops the connection. Load is shed by the admission filters instead, which
+            // count time spent in this queue against their deadline and answer 503.
+            return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<>());
+        }
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads need Java 21+, using a cached thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
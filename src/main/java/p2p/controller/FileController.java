@@ -1,63 +1,473 @@
 package p2p.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import org.apache.commons.fileupload.FileItemIterator;
-import org.apache.commons.fileupload.FileItemStream;
-import org.apache.commons.fileupload.FileUpload;
-import org.apache.commons.fileupload.RequestContext;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import java.util.zip.CRC32;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import p2p.cluster.HashRing;
+import p2p.cluster.ShareHandoff;
+import p2p.metrics.MetricsRegistry;
+import p2p.service.BandwidthManager;
+import p2p.service.BlobEncryption;
+import p2p.service.BlobStore;
+import p2p.service.ChunkManifests;
+import p2p.service.CompressedVariants;
+import p2p.service.FileBlobBackend;
 import p2p.service.FileSharer;
+import p2p.service.HotShareCache;
+import p2p.service.LiveShare;
+import p2p.service.Share;
+import p2p.service.ShareIndex;
+import p2p.service.SegmentBackend;
+import p2p.service.ShareReaper;
+import p2p.service.SwarmTracker;
+import p2p.service.TransferEngine;
+import p2p.service.TransferServer;
+import p2p.service.RelayManager;
+import p2p.service.UploadSessionManager;
+import p2p.service.ZipArchive;
+import p2p.utils.AsyncLogger;
+import p2p.utils.ByteRange;
+import p2p.utils.CodeAllocator;
+import p2p.utils.HttpUtils;
+import p2p.utils.MerkleTree;
+import p2p.utils.MultipartReader;
 
 public class FileController {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final AsyncLogger LOG = AsyncLogger.shared();
+    // Ten years; longer lifetimes are what ttl=0 is for
+    static final long MAX_TTL_SECONDS = 10L * 365 * 24 * 60 * 60;
+
     private final FileSharer fileSharer;
+    private final BlobStore blobStore;
+    private final UploadSessionManager uploadSessions;
+    private final RelayManager relays;
+    private final ShareReaper shareReaper;
     private final HttpServer server;
     private final String uploadDir;
     private final ExecutorService executorService;
+    private final TransferEngine transferEngine;
+    private final HotShareCache hotCache;
+    private final CompressedVariants compression;
+    private final ChunkManifests manifests;
+    private final TransferServer transferServer;
+    private final AdaptiveLimiter uploadLimiter;
+    private final AdaptiveLimiter chunkLimiter;
+    private final AdaptiveLimiter relayLimiter;
+    private final AdaptiveLimiter downloadLimiter;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final BandwidthManager bandwidth;
+    private final SwarmTracker swarms;
+    // Null unless small uploads are packed into segment files
+    private final SegmentBackend segments;
+    // Null unless content is encrypted at rest
+    private final BlobEncryption encryption;
+    // Both null outside cluster mode
+    private final ClusterFilter clusterFilter;
+    private final ShareHandoff handoff;
 
     public FileController(int port) throws IOException {
-        this.fileSharer = new FileSharer();
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
-        
-        File uploadDirFile = new File(uploadDir);
-        if (!uploadDirFile.exists()) {
-            uploadDirFile.mkdirs();
+        this(port, ServerConfig.fromEnvironment());
+    }
+
+    public FileController(int port, ServerConfig config) throws IOException {
+        // Without it any client could push shares under this node's codes
+        if (!config.getClusterNodes().isEmpty()
+                && (config.getClusterSecret() == null || config.getClusterSecret().isEmpty())) {
+            throw new IllegalArgumentException("Cluster mode needs peerpass.cluster.secret");
+        }
+        this.uploadDir = config.getUploadDir();
+        FileBlobBackend files = new FileBlobBackend(Paths.get(uploadDir, "blobs"));
+        this.segments = config.getSegmentThreshold() > 0
+                ? new SegmentBackend(Paths.get(uploadDir, "segments"), files, config.getSegmentThreshold(), config.getSegmentBytes())
+                : null;
+        if (config.isEncryptionEnabled()) {
+            byte[] key = config.getEncryptionKey() != null
+                    ? Base64.getDecoder().decode(config.getEncryptionKey())
+                    : BlobEncryption.loadOrCreateKey(Paths.get(uploadDir, "encryption.key"));
+            this.encryption = new BlobEncryption(key);
+        } else {
+            this.encryption = null;
+        }
+        this.blobStore = new BlobStore(uploadDir, segments != null ? segments : files, encryption);
+        this.hotCache = new HotShareCache(blobStore, config.getCacheBytes(), config.getCacheMaxEntryBytes());
+        // Compressed copies would hold the content in the clear
+        this.compression = config.isCompressionEnabled() && encryption == null
+                ? new CompressedVariants(blobStore, config.getCompressionMinBytes()) : null;
+        this.manifests = new ChunkManifests(blobStore);
+        blobStore.setOnDelete(blobId -> {
+            hotCache.invalidate(blobId);
+            manifests.invalidate(blobId);
+            if (compression != null) {
+                compression.invalidate(blobId);
+            }
+        });
+        ShareIndex shareIndex = config.isIndexEnabled() ? new ShareIndex(uploadDir, config.getIndexCompactBytes()) : null;
+        CodeAllocator codes = CodeAllocator.forDigits(config.getCodeDigits(), config.isSecureCodes());
+        this.fileSharer = new FileSharer(blobStore, shareIndex, codes);
+        long recoveryStart = System.nanoTime();
+        int recovered = fileSharer.recover();
+        if (recovered > 0) {
+            System.out.println("Recovered " + recovered + " shares in " + (System.nanoTime() - recoveryStart) / 1_000_000 + " ms");
+        }
+        this.uploadSessions = new UploadSessionManager(uploadDir, blobStore, fileSharer, config.getSessionMaxBytes(),
+                                                      config.getMaxSessions(), config.getDiskBudgetBytes());
+        this.relays = new RelayManager(blobStore, fileSharer, manifests);
+        this.shareReaper = new ShareReaper(fileSharer, uploadSessions, relays, config.getDiskBudgetBytes(),
+                                           config.getSessionIdleSeconds() * 1000, config.getReaperIntervalSeconds() * 1000);
+        fileSharer.setDefaultLimits(config.getShareTtlSeconds() * 1000, config.getMaxDownloads());
+        fileSharer.setOnOffer(shareReaper::requestPass);
+        HashRing ring = null;
+        String self = null;
+        if (!config.getClusterNodes().isEmpty()) {
+            List<String> nodes = new ArrayList<>();
+            for (String node : config.getClusterNodes()) {
+                nodes.add(node.replaceAll("/+$", ""));
+            }
+            ring = new HashRing(nodes, config.getClusterVirtualNodes());
+            self = (config.getClusterSelf() != null ? config.getClusterSelf() : "http://localhost:" + port).replaceAll("/+$", "");
+            HashRing owners = ring;
+            String node = self;
+            fileSharer.restrictCodes(code -> owners.ownerOf(code).equals(node));
+            System.out.println("Cluster node " + self + " of " + nodes.size() + ", with " + codes.getFreeCount()
+                               + " of " + codes.getCapacity() + " codes free to hand out");
+        }
+        this.transferEngine = new TransferEngine();
+        this.bandwidth = new BandwidthManager(config.getGlobalBandwidth(), config.getConnectionBandwidth());
+        this.transferServer = config.getTransferPort() >= 0
+                ? new TransferServer(fileSharer, transferEngine, bandwidth, config.getTransferPort()) : null;
+        // Large accept backlog so a burst of slow clients is not turned away before dispatch
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executorService = config.getExecutorMode().createExecutor(config.getPoolSize());
+        // In pool mode admitted and waiting requests hold pool threads, so no limiter may
+        // admit more than the pool can run; one thread stays free for /metrics,
+        // /admin, preflights and fast 503s. The limits overlap rather than partition the
+        // pool: together they can fill it, and whatever does not fit waits in the executor
+        // queue against the same admission deadline
+        int threads = config.getExecutorMode() == ExecutorMode.POOL ? Math.max(2, config.getPoolSize() - 1) : 0;
+        int queue = config.getAdmissionQueue();
+        this.uploadLimiter = createLimiter("uploads", config.getUploadConcurrency(), queue, (threads + 1) / 2);
+        // Chunks of resumable uploads and live relay streams get limits of their own, so a
+        // long relay or a parallel chunked upload does not lock out plain uploads
+        this.chunkLimiter = createLimiter("chunks", config.getUploadConcurrency(), queue, (threads + 1) / 2);
+        this.relayLimiter = createLimiter("relays", config.getUploadConcurrency(), queue, (threads + 1) / 2);
+        this.downloadLimiter = createLimiter("downloads", config.getDownloadConcurrency(), queue, threads);
+        if (threads > 0) {
+            System.out.println("Admission limits fitted to " + config.getPoolSize() + " pool threads: "
+                               + describeLimiter(uploadLimiter) + ", " + describeLimiter(chunkLimiter) + ", "
+                               + describeLimiter(relayLimiter) + ", " + describeLimiter(downloadLimiter));
         }
+        this.swarms = new SwarmTracker(SwarmHandler.ANNOUNCE_INTERVAL_SECONDS * 3 * 1000L);
+        DispatchExecutor dispatchExecutor = new DispatchExecutor(executorService);
         
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
+        long admissionTimeout = config.getAdmissionTimeoutMillis();
+        addContext("/upload", "upload", new UploadHandler(), new AdmissionFilter(uploadLimiter, admissionTimeout));
+        addContext("/uploads", "uploads", new UploadSessionHandler(uploadSessions), new AdmissionFilter(chunkLimiter, admissionTimeout));
+        addContext("/relay", "relay", new RelayHandler(relays), new AdmissionFilter(relayLimiter, admissionTimeout));
+        HttpContext download = addContext("/download", "download", new DownloadHandler(),
+                                          new AdmissionFilter(downloadLimiter, admissionTimeout));
+        HttpContext manifest = addContext("/manifest", "manifest", new ManifestHandler(),
+                                          new AdmissionFilter(downloadLimiter, admissionTimeout));
+        HttpContext swarm = addContext("/swarm", "swarm", new SwarmHandler(fileSharer, swarms, ring != null ? config.getClusterSecret() : null),
+                                       new AdmissionFilter(downloadLimiter, admissionTimeout));
+        if (ring != null) {
+            // Last, so forwarded requests are admitted and shaped like local ones
+            this.clusterFilter = new ClusterFilter(ring, self, config.isClusterRedirect(), config.getClusterSecret(), fileSharer);
+            download.getFilters().add(clusterFilter);
+            manifest.getFilters().add(clusterFilter);
+            swarm.getFilters().add(clusterFilter);
+            addContext("/cluster", "cluster", new ClusterHandler(ring, self, config.getClusterSecret(), fileSharer),
+                       new AdmissionFilter(uploadLimiter, admissionTimeout));
+            this.handoff = new ShareHandoff(fileSharer, ring, self, config.getClusterSecret(),
+                                            config.getReaperIntervalSeconds() * 1000);
+        } else {
+            this.clusterFilter = null;
+            this.handoff = null;
+        }
+        registerGauges(dispatchExecutor);
+        // Not admission-controlled, so it still answers when the server is overloaded
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/admin", new AdminHandler(config.getAdminToken(), bandwidth));
         server.createContext("/", new CORSHandler());
         
-        server.setExecutor(executorService);
+        server.setExecutor(dispatchExecutor);
+    }
+
+    private HttpContext addContext(String path, String name, HttpHandler handler, AdmissionFilter admission) {
+        HttpContext context = server.createContext(path, handler);
+        List<Filter> filters = context.getFilters();
+        // Metrics first, so requests shed by admission control are measured as well
+        filters.add(new MetricsFilter(name, metrics));
+        filters.add(admission);
+        filters.add(new BandwidthFilter(bandwidth));
+        return context;
+    }
+
+    private void registerGauges(DispatchExecutor dispatchExecutor) {
+        metrics.gauge("peerpass_executor_queued", "Exchanges waiting for a worker thread", dispatchExecutor::getQueuedCount);
+        for (AdaptiveLimiter limiter : new AdaptiveLimiter[] {uploadLimiter, chunkLimiter, relayLimiter, downloadLimiter}) {
+            String name = limiter.getName();
+            metrics.gauge("peerpass_admission_limit", "Current adaptive concurrency limit", limiter::getLimit, "limiter", name);
+            metrics.gauge("peerpass_admission_in_flight", "Admitted requests in progress", limiter::getInFlight, "limiter", name);
+            metrics.gauge("peerpass_admission_waiting", "Requests waiting for admission", limiter::getWaiting, "limiter", name);
+            metrics.counter("peerpass_admission_rejected_total", "Requests shed with 503", limiter::getRejectedCount, "limiter", name);
+        }
+        for (TransferEngine.Path path : TransferEngine.Path.values()) {
+            String name = path.name().toLowerCase();
+            metrics.counter("peerpass_transfers_total", "Completed body transfers by send path",
+                          () -> transferEngine.getTransferCount(path), "path", name);
+            metrics.counter("peerpass_transfer_bytes_total", "Bytes sent by send path",
+                          () -> transferEngine.getBytesSent(path), "path", name);
+        }
+        if (transferServer != null) {
+            metrics.gauge("peerpass_transfer_server_connections", "Open raw TCP transfer connections",
+                          transferServer::getActiveConnections);
+        }
+        metrics.gauge("peerpass_bandwidth_limit_bytes_per_second", "Configured bandwidth limit, 0 if unlimited",
+                      bandwidth::getGlobalRate, "scope", "global");
+        metrics.gauge("peerpass_bandwidth_limit_bytes_per_second", "Configured bandwidth limit, 0 if unlimited",
+                      bandwidth::getConnectionRate, "scope", "connection");
+        metrics.gauge("peerpass_bandwidth_waiting", "Transfers waiting for global bandwidth", bandwidth::getWaitingCount);
+        metrics.counter("peerpass_bandwidth_throttled_milliseconds_total", "Time transfers spent throttled",
+                        () -> bandwidth.getThrottledNanos() / 1_000_000);
+        metrics.gauge("peerpass_shares", "Active shares", fileSharer::getShareCount);
+        metrics.gauge("peerpass_upload_sessions", "Open resumable upload sessions", uploadSessions::getActiveCount);
+        metrics.gauge("peerpass_relays", "Relay uploads reserved or in progress", relays::getActiveCount);
+        metrics.counter("peerpass_relays_completed_total", "Relay uploads that became shares", relays::getCompletedCount);
+        metrics.counter("peerpass_relays_aborted_total", "Relay uploads cancelled, failed or never started",
+                        relays::getAbortedCount);
+        metrics.gauge("peerpass_blob_bytes", "Bytes of stored blobs", blobStore::getStoredBytes);
+        metrics.gauge("peerpass_blobs", "Stored blobs", blobStore::getBlobCount);
+        if (segments != null) {
+            metrics.gauge("peerpass_segments", "Segment files holding small blobs", segments::getSegmentCount);
+            metrics.gauge("peerpass_segment_bytes", "Bytes in segment files, including deleted blobs", segments::getSegmentBytes);
+            metrics.gauge("peerpass_segment_live_bytes", "Bytes of segment records still referenced", segments::getLiveBytes);
+            metrics.counter("peerpass_segment_compactions_total", "Segment files rewritten and removed",
+                            segments::getCompactionCount);
+        }
+        if (encryption != null) {
+            metrics.counter("peerpass_encryption_chunks_total", "Chunks encrypted or decrypted at rest",
+                            encryption::getEncryptedChunks, "op", "encrypt");
+            metrics.counter("peerpass_encryption_chunks_total", "Chunks encrypted or decrypted at rest",
+                            encryption::getDecryptedChunks, "op", "decrypt");
+        }
+        metrics.counter("peerpass_cache_hits_total", "Hot share cache hits", hotCache::getHitCount);
+        metrics.counter("peerpass_cache_misses_total", "Hot share cache misses", hotCache::getMissCount);
+        metrics.gauge("peerpass_cache_bytes", "Bytes held by the hot share cache", hotCache::getUsedBytes);
+        if (compression != null) {
+            metrics.counter("peerpass_compression_saved_bytes_total", "Bytes saved by serving compressed variants", compression::getBytesSaved);
+        }
+        metrics.counter("peerpass_manifest_chunks_hashed_total", "Chunks hashed for manifests", manifests::getHashedChunks);
+        metrics.counter("peerpass_manifest_upload_wait_milliseconds_total", "Time uploads waited for a chunk hasher",
+                        () -> manifests.getUploadWaitNanos() / 1_000_000);
+        if (clusterFilter != null) {
+            metrics.counter("peerpass_cluster_forwarded_total", "Downloads of codes owned by another node",
+                            clusterFilter::getProxiedCount, "mode", "proxy");
+            metrics.counter("peerpass_cluster_forwarded_total", "Downloads of codes owned by another node",
+                            clusterFilter::getRedirectedCount, "mode", "redirect");
+            metrics.counter("peerpass_cluster_proxy_errors_total", "Proxied downloads that failed",
+                            clusterFilter::getProxyErrorCount);
+            metrics.counter("peerpass_cluster_handoffs_total", "Shares handed over to their owner node",
+                            handoff::getHandedOffCount);
+            metrics.counter("peerpass_cluster_handoff_errors_total", "Failed attempts to hand over a share",
+                            handoff::getFailureCount);
+        }
+        metrics.gauge("peerpass_swarm_peers", "Peers announced for peer-assisted downloads", swarms::getPeerCount);
+        metrics.gauge("peerpass_swarms", "Shares with announced peers", swarms::getSwarmCount);
+        metrics.counter("peerpass_swarm_announces_total", "Tracker announces", swarms::getAnnounceCount);
+        metrics.counter("peerpass_log_dropped_total", "Log lines dropped by the async logger", LOG::getDroppedCount);
+    }
+
+    /**
+     * @param threads pool threads the limiter's transfers and waiters may occupy together,
+     *                or 0 when waiting costs no pool thread
+     */
+    private static AdaptiveLimiter createLimiter(String name, int maxConcurrency, int queue, int threads) {
+        int max = Math.max(1, maxConcurrency);
+        if (threads > 0) {
+            // The pool is the real bound, so start at the fitted limit rather than below it.
+            // At least one waiter, or a client's next request can lose the race with the
+            // release of its previous one and be refused
+            max = Math.min(max, threads);
+            queue = Math.max(1, Math.min(queue, threads / 2));
+            return new AdaptiveLimiter(name, Math.max(1, max / 4), max, max, queue);
+        }
+        return new AdaptiveLimiter(name, Math.max(1, max / 8), Math.max(1, max / 2), max, queue);
+    }
+
+    private static String describeLimiter(AdaptiveLimiter limiter) {
+        return limiter.getName() + " " + limiter.getMaxLimit() + " (queue " + limiter.getMaxQueue() + ")";
     }
     
-    public void start() {
+    public void start() throws IOException {
         server.start();
+        if (transferServer != null) {
+            transferServer.start();
+            if (blobStore.isEncrypted()) {
+                System.out.println("Transfer server refuses encrypted blobs; they are served over HTTP only");
+            }
+            if (bandwidth.isLimited()) {
+                System.out.println("Transfer server refuses transfers while bandwidth limits are set");
+            }
+        }
+        shareReaper.start();
+        if (handoff != null) {
+            handoff.start();
+        }
         System.out.println("API server started on port " + server.getAddress().getPort());
     }
+
+    /**
+     * The port the API server is bound to, which differs from the requested one when that was 0.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * The port of the raw TCP transfer server, or -1 if it is disabled.
+     */
+    public int getTransferPort() {
+        return transferServer == null ? -1 : transferServer.getPort();
+    }
     
     public void stop() {
         server.stop(0);
+        if (transferServer != null) {
+            transferServer.stop();
+        }
+        shareReaper.stop();
+        if (handoff != null) {
+            handoff.stop();
+        }
         executorService.shutdown();
+        fileSharer.close();
+        System.out.println("Transfers served: " + transferEngine.describeStats());
+        System.out.println("Hot share cache: " + hotCache.describeStats());
+        System.out.println("Requests shed: " + uploadLimiter.getRejectedCount() + " uploads, "
+                           + chunkLimiter.getRejectedCount() + " chunks, " + relayLimiter.getRejectedCount() + " relays, "
+                           + downloadLimiter.getRejectedCount() + " downloads");
+        System.out.println("Evictions: " + shareReaper.describeStats());
+        hotCache.close();
+        if (compression != null) {
+            System.out.println("Compression: " + compression.describeStats());
+            compression.close();
+        }
+        manifests.close();
+        System.out.println("Storage: " + blobStore.getBackend().describeStats());
+        if (encryption != null) {
+            System.out.println("Encryption: " + encryption.describeStats());
+        }
+        blobStore.close();
+        LOG.flush();
         System.out.println("API server stopped");
     }
+
+    /**
+     * Splits {@code <prefix><code>[/<file>]} into the code and the file path inside a
+     * multi-file share; the file is null without a slash and empty with a trailing one.
+     */
+    private static String[] splitSharePath(String path, String prefix) {
+        String rest = path.startsWith(prefix) ? path.substring(prefix.length()) : "";
+        int slash = rest.indexOf('/');
+        return slash < 0 ? new String[] {rest, null} : new String[] {rest.substring(0, slash), rest.substring(slash + 1)};
+    }
+
+    /**
+     * Reads the optional {@code ttl} query parameter of an upload, in seconds, as
+     * milliseconds; -1 when it is absent, which selects the server default.
+     *
+     * @throws IllegalArgumentException if it is not a whole number from 0 to
+     *         {@link #MAX_TTL_SECONDS}
+     */
+    static long ttlMillis(Map<String, String> query) {
+        String value = query.get("ttl");
+        if (value == null) {
+            return -1;
+        }
+        long seconds;
+        try {
+            seconds = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            seconds = -1;
+        }
+        if (seconds < 0 || seconds > MAX_TTL_SECONDS) {
+            throw new IllegalArgumentException("ttl must be a number of seconds from 0 to " + MAX_TTL_SECONDS);
+        }
+        return seconds * 1000;
+    }
+
+    /**
+     * Reads the optional {@code maxDownloads} query parameter of an upload; -1 when it is
+     * absent, which selects the server default.
+     *
+     * @throws IllegalArgumentException if it is not a whole number from 0 up
+     */
+    static int maxDownloads(Map<String, String> query) {
+        String value = query.get("maxDownloads");
+        if (value == null) {
+            return -1;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("maxDownloads must be a number from 0 to " + Integer.MAX_VALUE);
+        }
+        return count;
+    }
+
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.getResponseHeaders().add("Allow", "GET");
+                HttpUtils.sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
     
     private class CORSHandler implements HttpHandler {
         @Override
@@ -80,128 +490,6 @@ public class FileController {
         }
     }
     
-    private static class MultipartParser {
-        private final byte[] data;
-        private final String boundary;
-        
-        public MultipartParser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
-        }
-        
-        public ParseResult parse() {
-            try {
-                String dataAsString = new String(data);
-                
-                String filenameMarker = "filename=\"";
-                int filenameStart = dataAsString.indexOf(filenameMarker);
-                if (filenameStart == -1) {
-                    return null;
-                }
-                
-                filenameStart += filenameMarker.length();
-                int filenameEnd = dataAsString.indexOf("\"", filenameStart);
-                String filename = dataAsString.substring(filenameStart, filenameEnd);
-                
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, filenameEnd);
-                String contentType = "application/octet-stream"; // Default
-                
-                if (contentTypeStart != -1) {
-                    contentTypeStart += contentTypeMarker.length();
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
-                }
-                
-                String headerEndMarker = "\r\n\r\n";
-                int headerEnd = dataAsString.indexOf(headerEndMarker);
-                if (headerEnd == -1) {
-                    return null;
-                }
-                
-                int contentStart = headerEnd + headerEndMarker.length();
-                
-                byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-                int contentEnd = findSequence(data, boundaryBytes, contentStart);
-                
-                if (contentEnd == -1) {
-                    boundaryBytes = ("\r\n--" + boundary).getBytes();
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
-                }
-                
-                if (contentEnd == -1 || contentEnd <= contentStart) {
-                    return null;
-                }
-                
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
-                
-                return new ParseResult(filename, contentType, fileContent);
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart data: " + e.getMessage());
-                return null;
-            }
-        }
-        
-        private int findSequence(byte[] data, byte[] sequence, int startPos) {
-            outer:
-            for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) {
-                        continue outer;
-                    }
-                }
-                return i;
-            }
-            return -1;
-        }
-        
-        public static class ParseResult {
-            public final String filename;
-            public final String contentType;
-            public final byte[] fileContent;
-            
-            public ParseResult(String filename, String contentType, byte[] fileContent) {
-                this.filename = filename;
-                this.contentType = contentType;
-                this.fileContent = fileContent;
-            }
-        }
-    }
-    
-    private static class HttpExchangeRequestContext implements RequestContext {
-        private final HttpExchange exchange;
-
-        public HttpExchangeRequestContext(HttpExchange exchange) {
-            this.exchange = exchange;
-        }
-
-        @Override
-        public String getCharacterEncoding() {
-            return null;
-        }
-
-        @Override
-        public String getContentType() {
-            return exchange.getRequestHeaders().getFirst("Content-Type");
-        }
-
-        @Override
-        public int getContentLength() {
-            try {
-                String len = exchange.getRequestHeaders().getFirst("Content-Length");
-                return len == null ? -1 : Integer.parseInt(len);
-            } catch (NumberFormatException e) {
-                return -1;
-            }
-        }
-
-        @Override
-        public InputStream getInputStream() throws IOException {
-            return exchange.getRequestBody();
-        }
-    }
-
     private class UploadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -227,10 +515,10 @@ public class FileController {
             }
     
             Headers requestHeaders = exchange.getRequestHeaders();
-            String contentType = requestHeaders.getFirst("Content-Type");
+            String boundary = MultipartReader.boundaryOf(requestHeaders.getFirst("Content-Type"));
     
-            if (contentType == null || !contentType.startsWith("multipart/form-data")) {
-                String response = "Bad Request: Content-Type must be multipart/form-data";
+            if (boundary == null) {
+                String response = "Bad Request: Content-Type must be multipart/form-data with a boundary";
                 exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
@@ -238,46 +526,48 @@ public class FileController {
                 return;
             }
     
+            Map<String, String> query = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+            long ttlMillis;
+            int maxDownloads;
             try {
-                DiskFileItemFactory factory = new DiskFileItemFactory();
-                factory.setSizeThreshold(0);
-                factory.setRepository(new File(uploadDir));
-    
-                FileUpload upload = new FileUpload(factory);
-                upload.setFileSizeMax(-1);
-                upload.setSizeMax(-1);
-    
-                HttpExchangeRequestContext ctx = new HttpExchangeRequestContext(exchange);
-                FileItemIterator iter = upload.getItemIterator(ctx);
-    
-                String savedFilePath = null;
-                String filename = null;
-    
-                while (iter.hasNext()) {
-                    FileItemStream item = iter.next();
-                    if (item.isFormField()) continue;
-    
-                    filename = item.getName();
-                    if (filename == null || filename.trim().isEmpty()) {
-                        filename = "unnamed-file";
-                    }
-                    String uniqueFilename = UUID.randomUUID().toString() + "_" + new File(filename).getName();
-                    String filePath = uploadDir + File.separator + uniqueFilename;
-    
-                    try (InputStream in = item.openStream();
-                         OutputStream out = new FileOutputStream(filePath)) {
-    
-                        byte[] buffer = new byte[1024 * 1024];
-                        int read;
-                        while ((read = in.read(buffer)) != -1) {
-                            out.write(buffer, 0, read);
+                ttlMillis = ttlMillis(query);
+                maxDownloads = maxDownloads(query);
+            } catch (IllegalArgumentException e) {
+                HttpUtils.sendText(exchange, 400, "Bad Request: " + e.getMessage());
+                return;
+            }
+
+            List<Share.Member> files = new ArrayList<>();
+            try {
+                try (MultipartReader reader = new MultipartReader(exchange.getRequestBody(), boundary)) {
+                    MultipartReader.Part part;
+                    Set<String> names = new HashSet<>();
+                    while ((part = reader.next()) != null) {
+                        // Plain form fields have no filename
+                        if (part.getFilename() == null) continue;
+
+                        String filename = part.getFilename();
+                        if (filename.trim().isEmpty()) {
+                            filename = "unnamed-file";
                         }
+
+                        // Hashed while written; identical content ends up as the same blob.
+                        // The CRC is only needed if more files follow, but is cheap next to the hash
+                        CRC32 crc = new CRC32();
+                        ChunkManifests.Hasher chunks = manifests.newHasher();
+                        long size;
+                        String blobId;
+                        try (BlobStore.Writer out = blobStore.newWriter()) {
+                            size = part.transferTo(new ChecksumChannel(out, crc, chunks));
+                            blobId = out.commit();
+                        }
+                        manifests.store(blobId, chunks.finish());
+                        files.add(new Share.Member(uniqueName(ZipArchive.memberName(filename), names),
+                                                   blobId, size, (int) crc.getValue()));
                     }
-                    savedFilePath = filePath;
-                    break;
                 }
-    
-                if (savedFilePath == null) {
+
+                if (files.isEmpty()) {
                     String response = "Bad Request: No file part found";
                     exchange.sendResponseHeaders(400, response.getBytes().length);
                     try (OutputStream os = exchange.getResponseBody()) {
@@ -285,9 +575,18 @@ public class FileController {
                     }
                     return;
                 }
-    
-                int port = fileSharer.offerFile(savedFilePath);
-    
+
+                List<Share.Member> offered = files;
+                // The share takes over the blob references from here on
+                files = Collections.emptyList();
+                int port;
+                if (offered.size() == 1) {
+                    Share.Member file = offered.get(0);
+                    port = fileSharer.offerFile(file.getBlobId(), new File(file.getName()).getName(), ttlMillis, maxDownloads);
+                } else {
+                    port = fileSharer.offerFiles(offered, archiveFilename(query.get("archive")), ttlMillis, maxDownloads);
+                }
+
                 String jsonResponse = "{\"port\": " + port + "}";
                 headers.add("Content-Type", "application/json");
                 exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
@@ -295,18 +594,158 @@ public class FileController {
                     os.write(jsonResponse.getBytes());
                 }
     
+            } catch (MultipartReader.MalformedMultipartException | IllegalArgumentException e) {
+                LOG.error("Upload rejected: %s", e.getMessage());
+                HttpUtils.sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            } catch (CodeAllocator.CodeSpaceExhaustedException e) {
+                LOG.error("Upload rejected: %s", e.getMessage());
+                headers.add("Retry-After", "60");
+                HttpUtils.sendText(exchange, 503, "Service Unavailable: " + e.getMessage());
             } catch (Exception e) {
-                System.err.println("Error processing file upload: " + e.getMessage());
+                LOG.error("Error processing file upload: %s", e.getMessage());
                 String response = "Server error: " + e.getMessage();
                 exchange.sendResponseHeaders(500, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
                 }
+            } finally {
+                // Files stored before the upload failed
+                for (Share.Member file : files) {
+                    blobStore.release(file.getBlobId());
+                }
+            }
+        }
+
+        /**
+         * Appends " (2)", " (3)", ... before the extension of a name that is already taken.
+         */
+        private String uniqueName(String name, Set<String> taken) {
+            String unique = name;
+            int slash = name.lastIndexOf('/');
+            int dot = name.lastIndexOf('.');
+            if (dot <= slash + 1) {
+                dot = name.length();
             }
+            for (int n = 2; !taken.add(unique); n++) {
+                unique = name.substring(0, dot) + " (" + n + ")" + name.substring(dot);
+            }
+            return unique;
+        }
+
+        private String archiveFilename(String requested) {
+            String name = requested == null ? "" : new File(requested.replace('\\', '/')).getName().trim();
+            if (name.isEmpty()) {
+                name = "files";
+            }
+            return name.toLowerCase(Locale.ROOT).endsWith(".zip") ? name : name + ".zip";
+        }
+    }
+
+    /**
+     * Computes the CRC-32, for the ZIP headers of multi-file shares, and the chunk manifest
+     * of everything written through it.
+     */
+    private static class ChecksumChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final CRC32 crc;
+        private final ChunkManifests.Hasher chunks;
+
+        ChecksumChannel(WritableByteChannel target, CRC32 crc, ChunkManifests.Hasher chunks) {
+            this.target = target;
+            this.crc = crc;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer written = src.duplicate();
+            int n = target.write(src);
+            written.limit(written.position() + n);
+            crc.update(written.duplicate());
+            chunks.update(written);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
         }
     }
     
     
+    /**
+     * {@code /manifest/{code}}, or {@code /manifest/{code}/{file}} for a file of a multi-file
+     * share: the chunk hashes and Merkle root of the content, see {@link ChunkManifests}.
+     */
+    private class ManifestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            HttpUtils.addCorsHeaders(exchange, "GET, OPTIONS");
+            if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                HttpUtils.sendEmpty(exchange, 204);
+                return;
+            }
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.getResponseHeaders().add("Allow", "GET, OPTIONS");
+                HttpUtils.sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            String[] sharePath = splitSharePath(exchange.getRequestURI().getPath(), "/manifest/");
+            Share share;
+            try {
+                share = fileSharer.getShare(Integer.parseInt(sharePath[0]));
+            } catch (NumberFormatException e) {
+                HttpUtils.sendText(exchange, 400, "Bad Request: Invalid port number");
+                return;
+            }
+            if (share == null) {
+                HttpUtils.sendText(exchange, 404, "Not Found: Invalid or expired code");
+                return;
+            }
+            String blobId;
+            if (sharePath[1] == null || sharePath[1].isEmpty()) {
+                if (share.isArchive()) {
+                    HttpUtils.sendText(exchange, 404, "Not Found: Multi-file shares have a manifest per file, at /manifest/"
+                                                      + share.getCode() + "/<file>");
+                    return;
+                }
+                blobId = share.getBlobId();
+            } else {
+                Share.Member member = share.getMember(sharePath[1]);
+                if (member == null) {
+                    HttpUtils.sendText(exchange, 404, "Not Found: No such file in this share");
+                    return;
+                }
+                blobId = member.getBlobId();
+            }
+
+            // Same validator as the content it describes
+            String etag = "\"" + blobId + "\"";
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("ETag", etag);
+            headers.add("Cache-Control", "private, no-cache");
+            headers.add("Access-Control-Expose-Headers", "ETag");
+            if (HttpUtils.etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                HttpUtils.sendEmpty(exchange, 304);
+                return;
+            }
+            ChunkManifests.Manifest manifest;
+            try {
+                manifest = manifests.get(blobId);
+            } catch (NoSuchFileException e) {
+                HttpUtils.sendText(exchange, 404, "Not Found: Shared file is missing");
+                return;
+            }
+            HttpUtils.sendJson(exchange, 200, manifest.toJson(blobId));
+        }
+    }
+
     private class DownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -330,60 +769,52 @@ public class FileController {
                 return;
             }
             
-            String path = exchange.getRequestURI().getPath();
-            String query = exchange.getRequestURI().getQuery();
-            String portStr = path.substring(path.lastIndexOf('/') + 1);
+            // /download/{code}, /download/{code}/ to list a multi-file share, or
+            // /download/{code}/{file} for one of its files
+            String[] sharePath = splitSharePath(exchange.getRequestURI().getPath(), "/download/");
+            String portStr = sharePath[0];
+            String memberName = sharePath[1];
             
             // No password needed - simple download
             
             try {
                 int port = Integer.parseInt(portStr);
 
+                // Looked up before the share, which a relay registers before it ends
+                LiveShare live = memberName == null ? relays.get(port) : null;
+                if (live != null && live.acquire()) {
+                    try {
+                        sendLive(exchange, live);
+                    } finally {
+                        live.release();
+                    }
+                    return;
+                }
+
                 // Direct-from-disk streaming for multi-receiver reliability
-                String directFilePath = fileSharer.getFilePath(port);
-                if (directFilePath != null) {
-                    File file = new File(directFilePath);
-                    if (!file.exists() || !file.isFile()) {
-                        String response = "Not Found: Shared file is missing";
-                        exchange.sendResponseHeaders(404, response.getBytes().length);
-                        try (OutputStream os = exchange.getResponseBody()) { os.write(response.getBytes()); }
+                Share share = fileSharer.getShare(port);
+                if (share != null) {
+                    if (memberName == null) {
+                        if (share.isArchive()) {
+                            sendArchive(exchange, share);
+                        } else {
+                            sendBlob(exchange, share, share.getBlobId(), share.getFilename());
+                        }
                         return;
                     }
-
-                    String filename = file.getName();
-                    long contentLength = file.length();
-
-                    headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
-                    String mime = null;
-                    try { mime = java.net.URLConnection.guessContentTypeFromName(filename); } catch (Exception ignore) {}
-                    if (mime == null || mime.trim().isEmpty()) mime = "application/octet-stream";
-                    headers.add("Content-Type", mime);
-                    headers.add("Access-Control-Expose-Headers", "Content-Disposition");
-                    headers.add("X-Content-Type-Options", "nosniff");
-                    headers.add("X-Download-Options", "noopen");
-                    headers.add("Content-Security-Policy", "default-src 'none'");
-                    headers.add("Cache-Control", "private, no-cache, no-store, must-revalidate");
-                    headers.add("Pragma", "no-cache");
-                    headers.add("Expires", "0");
-
-                    if (contentLength >= 0) {
-                        exchange.sendResponseHeaders(200, contentLength);
-                    } else {
-                        exchange.sendResponseHeaders(200, -1);
+                    if (share.isArchive() && memberName.isEmpty()) {
+                        sendFileList(exchange, share);
+                        return;
                     }
-                    try (FileInputStream fis = new FileInputStream(file);
-                         OutputStream os = exchange.getResponseBody()) {
-                        byte[] buffer = new byte[1024 * 1024];
-                        int bytesRead;
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
+                    Share.Member member = share.getMember(memberName);
+                    if (member != null) {
+                        sendBlob(exchange, share, member.getBlobId(), new File(member.getName()).getName());
+                        return;
                     }
-                    return;
                 }
 
                 // Code not registered
-                String response = "Not Found: Invalid or expired code";
+                String response = share == null ? "Not Found: Invalid or expired code" : "Not Found: No such file in this share";
                 exchange.sendResponseHeaders(404, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) { os.write(response.getBytes()); }
 
@@ -395,5 +826,331 @@ public class FileController {
                 }
             }
         }
+
+        private void sendBlob(HttpExchange exchange, Share share, String blobId, String filename) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            int port = share.getCode();
+            long contentLength = blobStore.sizeOf(blobId);
+            if (contentLength < 0 || !blobStore.exists(blobId)) {
+                String response = "Not Found: Shared file is missing";
+                exchange.sendResponseHeaders(404, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) { os.write(response.getBytes()); }
+                return;
+            }
+
+            String mime = null;
+            try { mime = java.net.URLConnection.guessContentTypeFromName(filename); } catch (Exception ignore) {}
+            if (mime == null || mime.trim().isEmpty()) mime = "application/octet-stream";
+            // The content never changes under a share, and the blob may not have a file of its own
+            long lastModified = share.getCreatedAt();
+            // Blobs are named after the SHA-256 of their content, which makes a strong validator
+            String etag = "\"" + blobId + "\"";
+            addDownloadHeaders(headers, filename, mime, lastModified, etag);
+
+            // Ranges are only honoured while the If-Range validator still matches
+            Headers requestHeaders = exchange.getRequestHeaders();
+            if (compression != null) {
+                headers.add("Vary", "Accept-Encoding");
+            }
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                // Any representation the client holds is still current
+                for (String tag : new String[] {etag, codedEtag(blobId, CompressedVariants.Coding.GZIP),
+                                                codedEtag(blobId, CompressedVariants.Coding.DEFLATE)}) {
+                    if (HttpUtils.etagMatches(ifNoneMatch, tag)) {
+                        headers.set("ETag", tag);
+                        HttpUtils.sendEmpty(exchange, 304);
+                        return;
+                    }
+                }
+            }
+
+            // Compressed copies are sent whole; a Range always refers to the raw bytes
+            if (compression != null) {
+                CompressedVariants.Coding coding = requestHeaders.getFirst("Range") == null
+                        ? CompressedVariants.negotiate(requestHeaders.getFirst("Accept-Encoding")) : null;
+                CompressedVariants.Variant variant = coding == null ? null
+                        : compression.find(blobId, contentLength, filename, mime);
+                if (variant != null) {
+                    if (!fileSharer.claimDownload(share)) {
+                        HttpUtils.sendText(exchange, 404, "Not Found: Invalid or expired code");
+                        return;
+                    }
+                    boolean sent = false;
+                    try {
+                        long length = variant.length(coding);
+                        headers.add("Content-Encoding", coding.getToken());
+                        headers.set("ETag", codedEtag(blobId, coding));
+                        exchange.sendResponseHeaders(200, length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            compression.send(variant, coding, transferEngine, os);
+                        }
+                        sent = true;
+                        LOG.info("Served code %d (%d bytes) as %s (%d bytes)", port, contentLength, coding.getToken(), length);
+                    } finally {
+                        finishDownload(share, sent);
+                    }
+                    return;
+                }
+            }
+
+            List<ByteRange> ranges = null;
+            if (ifRangeMatches(requestHeaders.getFirst("If-Range"), lastModified, etag)) {
+                ranges = ByteRange.parse(requestHeaders.getFirst("Range"), contentLength);
+            }
+
+            if (ranges != null && ranges.isEmpty()) {
+                sendUnsatisfiable(exchange, contentLength);
+                return;
+            }
+            headers.add("Repr-Digest", "sha-256=:" + Base64.getEncoder().encodeToString(MerkleTree.fromHex(blobId)) + ":");
+
+            // Popular blobs are served from memory; the channel is only opened otherwise
+            ByteBuffer cached = hotCache.get(blobId, contentLength);
+            try (FileChannel channel = cached == null ? blobStore.openChannel(blobId) : null) {
+                sendRanges(exchange, share, (position, count, os) -> send(cached, channel, position, count, os),
+                           ranges, mime, contentLength);
+            }
+        }
+
+        /**
+         * Follows a relay upload as it is written, waiting whenever it has caught up. Ranges
+         * are not offered, since there is no validator yet. If the upload is aborted the
+         * exception leaves the response unfinished, so the client cannot take the partial
+         * content for a whole file.
+         */
+        private void sendLive(HttpExchange exchange, LiveShare live) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            String filename = live.getFilename();
+            String mime = java.net.URLConnection.guessContentTypeFromName(filename);
+            headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+            headers.add("Content-Type", mime == null || mime.trim().isEmpty() ? "application/octet-stream" : mime);
+            headers.add("Access-Control-Expose-Headers", "Content-Disposition");
+            headers.add("X-Content-Type-Options", "nosniff");
+            headers.add("X-Download-Options", "noopen");
+            headers.add("Content-Security-Policy", "default-src 'none'");
+            headers.add("Cache-Control", "no-store");
+            long declared = live.getDeclaredSize();
+            // sendResponseHeaders takes -1 for an empty body and 0 for chunked: a declared size
+            // of 0 is sent as an empty body, and an unknown (negative) one chunked
+            exchange.sendResponseHeaders(200, declared > 0 ? declared : declared == 0 ? -1 : 0);
+
+            OutputStream os = exchange.getResponseBody();
+            long position = 0;
+            long available;
+            try {
+                while ((available = live.awaitData(position)) >= 0) {
+                    transferEngine.send(live.getChannel(), position, available - position, os);
+                    // Chunked responses are buffered; the receiver should not wait for more
+                    os.flush();
+                    position = available;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while relaying code " + live.getCode());
+            }
+            // Only closed once everything arrived; closing ends a chunked response cleanly
+            os.close();
+            LOG.info("Relayed code %d (%d bytes) live", live.getCode(), position);
+            // The share only exists once the upload is committed, so the download is counted
+            // afterwards and only while the limit still has room
+            Share share = fileSharer.getShare(live.getCode());
+            if (share != null && fileSharer.claimDownload(share)) {
+                fileSharer.recordDownload(share);
+            }
+        }
+
+        /**
+         * Streams a multi-file share as a ZIP archive assembled on the fly; see {@link ZipArchive}.
+         */
+        private void sendArchive(HttpExchange exchange, Share share) throws IOException {
+            for (Share.Member member : share.getMembers()) {
+                if (!blobStore.exists(member.getBlobId())) {
+                    HttpUtils.sendText(exchange, 404, "Not Found: Shared file is missing");
+                    return;
+                }
+            }
+            ZipArchive archive = share.getArchive();
+            long contentLength = archive.length();
+            String etag = "\"" + archive.getContentId() + "\"";
+            addDownloadHeaders(exchange.getResponseHeaders(), share.getFilename(), "application/zip", share.getCreatedAt(), etag);
+
+            Headers requestHeaders = exchange.getRequestHeaders();
+            if (HttpUtils.etagMatches(requestHeaders.getFirst("If-None-Match"), etag)) {
+                HttpUtils.sendEmpty(exchange, 304);
+                return;
+            }
+            List<ByteRange> ranges = null;
+            if (ifRangeMatches(requestHeaders.getFirst("If-Range"), share.getCreatedAt(), etag)) {
+                ranges = ByteRange.parse(requestHeaders.getFirst("Range"), contentLength);
+            }
+            if (ranges != null && ranges.isEmpty()) {
+                sendUnsatisfiable(exchange, contentLength);
+                return;
+            }
+            sendRanges(exchange, share, (position, count, os) -> archive.send(position, count, os, blobStore, transferEngine),
+                       ranges, "application/zip", contentLength);
+        }
+
+        /**
+         * Lists the files of a multi-file share, so that receivers can fetch them one by one.
+         */
+        private void sendFileList(HttpExchange exchange, Share share) throws IOException {
+            StringBuilder json = new StringBuilder("{\"filename\": \"").append(HttpUtils.jsonEscape(share.getFilename()))
+                    .append("\", \"size\": ").append(share.getSize()).append(", \"files\": [");
+            List<Share.Member> members = share.getMembers();
+            for (int i = 0; i < members.size(); i++) {
+                Share.Member member = members.get(i);
+                json.append(i == 0 ? "" : ", ")
+                    .append("{\"name\": \"").append(HttpUtils.jsonEscape(member.getName()))
+                    .append("\", \"size\": ").append(member.getSize()).append('}');
+            }
+            exchange.getResponseHeaders().add("Cache-Control", "private, no-cache, no-store, must-revalidate");
+            HttpUtils.sendJson(exchange, 200, json.append("]}").toString());
+        }
+
+        private void addDownloadHeaders(Headers headers, String filename, String mime, long lastModified, String etag) {
+            headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+            headers.add("Content-Type", mime);
+            headers.add("Access-Control-Expose-Headers", "Content-Disposition, Content-Range, Accept-Ranges, ETag, Repr-Digest");
+            headers.add("X-Content-Type-Options", "nosniff");
+            headers.add("X-Download-Options", "noopen");
+            headers.add("Content-Security-Policy", "default-src 'none'");
+            // May be kept, but must be revalidated; a repeat fetch then costs a 304
+            headers.add("Cache-Control", "private, no-cache");
+            headers.add("Accept-Ranges", "bytes");
+            headers.add("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+            headers.add("ETag", etag);
+        }
+
+        private String codedEtag(String blobId, CompressedVariants.Coding coding) {
+            return "\"" + blobId + "-" + coding.getToken() + "\"";
+        }
+
+        private void sendUnsatisfiable(HttpExchange exchange, long contentLength) throws IOException {
+            exchange.getResponseHeaders().add("Content-Range", "bytes */" + contentLength);
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+        }
+
+        /**
+         * Sends the whole content when {@code ranges} is null, otherwise the requested ranges.
+         * A request that includes the last byte claims one of the share's downloads before
+         * anything is sent and keeps it only if the response completes.
+         */
+        private void sendRanges(HttpExchange exchange, Share share, Source source, List<ByteRange> ranges,
+                                String mime, long contentLength) throws IOException {
+            int port = share.getCode();
+            boolean counted = ranges == null || ranges.get(ranges.size() - 1).getLast() == contentLength - 1;
+            if (counted && !fileSharer.claimDownload(share)) {
+                HttpUtils.sendText(exchange, 404, "Not Found: Invalid or expired code");
+                return;
+            }
+            boolean sent = false;
+            try {
+                if (ranges == null) {
+                    exchange.sendResponseHeaders(200, contentLength > 0 ? contentLength : -1);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        TransferEngine.Path transferPath = source.send(0, contentLength, os);
+                        LOG.info("Served code %d (%d bytes) via %s", port, contentLength, transferPath);
+                    }
+                } else if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    exchange.getResponseHeaders().add("Content-Range", range.toContentRange(contentLength));
+                    exchange.sendResponseHeaders(206, range.length());
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        TransferEngine.Path transferPath = source.send(range.getFirst(), range.length(), os);
+                        LOG.info("Served code %d range %s via %s", port, range.toContentRange(contentLength), transferPath);
+                    }
+                } else {
+                    sendMultipartRanges(exchange, source, ranges, mime, contentLength);
+                    LOG.info("Served code %d as %d byte ranges", port, ranges.size());
+                }
+                sent = true;
+            } finally {
+                if (counted) {
+                    finishDownload(share, sent);
+                }
+            }
+        }
+
+        /**
+         * Settles a claimed download: counted if the response was sent, given back otherwise.
+         */
+        private void finishDownload(Share share, boolean sent) {
+            if (sent) {
+                fileSharer.recordDownload(share);
+            } else {
+                fileSharer.releaseDownload(share);
+            }
+        }
+
+        /**
+         * An absent If-Range always matches. An entity tag matches by strong comparison with
+         * the current one; a date matches only if the file has not changed since (second
+         * precision).
+         */
+        private boolean ifRangeMatches(String ifRange, long lastModified, String etag) {
+            if (ifRange == null) {
+                return true;
+            }
+            String value = ifRange.trim();
+            if (value.startsWith("\"") || value.startsWith("W/")) {
+                return value.equals(etag);
+            }
+            try {
+                long since = ZonedDateTime.parse(value, HTTP_DATE).toInstant().getEpochSecond();
+                return lastModified / 1000 == since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Sends from the cached copy when there is one, otherwise from the file.
+         */
+        private TransferEngine.Path send(ByteBuffer cached, FileChannel channel, long position, long count,
+                                         OutputStream os) throws IOException {
+            if (cached != null) {
+                return transferEngine.send(cached, position, count, os);
+            }
+            return transferEngine.send(channel, position, count, os);
+        }
+
+        private void sendMultipartRanges(HttpExchange exchange, Source source, List<ByteRange> ranges,
+                                         String mime, long contentLength) throws IOException {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<byte[]> partHeaders = new ArrayList<>();
+            long total = 0;
+            for (ByteRange range : ranges) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\n" +
+                                     "Content-Type: " + mime + "\r\n" +
+                                     "Content-Range: " + range.toContentRange(contentLength) + "\r\n" +
+                                     "\r\n").getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                total += partHeader.length + range.length();
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            total += closing.length;
+
+            exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            exchange.sendResponseHeaders(206, total);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    ByteRange range = ranges.get(i);
+                    os.write(partHeaders.get(i));
+                    source.send(range.getFirst(), range.length(), os);
+                }
+                os.write(closing);
+            }
+        }
+    }
+
+    /**
+     * Content a download is served from, addressed by position so that ranges work alike
+     * for single files and archives.
+     */
+    private interface Source {
+        TransferEngine.Path send(long position, long count, OutputStream os) throws IOException;
     }
 }
\ No newline at end of file
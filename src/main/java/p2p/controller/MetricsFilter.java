@@ -0,0 +1,151 @@
+package p2p.controller;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.metrics.Histogram;
+import p2p.metrics.MetricsRegistry;
+
+/**
+ * Records latency, time to first byte, throughput and error counts for one handler.
+ *
+ * <p>Installed ahead of the {@link AdmissionFilter} so that shed requests are counted too.
+ * Durations start when the exchange was dispatched, so they include executor queue time.
+ * The request and response bodies are wrapped in counting streams; the first body byte
+ * written marks the time to first byte.
+ */
+public class MetricsFilter extends Filter {
+    // Smaller bodies finish in one write, so their rate says more about latency than throughput
+    private static final long MIN_THROUGHPUT_BYTES = 64 * 1024;
+
+    private final String handler;
+    private final MetricsRegistry registry;
+    private final Histogram duration;
+    private final Histogram firstByte;
+    private final Histogram throughput;
+    private final LongAdder requests;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final AtomicInteger active = new AtomicInteger();
+
+    public MetricsFilter(String handler, MetricsRegistry registry) {
+        this.handler = handler;
+        this.registry = registry;
+        this.duration = registry.summary("peerpass_http_request_duration_seconds",
+                "Time from dispatch until the response is complete", 1e-9, "handler", handler);
+        this.firstByte = registry.summary("peerpass_http_time_to_first_byte_seconds",
+                "Time from dispatch until the first response body byte is written", 1e-9, "handler", handler);
+        this.throughput = registry.summary("peerpass_http_transfer_bytes_per_second",
+                "Body bytes per second of requests that moved at least 64 KB", 1, "handler", handler);
+        this.requests = registry.counter("peerpass_http_requests_total", "Requests received", "handler", handler);
+        this.bytesIn = registry.counter("peerpass_http_received_bytes_total", "Request body bytes read", "handler", handler);
+        this.bytesOut = registry.counter("peerpass_http_sent_bytes_total", "Response body bytes written", "handler", handler);
+        registry.gauge("peerpass_http_active_requests", "Requests in progress", active::get, "handler", handler);
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime() - DispatchExecutor.queuedNanos();
+        CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+        TimingOutputStream out = new TimingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(in, out);
+        requests.increment();
+        active.incrementAndGet();
+        boolean failed = true;
+        try {
+            chain.doFilter(exchange);
+            failed = false;
+        } finally {
+            active.decrementAndGet();
+            long end = System.nanoTime();
+            long elapsed = end - start;
+            duration.record(elapsed);
+            firstByte.record(out.firstByteAt == 0 ? elapsed : out.firstByteAt - start);
+            bytesIn.add(in.count);
+            bytesOut.add(out.count);
+            long moved = Math.max(in.count, out.count);
+            if (moved >= MIN_THROUGHPUT_BYTES && elapsed > 0) {
+                throughput.record((long) (moved * 1e9 / elapsed));
+            }
+            int status = exchange.getResponseCode();
+            if (failed || status < 0 || status >= 400) {
+                String label = status < 0 ? "none" : Integer.toString(status);
+                registry.counter("peerpass_http_errors_total",
+                        "Requests that failed, by response status (none if no response was sent)",
+                        "handler", handler, "status", label).increment();
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Metrics for " + handler;
+    }
+
+    // Each exchange is handled by one thread, so the counts need no synchronization
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class TimingOutputStream extends FilterOutputStream {
+        private long count;
+        private long firstByteAt;
+
+        TimingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write byte by byte
+            out.write(b, off, len);
+            written(len);
+        }
+
+        private void written(int len) {
+            if (len > 0 && firstByteAt == 0) {
+                firstByteAt = System.nanoTime();
+            }
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.service.LiveShare;
+import p2p.service.RelayManager;
+import p2p.utils.AsyncLogger;
+import p2p.utils.CodeAllocator;
+import p2p.utils.HttpUtils;
+
+/**
+ * Live relay uploads, which receivers can download with {@code GET /download/{code}}
+ * while they are still streaming in:
+ * <pre>
+ * POST   /relay?filename=a.bin[&amp;size=N]   reserve a code (also takes ttl, maxDownloads)
+ * PUT    /relay/{code}                     send the content as the raw request body
+ * DELETE /relay/{code}                     cancel; receivers fail
+ * </pre>
+ * PUT and DELETE need the token returned by POST, as {@code Authorization: Bearer} or a
+ * {@code token} query parameter. With {@code size} receivers get a Content-Length,
+ * otherwise a chunked response.
+ */
+class RelayHandler implements HttpHandler {
+    private static final AsyncLogger LOG = AsyncLogger.shared();
+
+    private final RelayManager relays;
+
+    RelayHandler(RelayManager relays) {
+        this.relays = relays;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpUtils.addCorsHeaders(exchange, "POST, PUT, DELETE, OPTIONS");
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (method.equals("OPTIONS")) {
+            HttpUtils.sendEmpty(exchange, 204);
+            return;
+        }
+
+        String rest = exchange.getRequestURI().getPath().substring("/relay".length()).replaceAll("^/+|/+$", "");
+        Map<String, String> query = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+        try {
+            if (rest.isEmpty() && method.equals("POST")) {
+                reserve(exchange, query);
+                return;
+            }
+            if (rest.isEmpty() || !(method.equals("PUT") || method.equals("DELETE"))) {
+                HttpUtils.sendText(exchange, 404, "Not Found");
+                return;
+            }
+            LiveShare live = relays.get(Integer.parseInt(rest));
+            if (live == null) {
+                HttpUtils.sendText(exchange, 404, "Not Found: No relay waiting under code " + rest);
+                return;
+            }
+            String auth = exchange.getRequestHeaders().getFirst("Authorization");
+            String token = auth != null && auth.startsWith("Bearer ") ? auth.substring("Bearer ".length()).trim() : query.get("token");
+            if (!live.isToken(token)) {
+                HttpUtils.sendText(exchange, 403, "Forbidden: Wrong relay token");
+                return;
+            }
+            if (method.equals("DELETE")) {
+                if (relays.abort(live, "cancelled by the uploader")) {
+                    HttpUtils.sendEmpty(exchange, 204);
+                } else {
+                    HttpUtils.sendText(exchange, 409, "Conflict: The upload has already finished");
+                }
+                return;
+            }
+            upload(exchange, live);
+        } catch (NumberFormatException e) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: Invalid number");
+        } catch (CodeAllocator.CodeSpaceExhaustedException e) {
+            LOG.error("Relay rejected: %s", e.getMessage());
+            exchange.getResponseHeaders().set("Retry-After", "60");
+            HttpUtils.sendText(exchange, 503, "Service Unavailable: " + e.getMessage());
+        }
+    }
+
+    private void reserve(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String filename = query.getOrDefault("filename", "unnamed-file");
+        if (filename.trim().isEmpty()) {
+            filename = "unnamed-file";
+        }
+        filename = new java.io.File(filename).getName();
+        long size = query.containsKey("size") ? Long.parseLong(query.get("size")) : -1;
+        if (size < -1) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: size must not be negative");
+            return;
+        }
+        long ttlMillis;
+        int maxDownloads;
+        try {
+            ttlMillis = FileController.ttlMillis(query);
+            maxDownloads = FileController.maxDownloads(query);
+        } catch (IllegalArgumentException e) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            return;
+        }
+
+        LiveShare live = relays.open(filename, size, ttlMillis, maxDownloads);
+        exchange.getResponseHeaders().set("Location", "/relay/" + live.getCode());
+        HttpUtils.sendJson(exchange, 201, "{\"port\": " + live.getCode() + ", \"token\": \"" + live.getToken() + "\"}");
+    }
+
+    private void upload(HttpExchange exchange, LiveShare live) throws IOException {
+        long start = System.nanoTime();
+        try (InputStream in = exchange.getRequestBody()) {
+            relays.receive(live, in);
+        } catch (IllegalStateException e) {
+            HttpUtils.sendText(exchange, 409, "Conflict: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            LOG.error("Relay upload for code %d aborted: %s", live.getCode(), e.getMessage());
+            HttpUtils.sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            return;
+        }
+        LOG.info("Relayed code %d in %d ms", live.getCode(), (System.nanoTime() - start) / 1_000_000);
+        HttpUtils.sendJson(exchange, 200, "{\"port\": " + live.getCode() + "}");
+    }
+}
@@ -0,0 +1,533 @@
+package p2p.controller;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import p2p.utils.Settings;
+import p2p.utils.UploadUtils;
+
+/**
+ * Settings for a {@link FileController}. {@link #fromEnvironment()} reads them from system
+ * properties or environment variables; tests construct and adjust one directly.
+ */
+public class ServerConfig {
+    private ExecutorMode executorMode = ExecutorMode.POOL;
+    private int poolSize = 10;
+    private int uploadConcurrency = 16;
+    private int downloadConcurrency = 64;
+    private int admissionQueue = 64;
+    private long admissionTimeoutMillis = 2000;
+    private long shareTtlSeconds = 0;
+    private int maxDownloads = 0;
+    private long diskBudgetBytes = 0;
+    private long sessionIdleSeconds = 24 * 60 * 60;
+    private long sessionMaxBytes = 16L * 1024 * 1024 * 1024;
+    private int maxSessions = 64;
+    private long reaperIntervalSeconds = 30;
+    private boolean indexEnabled = true;
+    private long indexCompactBytes = 64L * 1024 * 1024;
+    private long cacheBytes = 128L * 1024 * 1024;
+    private long cacheMaxEntryBytes = 32L * 1024 * 1024;
+    private boolean compressionEnabled = true;
+    private long compressionMinBytes = 1024;
+    private long segmentThreshold = 0;
+    private long segmentBytes = 64L * 1024 * 1024;
+    private boolean encryptionEnabled = false;
+    private String encryptionKey = null;
+    private int transferPort = 8081;
+    private boolean tcpNoDelay = true;
+    private long globalBandwidth = 0;
+    private long connectionBandwidth = 0;
+    private String adminToken = null;
+    private int codeDigits = UploadUtils.DEFAULT_CODE_DIGITS;
+    private boolean secureCodes = true;
+    private String uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
+    private List<String> clusterNodes = Collections.emptyList();
+    private String clusterSelf = null;
+    private int clusterVirtualNodes = 128;
+    private boolean clusterRedirect = false;
+    private String clusterSecret = null;
+
+    public static ServerConfig fromEnvironment() {
+        ServerConfig config = new ServerConfig();
+        config.executorMode = ExecutorMode.fromString(Settings.getString("peerpass.executor", config.executorMode.name()));
+        config.poolSize = Settings.getInt("peerpass.pool.size", config.poolSize);
+        config.uploadConcurrency = Settings.getInt("peerpass.upload.concurrency", config.uploadConcurrency);
+        config.downloadConcurrency = Settings.getInt("peerpass.download.concurrency", config.downloadConcurrency);
+        config.admissionQueue = Settings.getInt("peerpass.admission.queue", config.admissionQueue);
+        config.admissionTimeoutMillis = Settings.getLong("peerpass.admission.timeout.ms", config.admissionTimeoutMillis);
+        config.shareTtlSeconds = Settings.getLong("peerpass.share.ttl.seconds", config.shareTtlSeconds);
+        config.maxDownloads = Settings.getInt("peerpass.share.max.downloads", config.maxDownloads);
+        config.diskBudgetBytes = Settings.getLong("peerpass.disk.budget.bytes", config.diskBudgetBytes);
+        config.sessionIdleSeconds = Settings.getLong("peerpass.session.idle.seconds", config.sessionIdleSeconds);
+        config.sessionMaxBytes = Settings.getLong("peerpass.session.max.bytes", config.sessionMaxBytes);
+        config.maxSessions = Settings.getInt("peerpass.session.max", config.maxSessions);
+        config.reaperIntervalSeconds = Settings.getLong("peerpass.reaper.interval.seconds", config.reaperIntervalSeconds);
+        config.indexEnabled = Settings.getBoolean("peerpass.index.enabled", config.indexEnabled);
+        config.indexCompactBytes = Settings.getLong("peerpass.index.compact.bytes", config.indexCompactBytes);
+        config.cacheBytes = Settings.getLong("peerpass.cache.bytes", config.cacheBytes);
+        config.cacheMaxEntryBytes = Settings.getLong("peerpass.cache.max.entry.bytes", config.cacheMaxEntryBytes);
+        config.compressionEnabled = Settings.getBoolean("peerpass.compression.enabled", config.compressionEnabled);
+        config.compressionMinBytes = Settings.getLong("peerpass.compression.min.bytes", config.compressionMinBytes);
+        config.segmentThreshold = Settings.getLong("peerpass.storage.segment.threshold", config.segmentThreshold);
+        config.segmentBytes = Settings.getLong("peerpass.storage.segment.bytes", config.segmentBytes);
+        config.encryptionEnabled = Settings.getBoolean("peerpass.encryption.enabled", config.encryptionEnabled);
+        config.encryptionKey = Settings.getString("peerpass.encryption.key", config.encryptionKey);
+        config.transferPort = Settings.getInt("peerpass.transfer.port", config.transferPort);
+        config.tcpNoDelay = Settings.getBoolean("peerpass.http.nodelay", config.tcpNoDelay);
+        config.globalBandwidth = Settings.getLong("peerpass.bandwidth.global", config.globalBandwidth);
+        config.connectionBandwidth = Settings.getLong("peerpass.bandwidth.connection", config.connectionBandwidth);
+        config.adminToken = Settings.getString("peerpass.admin.token", config.adminToken);
+        config.codeDigits = Settings.getInt("peerpass.code.digits", config.codeDigits);
+        config.secureCodes = Settings.getBoolean("peerpass.code.secure", config.secureCodes);
+        config.uploadDir = Settings.getString("peerpass.upload.dir", config.uploadDir);
+        String nodes = Settings.getString("peerpass.cluster.nodes", null);
+        if (nodes != null) {
+            List<String> list = new ArrayList<>();
+            for (String node : nodes.split(",")) {
+                if (!node.trim().isEmpty()) {
+                    list.add(node.trim());
+                }
+            }
+            config.clusterNodes = list;
+        }
+        config.clusterSelf = Settings.getString("peerpass.cluster.self", config.clusterSelf);
+        config.clusterVirtualNodes = Settings.getInt("peerpass.cluster.vnodes", config.clusterVirtualNodes);
+        config.clusterRedirect = Settings.getBoolean("peerpass.cluster.redirect", config.clusterRedirect);
+        config.clusterSecret = Settings.getString("peerpass.cluster.secret", config.clusterSecret);
+        return config;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public ServerConfig setExecutorMode(ExecutorMode executorMode) {
+        this.executorMode = executorMode;
+        return this;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public ServerConfig setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public String getUploadDir() {
+        return uploadDir;
+    }
+
+    public ServerConfig setUploadDir(String uploadDir) {
+        this.uploadDir = uploadDir;
+        return this;
+    }
+
+    /**
+     * Upper bound for concurrent uploads; the adaptive limit moves below it.
+     */
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    public ServerConfig setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
+        return this;
+    }
+
+    /**
+     * Upper bound for concurrent downloads; the adaptive limit moves below it.
+     */
+    public int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    public ServerConfig setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = downloadConcurrency;
+        return this;
+    }
+
+    public int getAdmissionQueue() {
+        return admissionQueue;
+    }
+
+    public ServerConfig setAdmissionQueue(int admissionQueue) {
+        this.admissionQueue = admissionQueue;
+        return this;
+    }
+
+    public long getAdmissionTimeoutMillis() {
+        return admissionTimeoutMillis;
+    }
+
+    public ServerConfig setAdmissionTimeoutMillis(long admissionTimeoutMillis) {
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Default lifetime of a share; 0 (the default) keeps shares until they are deleted, used
+     * up or evicted for space.
+     */
+    public long getShareTtlSeconds() {
+        return shareTtlSeconds;
+    }
+
+    public ServerConfig setShareTtlSeconds(long shareTtlSeconds) {
+        this.shareTtlSeconds = shareTtlSeconds;
+        return this;
+    }
+
+    /**
+     * Default number of completed downloads per share; 0 means unlimited.
+     */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public ServerConfig setMaxDownloads(int maxDownloads) {
+        this.maxDownloads = maxDownloads;
+        return this;
+    }
+
+    /**
+     * Upper bound for stored upload bytes, enforced by evicting least recently used shares;
+     * 0 disables the budget.
+     */
+    public long getDiskBudgetBytes() {
+        return diskBudgetBytes;
+    }
+
+    public ServerConfig setDiskBudgetBytes(long diskBudgetBytes) {
+        this.diskBudgetBytes = diskBudgetBytes;
+        return this;
+    }
+
+    public long getSessionIdleSeconds() {
+        return sessionIdleSeconds;
+    }
+
+    public ServerConfig setSessionIdleSeconds(long sessionIdleSeconds) {
+        this.sessionIdleSeconds = sessionIdleSeconds;
+        return this;
+    }
+
+    /**
+     * Largest size a resumable upload may declare, since it is preallocated up front; 0
+     * disables the limit.
+     */
+    public long getSessionMaxBytes() {
+        return sessionMaxBytes;
+    }
+
+    public ServerConfig setSessionMaxBytes(long sessionMaxBytes) {
+        this.sessionMaxBytes = sessionMaxBytes;
+        return this;
+    }
+
+    /**
+     * Resumable uploads that may be open at once; 0 disables the limit.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public ServerConfig setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+        return this;
+    }
+
+    public long getReaperIntervalSeconds() {
+        return reaperIntervalSeconds;
+    }
+
+    public ServerConfig setReaperIntervalSeconds(long reaperIntervalSeconds) {
+        this.reaperIntervalSeconds = reaperIntervalSeconds;
+        return this;
+    }
+
+    /**
+     * Whether shares are persisted so that they survive a restart.
+     */
+    public boolean isIndexEnabled() {
+        return indexEnabled;
+    }
+
+    public ServerConfig setIndexEnabled(boolean indexEnabled) {
+        this.indexEnabled = indexEnabled;
+        return this;
+    }
+
+    /**
+     * Journal size after which the share index is compacted into a snapshot.
+     */
+    public long getIndexCompactBytes() {
+        return indexCompactBytes;
+    }
+
+    public ServerConfig setIndexCompactBytes(long indexCompactBytes) {
+        this.indexCompactBytes = indexCompactBytes;
+        return this;
+    }
+
+    /**
+     * Number of decimal digits in a share code, which fixes the size of the code space.
+     */
+    public int getCodeDigits() {
+        return codeDigits;
+    }
+
+    public ServerConfig setCodeDigits(int codeDigits) {
+        this.codeDigits = codeDigits;
+        return this;
+    }
+
+    /**
+     * Whether codes are drawn from a cryptographically strong random source.
+     */
+    public boolean isSecureCodes() {
+        return secureCodes;
+    }
+
+    public ServerConfig setSecureCodes(boolean secureCodes) {
+        this.secureCodes = secureCodes;
+        return this;
+    }
+
+    /**
+     * Memory for keeping popular shares in direct buffers; 0 disables the cache.
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public ServerConfig setCacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    /**
+     * Largest file the hot-share cache keeps in memory.
+     */
+    public long getCacheMaxEntryBytes() {
+        return cacheMaxEntryBytes;
+    }
+
+    public ServerConfig setCacheMaxEntryBytes(long cacheMaxEntryBytes) {
+        this.cacheMaxEntryBytes = cacheMaxEntryBytes;
+        return this;
+    }
+
+    /**
+     * Whether downloads are offered gzip/deflate copies of compressible files.
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public ServerConfig setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        return this;
+    }
+
+    /**
+     * Smallest file that is compressed for transfer.
+     */
+    public long getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    public ServerConfig setCompressionMinBytes(long compressionMinBytes) {
+        this.compressionMinBytes = compressionMinBytes;
+        return this;
+    }
+
+    /**
+     * Largest upload packed into segment files instead of getting a file of its own; 0 keeps
+     * one file per blob.
+     */
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    public ServerConfig setSegmentThreshold(long segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+        return this;
+    }
+
+    /**
+     * Size of each segment file.
+     */
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public ServerConfig setSegmentBytes(long segmentBytes) {
+        this.segmentBytes = segmentBytes;
+        return this;
+    }
+
+    /**
+     * Whether uploaded content is stored encrypted; see {@link p2p.service.BlobEncryption}.
+     */
+    public boolean isEncryptionEnabled() {
+        return encryptionEnabled;
+    }
+
+    public ServerConfig setEncryptionEnabled(boolean encryptionEnabled) {
+        this.encryptionEnabled = encryptionEnabled;
+        return this;
+    }
+
+    /**
+     * Base64 of the 256-bit master key; null keeps a generated one in the upload directory.
+     */
+    public String getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public ServerConfig setEncryptionKey(String encryptionKey) {
+        this.encryptionKey = encryptionKey;
+        return this;
+    }
+
+    /**
+     * Port of the raw TCP transfer server; 0 picks a free port and a negative value disables it.
+     */
+    public int getTransferPort() {
+        return transferPort;
+    }
+
+    public ServerConfig setTransferPort(int transferPort) {
+        this.transferPort = transferPort;
+        return this;
+    }
+
+    /**
+     * Whether the API server disables Nagle's algorithm. The JDK server writes headers and a
+     * small body separately, so with Nagle the body waits for the client's delayed ACK,
+     * adding about 40 ms to every small response. The JDK reads this once for the whole JVM,
+     * when the first server is created, so only {@link #applyJvmSettings()} before that
+     * makes it take effect.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public ServerConfig setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * Applies the settings that the JDK only takes as JVM-wide system properties. Meant for
+     * {@code main}, before any server is created; an explicit {@code -D} wins.
+     */
+    public void applyJvmSettings() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", Boolean.toString(tcpNoDelay));
+        }
+    }
+
+    /**
+     * Bytes per second across all HTTP uploads and downloads; 0 is unlimited.
+     */
+    public long getGlobalBandwidth() {
+        return globalBandwidth;
+    }
+
+    public ServerConfig setGlobalBandwidth(long globalBandwidth) {
+        this.globalBandwidth = globalBandwidth;
+        return this;
+    }
+
+    /**
+     * Bytes per second for each HTTP upload or download; 0 is unlimited.
+     */
+    public long getConnectionBandwidth() {
+        return connectionBandwidth;
+    }
+
+    public ServerConfig setConnectionBandwidth(long connectionBandwidth) {
+        this.connectionBandwidth = connectionBandwidth;
+        return this;
+    }
+
+    /**
+     * Bearer token for the {@code /admin} endpoints, which are disabled when it is null.
+     */
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    public ServerConfig setAdminToken(String adminToken) {
+        this.adminToken = adminToken;
+        return this;
+    }
+
+    /**
+     * Base URLs of all cluster nodes, e.g. {@code http://10.0.0.5:8080}, listed the same way
+     * on every node; empty runs a single node.
+     */
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public ServerConfig setClusterNodes(List<String> clusterNodes) {
+        this.clusterNodes = clusterNodes;
+        return this;
+    }
+
+    /**
+     * This node's entry in the node list; null means {@code http://localhost:<port>}. A node
+     * that is not in the list owns no codes and hands all its shares over.
+     */
+    public String getClusterSelf() {
+        return clusterSelf;
+    }
+
+    public ServerConfig setClusterSelf(String clusterSelf) {
+        this.clusterSelf = clusterSelf;
+        return this;
+    }
+
+    /**
+     * Points per node on the hash ring; more even out the load at a small cost in memory.
+     */
+    public int getClusterVirtualNodes() {
+        return clusterVirtualNodes;
+    }
+
+    public ServerConfig setClusterVirtualNodes(int clusterVirtualNodes) {
+        this.clusterVirtualNodes = clusterVirtualNodes;
+        return this;
+    }
+
+    /**
+     * Whether downloads of codes owned by another node are redirected there instead of proxied.
+     */
+    public boolean isClusterRedirect() {
+        return clusterRedirect;
+    }
+
+    public ServerConfig setClusterRedirect(boolean clusterRedirect) {
+        this.clusterRedirect = clusterRedirect;
+        return this;
+    }
+
+    /**
+     * Bearer token nodes use when handing shares to each other; required in cluster mode.
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public ServerConfig setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+        return this;
+    }
+}
@@ -0,0 +1,150 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.service.ChunkManifests;
+import p2p.service.FileSharer;
+import p2p.service.Share;
+import p2p.service.SwarmTracker;
+import p2p.utils.HttpUtils;
+import p2p.utils.MerkleTree;
+
+/**
+ * Tracker for peer-assisted downloads, in the style of a BitTorrent tracker:
+ * <pre>
+ * GET /swarm/{code}?port=P&amp;have=B[&amp;event=stopped]    announce, and list the other peers
+ * GET /swarm/{code}                                   list the peers without announcing
+ * </pre>
+ * {@code have} is the peer's bitmap of manifest chunks, as {@link BitSet#toByteArray()}
+ * in unpadded URL-safe base64. The peer is recorded as {@code http://<client address>:P},
+ * so it cannot make other clients connect to hosts of its choosing. {@code X-Forwarded-For}
+ * is only believed from another cluster node, which proves itself with the cluster secret
+ * in {@value ClusterFilter#AUTH_HEADER}. Responses list up to
+ * {@value SwarmTracker#MAX_PEERS_RETURNED} peers with their bitmaps, plus the announce
+ * interval and the chunk layout. Only single-file shares have a swarm.
+ */
+class SwarmHandler implements HttpHandler {
+    static final int ANNOUNCE_INTERVAL_SECONDS = 5;
+
+    private final FileSharer fileSharer;
+    private final SwarmTracker tracker;
+    // Null outside cluster mode
+    private final byte[] clusterToken;
+
+    SwarmHandler(FileSharer fileSharer, SwarmTracker tracker, String clusterSecret) {
+        this.fileSharer = fileSharer;
+        this.tracker = tracker;
+        this.clusterToken = clusterSecret == null ? null : ("Bearer " + clusterSecret).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpUtils.addCorsHeaders(exchange, "GET, OPTIONS");
+        if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            HttpUtils.sendEmpty(exchange, 204);
+            return;
+        }
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            exchange.getResponseHeaders().add("Allow", "GET, OPTIONS");
+            HttpUtils.sendText(exchange, 405, "Method Not Allowed");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        int code;
+        try {
+            code = Integer.parseInt(path.substring("/swarm/".length()).replaceAll("/+$", ""));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: Invalid share code");
+            return;
+        }
+        Share share = fileSharer.getShare(code);
+        if (share == null) {
+            HttpUtils.sendText(exchange, 404, "Not Found: No share with code " + code);
+            return;
+        }
+        if (share.isArchive()) {
+            HttpUtils.sendText(exchange, 404, "Not Found: Multi-file shares have no swarm");
+            return;
+        }
+        int chunks = MerkleTree.chunkCount(share.getSize(), ChunkManifests.CHUNK_BYTES);
+
+        Map<String, String> params = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+        long now = System.currentTimeMillis();
+        List<SwarmTracker.Peer> peers;
+        if (params.containsKey("port")) {
+            int port;
+            BitSet have;
+            try {
+                port = Integer.parseInt(params.get("port"));
+                have = BitSet.valueOf(Base64.getUrlDecoder().decode(params.getOrDefault("have", "")));
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException
+                HttpUtils.sendText(exchange, 400, "Bad Request: Invalid port or chunk bitmap");
+                return;
+            }
+            if (port < 1 || port > 65535 || have.length() > chunks) {
+                HttpUtils.sendText(exchange, 400, "Bad Request: Invalid port or chunk bitmap");
+                return;
+            }
+            String url = "http://" + hostOf(exchange) + ":" + port;
+            if ("stopped".equals(params.get("event"))) {
+                tracker.leave(code, url);
+                peers = tracker.peers(code, now);
+            } else {
+                peers = tracker.announce(code, url, have, now);
+            }
+        } else {
+            peers = tracker.peers(code, now);
+        }
+
+        StringBuilder json = new StringBuilder(128 + peers.size() * (64 + chunks / 6));
+        json.append("{\"interval\": ").append(ANNOUNCE_INTERVAL_SECONDS)
+            .append(", \"size\": ").append(share.getSize())
+            .append(", \"chunkSize\": ").append(ChunkManifests.CHUNK_BYTES)
+            .append(", \"chunks\": ").append(chunks)
+            .append(", \"peers\": [");
+        for (int i = 0; i < peers.size(); i++) {
+            SwarmTracker.Peer peer = peers.get(i);
+            json.append(i == 0 ? "" : ", ")
+                .append("{\"url\": \"").append(HttpUtils.jsonEscape(peer.getUrl()))
+                .append("\", \"have\": \"")
+                .append(Base64.getUrlEncoder().withoutPadding().encodeToString(peer.getHave().toByteArray()))
+                .append("\"}");
+        }
+        json.append("]}");
+        HttpUtils.sendJson(exchange, 200, json.toString());
+    }
+
+    /**
+     * The announcing client's address; for a request proxied by another cluster node, the
+     * address that node saw.
+     */
+    private String hostOf(HttpExchange exchange) {
+        String forwardedFor = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+        String host;
+        if (forwardedFor != null && fromClusterNode(exchange)) {
+            host = forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1).trim();
+        } else {
+            InetAddress address = exchange.getRemoteAddress().getAddress();
+            host = address.getHostAddress();
+        }
+        return host.indexOf(':') >= 0 ? "[" + host + "]" : host;
+    }
+
+    private boolean fromClusterNode(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst(ClusterFilter.AUTH_HEADER);
+        return clusterToken != null && authorization != null
+                && MessageDigest.isEqual(clusterToken, authorization.trim().getBytes(StandardCharsets.UTF_8));
+    }
+}
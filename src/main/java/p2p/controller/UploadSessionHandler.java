@@ -0,0 +1,156 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import p2p.service.UploadSession;
+import p2p.service.UploadSessionManager;
+import p2p.utils.AsyncLogger;
+import p2p.utils.CodeAllocator;
+import p2p.utils.HttpUtils;
+
+/**
+ * Resumable, chunked uploads:
+ * <pre>
+ * POST   /uploads?filename=a.bin&amp;size=N[&amp;chunkSize=M]  create a session (also takes ttl, maxDownloads)
+ * PUT    /uploads/{id}/chunks/{index}                   upload one chunk (any order, in parallel)
+ * GET    /uploads/{id}                                  which chunks are done / missing
+ * POST   /uploads/{id}/complete                         finish and get a share code
+ * DELETE /uploads/{id}                                  abandon the session
+ * </pre>
+ */
+class UploadSessionHandler implements HttpHandler {
+    private final UploadSessionManager sessions;
+
+    UploadSessionHandler(UploadSessionManager sessions) {
+        this.sessions = sessions;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpUtils.addCorsHeaders(exchange, "GET, POST, PUT, DELETE, OPTIONS");
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (method.equals("OPTIONS")) {
+            HttpUtils.sendEmpty(exchange, 204);
+            return;
+        }
+
+        // Path segments after /uploads
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.substring("/uploads".length()).replaceAll("^/+|/+$", "").split("/");
+        if (parts.length == 1 && parts[0].isEmpty()) {
+            parts = new String[0];
+        }
+
+        try {
+            if (parts.length == 0 && method.equals("POST")) {
+                create(exchange);
+            } else if (parts.length == 1 && method.equals("GET")) {
+                status(exchange, parts[0]);
+            } else if (parts.length == 1 && method.equals("DELETE")) {
+                if (sessions.abort(parts[0])) {
+                    HttpUtils.sendEmpty(exchange, 204);
+                } else {
+                    HttpUtils.sendText(exchange, 404, "Not Found: Unknown upload session");
+                }
+            } else if (parts.length == 3 && parts[1].equals("chunks") && method.equals("PUT")) {
+                putChunk(exchange, parts[0], Integer.parseInt(parts[2]));
+            } else if (parts.length == 2 && parts[1].equals("complete") && method.equals("POST")) {
+                int port = sessions.complete(parts[0]);
+                HttpUtils.sendJson(exchange, 200, "{\"port\": " + port + "}");
+            } else {
+                HttpUtils.sendText(exchange, 404, "Not Found");
+            }
+        } catch (NumberFormatException e) {
+            HttpUtils.sendText(exchange, 400, "Bad Request: Invalid number");
+        } catch (IllegalArgumentException e) {
+            if (e.getMessage().startsWith("Unknown")) {
+                HttpUtils.sendText(exchange, 404, "Not Found: " + e.getMessage());
+            } else {
+                HttpUtils.sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            }
+        } catch (UploadSessionManager.LimitExceededException e) {
+            if (e.isRetryable()) {
+                exchange.getResponseHeaders().set("Retry-After", "60");
+                HttpUtils.sendText(exchange, 503, "Service Unavailable: " + e.getMessage());
+            } else {
+                HttpUtils.sendText(exchange, 413, "Payload Too Large: " + e.getMessage());
+            }
+        } catch (CodeAllocator.CodeSpaceExhaustedException e) {
+            exchange.getResponseHeaders().set("Retry-After", "60");
+            HttpUtils.sendText(exchange, 503, "Service Unavailable: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            HttpUtils.sendText(exchange, 409, "Conflict: " + e.getMessage());
+        } catch (IOException e) {
+            AsyncLogger.shared().error("Error in upload session request: %s", e.getMessage());
+            HttpUtils.sendText(exchange, 500, "Server error: " + e.getMessage());
+        }
+    }
+
+    private void create(HttpExchange exchange) throws IOException {
+        Map<String, String> query = HttpUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+        String filename = query.getOrDefault("filename", "unnamed-file");
+        if (filename.trim().isEmpty()) {
+            filename = "unnamed-file";
+        }
+        filename = new java.io.File(filename).getName();
+        if (!query.containsKey("size")) {
+            throw new IllegalArgumentException("size is required");
+        }
+        long size = Long.parseLong(query.get("size"));
+        int chunkSize = query.containsKey("chunkSize")
+                ? Integer.parseInt(query.get("chunkSize")) : UploadSessionManager.DEFAULT_CHUNK_SIZE;
+
+        long ttlMillis = FileController.ttlMillis(query);
+        int maxDownloads = FileController.maxDownloads(query);
+
+        UploadSession session = sessions.create(filename, size, chunkSize, ttlMillis, maxDownloads);
+        exchange.getResponseHeaders().set("Location", "/uploads/" + session.getId());
+        HttpUtils.sendJson(exchange, 201, describe(session));
+    }
+
+    private void status(HttpExchange exchange, String id) throws IOException {
+        UploadSession session = sessions.get(id);
+        if (session == null) {
+            HttpUtils.sendText(exchange, 404, "Not Found: Unknown upload session");
+            return;
+        }
+        HttpUtils.sendJson(exchange, 200, describe(session));
+    }
+
+    private void putChunk(HttpExchange exchange, String id, int index) throws IOException {
+        UploadSession session = sessions.get(id);
+        if (session == null) {
+            HttpUtils.sendText(exchange, 404, "Not Found: Unknown upload session");
+            return;
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            session.writeChunk(index, in);
+        }
+        HttpUtils.sendEmpty(exchange, 204);
+    }
+
+    private static String describe(UploadSession session) {
+        return "{\"session\": \"" + session.getId() + "\"" +
+               ", \"filename\": \"" + HttpUtils.jsonEscape(session.getFilename()) + "\"" +
+               ", \"size\": " + session.getSize() +
+               ", \"chunkSize\": " + session.getChunkSize() +
+               ", \"chunks\": " + session.getChunkCount() +
+               ", \"completed\": " + toJson(session.getCompletedChunks()) +
+               ", \"missing\": " + toJson(session.getMissingChunks()) + "}";
+    }
+
+    private static String toJson(List<Integer> values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values.get(i));
+        }
+        return sb.append(']').toString();
+    }
+}
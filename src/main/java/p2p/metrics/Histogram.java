@@ -0,0 +1,92 @@
+package p2p.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative longs in the style of HdrHistogram: values below 64
+ * get a bucket each, and every power of two above that is split into 32 buckets, so any
+ * recorded value is known to within about 3%. Recording is a few atomic increments and
+ * never blocks; quantiles are computed from a racy but consistent-enough snapshot.
+ */
+public class Histogram {
+    private static final int PRECISION_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS << 1;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - PRECISION_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value below which a fraction {@code quantile} of the recorded values fall, as the
+     * upper bound of the bucket that holds it; 0 if nothing was recorded.
+     */
+    public long valueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+        int mantissa = (int) (value >>> shift);
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int offset = index - LINEAR_BUCKETS;
+        int shift = offset / SUB_BUCKETS + 1;
+        long mantissa = offset % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,138 @@
+package p2p.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency summaries, rendered in the Prometheus text format.
+ *
+ * <p>Metrics are looked up by name and label pairs when a component is set up and then
+ * updated directly, so recording never touches the registry. Series with labels that are
+ * only known at runtime, such as error counts by status, are created on first use.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * A monotonically increasing count.
+     *
+     * @param labels alternating label names and values
+     */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, "counter").series.computeIfAbsent(labelText(labels), key -> new LongAdder());
+    }
+
+    /**
+     * A count kept elsewhere, read when the metrics are scraped.
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").series.put(labelText(labels), value);
+    }
+
+    /**
+     * A value read when the metrics are scraped.
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labelText(labels), value);
+    }
+
+    /**
+     * A distribution, exported as a summary with 50/90/99/99.9th percentiles.
+     *
+     * @param scale factor from recorded values to the exported unit, e.g. 1e-9 for
+     *              nanoseconds recorded and seconds exported
+     */
+    public Histogram summary(String name, String help, double scale, String... labels) {
+        Family family = family(name, help, "summary");
+        family.scale = scale;
+        return (Histogram) family.series.computeIfAbsent(labelText(labels), key -> new Histogram());
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof LongAdder) {
+                    sample(out, name, labels, null, ((LongAdder) metric).sum());
+                } else if (metric instanceof LongSupplier) {
+                    sample(out, name, labels, null, ((LongSupplier) metric).getAsLong());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(out, name, labels, null, ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    Histogram histogram = (Histogram) metric;
+                    for (double quantile : QUANTILES) {
+                        sample(out, name, labels, "quantile=\"" + quantile + "\"",
+                               histogram.valueAtQuantile(quantile) * family.scale);
+                    }
+                    sample(out, name + "_sum", labels, null, histogram.getSum() * family.scale);
+                    sample(out, name + "_count", labels, null, histogram.getCount());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String extra, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                if (!labels.isEmpty()) out.append(',');
+                out.append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String labelText(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) text.append(',');
+            text.append(labels[i]).append("=\"")
+                .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+        }
+        return text.toString();
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final ConcurrentSkipListMap<String, Object> series = new ConcurrentSkipListMap<>();
+        private volatile double scale = 1;
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package p2p.service;
+
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shapes transfer bandwidth with a global and a per-transfer token bucket, and shares the
+ * global rate between transfers by least attained service: when the global bucket is empty,
+ * the waiting transfer that has moved the fewest bytes goes next. Small transfers therefore
+ * finish almost as if they were alone, while large ones take whatever is left.
+ *
+ * <p>Buckets run into debt: a transfer may take a whole chunk as soon as its bucket is
+ * positive and then waits the debt off, so chunk sizes need not fit the burst size. Both
+ * rates can be changed at any time and apply to transfers already in progress. A rate of
+ * 0 means unlimited; with both unlimited, {@link Transfer#acquire} costs two volatile reads.
+ */
+public class BandwidthManager {
+    // Largest chunk a caller should acquire at once; finer chunks interleave transfers better
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    // Longest single wait, so that rate changes and new arrivals are noticed promptly
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private volatile long globalRate;
+    private volatile long connectionRate;
+
+    // Guarded by this
+    private final PriorityQueue<Transfer> waiting = new PriorityQueue<>(
+            Comparator.comparingLong((Transfer t) -> t.attained).thenComparingLong(t -> t.id));
+    private double globalTokens;
+    private long globalRefillAt = System.nanoTime();
+
+    private final AtomicLong ids = new AtomicLong();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * @param globalRate     bytes per second across all transfers, or 0 for unlimited
+     * @param connectionRate bytes per second for each transfer, or 0 for unlimited
+     */
+    public BandwidthManager(long globalRate, long connectionRate) {
+        setLimits(globalRate, connectionRate);
+    }
+
+    public void setLimits(long globalRate, long connectionRate) {
+        if (globalRate < 0 || connectionRate < 0) {
+            throw new IllegalArgumentException("Rates must not be negative");
+        }
+        synchronized (this) {
+            this.globalRate = globalRate;
+            this.connectionRate = connectionRate;
+            globalTokens = Math.min(globalTokens, burst(globalRate));
+            notifyAll();
+        }
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    public long getConnectionRate() {
+        return connectionRate;
+    }
+
+    /**
+     * Whether either limit is set, which paths that cannot be shaped check to stay off.
+     */
+    public boolean isLimited() {
+        return globalRate > 0 || connectionRate > 0;
+    }
+
+    public Transfer open() {
+        return new Transfer(ids.incrementAndGet());
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Total time transfers spent waiting for either bucket.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.sum();
+    }
+
+    private static double burst(long rate) {
+        // A tenth of a second of traffic, and at least one chunk
+        return Math.max(CHUNK_BYTES, rate / 10.0);
+    }
+
+    private void acquireGlobal(Transfer transfer, int bytes) throws InterruptedIOException {
+        synchronized (this) {
+            waiting.add(transfer);
+            try {
+                while (true) {
+                    long rate = globalRate;
+                    if (rate <= 0) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    globalTokens = Math.min(burst(rate), globalTokens + (now - globalRefillAt) * rate / 1e9);
+                    globalRefillAt = now;
+                    boolean first = waiting.peek() == transfer;
+                    if (first && globalTokens > 0) {
+                        globalTokens -= bytes;
+                        return;
+                    }
+                    // Only the first in line needs to wake for the refill; others wait to be told
+                    long waitNanos = first ? Math.min(MAX_PARK_NANOS, (long) (-globalTokens * 1e9 / rate) + 1) : MAX_PARK_NANOS;
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            } finally {
+                waiting.remove(transfer);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * One upload or download. Not thread-safe: a transfer is driven by one thread.
+     */
+    public class Transfer {
+        private final long id;
+        // Only changed while not queued, so the queue order stays valid
+        private long attained;
+        private double tokens;
+        private long refillAt = System.nanoTime();
+
+        private Transfer(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Blocks until {@code bytes} may be sent or have been received, at most
+         * {@link #CHUNK_BYTES} at a time for fair interleaving.
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            if (connectionRate <= 0 && globalRate <= 0) {
+                attained += bytes;
+                return;
+            }
+            long start = System.nanoTime();
+            acquireConnection(bytes);
+            acquireGlobal(this, bytes);
+            attained += bytes;
+            throttledNanos.add(System.nanoTime() - start);
+        }
+
+        private void acquireConnection(int bytes) throws InterruptedIOException {
+            while (true) {
+                long rate = connectionRate;
+                if (rate <= 0) {
+                    return;
+                }
+                long now = System.nanoTime();
+                tokens = Math.min(burst(rate), tokens + (now - refillAt) * rate / 1e9);
+                refillAt = now;
+                if (tokens > 0) {
+                    tokens -= bytes;
+                    return;
+                }
+                LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, (long) (-tokens * 1e9 / rate) + 1));
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+
+        public long getAttained() {
+            return attained;
+        }
+    }
+}
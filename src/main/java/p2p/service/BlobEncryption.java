@@ -0,0 +1,537 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import p2p.utils.MerkleTree;
+
+/**
+ * Encryption of blob content at rest. Every blob gets a random AES-256 data key, stored in
+ * the blob's header wrapped by the master key and bound to the blob's id. The content is
+ * encrypted in {@link #CHUNK_BYTES} chunks, each an independent AES-GCM message whose
+ * nonce is its index, so any range can be read by decrypting only the chunks it covers.
+ *
+ * <pre>
+ * blob:   "PPEC" | int chunkSize | wrap nonce (12) | wrapped data key (32 + 16) | chunk*
+ * chunk:  ciphertext of chunkSize bytes (the last one shorter) | tag (16)
+ * </pre>
+ * Since chunk i is at a fixed offset, uploads encrypt chunks on a small pool of threads and
+ * write each in place as it is done; reads spanning several chunks decrypt them in parallel
+ * too. A data key encrypts one blob only once, which makes the index a safe nonce.
+ *
+ * <p>Truncation at a chunk boundary goes unnoticed by GCM; {@link BlobStore} catches it by
+ * comparing with the size it has on record.
+ *
+ * <p>This protects content, not its identity. Blobs are still deduplicated and named by the
+ * SHA-256 of their plaintext, which is also their {@code ETag}. Anyone who can list the
+ * store or see responses can therefore tell that two shares hold the same file, and can
+ * confirm a guess of a file's content by hashing it. Keys are per blob for the same
+ * reason: identical uploads share one stored copy and so one data key, rather than one
+ * key per share.
+ */
+public class BlobEncryption {
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    static final int TAG_BYTES = 16;
+    private static final int MAGIC = 0x50504543; // "PPEC"
+    private static final int KEY_BYTES = 32;
+    private static final int NONCE_BYTES = 12;
+    static final int HEADER_BYTES = 4 + 4 + NONCE_BYTES + KEY_BYTES + TAG_BYTES;
+    // Chunks one upload may have waiting for the pool before it has to wait itself
+    private static final int MAX_IN_FLIGHT = 8;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
+    // Room for one sealed chunk and its plaintext, per thread
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<>();
+
+    private final SecretKeySpec masterKey;
+    private final ExecutorService workers;
+
+    private final LongAdder encryptedChunks = new LongAdder();
+    private final LongAdder decryptedChunks = new LongAdder();
+
+    public BlobEncryption(byte[] masterKey) {
+        this(masterKey, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlobEncryption(byte[] masterKey, int threads) {
+        if (masterKey.length != KEY_BYTES) {
+            throw new IllegalArgumentException("The master key must be " + KEY_BYTES + " bytes, not " + masterKey.length);
+        }
+        this.masterKey = new SecretKeySpec(masterKey, "AES");
+        AtomicInteger ids = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "blob-crypto-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the base64 master key from {@code file}, or generates one there if the file does
+     * not exist yet, readable by the owner only where the filesystem supports it.
+     */
+    public static byte[] loadOrCreateKey(Path file) throws IOException {
+        if (Files.exists(file)) {
+            return Base64.getDecoder().decode(Files.readString(file).trim());
+        }
+        byte[] key = new byte[KEY_BYTES];
+        RANDOM.nextBytes(key);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        try {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(temp);
+        }
+        Files.writeString(temp, Base64.getEncoder().encodeToString(key) + "\n");
+        Files.move(temp, file);
+        System.out.println("Generated an encryption key in " + file + "; keep a copy apart from the uploads");
+        return key;
+    }
+
+    /**
+     * Bytes on disk for {@code size} bytes of content.
+     */
+    public static long storedLength(long size) {
+        return HEADER_BYTES + size + chunkCount(size, CHUNK_BYTES) * TAG_BYTES;
+    }
+
+    /**
+     * Starts encrypting a new blob into {@code out}, which must be empty and support
+     * positional writes from several threads.
+     */
+    Encryptor newEncryptor(FileChannel out) {
+        byte[] dataKey = new byte[KEY_BYTES];
+        RANDOM.nextBytes(dataKey);
+        return new Encryptor(out, dataKey);
+    }
+
+    /**
+     * Returns the content of a stored blob, decrypted as it is read. A blob without a header,
+     * stored before encryption was turned on, is returned as it is. {@code expectedSize} is
+     * the size on record, or -1 if unknown. Closes {@code stored} if it fails.
+     */
+    FileChannel open(FileChannel stored, String blobId, long expectedSize) throws IOException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && stored.read(header, header.position()) > 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                return stored;
+            }
+            int chunkSize = header.getInt();
+            byte[] nonce = new byte[NONCE_BYTES];
+            header.get(nonce);
+            byte[] wrapped = new byte[KEY_BYTES + TAG_BYTES];
+            header.get(wrapped);
+            byte[] dataKey;
+            try {
+                Cipher cipher = CIPHERS.get();
+                cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+                cipher.updateAAD(MerkleTree.fromHex(blobId));
+                dataKey = cipher.doFinal(wrapped);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Key of blob " + blobId + " does not match the master key");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot unwrap the key of blob " + blobId, e);
+            }
+            if (chunkSize <= 0) {
+                throw new IOException("Blob " + blobId + " has a damaged header");
+            }
+            DecryptingChannel channel = new DecryptingChannel(stored, new SecretKeySpec(dataKey, "AES"), chunkSize, false);
+            if (expectedSize >= 0 && channel.size() != expectedSize) {
+                throw new IOException("Blob " + blobId + " holds " + channel.size() + " of " + expectedSize + " bytes");
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            stored.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of chunks encrypted so far, across all uploads.
+     */
+    public long getEncryptedChunks() {
+        return encryptedChunks.sum();
+    }
+
+    public long getDecryptedChunks() {
+        return decryptedChunks.sum();
+    }
+
+    public String describeStats() {
+        return getEncryptedChunks() + " chunks encrypted, " + getDecryptedChunks() + " decrypted";
+    }
+
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    static long chunkCount(long size, int chunkSize) {
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Runs {@code task} on the pool, or on this thread if the pool is shutting down.
+     */
+    <T> Future<T> submit(FutureTask<T> task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+        return task;
+    }
+
+    void decrypt(SecretKeySpec key, long index, byte[] in, int length, byte[] out, int outOffset) throws IOException {
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(index));
+            cipher.doFinal(in, 0, length, out, outOffset);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Chunk " + index + " does not authenticate");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decrypt chunk " + index, e);
+        }
+        decryptedChunks.increment();
+    }
+
+    static byte[] scratch(int length) {
+        byte[] buffer = SCRATCH.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static GCMParameterSpec nonce(long index) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        ByteBuffer.wrap(nonce).putLong(NONCE_BYTES - 8, index);
+        return new GCMParameterSpec(TAG_BYTES * 8, nonce);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    /**
+     * Encrypts one upload, chunk by chunk in the background. Not thread-safe: an upload is
+     * written by one thread.
+     */
+    class Encryptor {
+        private final FileChannel out;
+        private final byte[] dataKey;
+        private final SecretKeySpec key;
+        private final ArrayDeque<Future<Integer>> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+        private byte[] current;
+        private int filled;
+        private long chunks;
+        private long done;
+
+        private Encryptor(FileChannel out, byte[] dataKey) {
+            this.out = out;
+            this.dataKey = dataKey;
+            this.key = new SecretKeySpec(dataKey, "AES");
+        }
+
+        /**
+         * Takes the next bytes of the content; {@code src} is consumed.
+         */
+        void update(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (current == null) {
+                    current = spare.isEmpty() ? new byte[CHUNK_BYTES] : spare.poll();
+                    filled = 0;
+                }
+                int n = Math.min(src.remaining(), CHUNK_BYTES - filled);
+                src.get(current, filled, n);
+                filled += n;
+                if (filled == CHUNK_BYTES) {
+                    submit();
+                }
+            }
+            // Publishes finished chunks to live readers without waiting for the rest
+            while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                collect();
+            }
+        }
+
+        /**
+         * Content bytes whose chunks are on disk, counted from the start.
+         */
+        long getWrittenSize() {
+            return done;
+        }
+
+        /**
+         * Encrypts what is left, waits for every chunk and writes the header, which binds the
+         * data key to {@code blobHash}, the SHA-256 of the content.
+         */
+        void finish(byte[] blobHash) throws IOException {
+            if (current != null && filled > 0) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                collect();
+            }
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            byte[] wrapped;
+            try {
+                Cipher cipher = CIPHERS.get();
+                cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+                cipher.updateAAD(blobHash);
+                wrapped = cipher.doFinal(dataKey);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot wrap the data key", e);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(CHUNK_BYTES).put(nonce).put(wrapped).flip();
+            writeFully(out, header, 0);
+        }
+
+        /**
+         * Waits for chunks still being written, so the file can be closed and deleted.
+         */
+        void abort() {
+            for (Future<Integer> chunk : inFlight) {
+                try {
+                    chunk.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ignore) {
+                }
+            }
+            inFlight.clear();
+        }
+
+        /**
+         * A reader of the plaintext written so far; reads must stay below
+         * {@link #getWrittenSize()}.
+         */
+        FileChannel openReader(FileChannel file) throws IOException {
+            return new DecryptingChannel(file, key, CHUNK_BYTES, true);
+        }
+
+        private void submit() throws IOException {
+            if (inFlight.size() >= MAX_IN_FLIGHT) {
+                collect();
+            }
+            byte[] chunk = current;
+            int length = filled;
+            long index = chunks++;
+            current = null;
+            filled = 0;
+            inFlight.add(BlobEncryption.this.submit(new FutureTask<>(() -> encrypt(index, chunk, length))));
+            buffers.add(chunk);
+        }
+
+        private int encrypt(long index, byte[] chunk, int length) throws IOException, GeneralSecurityException {
+            byte[] sealed = scratch(CHUNK_BYTES + TAG_BYTES);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, nonce(index));
+            int n = cipher.doFinal(chunk, 0, length, sealed, 0);
+            writeFully(out, ByteBuffer.wrap(sealed, 0, n), HEADER_BYTES + index * (CHUNK_BYTES + TAG_BYTES));
+            encryptedChunks.increment();
+            return length;
+        }
+
+        private void collect() throws IOException {
+            try {
+                done += inFlight.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while encrypting");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException("Chunk encryption failed", cause);
+            }
+            byte[] chunk = buffers.poll();
+            spare.add(chunk);
+        }
+    }
+
+    /**
+     * The plaintext of an encrypted blob as a read-only file of its own. Reads decrypt the
+     * chunks they cover, several at once on the pool; {@code transferTo} keeps the last
+     * decrypted window, so a non-blocking socket that takes only part of it does not cost
+     * another decryption. Closing it closes the underlying channel.
+     */
+    class DecryptingChannel extends ReadOnlyChannel {
+        private final FileChannel file;
+        private final SecretKeySpec key;
+        private final int chunkSize;
+        // A blob still being written grows, so its size is taken from the file each time
+        private final long size;
+        private ByteBuffer window;
+        private long windowStart;
+
+        DecryptingChannel(FileChannel file, SecretKeySpec key, int chunkSize, boolean growing) throws IOException {
+            this.file = file;
+            this.key = key;
+            this.chunkSize = chunkSize;
+            this.size = growing ? -1 : plainSize();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return size >= 0 ? size : plainSize();
+        }
+
+        private long plainSize() throws IOException {
+            long stored = file.size() - HEADER_BYTES;
+            if (stored <= 0) {
+                return 0;
+            }
+            long sealed = chunkSize + TAG_BYTES;
+            return stored / sealed * chunkSize + Math.max(0, stored % sealed - TAG_BYTES);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            long total = size();
+            if (position >= total) {
+                return -1;
+            }
+            int length = (int) Math.min(dst.remaining(), total - position);
+            if (length == 0) {
+                return 0;
+            }
+            long first = position / chunkSize;
+            long last = (position + length - 1) / chunkSize;
+            int base = dst.position();
+            if (first == last) {
+                readChunk(first, total, position, length, dst, base);
+            } else {
+                // This thread takes the first chunk and any the pool has not started yet
+                List<FutureTask<Void>> tasks = new ArrayList<>((int) (last - first));
+                for (long index = first + 1; index <= last; index++) {
+                    long from = index * chunkSize;
+                    int n = (int) (Math.min(position + length, from + chunkSize) - from);
+                    int at = base + (int) (from - position);
+                    long chunk = index;
+                    FutureTask<Void> task = new FutureTask<>(() -> readChunk(chunk, total, from, n, dst, at));
+                    tasks.add(task);
+                    BlobEncryption.this.submit(task);
+                }
+                readChunk(first, total, position, (int) ((first + 1) * chunkSize - position), dst, base);
+                for (FutureTask<Void> task : tasks) {
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while decrypting");
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            }
+            dst.position(base + length);
+            return length;
+        }
+
+        /**
+         * Decrypts chunk {@code index} and copies {@code length} bytes from content offset
+         * {@code from} into {@code dst} at {@code at}, leaving the buffer's position alone.
+         */
+        private Void readChunk(long index, long total, long from, int length, ByteBuffer dst, int at) throws IOException {
+            int plain = (int) Math.min(chunkSize, total - index * chunkSize);
+            int sealed = plain + TAG_BYTES;
+            byte[] in = scratch(2 * (chunkSize + TAG_BYTES));
+            ByteBuffer buffer = ByteBuffer.wrap(in, 0, sealed);
+            long offset = HEADER_BYTES + index * (chunkSize + TAG_BYTES);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Chunk " + index + " is cut short");
+                }
+            }
+            // Decrypted into the second half of the scratch buffer
+            int out = chunkSize + TAG_BYTES;
+            decrypt(key, index, in, sealed, in, out);
+            dst.put(at, in, out + (int) (from - index * chunkSize), length);
+            return null;
+        }
+
+        @Override
+        public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long total = size();
+            if (position >= total || count <= 0) {
+                return 0;
+            }
+            if (window == null || position < windowStart || position >= windowStart + window.limit()) {
+                if (window == null) {
+                    window = ByteBuffer.allocate(4 * chunkSize);
+                }
+                // Aligned to chunks, so no chunk is decrypted twice
+                windowStart = position / chunkSize * chunkSize;
+                window.clear();
+                read(window, windowStart);
+                window.flip();
+            }
+            ByteBuffer slice = window.duplicate();
+            slice.position((int) (position - windowStart));
+            slice.limit((int) Math.min(slice.limit(), slice.position() + count));
+            long sent = 0;
+            while (slice.hasRemaining()) {
+                int n = target.write(slice);
+                if (n == 0) {
+                    break;
+                }
+                sent += n;
+            }
+            return sent;
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+}
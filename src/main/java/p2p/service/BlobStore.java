@@ -0,0 +1,527 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import p2p.utils.BufferPool;
+
+/**
+ * Content-addressed store for uploaded files. Every blob is named after the SHA-256 of its
+ * content, so identical uploads are kept on disk once and shared through reference counts.
+ *
+ * <p>All changes to a blob's reference count go through {@link ConcurrentHashMap#compute},
+ * which serialises a concurrent "last release deletes the file" against "a new upload with
+ * the same content takes a reference" for the same blob.
+ *
+ * <p>Where the content physically lives is up to a {@link StorageBackend}: one file per blob
+ * by default, or small blobs packed into segment files. With a {@link BlobEncryption} the
+ * content is encrypted on the way in and decrypted by the channels {@link #openChannel}
+ * returns; ids and sizes always refer to the plaintext.
+ */
+public class BlobStore {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path blobDir;
+    private final Path tempDir;
+    private final StorageBackend backend;
+    // Null stores plaintext
+    private final BlobEncryption encryption;
+    private final ConcurrentHashMap<String, Entry> blobs = new ConcurrentHashMap<>();
+
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder dedupedUploads = new LongAdder();
+    private final LongAdder dedupedBytes = new LongAdder();
+    private volatile Consumer<String> onDelete = blobId -> {};
+
+    public BlobStore(String rootDir) throws IOException {
+        this(rootDir, new FileBlobBackend(Paths.get(rootDir, "blobs")));
+    }
+
+    /**
+     * @param backend keeps the content; derived files and scratch files still go under
+     *                {@code rootDir}
+     */
+    public BlobStore(String rootDir, StorageBackend backend) throws IOException {
+        this(rootDir, backend, null);
+    }
+
+    public BlobStore(String rootDir, StorageBackend backend, BlobEncryption encryption) throws IOException {
+        this.blobDir = Paths.get(rootDir, "blobs");
+        this.tempDir = Paths.get(rootDir, "tmp");
+        this.backend = backend;
+        this.encryption = encryption;
+        Files.createDirectories(blobDir);
+        Files.createDirectories(tempDir);
+    }
+
+    /**
+     * Starts writing a new blob. The content is hashed as it is written and only becomes
+     * visible in the store on {@link Writer#commit()}.
+     */
+    public Writer newWriter() throws IOException {
+        return new Writer(newTempPath());
+    }
+
+    /**
+     * Hashes an existing file and moves it into the store without copying. The file must be
+     * on the same filesystem as the store. The caller owns one reference to the returned blob.
+     */
+    public String importFile(Path source) throws IOException {
+        if (encryption != null) {
+            // Encrypted into a new file, as the content has to be rewritten anyway
+            String id;
+            try (Writer writer = newWriter(); FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                ByteBuffer buffer = BufferPool.shared().acquire();
+                try {
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        writer.write(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    BufferPool.shared().release(buffer);
+                }
+                id = writer.commit();
+            }
+            Files.delete(source);
+            return id;
+        }
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        long size = 0;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                digest.update(buffer.array(), 0, read);
+                size += read;
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        return commit(source, size, size, digest.digest());
+    }
+
+    /**
+     * Where the blob's own file is, for blobs that are not packed; see {@link #isPacked}.
+     * Reads should go through {@link #openChannel}, which works for both.
+     */
+    public Path pathOf(String blobId) {
+        return blobDir.resolve(blobId.substring(0, 2)).resolve(blobId);
+    }
+
+    /**
+     * Opens a blob's content for reading, positioned at 0 and sized to the blob. The
+     * channel stays readable if the blob is deleted meanwhile.
+     *
+     * @throws java.nio.file.NoSuchFileException if the blob is not stored
+     */
+    public FileChannel openChannel(String blobId) throws IOException {
+        FileChannel stored = backend.open(blobId);
+        return encryption == null ? stored : encryption.open(stored, blobId, sizeOf(blobId));
+    }
+
+    /**
+     * Whether the content is actually on disk, as opposed to {@link #contains}, which only
+     * knows about references.
+     */
+    public boolean exists(String blobId) {
+        return backend.exists(blobId);
+    }
+
+    /**
+     * Whether the blob shares a segment file with others rather than having a file of its own.
+     */
+    public boolean isPacked(String blobId) {
+        return backend.isPacked(blobId);
+    }
+
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Whether new content is stored encrypted, in which case the files under
+     * {@link #pathOf} are not the plaintext.
+     */
+    public boolean isEncrypted() {
+        return encryption != null;
+    }
+
+    /**
+     * Location for a file derived from a blob, such as a compressed copy, kept next to the
+     * blob as {@code <blobId>.<suffix>}. Derived files are not reference counted; their owner
+     * deletes them via {@link #setOnDelete}, and the startup sweep removes orphans.
+     */
+    public Path variantPath(String blobId, String suffix) {
+        return blobDir.resolve(blobId.substring(0, 2)).resolve(blobId + "." + suffix);
+    }
+
+    /**
+     * Path for a scratch file on the store's filesystem, so it can later be moved into place
+     * atomically. Left-over scratch files are removed by {@link #sweepUnreferenced(long)}.
+     */
+    public Path newTempPath() {
+        return tempDir.resolve(UUID.randomUUID() + ".part");
+    }
+
+    public boolean contains(String blobId) {
+        return blobs.containsKey(blobId);
+    }
+
+    /**
+     * Takes one more reference on an existing blob, e.g. when a second share points at it.
+     * Returns false if the blob is not (or no longer) stored.
+     */
+    public boolean acquire(String blobId) {
+        Entry entry = blobs.computeIfPresent(blobId, (id, existing) -> {
+            existing.references++;
+            return existing;
+        });
+        return entry != null;
+    }
+
+    /**
+     * Re-registers a reference to a blob that is already on disk, while shares are being
+     * recovered after a restart. The size is taken from the share record to avoid a stat
+     * per blob; a blob that has gone missing is reported when it is downloaded.
+     */
+    public void restore(String blobId, long size) {
+        blobs.compute(blobId, (id, existing) -> {
+            if (existing != null) {
+                existing.references++;
+                return existing;
+            }
+            storedBytes.add(size);
+            return new Entry(size);
+        });
+    }
+
+    /**
+     * Drops one reference; the last reference deletes the content. Receivers that already
+     * have the blob open keep reading it.
+     */
+    public void release(String blobId) {
+        boolean[] deleted = new boolean[1];
+        blobs.computeIfPresent(blobId, (id, existing) -> {
+            if (--existing.references > 0) {
+                return existing;
+            }
+            storedBytes.add(-existing.size);
+            try {
+                backend.delete(id);
+            } catch (IOException e) {
+                System.err.println("Error deleting blob " + id + ": " + e.getMessage());
+            }
+            deleted[0] = true;
+            return null;
+        });
+        if (deleted[0]) {
+            onDelete.accept(blobId);
+        }
+    }
+
+    /**
+     * Hook run after a blob lost its last reference, e.g. to drop cached copies of it.
+     */
+    public void setOnDelete(Consumer<String> onDelete) {
+        this.onDelete = onDelete;
+    }
+
+    /**
+     * Deletes blob files that no share references, e.g. left behind by a previous run, and
+     * partial uploads last written before {@code partsOlderThan} (epoch millis). Safe to run
+     * while uploads continue.
+     */
+    public int sweepUnreferenced(long partsOlderThan) throws IOException {
+        int[] removed = new int[1];
+        backend.forEach(id -> {
+            if (blobs.containsKey(id)) return;
+            // Re-check under the entry's lock so a concurrent commit is not undone
+            boolean[] deleted = new boolean[1];
+            blobs.compute(id, (key, existing) -> {
+                if (existing == null) {
+                    try {
+                        backend.delete(id);
+                        deleted[0] = true;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return existing;
+            });
+            if (deleted[0]) removed[0]++;
+        });
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(blobDir)) {
+            for (Path dir : fanout) {
+                if (!Files.isDirectory(dir)) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        // Variants share the id of the blob they were derived from
+                        String name = file.getFileName().toString();
+                        int dot = name.indexOf('.');
+                        if (dot < 0) continue;
+                        String id = name.substring(0, dot);
+                        if (blobs.containsKey(id)) continue;
+                        // Re-check under the entry's lock so a concurrent commit is not undone
+                        boolean[] deleted = new boolean[1];
+                        blobs.compute(id, (key, existing) -> {
+                            if (existing == null) {
+                                try {
+                                    deleted[0] = Files.deleteIfExists(file);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }
+                            return existing;
+                        });
+                        if (deleted[0]) removed[0]++;
+                    }
+                }
+            }
+        }
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(tempDir)) {
+            for (Path part : parts) {
+                if (Files.getLastModifiedTime(part).toMillis() < partsOlderThan) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+        return removed[0];
+    }
+
+    /**
+     * Size of a stored blob, or -1 if it is not stored.
+     */
+    public long sizeOf(String blobId) {
+        Entry entry = blobs.get(blobId);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Bytes on disk across all blobs, counting deduplicated content once.
+     */
+    public long getStoredBytes() {
+        return storedBytes.sum();
+    }
+
+    public int getBlobCount() {
+        return blobs.size();
+    }
+
+    public long getDedupedUploads() {
+        return dedupedUploads.sum();
+    }
+
+    public long getDedupedBytes() {
+        return dedupedBytes.sum();
+    }
+
+    /**
+     * Closes the backend; nothing may be read or written afterwards.
+     */
+    public void close() {
+        backend.close();
+        if (encryption != null) {
+            encryption.close();
+        }
+    }
+
+    /**
+     * @param storedSize bytes of {@code tempFile}, which differs from {@code size} when
+     *                   the content is encrypted
+     */
+    private String commit(Path tempFile, long size, long storedSize, byte[] digest) throws IOException {
+        String id = toHex(digest);
+        try {
+            blobs.compute(id, (key, existing) -> {
+                try {
+                    if (existing != null) {
+                        Files.deleteIfExists(tempFile);
+                        existing.references++;
+                        dedupedUploads.increment();
+                        dedupedBytes.add(size);
+                        return existing;
+                    }
+                    backend.store(key, tempFile, storedSize);
+                    storedBytes.add(size);
+                    return new Entry(size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return id;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static class Entry {
+        final long size;
+        int references = 1;
+
+        Entry(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Writes one upload into a temporary file while hashing it. Exactly one of
+     * {@link #commit()} or {@link #abort()} must be called; closing aborts an uncommitted writer.
+     * It is also a channel, so callers holding a {@link ByteBuffer} can write it without a copy.
+     */
+    public class Writer extends OutputStream implements WritableByteChannel {
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        // Null when stored as plaintext
+        private final BlobEncryption.Encryptor encryptor;
+        private long size;
+        private boolean done;
+
+        private Writer(Path tempFile) throws IOException {
+            this.tempFile = tempFile;
+            this.digest = newDigest();
+            this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.encryptor = encryption == null ? null : encryption.newEncryptor(channel);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            if (encryptor != null) {
+                encryptor.update(buffer);
+            } else {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            size += len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int position = src.position();
+            int len = src.remaining();
+            digest.update(src);
+            src.position(position);
+            if (encryptor != null) {
+                encryptor.update(src);
+            } else {
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            }
+            size += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !done;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Bytes that a reader from {@link #openReader()} can see. This trails
+         * {@link #getSize()} while encrypted chunks are still being written.
+         */
+        public long getWrittenSize() {
+            return encryptor == null ? size : encryptor.getWrittenSize();
+        }
+
+        /**
+         * Opens the content written so far for reading, as plaintext. Reads must stay below
+         * {@link #getWrittenSize()}; the channel stays readable after the writer commits or
+         * aborts.
+         */
+        public FileChannel openReader() throws IOException {
+            FileChannel file = FileChannel.open(tempFile, StandardOpenOption.READ);
+            return encryptor == null ? file : encryptor.openReader(file);
+        }
+
+        /**
+         * Publishes the blob and returns its id. The caller owns one reference to it.
+         */
+        public String commit() throws IOException {
+            if (done) {
+                throw new IllegalStateException("Writer already finished");
+            }
+            done = true;
+            byte[] hash = digest.digest();
+            try {
+                if (encryptor != null) {
+                    encryptor.finish(hash);
+                }
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+                throw e;
+            }
+            channel.close();
+            return BlobStore.this.commit(tempFile, size, encryptor == null ? size : BlobEncryption.storedLength(size), hash);
+        }
+
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (encryptor != null) {
+                encryptor.abort();
+            }
+            try {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                System.err.println("Error discarding partial upload: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.AsyncLogger;
+import p2p.utils.BufferPool;
+import p2p.utils.MerkleTree;
+
+/**
+ * Chunk manifests of blobs: the SHA-256 of every {@link #CHUNK_BYTES} chunk and the Merkle
+ * root over them, so that receivers can check a download piece by piece and fetch again
+ * only the chunks that arrived damaged.
+ *
+ * <p>Uploads hash their chunks while they stream through a {@link Hasher}, which copies each
+ * full chunk aside and hashes it on a small pool of hasher threads, so the upload thread
+ * only pays for the copy. Blobs that arrived another way, or before manifests existed, get
+ * theirs built from disk the first time one is asked for. A manifest is stored next to its
+ * blob ({@code <blobId>.mf}) and, like the blob, never changes. Blobs packed into segment
+ * files get none, as a file per small blob is what packing avoids; their manifests are
+ * cheap to build again when asked for.
+ *
+ * <pre>
+ * manifest file: "PPMF" | int chunkSize | long size | int count | root | count x chunk hash
+ * </pre>
+ */
+public class ChunkManifests {
+    public static final int CHUNK_BYTES = 1024 * 1024;
+
+    private static final String SUFFIX = "mf";
+    private static final int MAGIC = 0x50504D46; // "PPMF"
+    // Chunks one upload may have waiting for a hasher before it has to wait itself
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private final BlobStore blobStore;
+    private final ExecutorService hashers;
+    // Builds from disk in progress, so concurrent requests for one blob share the work
+    private final ConcurrentHashMap<String, FutureTask<Manifest>> building = new ConcurrentHashMap<>();
+
+    private final LongAdder hashedChunks = new LongAdder();
+    private final LongAdder builtFromDisk = new LongAdder();
+    private final LongAdder uploadWaitNanos = new LongAdder();
+
+    public ChunkManifests(BlobStore blobStore) {
+        this(blobStore, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ChunkManifests(BlobStore blobStore, int threads) {
+        this.blobStore = blobStore;
+        AtomicInteger ids = new AtomicInteger();
+        this.hashers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "chunk-hasher-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts hashing the content of a new upload; feed it every byte in order.
+     */
+    public Hasher newHasher() {
+        return new Hasher();
+    }
+
+    /**
+     * Stores the manifest of a committed blob, unless it already has one or is packed.
+     */
+    public void store(String blobId, Manifest manifest) {
+        if (blobStore.isPacked(blobId)) {
+            return;
+        }
+        Path path = blobStore.variantPath(blobId, SUFFIX);
+        if (Files.exists(path)) {
+            return;
+        }
+        Path temp = blobStore.newTempPath();
+        try {
+            Files.write(temp, manifest.encode());
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // The blob may have been deleted meanwhile; do not leave an orphan behind
+            if (!blobStore.contains(blobId)) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            AsyncLogger.shared().error("Error storing manifest of blob %s: %s", blobId, e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Returns the manifest of a blob, building it from the blob's content if it has none yet.
+     *
+     * @throws NoSuchFileException if the blob is not on disk
+     */
+    public Manifest get(String blobId) throws IOException {
+        Manifest manifest = read(blobId);
+        if (manifest != null) {
+            return manifest;
+        }
+        FutureTask<Manifest> task = new FutureTask<>(() -> build(blobId));
+        FutureTask<Manifest> existing = building.putIfAbsent(blobId, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                building.remove(blobId, task);
+            }
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building a manifest");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Deletes the manifest of a blob that is gone.
+     */
+    public void invalidate(String blobId) {
+        try {
+            Files.deleteIfExists(blobStore.variantPath(blobId, SUFFIX));
+        } catch (IOException e) {
+            System.err.println("Error deleting manifest of blob " + blobId + ": " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        hashers.shutdownNow();
+    }
+
+    public long getHashedChunks() {
+        return hashedChunks.sum();
+    }
+
+    public long getBuiltFromDisk() {
+        return builtFromDisk.sum();
+    }
+
+    /**
+     * Time uploads spent waiting for a free hasher, which is zero while hashing keeps up.
+     */
+    public long getUploadWaitNanos() {
+        return uploadWaitNanos.sum();
+    }
+
+    private Manifest build(String blobId) throws IOException {
+        Hasher hasher = new Hasher();
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try (FileChannel channel = blobStore.openChannel(blobId)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        Manifest manifest = hasher.finish();
+        builtFromDisk.increment();
+        store(blobId, manifest);
+        return manifest;
+    }
+
+    private Manifest read(String blobId) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(blobStore.variantPath(blobId, SUFFIX));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Manifest manifest = Manifest.decode(ByteBuffer.wrap(bytes));
+        if (manifest == null) {
+            // Rebuilt by the caller
+            AsyncLogger.shared().error("Discarding damaged manifest of blob %s", blobId);
+            Files.deleteIfExists(blobStore.variantPath(blobId, SUFFIX));
+        }
+        return manifest;
+    }
+
+    /**
+     * Chunk hashes of one blob. Immutable.
+     */
+    public static class Manifest {
+        private final long size;
+        private final int chunkSize;
+        private final List<byte[]> chunks;
+        private final byte[] root;
+
+        Manifest(long size, int chunkSize, List<byte[]> chunks) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = Collections.unmodifiableList(chunks);
+            this.root = MerkleTree.root(chunks);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public List<byte[]> getChunks() {
+            return chunks;
+        }
+
+        public byte[] getRoot() {
+            return root.clone();
+        }
+
+        /**
+         * The manifest as served to clients; {@code sha256} is the hash of the whole content.
+         */
+        public String toJson(String sha256) {
+            StringBuilder json = new StringBuilder(128 + chunks.size() * 70);
+            json.append("{\"sha256\": \"").append(sha256)
+                .append("\", \"size\": ").append(size)
+                .append(", \"chunkSize\": ").append(chunkSize)
+                .append(", \"root\": \"").append(MerkleTree.toHex(root))
+                .append("\", \"chunks\": [");
+            for (int i = 0; i < chunks.size(); i++) {
+                json.append(i == 0 ? "\"" : ", \"").append(MerkleTree.toHex(chunks.get(i))).append('"');
+            }
+            return json.append("]}").toString();
+        }
+
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + MerkleTree.HASH_BYTES * (1 + chunks.size()));
+            buffer.putInt(MAGIC).putInt(chunkSize).putLong(size).putInt(chunks.size()).put(root);
+            for (byte[] chunk : chunks) {
+                buffer.put(chunk);
+            }
+            return buffer.array();
+        }
+
+        /**
+         * Reads a stored manifest, or returns null if it is damaged.
+         */
+        static Manifest decode(ByteBuffer buffer) {
+            if (buffer.remaining() < 20 + MerkleTree.HASH_BYTES || buffer.getInt() != MAGIC) {
+                return null;
+            }
+            int chunkSize = buffer.getInt();
+            long size = buffer.getLong();
+            int count = buffer.getInt();
+            if (chunkSize <= 0 || count != MerkleTree.chunkCount(size, chunkSize)
+                    || buffer.remaining() != MerkleTree.HASH_BYTES * (1 + (long) count)) {
+                return null;
+            }
+            byte[] root = new byte[MerkleTree.HASH_BYTES];
+            buffer.get(root);
+            List<byte[]> chunks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] chunk = new byte[MerkleTree.HASH_BYTES];
+                buffer.get(chunk);
+                chunks.add(chunk);
+            }
+            Manifest manifest = new Manifest(size, chunkSize, chunks);
+            return Arrays.equals(root, manifest.root) ? manifest : null;
+        }
+    }
+
+    /**
+     * Hashes the chunks of one upload in the background. Not thread-safe: an upload is
+     * written by one thread.
+     */
+    public class Hasher {
+        private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+        private final List<byte[]> chunks = new ArrayList<>();
+        private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+        private byte[] current;
+        private int filled;
+        private long size;
+
+        private Hasher() {
+        }
+
+        /**
+         * Takes the next bytes of the content; {@code src} is consumed.
+         */
+        public void update(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (current == null) {
+                    current = spare.isEmpty() ? new byte[CHUNK_BYTES] : spare.poll();
+                    filled = 0;
+                }
+                int n = Math.min(src.remaining(), CHUNK_BYTES - filled);
+                src.get(current, filled, n);
+                filled += n;
+                size += n;
+                if (filled == CHUNK_BYTES) {
+                    submit();
+                }
+            }
+        }
+
+        /**
+         * Waits for the outstanding chunks and returns the manifest of everything fed in.
+         */
+        public Manifest finish() throws IOException {
+            // An empty upload is one empty chunk
+            if (size == 0) {
+                current = new byte[0];
+            }
+            if (current != null) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                collect();
+            }
+            return new Manifest(size, CHUNK_BYTES, chunks);
+        }
+
+        private void submit() throws IOException {
+            if (inFlight.size() >= MAX_IN_FLIGHT) {
+                long start = System.nanoTime();
+                collect();
+                uploadWaitNanos.add(System.nanoTime() - start);
+            }
+            byte[] chunk = current;
+            int length = filled;
+            current = null;
+            filled = 0;
+            Future<byte[]> hash;
+            try {
+                hash = hashers.submit(() -> MerkleTree.leaf(chunk, 0, length));
+            } catch (RejectedExecutionException e) {
+                // Shutting down; hash on this thread instead
+                FutureTask<byte[]> task = new FutureTask<>(() -> MerkleTree.leaf(chunk, 0, length));
+                task.run();
+                hash = task;
+            }
+            inFlight.add(hash);
+            buffers.add(chunk);
+        }
+
+        private void collect() throws IOException {
+            try {
+                chunks.add(inFlight.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing");
+            } catch (ExecutionException e) {
+                throw new IOException("Chunk hashing failed", e.getCause());
+            }
+            hashedChunks.increment();
+            byte[] done = buffers.poll();
+            if (done.length == CHUNK_BYTES) {
+                spare.add(done);
+            }
+        }
+    }
+}
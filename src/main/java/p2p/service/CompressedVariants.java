@@ -0,0 +1,447 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import p2p.utils.AsyncLogger;
+import p2p.utils.BufferPool;
+
+/**
+ * Compressed copies of blobs for downloads that accept {@code gzip} or {@code deflate}.
+ *
+ * <p>A blob is compressed once, in the background, the first time a receiver that accepts
+ * compression asks for it; that receiver and any others until the copy is ready get the
+ * raw bytes. Blobs are skipped when their MIME type is an already-compressed format, when
+ * a few sampled blocks barely shrink, or when the finished copy does not save enough.
+ *
+ * <p>The copy is stored next to the blob as one raw DEFLATE stream ({@code <blobId>.z})
+ * behind a small header holding the CRC-32 and Adler-32 of the original. Both HTTP codings
+ * are the same stream in a different frame (gzip adds a header and a CRC-32 trailer, zlib
+ * a two-byte header and an Adler-32 trailer), so either is served without any CPU work.
+ * A blob found not worth compressing gets an empty {@code <blobId>.nz} marker so the
+ * decision survives a restart.
+ */
+public class CompressedVariants {
+
+    public enum Coding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Coding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    private static final String VARIANT_SUFFIX = "z";
+    private static final String SKIP_SUFFIX = "nz";
+    private static final int MAGIC = 0x50505A31; // "PPZ1"
+    private static final int HEADER_BYTES = 20;
+
+    // A variant must be at most this fraction of the original to be kept
+    private static final double MAX_RATIO = 0.9;
+    private static final int SAMPLE_BLOCKS = 3;
+    private static final int SAMPLE_BYTES = 64 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+        "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+        "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+        "application/zstd", "application/pdf", "application/java-archive", "application/epub+zip",
+        "application/vnd.android.package-archive");
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+        "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "br", "jar", "apk", "war",
+        "docx", "xlsx", "pptx", "odt", "epub", "pdf", "jpg", "jpeg", "png", "gif", "webp", "avif",
+        "heic", "mp3", "mp4", "m4a", "m4v", "mkv", "mov", "avi", "webm", "ogg", "opus", "flac",
+        "aac", "woff", "woff2", "dmg", "iso");
+
+    private final BlobStore blobStore;
+    private final BufferPool bufferPool;
+    private final long minBytes;
+    private final ExecutorService compressor;
+    private final ConcurrentHashMap<String, Variant> variants = new ConcurrentHashMap<>();
+    // Blobs being compressed, or known not to be worth it
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Set<String> skipped = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder built = new LongAdder();
+    private final LongAdder skippedByType = new LongAdder();
+    private final LongAdder skippedBySample = new LongAdder();
+    private final LongAdder skippedByRatio = new LongAdder();
+    private final LongAdder servedCompressed = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+
+    /**
+     * @param minBytes smallest blob worth compressing
+     */
+    public CompressedVariants(BlobStore blobStore, long minBytes) {
+        this.blobStore = blobStore;
+        this.bufferPool = BufferPool.shared();
+        this.minBytes = Math.max(1, minBytes);
+        this.compressor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "variant-compressor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Picks the coding for an {@code Accept-Encoding} header, preferring gzip, or returns
+     * null if the client only accepts the raw bytes.
+     */
+    public static Coding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String token = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (!accepted) continue;
+            if (token.equals("gzip") || token.equals("x-gzip") || token.equals("*")) gzip = true;
+            if (token.equals("deflate")) deflate = true;
+        }
+        return gzip ? Coding.GZIP : deflate ? Coding.DEFLATE : null;
+    }
+
+    /**
+     * Returns the ready compressed copy of a blob, or null. If there is none yet and the blob
+     * may be compressible, compression is scheduled in the background.
+     */
+    public Variant find(String blobId, long size, String filename, String mime) {
+        Variant variant = variants.get(blobId);
+        if (variant != null || size < minBytes || skipped.contains(blobId) || pending.contains(blobId)) {
+            return variant;
+        }
+        // Picked up from a previous run
+        variant = variants.computeIfAbsent(blobId, id -> blobStore.contains(id) ? readVariant(id) : null);
+        if (variant != null) {
+            return variant;
+        }
+        if (Files.exists(blobStore.variantPath(blobId, SKIP_SUFFIX))) {
+            skipped.add(blobId);
+            return null;
+        }
+        if (isCompressedType(filename, mime)) {
+            skippedByType.increment();
+            skipped.add(blobId);
+            return null;
+        }
+        if (pending.add(blobId)) {
+            try {
+                compressor.execute(() -> build(blobId, size));
+            } catch (RejectedExecutionException e) {
+                pending.remove(blobId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a variant in the given coding: the coding's frame around the stored stream.
+     */
+    public void send(Variant variant, Coding coding, TransferEngine transferEngine, OutputStream os) throws IOException {
+        try (FileChannel channel = FileChannel.open(variant.path, StandardOpenOption.READ)) {
+            os.write(coding == Coding.GZIP ? GZIP_HEADER : ZLIB_HEADER);
+            transferEngine.send(channel, HEADER_BYTES, variant.streamBytes, os);
+            os.write(coding == Coding.GZIP ? gzipTrailer(variant) : zlibTrailer(variant));
+        }
+        servedCompressed.increment();
+        bytesSaved.add(variant.originalBytes - variant.length(coding));
+    }
+
+    /**
+     * Deletes the compressed copy of a blob that is gone. Runs under the blob's map entry,
+     * like every insert, so a copy loaded or built concurrently is never published after it.
+     */
+    public void invalidate(String blobId) {
+        variants.compute(blobId, (id, existing) -> {
+            skipped.remove(id);
+            try {
+                Files.deleteIfExists(blobStore.variantPath(id, VARIANT_SUFFIX));
+                Files.deleteIfExists(blobStore.variantPath(id, SKIP_SUFFIX));
+            } catch (IOException e) {
+                System.err.println("Error deleting variants of blob " + id + ": " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    public void close() {
+        compressor.shutdownNow();
+    }
+
+    private void build(String blobId, long size) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        Path temp = null;
+        try (FileChannel source = blobStore.openChannel(blobId)) {
+            if (!sampleCompresses(source, size)) {
+                skippedBySample.increment();
+                markSkipped(blobId);
+                return;
+            }
+            temp = blobStore.newTempPath();
+            Variant variant = compress(source, size, temp, blobStore.variantPath(blobId, VARIANT_SUFFIX));
+            if (variant == null) {
+                skippedByRatio.increment();
+                markSkipped(blobId);
+                return;
+            }
+            Files.move(temp, variant.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+            // The blob may have been deleted while we worked; do not leave an orphan behind.
+            // Checked under the entry so that an invalidate cannot slip in before the put.
+            Variant published = variants.compute(blobId, (id, existing) -> {
+                if (blobStore.contains(id)) {
+                    return variant;
+                }
+                try {
+                    Files.deleteIfExists(variant.path);
+                } catch (IOException ignore) {
+                }
+                return existing;
+            });
+            if (published != variant) {
+                return;
+            }
+            built.increment();
+            AsyncLogger.shared().info("Compressed blob %s from %d to %d bytes", blobId.substring(0, 12), size, variant.streamBytes);
+        } catch (NoSuchFileException e) {
+            // Deleted before we got to it
+        } catch (IOException e) {
+            AsyncLogger.shared().error("Error compressing blob %s: %s", blobId, e.getMessage());
+        } finally {
+            pending.remove(blobId);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignore) {
+                }
+            }
+            cpuNanos.add(threads.getCurrentThreadCpuTime() - cpuStart);
+        }
+    }
+
+    /**
+     * Deflates a few blocks spread over the blob at the fastest level and checks they
+     * shrink, which rules out media and archives that have no telling extension.
+     */
+    private boolean sampleCompresses(FileChannel source, long size) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            byte[] out = new byte[SAMPLE_BYTES + 1024];
+            long sampled = 0;
+            long compressed = 0;
+            for (int i = 0; i < SAMPLE_BLOCKS; i++) {
+                long position = size <= SAMPLE_BYTES ? 0 : (size - SAMPLE_BYTES) * i / Math.max(1, SAMPLE_BLOCKS - 1);
+                buffer.clear();
+                buffer.limit((int) Math.min(Math.min(SAMPLE_BYTES, buffer.capacity()), size));
+                int read = source.read(buffer, position);
+                if (read <= 0) break;
+                deflater.reset();
+                deflater.setInput(buffer.array(), 0, read);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed += deflater.deflate(out);
+                }
+                sampled += read;
+                if (size <= SAMPLE_BYTES) break;
+            }
+            return sampled > 0 && compressed <= sampled * MAX_RATIO;
+        } finally {
+            deflater.end();
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Writes the header and raw DEFLATE stream of {@code source} to {@code temp}. Returns
+     * null, leaving the file for the caller to delete, if it saves too little.
+     */
+    private Variant compress(FileChannel source, long size, Path temp, Path target) throws IOException {
+        ByteBuffer in = bufferPool.acquire();
+        ByteBuffer out = bufferPool.acquire();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        long limit = (long) (size * MAX_RATIO);
+        try (FileChannel sink = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long written = 0;
+            long position = 0;
+            sink.position(HEADER_BYTES);
+            while (!deflater.finished()) {
+                if (position < size && deflater.needsInput()) {
+                    in.clear();
+                    if (size - position < in.capacity()) {
+                        in.limit((int) (size - position));
+                    }
+                    int read = source.read(in, position);
+                    if (read < 0) {
+                        throw new IOException("Blob truncated while compressing");
+                    }
+                    position += read;
+                    crc.update(in.array(), 0, read);
+                    adler.update(in.array(), 0, read);
+                    deflater.setInput(in.array(), 0, read);
+                    if (position == size) {
+                        deflater.finish();
+                    }
+                }
+                int n = deflater.deflate(out.array());
+                if (n > 0) {
+                    ByteBuffer chunk = ByteBuffer.wrap(out.array(), 0, n);
+                    while (chunk.hasRemaining()) {
+                        sink.write(chunk);
+                    }
+                    written += n;
+                    if (written > limit) {
+                        return null;
+                    }
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt((int) crc.getValue()).putInt((int) adler.getValue()).putLong(size).flip();
+            sink.write(header, 0);
+            sink.force(false);
+            return new Variant(target, size, written, (int) crc.getValue(), (int) adler.getValue());
+        } finally {
+            deflater.end();
+            bufferPool.release(in);
+            bufferPool.release(out);
+        }
+    }
+
+    private void markSkipped(String blobId) {
+        skipped.add(blobId);
+        try {
+            Files.createFile(blobStore.variantPath(blobId, SKIP_SUFFIX));
+        } catch (IOException ignore) {
+            // The decision is only remembered in memory then
+        }
+    }
+
+    private Variant readVariant(String blobId) {
+        Path path = blobStore.variantPath(blobId, VARIANT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                return null;
+            }
+            int crc = header.getInt();
+            int adler = header.getInt();
+            long originalBytes = header.getLong();
+            return new Variant(path, originalBytes, channel.size() - HEADER_BYTES, crc, adler);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isCompressedType(String filename, String mime) {
+        if (mime != null) {
+            String type = mime.toLowerCase(Locale.ROOT);
+            if (type.startsWith("image/") && !type.equals("image/svg+xml") && !type.equals("image/bmp")) return true;
+            if (type.startsWith("video/") || type.startsWith("audio/") || type.startsWith("font/")) return true;
+            if (COMPRESSED_TYPES.contains(type)) return true;
+        }
+        int dot = filename == null ? -1 : filename.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static byte[] gzipTrailer(Variant variant) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                         .putInt(variant.crc32).putInt((int) variant.originalBytes).array();
+    }
+
+    private static byte[] zlibTrailer(Variant variant) {
+        return ByteBuffer.allocate(4).putInt(variant.adler32).array();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    /**
+     * One-line summary of compression activity, e.g. for the shutdown log.
+     */
+    public String describeStats() {
+        return "built=" + built.sum() + ", skipped type/sample/ratio=" + skippedByType.sum() + "/"
+               + skippedBySample.sum() + "/" + skippedByRatio.sum() + ", served=" + servedCompressed.sum()
+               + ", bytesSaved=" + getBytesSaved() + ", cpu=" + getCpuNanos() / 1_000_000 + " ms";
+    }
+
+    /**
+     * A stored compressed copy of a blob.
+     */
+    public static class Variant {
+        private final Path path;
+        private final long originalBytes;
+        private final long streamBytes;
+        private final int crc32;
+        private final int adler32;
+
+        private Variant(Path path, long originalBytes, long streamBytes, int crc32, int adler32) {
+            this.path = path;
+            this.originalBytes = originalBytes;
+            this.streamBytes = streamBytes;
+            this.crc32 = crc32;
+            this.adler32 = adler32;
+        }
+
+        /**
+         * Size of the response body in the given coding.
+         */
+        public long length(Coding coding) {
+            return coding == Coding.GZIP ? GZIP_HEADER.length + streamBytes + 8 : ZLIB_HEADER.length + streamBytes + 4;
+        }
+    }
+}
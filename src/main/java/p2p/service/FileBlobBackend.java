@@ -0,0 +1,91 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * One file per blob, at {@code <dir>/<first two hex digits>/<blobId>}. Files derived from a
+ * blob live next to it with a suffix, see {@link BlobStore#variantPath}, and are skipped here.
+ */
+public class FileBlobBackend implements StorageBackend {
+    private final Path dir;
+
+    public FileBlobBackend(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    public Path pathOf(String blobId) {
+        return dir.resolve(blobId.substring(0, 2)).resolve(blobId);
+    }
+
+    @Override
+    public void store(String blobId, Path file, long size) throws IOException {
+        Path target = pathOf(blobId);
+        // On disk before the rename, so the name never points at content a crash could lose
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+        boolean newDir = !Files.isDirectory(target.getParent());
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (newDir) {
+            ShareIndex.forceDirectory(dir);
+        }
+        ShareIndex.forceDirectory(target.getParent());
+    }
+
+    @Override
+    public FileChannel open(String blobId) throws IOException {
+        return FileChannel.open(pathOf(blobId), StandardOpenOption.READ);
+    }
+
+    @Override
+    public boolean exists(String blobId) {
+        return Files.isRegularFile(pathOf(blobId));
+    }
+
+    @Override
+    public void delete(String blobId) throws IOException {
+        // Receivers that already have the file open keep reading it, since it is only unlinked
+        Files.deleteIfExists(pathOf(blobId));
+    }
+
+    @Override
+    public boolean isPacked(String blobId) {
+        return false;
+    }
+
+    @Override
+    public void forEach(Consumer<String> action) throws IOException {
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(dir)) {
+            for (Path subdir : fanout) {
+                if (!Files.isDirectory(subdir)) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(subdir)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        // Derived files have a suffix
+                        if (name.indexOf('.') < 0) {
+                            action.accept(name);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String describeStats() {
+        return "one file per blob";
+    }
+
+    @Override
+    public void close() {
+    }
+}
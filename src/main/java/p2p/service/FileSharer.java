@@ -1,104 +1,380 @@
 package p2p.service;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntPredicate;
 
+import p2p.utils.AsyncLogger;
+import p2p.utils.CodeAllocator;
 import p2p.utils.UploadUtils;
 
 public class FileSharer {
 
-    private final ConcurrentHashMap<Integer, String> availableFiles;
+    private final ConcurrentHashMap<Integer, Share> availableFiles;
+    private final BlobStore blobStore;
+    private final ShareIndex index;
+    private final CodeAllocator codes;
+    private volatile long defaultTtlMillis;
+    private volatile int defaultMaxDownloads;
+    private volatile Runnable onOffer = () -> {};
+    private volatile IntPredicate ownedCodes = code -> true;
 
-    public FileSharer() {
-        availableFiles = new ConcurrentHashMap<>();
+    public FileSharer(BlobStore blobStore) {
+        this(blobStore, null);
     }
 
     /**
-     * Returns the absolute file path associated with a given share code (port),
-     * or null if not present.
+     * @param index persistent copy of the share map, or null to keep shares in memory only
      */
-    public String getFilePath(int port) {
-        return availableFiles.get(port);
+    public FileSharer(BlobStore blobStore, ShareIndex index) {
+        this(blobStore, index, UploadUtils.newCodeAllocator());
     }
 
-    public int offerFile(String filePath) {
-        // Generate a share code that is unique within our map. This is not a real port
-        // used for networking; the HTTP server streams directly from disk by code.
-        while (true) {
-            int port = UploadUtils.generateCode();
-            String previous = availableFiles.putIfAbsent(port, filePath);
-            if (previous == null) {
-                return port;
+    /**
+     * @param index persistent copy of the share map, or null to keep shares in memory only
+     * @param codes the code space new shares are registered under
+     */
+    public FileSharer(BlobStore blobStore, ShareIndex index, CodeAllocator codes) {
+        this.availableFiles = new ConcurrentHashMap<>();
+        this.blobStore = blobStore;
+        this.index = index;
+        this.codes = codes;
+    }
+
+    /**
+     * Reloads the shares persisted by a previous run and starts journaling new changes.
+     * Returns the number of shares recovered.
+     */
+    public int recover() throws IOException {
+        if (index == null) {
+            return 0;
+        }
+        Map<Integer, Share> recovered = index.recover();
+        int foreign = 0;
+        for (Share share : recovered.values()) {
+            if (share.isArchive()) {
+                for (Share.Member member : share.getMembers()) {
+                    blobStore.restore(member.getBlobId(), member.getSize());
+                }
+            } else {
+                blobStore.restore(share.getBlobId(), share.getSize());
             }
+            // Codes from a differently configured code space stay valid; they just can
+            // never be handed out again, so they need no reservation
+            if (!codes.reserve(share.getCode())) {
+                foreign++;
+            }
+        }
+        if (foreign > 0) {
+            System.out.println(foreign + " recovered shares use codes outside " + codes.getMin() + "-" + codes.getMax());
         }
+        availableFiles.putAll(recovered);
+        index.start(availableFiles::values);
+        return recovered.size();
     }
 
-    public void startFileServer(int port) {
-        String filePath = availableFiles.get(port);
-        if (filePath == null) {
-            System.err.println("No file associated with port: " + port);
-            return;
+    /**
+     * Flushes the share index, if any.
+     */
+    public void close() {
+        if (index != null) {
+            index.close();
         }
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Serving file '" + new File(filePath).getName() + "' on port " + port);
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("Client connected: " + clientSocket.getInetAddress());
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    public CodeAllocator getCodeAllocator() {
+        return codes;
+    }
+
+    /**
+     * Limits new codes to those {@code owned} accepts, such as the codes a cluster node owns.
+     * The others are marked taken in the allocator for good, so allocation stays lock-free
+     * and fails only once every owned code is in use. Call after {@link #recover()}, so that
+     * recovered shares keep their codes whoever owns them.
+     */
+    public void restrictCodes(IntPredicate owned) {
+        for (int code = codes.getMin(); code <= codes.getMax(); code++) {
+            if (!owned.test(code)) {
+                codes.reserve(code);
+            }
+        }
+        this.ownedCodes = owned;
+    }
+
+    /**
+     * Retention applied to shares offered without explicit limits; 0 disables either limit.
+     */
+    public void setDefaultLimits(long ttlMillis, int maxDownloads) {
+        this.defaultTtlMillis = ttlMillis;
+        this.defaultMaxDownloads = maxDownloads;
+    }
 
-            new Thread(new FileSenderHandler(clientSocket, filePath)).start();
+    /**
+     * Hook run after every new share, e.g. to nudge the reaper. Must not block.
+     */
+    public void setOnOffer(Runnable onOffer) {
+        this.onOffer = onOffer;
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
+    /**
+     * Returns the live share registered under a code (port), or null if there is none or it
+     * has expired or used up its downloads. Expired shares are removed later by the reaper.
+     */
+    public Share getShare(int port) {
+        Share share = availableFiles.get(port);
+        if (share == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (share.isExpired(now) || share.isExhausted()) {
+            return null;
         }
+        share.touch(now);
+        return share;
+    }
+
+    /**
+     * Returns the absolute path of the content behind a given share code (port),
+     * or null if not present, a multi-file share, packed into a segment file or encrypted.
+     */
+    public String getFilePath(int port) {
+        Share share = getShare(port);
+        return share == null || share.isArchive() || blobStore.isPacked(share.getBlobId()) || blobStore.isEncrypted()
+                ? null : blobStore.pathOf(share.getBlobId()).toString();
     }
 
-    private static class FileSenderHandler implements Runnable {
-        private final Socket clientSocket;
-        private final String filePath;
+    /**
+     * Registers a committed blob under a new share code with the default limits. The share
+     * takes over the blob reference the caller obtained from {@link BlobStore.Writer#commit()}.
+     */
+    public int offerFile(String blobId, String filename) {
+        return offerFile(blobId, filename, defaultTtlMillis, defaultMaxDownloads);
+    }
 
-        public FileSenderHandler(Socket clientSocket, String filePath) {
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+    /**
+     * Registers a committed blob under a new share code that disappears after
+     * {@code ttlMillis} or {@code maxDownloads} completed downloads. 0 means no limit and a
+     * negative value means the default limit.
+     *
+     * @throws CodeAllocator.CodeSpaceExhaustedException if every code is taken; the blob
+     *         reference is released in that case
+     * @throws IllegalArgumentException if the filename is too long for the share index; the
+     *         blob reference is released in that case
+     */
+    public int offerFile(String blobId, String filename, long ttlMillis, int maxDownloads) {
+        if (ttlMillis < 0) ttlMillis = defaultTtlMillis;
+        if (maxDownloads < 0) maxDownloads = defaultMaxDownloads;
+        long size = blobStore.sizeOf(blobId);
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis > 0 ? now + ttlMillis : 0;
+        // The code is not a real port used for networking; the HTTP server streams
+        // directly from disk by code
+        int port;
+        try {
+            port = codes.allocate();
+        } catch (CodeAllocator.CodeSpaceExhaustedException e) {
+            blobStore.release(blobId);
+            throw e;
         }
+        return register(new Share(port, blobId, filename, size, now, expiresAt, maxDownloads));
+    }
 
-        @Override
-        public void run() {
-            try (FileInputStream fis = new FileInputStream(filePath);
-                 OutputStream oss = clientSocket.getOutputStream()) {
+    /**
+     * Takes a new code for content that is still arriving. It is handed out to no one else
+     * until {@link #offerReserved} registers the share or {@link #cancelReservation} frees it.
+     *
+     * @throws CodeAllocator.CodeSpaceExhaustedException if every code is taken
+     */
+    public int reserveCode() {
+        return codes.allocate();
+    }
 
-                // Send simple headers: Filename (and total length for info)
-                File f = new File(filePath);
-                String filename = f.getName();
-                long length = f.length();
-                String header = "Filename: " + filename + "\n" +
-                                "Length: " + length + "\n" +
-                                "\n"; // Empty line to end headers
-                oss.write(header.getBytes());
-                oss.flush(); // Ensure headers are sent immediately
-                System.out.println("Sent headers: " + header.trim());
+    /**
+     * Registers a committed blob under a code from {@link #reserveCode()}; otherwise as
+     * {@link #offerFile(String, String, long, int)}.
+     */
+    public int offerReserved(int code, String blobId, String filename, long ttlMillis, int maxDownloads) {
+        if (ttlMillis < 0) ttlMillis = defaultTtlMillis;
+        if (maxDownloads < 0) maxDownloads = defaultMaxDownloads;
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis > 0 ? now + ttlMillis : 0;
+        return register(new Share(code, blobId, filename, blobStore.sizeOf(blobId), now, expiresAt, maxDownloads));
+    }
 
-                // Send the file content from start
-                byte[] buffer = new byte[1024 * 1024];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    oss.write(buffer, 0, bytesRead);
-                }
-                System.out.println("File '" + filename + "' sent to " + clientSocket.getInetAddress());
-            } catch (IOException e) {
-                System.err.println("Error sending file to client: " + e.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
-                }
+    public void cancelReservation(int code) {
+        releaseCode(code);
+    }
+
+    /**
+     * Registers several committed blobs under one new share code, downloaded together as a
+     * ZIP archive called {@code archiveName} or one by one. Takes over one blob reference per
+     * member; limits work as in {@link #offerFile(String, String, long, int)}.
+     *
+     * @throws CodeAllocator.CodeSpaceExhaustedException if every code is taken; the blob
+     *         references are released in that case
+     */
+    public int offerFiles(List<Share.Member> members, String archiveName, long ttlMillis, int maxDownloads) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A multi-file share needs at least one file");
+        }
+        if (ttlMillis < 0) ttlMillis = defaultTtlMillis;
+        if (maxDownloads < 0) maxDownloads = defaultMaxDownloads;
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis > 0 ? now + ttlMillis : 0;
+        int port;
+        try {
+            port = codes.allocate();
+        } catch (CodeAllocator.CodeSpaceExhaustedException e) {
+            for (Share.Member member : members) {
+                blobStore.release(member.getBlobId());
+            }
+            throw e;
+        }
+        return register(new Share(port, archiveName, members, now, expiresAt, maxDownloads));
+    }
+
+    /**
+     * Registers a share handed over by another node under the code it already has. Takes
+     * over one reference to each of its blobs on success. Returns false if the code is taken
+     * or outside the code space.
+     */
+    public boolean adopt(Share share) {
+        if (!codes.reserve(share.getCode())) {
+            return false;
+        }
+        register(share);
+        return true;
+    }
+
+    private int register(Share share) {
+        int port = share.getCode();
+        CompletableFuture<Void> write = null;
+        if (index != null) {
+            try {
+                // Encoded before the share is visible, so one that cannot be journaled never is
+                write = index.put(share);
+            } catch (IllegalArgumentException e) {
+                releaseCode(port);
+                releaseBlobs(share);
+                throw e;
             }
         }
+        availableFiles.put(port, share);
+        if (write != null) {
+            awaitDurable(write);
+        }
+        onOffer.run();
+        return port;
+    }
+
+    /**
+     * Unregisters a share and drops its blob reference. Returns false if the code was unknown.
+     */
+    public boolean removeShare(int port) {
+        Share share = availableFiles.remove(port);
+        if (share == null) {
+            return false;
+        }
+        if (index != null) {
+            index.remove(port);
+        }
+        releaseCode(port);
+        releaseBlobs(share);
+        return true;
+    }
+
+    /**
+     * Removes a share only if the code still maps to this exact instance, so that a reaper
+     * working from a stale snapshot cannot remove a share that replaced it.
+     */
+    public boolean removeShare(Share share) {
+        if (!availableFiles.remove(share.getCode(), share)) {
+            return false;
+        }
+        if (index != null) {
+            index.remove(share.getCode());
+        }
+        releaseCode(share.getCode());
+        releaseBlobs(share);
+        return true;
+    }
+
+    private void releaseCode(int code) {
+        // Codes owned elsewhere stay reserved, or this node would start handing them out
+        if (ownedCodes.test(code)) {
+            codes.release(code);
+        }
+    }
+
+    private void releaseBlobs(Share share) {
+        for (String blobId : share.getBlobIds()) {
+            blobStore.release(blobId);
+        }
+    }
+
+    /**
+     * Reserves a download of a share before its transfer starts, so that concurrent
+     * transfers cannot together exceed the download limit. Returns false if no download is
+     * left. A successful claim must be followed by {@link #recordDownload} once the transfer
+     * completes or {@link #releaseDownload} if it fails.
+     */
+    public boolean claimDownload(Share share) {
+        return share.claimDownload();
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns a claimed download whose transfer failed, so that another receiver may take it.
+     */
+    public void releaseDownload(Share share) {
+        share.releaseDownload();
+    }
+
+    /**
+     * Counts a claimed download of a share as completed. Downloads are claimed by the request
+     * that sends the last byte of the file, so the ranged requests of one parallel download
+     * count once.
+     */
+    public void recordDownload(Share share) {
+        int count = share.recordDownload();
+        if (index != null && share.getMaxDownloads() > 0) {
+            index.downloads(share.getCode(), count);
+        }
+    }
+
+    /**
+     * Waits for a journal write so that the new share survives a crash. The writer batches
+     * concurrent uploads into one fsync; if the index is unavailable the share still works
+     * for this run and the failure is logged.
+     */
+    private static void awaitDurable(CompletableFuture<Void> write) {
+        try {
+            write.get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            AsyncLogger.shared().error("Share index write failed: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Weakly consistent view of all registered shares, including ones awaiting removal.
+     */
+    public Collection<Share> getShares() {
+        return availableFiles.values();
+    }
+
+    public int getShareCount() {
+        return availableFiles.size();
+    }
+}
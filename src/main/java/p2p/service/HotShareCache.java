@@ -0,0 +1,284 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the content of frequently downloaded blobs in direct buffers so that the many
+ * receivers of a popular share are served from memory instead of re-reading the file.
+ *
+ * <p>Blobs are admitted TinyLFU-style: every lookup is counted in a small frequency sketch,
+ * a blob is only loaded once it has been asked for more than once, and when the byte
+ * budget is full it only displaces least recently used entries that are requested less
+ * often than itself. Loading happens on a background thread; the request that triggered
+ * it is served from disk.
+ *
+ * <p>Entries are keyed by blob id. Blobs are content-addressed and never change, so an entry
+ * can only become stale by its blob being deleted, which {@link #invalidate(String)} handles
+ * (wired to {@link BlobStore#setOnDelete}). A replaced share points at a different blob.
+ */
+public class HotShareCache {
+    // A blob must have been requested this often (per the sketch) before it is loaded
+    private static final int ADMIT_FREQUENCY = 2;
+
+    private final BlobStore blobStore;
+    private final long budgetBytes;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+    private final ExecutorService loader;
+
+    // Access-ordered, so iteration starts at the least recently used entry; guarded by this
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> loading = new HashSet<>();
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param budgetBytes   total size of cached blobs, or 0 to disable the cache. Direct
+     *                      memory must allow for it (see {@code -XX:MaxDirectMemorySize}).
+     * @param maxEntryBytes largest blob that is cached
+     */
+    public HotShareCache(BlobStore blobStore, long budgetBytes, long maxEntryBytes) {
+        this.blobStore = blobStore;
+        this.budgetBytes = budgetBytes;
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, budgetBytes), Integer.MAX_VALUE);
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "hot-share-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the content of a blob as a read-only buffer of its own, or null if it is not
+     * cached (yet). Blobs outside the size limits bypass the cache and are not counted.
+     */
+    public ByteBuffer get(String blobId, long size) {
+        if (size <= 0 || size > maxEntryBytes) {
+            return null;
+        }
+        synchronized (this) {
+            sketch.increment(blobId);
+            ByteBuffer content = entries.get(blobId);
+            if (content != null) {
+                hits.increment();
+                return content.asReadOnlyBuffer();
+            }
+            misses.increment();
+            if (loading.contains(blobId) || sketch.frequency(blobId) < ADMIT_FREQUENCY
+                    || !canAdmit(blobId, size, false)) {
+                return null;
+            }
+            loading.add(blobId);
+        }
+        loader.execute(() -> load(blobId, size));
+        return null;
+    }
+
+    /**
+     * Drops a blob from the cache, including a load in progress.
+     */
+    public synchronized void invalidate(String blobId) {
+        boolean wasLoading = loading.remove(blobId);
+        ByteBuffer content = entries.remove(blobId);
+        if (content != null) {
+            usedBytes -= content.capacity();
+        }
+        if (content != null || wasLoading) {
+            invalidations.increment();
+        }
+    }
+
+    public void close() {
+        loader.shutdownNow();
+        synchronized (this) {
+            entries.clear();
+            loading.clear();
+            usedBytes = 0;
+        }
+    }
+
+    private void load(String blobId, long size) {
+        ByteBuffer content;
+        try (FileChannel channel = blobStore.openChannel(blobId)) {
+            if (channel.size() != size) {
+                throw new IOException("Blob size changed from " + size + " to " + channel.size());
+            }
+            content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining()) {
+                if (channel.read(content, content.position()) < 0) {
+                    throw new IOException("Blob truncated while loading");
+                }
+            }
+            content.flip();
+        } catch (IOException | OutOfMemoryError e) {
+            // Direct memory exhaustion is reported as an OutOfMemoryError; skip caching then
+            System.err.println("Not caching blob " + blobId + ": " + e.getMessage());
+            synchronized (this) {
+                loading.remove(blobId);
+            }
+            return;
+        }
+        synchronized (this) {
+            // Invalidated while we were reading
+            if (!loading.remove(blobId)) {
+                return;
+            }
+            if (!canAdmit(blobId, size, true)) {
+                rejected.increment();
+                return;
+            }
+            entries.put(blobId, content);
+            usedBytes += size;
+            admitted.increment();
+        }
+    }
+
+    /**
+     * TinyLFU admission: a blob fits if free space plus least recently used entries that
+     * are requested less often than it cover its size. With {@code evict} those entries are
+     * removed as well.
+     */
+    private boolean canAdmit(String blobId, long size, boolean evict) {
+        long needed = usedBytes + size - budgetBytes;
+        if (needed <= 0) {
+            return true;
+        }
+        int frequency = sketch.frequency(blobId);
+        long freed = 0;
+        int victims = 0;
+        for (Map.Entry<String, ByteBuffer> entry : entries.entrySet()) {
+            if (freed >= needed) {
+                break;
+            }
+            if (sketch.frequency(entry.getKey()) >= frequency) {
+                return false;
+            }
+            freed += entry.getValue().capacity();
+            victims++;
+        }
+        if (freed < needed) {
+            return false;
+        }
+        if (evict) {
+            Iterator<ByteBuffer> it = entries.values().iterator();
+            for (int i = 0; i < victims; i++) {
+                usedBytes -= it.next().capacity();
+                it.remove();
+                evictions.increment();
+            }
+        }
+        return true;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * One-line summary of cache activity, e.g. for the shutdown log.
+     */
+    public String describeStats() {
+        return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", admitted=" + admitted.sum()
+               + ", rejected=" + rejected.sum() + ", evictions=" + getEvictionCount()
+               + ", invalidations=" + getInvalidationCount() + ", entries=" + getEntryCount()
+               + " (" + getUsedBytes() + " bytes)";
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters over four rows. All counters are halved after a
+     * fixed number of increments, so frequencies reflect recent popularity.
+     */
+    static class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] rows;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            this.rows = new byte[SEEDS.length][size];
+            this.mask = size - 1;
+            this.resetAfter = size * 10;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            for (int row = 0; row < rows.length; row++) {
+                int index = indexOf(hash, row);
+                if (rows[row][index] < 15) {
+                    rows[row][index]++;
+                }
+            }
+            if (++additions >= resetAfter) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int min = 15;
+            for (int row = 0; row < rows.length; row++) {
+                min = Math.min(min, rows[row][indexOf(hash, row)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) & 3];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45D9F3B;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A share whose content is still being uploaded. Receivers follow the growing file on
+ * disk, each with its own position, and wait for more bytes while they have caught up.
+ *
+ * <p>The uploader only publishes how far it has written and never waits for receivers, so
+ * a slow receiver cannot hold it up; whatever a receiver has not read yet is simply on
+ * disk. It only takes the lock to wake receivers when some are waiting.
+ */
+public class LiveShare {
+    private enum State { RESERVED, UPLOADING, FINISHING, COMPLETE, ABORTED }
+
+    private final int code;
+    private final String token;
+    private final String filename;
+    private final long declaredSize;
+    private final long ttlMillis;
+    private final int maxDownloads;
+    private final long createdAt;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition grown = lock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile long written;
+    private volatile State state = State.RESERVED;
+    private volatile String abortReason;
+
+    // Shared by all receivers, which only use positional reads. One reference belongs to
+    // the upload and one to each receiver; the last release closes it
+    private FileChannel channel;
+    private int references = 1;
+
+    LiveShare(int code, String token, String filename, long declaredSize, long ttlMillis, int maxDownloads) {
+        this.code = code;
+        this.token = token;
+        this.filename = filename;
+        this.declaredSize = declaredSize;
+        this.ttlMillis = ttlMillis;
+        this.maxDownloads = maxDownloads;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * The secret the uploader needs to send or cancel the content; receivers only know the
+     * code.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isToken(String candidate) {
+        return candidate != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII),
+                                                          candidate.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * The size the uploader announced, or -1 if it did not.
+     */
+    public long getDeclaredSize() {
+        return declaredSize;
+    }
+
+    long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Registers a receiver. Returns false once the upload has finished and the last
+     * receiver has gone, in which case the completed share (or nothing) is to be served.
+     */
+    public boolean acquire() {
+        lock.lock();
+        try {
+            if (references == 0) {
+                return false;
+            }
+            references++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            dropReference();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until there are bytes beyond {@code position} and returns how far the upload
+     * has got, or returns -1 at the end of a completed upload.
+     *
+     * @throws IOException if the upload was aborted
+     */
+    public long awaitData(long position) throws IOException, InterruptedException {
+        long available = available(position);
+        if (available != 0) {
+            return available;
+        }
+        lock.lock();
+        try {
+            waiting.incrementAndGet();
+            try {
+                // Rechecked under the lock; the uploader signals after publishing
+                while ((available = available(position)) == 0) {
+                    grown.await();
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The channel to read published bytes from; valid between {@link #acquire()} and
+     * {@link #release()} once {@link #awaitData} has returned data.
+     */
+    public FileChannel getChannel() {
+        lock.lock();
+        try {
+            return channel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the uploader before writing to {@code writer}.
+     */
+    void begin(BlobStore.Writer writer) throws IOException {
+        lock.lock();
+        try {
+            if (state != State.RESERVED) {
+                throw new IllegalStateException("Code " + code + " is no longer waiting for an upload");
+            }
+            channel = writer.openReader();
+            state = State.UPLOADING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes that the first {@code length} bytes are on disk.
+     */
+    void advance(long length) {
+        written = length;
+        wakeReceivers();
+    }
+
+    /**
+     * Claims the right to register the finished share. Returns false if the relay was
+     * aborted meanwhile, after which it cannot be aborted any more.
+     */
+    boolean startFinishing() {
+        lock.lock();
+        try {
+            if (state != State.UPLOADING) {
+                return false;
+            }
+            state = State.FINISHING;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void complete() {
+        lock.lock();
+        try {
+            state = State.COMPLETE;
+            grown.signalAll();
+            dropReference();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fails the receivers, unless the relay is finishing or over. With {@code onlyReserved}
+     * it only aborts a relay whose upload has not started. Returns whether it aborted.
+     */
+    boolean abort(String reason, boolean onlyReserved) {
+        lock.lock();
+        try {
+            if (onlyReserved ? state != State.RESERVED : state != State.RESERVED && state != State.UPLOADING) {
+                return false;
+            }
+            abortReason = reason;
+            state = State.ABORTED;
+            grown.signalAll();
+            dropReference();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long available(long position) throws IOException {
+        State current = state;
+        if (current == State.ABORTED) {
+            // What is left to read will never be a whole file
+            throw new IOException("Upload aborted: " + abortReason);
+        }
+        long length = written;
+        if (length > position) {
+            return length;
+        }
+        if (current == State.COMPLETE) {
+            // The final length was published before the state changed
+            length = written;
+            return length > position ? length : -1;
+        }
+        return 0;
+    }
+
+    private void wakeReceivers() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                grown.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void dropReference() {
+        if (--references == 0 && channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing live upload: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Base for read-only views of stored content that are not a plain file: subclasses provide
+ * positional reads, the size and closing, and get the rest of {@link FileChannel}. Mapping
+ * and locking are not supported unless a subclass adds them.
+ */
+abstract class ReadOnlyChannel extends FileChannel {
+    private long position;
+
+    @Override
+    public abstract int read(ByteBuffer dst, long position) throws IOException;
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int off, int len) throws IOException {
+        long total = 0;
+        for (int i = off; i < off + len; i++) {
+            if (!dsts[i].hasRemaining()) continue;
+            int n = read(dsts[i]);
+            if (n < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += n;
+            if (dsts[i].hasRemaining()) break;
+        }
+        return total;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException("Cannot map " + getClass().getSimpleName());
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int off, int len) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("Cannot lock " + getClass().getSimpleName());
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("Cannot lock " + getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,145 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.BufferPool;
+
+/**
+ * Live relay uploads: the share code is handed out before the content arrives, and
+ * receivers download while the upload streams in (see {@link LiveShare}). Once the upload
+ * is complete it becomes an ordinary share under the same code; an aborted upload frees
+ * the code and its receivers fail.
+ */
+public class RelayManager {
+    private final BlobStore blobStore;
+    private final FileSharer fileSharer;
+    private final ChunkManifests manifests;
+    private final ConcurrentHashMap<Integer, LiveShare> relays = new ConcurrentHashMap<>();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+
+    public RelayManager(BlobStore blobStore, FileSharer fileSharer, ChunkManifests manifests) {
+        this.blobStore = blobStore;
+        this.fileSharer = fileSharer;
+        this.manifests = manifests;
+    }
+
+    /**
+     * Reserves a code for an upload that follows. {@code size} is the announced length, or
+     * -1 if unknown; limits work as in {@link FileSharer#offerFile(String, String, long, int)}.
+     *
+     * @throws p2p.utils.CodeAllocator.CodeSpaceExhaustedException if every code is taken
+     */
+    public LiveShare open(String filename, long size, long ttlMillis, int maxDownloads) {
+        int code = fileSharer.reserveCode();
+        // Random UUIDs come from a secure generator
+        String token = UUID.randomUUID().toString().replace("-", "");
+        LiveShare live = new LiveShare(code, token, filename, size, ttlMillis, maxDownloads);
+        relays.put(code, live);
+        return live;
+    }
+
+    /**
+     * The upload in progress or waiting to start under a code, or null.
+     */
+    public LiveShare get(int code) {
+        return relays.get(code);
+    }
+
+    /**
+     * Stores the content from {@code in}, publishing it to receivers as it is written, and
+     * registers the finished share under the reserved code. Any failure, including content
+     * that does not match the announced size, aborts the relay.
+     */
+    public void receive(LiveShare live, InputStream in) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire();
+        boolean started = false;
+        boolean done = false;
+        try (BlobStore.Writer out = blobStore.newWriter()) {
+            // Throws if another request already uploads this content; that one carries on
+            live.begin(out);
+            started = true;
+            ChunkManifests.Hasher chunks = manifests.newHasher();
+            byte[] array = buffer.array();
+            int read;
+            while ((read = in.read(array, buffer.arrayOffset(), buffer.capacity())) != -1) {
+                ByteBuffer data = ByteBuffer.wrap(array, buffer.arrayOffset(), read);
+                out.write(data.duplicate());
+                chunks.update(data);
+                live.advance(out.getWrittenSize());
+                if (live.getDeclaredSize() >= 0 && out.getSize() > live.getDeclaredSize()) {
+                    throw new IOException("Upload is longer than the announced " + live.getDeclaredSize() + " bytes");
+                }
+            }
+            if (live.getDeclaredSize() >= 0 && out.getSize() != live.getDeclaredSize()) {
+                throw new IOException("Upload ended after " + out.getSize() + " of " + live.getDeclaredSize() + " bytes");
+            }
+            String blobId = out.commit();
+            // Encrypted chunks that were still being written are on disk now
+            live.advance(out.getSize());
+            if (!live.startFinishing()) {
+                blobStore.release(blobId);
+                throw new IOException("Relay for code " + live.getCode() + " was cancelled");
+            }
+            manifests.store(blobId, chunks.finish());
+            // Registered before the relay ends, so late receivers find the share instead
+            fileSharer.offerReserved(live.getCode(), blobId, live.getFilename(), live.getTtlMillis(), live.getMaxDownloads());
+            live.complete();
+            relays.remove(live.getCode(), live);
+            completed.increment();
+            done = true;
+        } finally {
+            pool.release(buffer);
+            if (started && !done) {
+                abort(live, "upload failed");
+            }
+        }
+    }
+
+    /**
+     * Ends a relay whose upload has not completed, failing its receivers. Returns false if
+     * there was none or it is already being registered as a share.
+     */
+    public boolean abort(LiveShare live, String reason) {
+        return live.abort(reason, false) && discard(live);
+    }
+
+    /**
+     * Drops reservations whose upload has not started since {@code idleSince} and returns
+     * how many.
+     */
+    public int removeIdle(long idleSince) {
+        int removed = 0;
+        for (LiveShare live : relays.values()) {
+            if (live.getCreatedAt() < idleSince && live.abort("upload never started", true) && discard(live)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private boolean discard(LiveShare live) {
+        relays.remove(live.getCode(), live);
+        fileSharer.cancelReservation(live.getCode());
+        aborted.increment();
+        return true;
+    }
+
+    public int getActiveCount() {
+        return relays.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getAbortedCount() {
+        return aborted.sum();
+    }
+}
@@ -0,0 +1,442 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import p2p.utils.MerkleTree;
+
+/**
+ * Packs blobs up to a size threshold into large append-only segment files, so that many
+ * small uploads cost neither an inode each nor a directory entry; larger blobs go to
+ * another backend. An in-memory index maps each blob to its offset and length, and reads
+ * are positional, through {@link SliceChannel}.
+ *
+ * <pre>
+ * segment: record*    record: int "PPSG" | sha-256 (32) | long length | content
+ * </pre>
+ * A record's magic is written after its content, so a crash during an append leaves no
+ * valid record behind; the index is rebuilt at startup by walking the record headers.
+ *
+ * <p>Segments are preallocated (sparse where the filesystem allows) and sealed, trimmed to
+ * their used length, when the next record does not fit. Deleted records are only dropped
+ * from the index. Once less than half of a sealed segment is live, a background thread
+ * copies its live records to the active segment and deletes the file; readers that have
+ * it open keep reading the unlinked file.
+ */
+public class SegmentBackend implements StorageBackend {
+    private static final int MAGIC = 0x50505347; // "PPSG"
+    private static final int HEADER_BYTES = 4 + MerkleTree.HASH_BYTES + 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+    // Live share of a sealed segment below which it is compacted
+    private static final double COMPACT_BELOW = 0.5;
+
+    private final Path dir;
+    private final StorageBackend large;
+    private final long threshold;
+    private final long segmentBytes;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final ExecutorService compactor;
+
+    // Appends are serialised; guarded by this lock
+    private final Object appendLock = new Object();
+    private Segment active;
+    private int nextId = 1;
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder movedBytes = new LongAdder();
+
+    /**
+     * @param large        backend for blobs above {@code threshold}, and for blobs stored
+     *                     before segments were enabled
+     * @param threshold    largest blob packed into segments
+     * @param segmentBytes size of a segment file; must be larger than a record of
+     *                     {@code threshold} bytes
+     */
+    public SegmentBackend(Path dir, StorageBackend large, long threshold, long segmentBytes) throws IOException {
+        if (threshold + HEADER_BYTES > segmentBytes) {
+            throw new IllegalArgumentException("Segments of " + segmentBytes + " bytes cannot hold blobs of " + threshold);
+        }
+        this.dir = dir;
+        this.large = large;
+        this.threshold = threshold;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    found.add(new Segment(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unexpected file in segment directory: " + name);
+                }
+            }
+        }
+        // In id order, so a record copied by a compaction that was cut short wins over the original
+        found.sort(Comparator.comparingInt(segment -> segment.id));
+        for (Segment segment : found) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = channel.size();
+                long position = 0;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (position + HEADER_BYTES <= size) {
+                    readFully(channel, header.clear(), position);
+                    header.flip();
+                    int magic = header.getInt();
+                    byte[] hash = new byte[MerkleTree.HASH_BYTES];
+                    header.get(hash);
+                    long length = header.getLong();
+                    // The preallocated tail reads as zeros, and a torn append has no magic yet
+                    if (magic != MAGIC || length < 0 || position + HEADER_BYTES + length > size) {
+                        break;
+                    }
+                    Location previous = index.put(MerkleTree.toHex(hash), new Location(segment, position + HEADER_BYTES, length));
+                    if (previous != null) {
+                        previous.segment.liveBytes.addAndGet(-(HEADER_BYTES + previous.length));
+                    }
+                    segment.liveBytes.addAndGet(HEADER_BYTES + length);
+                    position += HEADER_BYTES + length;
+                }
+                // Drops the unused preallocation and anything torn
+                channel.truncate(position);
+                segment.end = position;
+            }
+            segments.put(segment.id, segment);
+            nextId = Math.max(nextId, segment.id + 1);
+        }
+        if (!found.isEmpty()) {
+            System.out.println("Recovered " + index.size() + " packed blobs from " + found.size() + " segments");
+        }
+        for (Segment segment : found) {
+            maybeCompact(segment);
+        }
+    }
+
+    @Override
+    public void store(String blobId, Path file, long size) throws IOException {
+        if (size > threshold) {
+            large.store(blobId, file, size);
+            return;
+        }
+        Location location;
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            location = append(blobId, source, 0, size);
+        }
+        Files.delete(file);
+        Location previous = index.put(blobId, location);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    @Override
+    public FileChannel open(String blobId) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Location location = index.get(blobId);
+            if (location == null) {
+                return large.open(blobId);
+            }
+            try {
+                return new SliceChannel(FileChannel.open(location.segment.path, StandardOpenOption.READ),
+                                        location.offset, location.length);
+            } catch (NoSuchFileException e) {
+                // Compacted away between the lookup and the open; the index has the new place
+                if (attempt == 3) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String blobId) {
+        return index.containsKey(blobId) || large.exists(blobId);
+    }
+
+    @Override
+    public void delete(String blobId) throws IOException {
+        Location location = index.remove(blobId);
+        if (location != null) {
+            release(location);
+        }
+        large.delete(blobId);
+    }
+
+    @Override
+    public boolean isPacked(String blobId) {
+        return index.containsKey(blobId);
+    }
+
+    @Override
+    public void forEach(Consumer<String> action) throws IOException {
+        for (String blobId : index.keySet()) {
+            action.accept(blobId);
+        }
+        large.forEach(action);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Bytes in segment files, including dead records not yet compacted away.
+     */
+    public long getSegmentBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.end;
+        }
+        return total;
+    }
+
+    public long getLiveBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.liveBytes.get();
+        }
+        return total;
+    }
+
+    public int getPackedCount() {
+        return index.size();
+    }
+
+    public long getCompactionCount() {
+        return compactions.sum();
+    }
+
+    /**
+     * Bytes of live records copied by compactions.
+     */
+    public long getMovedBytes() {
+        return movedBytes.sum();
+    }
+
+    @Override
+    public String describeStats() {
+        return "packed=" + getPackedCount() + ", segments=" + getSegmentCount() + " (" + getSegmentBytes()
+               + " bytes, " + getLiveBytes() + " live), compactions=" + getCompactionCount()
+               + " (" + getMovedBytes() + " bytes moved)";
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (appendLock) {
+            if (active != null) {
+                seal(active);
+                active = null;
+            }
+        }
+        large.close();
+    }
+
+    /**
+     * Appends one record with {@code size} bytes of {@code source} from {@code from} and
+     * returns where its content is.
+     */
+    private Location append(String blobId, FileChannel source, long from, long size) throws IOException {
+        synchronized (appendLock) {
+            long recordBytes = HEADER_BYTES + size;
+            if (active == null || active.end + recordBytes > segmentBytes) {
+                roll();
+            }
+            Segment segment = active;
+            long start = segment.end;
+            FileChannel target = segment.writer;
+            target.position(start + HEADER_BYTES);
+            long copied = 0;
+            while (copied < size) {
+                long n = source.transferTo(from + copied, size - copied, target);
+                if (n <= 0) {
+                    throw new EOFException("Blob " + blobId + " ended after " + copied + " of " + size + " bytes");
+                }
+                copied += n;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(0).put(MerkleTree.fromHex(blobId)).putLong(size).flip();
+            writeFully(target, header, start);
+            // Last, which makes the record valid
+            writeFully(target, ByteBuffer.allocate(4).putInt(0, MAGIC), start);
+            // The blob is published, and its share journaled, as soon as this returns
+            target.force(false);
+            segment.end = start + recordBytes;
+            segment.liveBytes.addAndGet(recordBytes);
+            return new Location(segment, start + HEADER_BYTES, size);
+        }
+    }
+
+    /**
+     * Seals the active segment and starts a new, preallocated one. Called with the append
+     * lock held.
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            seal(active);
+            maybeCompact(active);
+        }
+        int id = nextId++;
+        Segment segment = new Segment(id, dir.resolve(String.format("%s%08d%s", PREFIX, id, SUFFIX)));
+        segment.writer = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                          StandardOpenOption.WRITE);
+        // One byte at the end sets the length without writing the rest
+        segment.writer.write(ByteBuffer.allocate(1), segmentBytes - 1);
+        segment.sealed = false;
+        segments.put(segment.id, segment);
+        active = segment;
+    }
+
+    private void seal(Segment segment) {
+        try {
+            segment.writer.truncate(segment.end);
+            segment.writer.close();
+        } catch (IOException e) {
+            System.err.println("Error sealing segment " + segment.path.getFileName() + ": " + e.getMessage());
+        }
+        segment.writer = null;
+        segment.sealed = true;
+    }
+
+    private void release(Location location) {
+        location.segment.liveBytes.addAndGet(-(HEADER_BYTES + location.length));
+        maybeCompact(location.segment);
+    }
+
+    private void maybeCompact(Segment segment) {
+        if (segment.sealed && segment.liveBytes.get() < segment.end * COMPACT_BELOW
+                && segment.compactionQueued.compareAndSet(false, true)) {
+            try {
+                compactor.execute(() -> compact(segment));
+            } catch (RejectedExecutionException e) {
+                // Shutting down; done after the next start
+                segment.compactionQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Moves the live records of a sealed segment to the active one and deletes the file.
+     * A record deleted while it is being moved leaves a dead copy behind, which is counted
+     * as dead right away.
+     */
+    private void compact(Segment segment) {
+        long moved = 0;
+        try {
+            if (segment.liveBytes.get() > 0) {
+                try (FileChannel source = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    byte[] hash = new byte[MerkleTree.HASH_BYTES];
+                    long position = 0;
+                    while (position + HEADER_BYTES <= segment.end) {
+                        readFully(source, header.clear(), position);
+                        header.flip();
+                        header.getInt();
+                        header.get(hash);
+                        long length = header.getLong();
+                        String blobId = MerkleTree.toHex(hash);
+                        Location current = index.get(blobId);
+                        if (current != null && current.segment == segment && current.offset == position + HEADER_BYTES) {
+                            Location copy = append(blobId, source, position + HEADER_BYTES, length);
+                            if (index.replace(blobId, current, copy)) {
+                                segment.liveBytes.addAndGet(-(HEADER_BYTES + length));
+                                moved += length;
+                            } else {
+                                release(copy);
+                            }
+                        }
+                        position += HEADER_BYTES + length;
+                    }
+                }
+            }
+            segments.remove(segment.id);
+            Files.deleteIfExists(segment.path);
+            compactions.increment();
+            movedBytes.add(moved);
+        } catch (IOException | RuntimeException e) {
+            // Stays as it is; retried when another of its records is deleted
+            System.err.println("Error compacting segment " + segment.path.getFileName() + ": " + e.getMessage());
+            segment.compactionQueued.set(false);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, at);
+            if (n < 0) {
+                throw new EOFException("Segment ends inside a record header");
+            }
+            at += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final AtomicLong liveBytes = new AtomicLong();
+        final AtomicBoolean compactionQueued = new AtomicBoolean();
+        // Appends only; null once sealed. Guarded by the append lock, like end and sealed
+        FileChannel writer;
+        volatile long end;
+        volatile boolean sealed;
+
+        Segment(int id, Path path) {
+            this.id = id;
+            this.path = path;
+            this.sealed = true;
+        }
+    }
+
+    /**
+     * Where a blob's content is. Compared by identity, so that a compaction only replaces
+     * the entry it copied.
+     */
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final long length;
+
+        Location(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
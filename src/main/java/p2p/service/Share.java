@@ -0,0 +1,232 @@
+package p2p.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A share code and the stored content it points at, along with its retention limits.
+ *
+ * <p>A share holds either one blob, or several files that are downloaded together as a ZIP
+ * archive (see {@link ZipArchive}). For the latter {@link #getBlobId()} is null,
+ * {@link #getFilename()} is the archive name and {@link #getSize()} the archive length.
+ */
+public class Share {
+    private final int code;
+    private final String blobId;
+    private final String filename;
+    private final long size;
+    private final long createdAt;
+    private final long expiresAt;
+    private final int maxDownloads;
+    private final ZipArchive archive;
+    private final AtomicInteger downloads = new AtomicInteger();
+    // Completed downloads plus those in progress; never above maxDownloads
+    private final AtomicInteger claimed = new AtomicInteger();
+    private volatile long lastAccess;
+
+    public Share(int code, String blobId, String filename, long size, long createdAt) {
+        this(code, blobId, filename, size, createdAt, 0, 0);
+    }
+
+    /**
+     * @param expiresAt    epoch millis after which the share is gone, or 0 for no expiry
+     * @param maxDownloads completed downloads after which the share is gone, or 0 for no limit
+     */
+    public Share(int code, String blobId, String filename, long size, long createdAt, long expiresAt, int maxDownloads) {
+        this(code, blobId, filename, size, createdAt, expiresAt, maxDownloads, null);
+    }
+
+    /**
+     * A multi-file share, downloaded as a ZIP archive called {@code filename}.
+     */
+    public Share(int code, String filename, List<Member> members, long createdAt, long expiresAt, int maxDownloads) {
+        this(code, filename, new ZipArchive(List.copyOf(members), createdAt), createdAt, expiresAt, maxDownloads);
+    }
+
+    private Share(int code, String filename, ZipArchive archive, long createdAt, long expiresAt, int maxDownloads) {
+        this(code, null, filename, archive.length(), createdAt, expiresAt, maxDownloads, archive);
+    }
+
+    private Share(int code, String blobId, String filename, long size, long createdAt, long expiresAt, int maxDownloads,
+                  ZipArchive archive) {
+        this.code = code;
+        this.blobId = blobId;
+        this.filename = filename;
+        this.size = size;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.maxDownloads = maxDownloads;
+        this.archive = archive;
+        this.lastAccess = createdAt;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * The content of a single-file share, or null for a multi-file one.
+     */
+    public String getBlobId() {
+        return blobId;
+    }
+
+    public boolean isArchive() {
+        return archive != null;
+    }
+
+    /**
+     * Layout of the ZIP archive a multi-file share is downloaded as, or null.
+     */
+    public ZipArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * The files of a multi-file share in archive order; empty for a single-file share.
+     */
+    public List<Member> getMembers() {
+        return archive == null ? Collections.emptyList() : archive.getMembers();
+    }
+
+    /**
+     * The member with the given archive path, or null.
+     */
+    public Member getMember(String name) {
+        for (Member member : getMembers()) {
+            if (member.getName().equals(name)) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every blob this share holds a reference to.
+     */
+    public List<String> getBlobIds() {
+        if (blobId != null) {
+            return Collections.singletonList(blobId);
+        }
+        List<Member> members = getMembers();
+        List<String> ids = new ArrayList<>(members.size());
+        for (Member member : members) {
+            ids.add(member.getBlobId());
+        }
+        return ids;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public int getDownloads() {
+        return downloads.get();
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt > 0 && now >= expiresAt;
+    }
+
+    public boolean isExhausted() {
+        return maxDownloads > 0 && downloads.get() >= maxDownloads;
+    }
+
+    void touch(long now) {
+        lastAccess = now;
+    }
+
+    /**
+     * Takes one of the remaining downloads for a transfer that is about to start, or returns
+     * false if they are all taken by completed or running transfers.
+     */
+    boolean claimDownload() {
+        while (true) {
+            int current = claimed.get();
+            if (maxDownloads > 0 && current >= maxDownloads) {
+                return false;
+            }
+            if (claimed.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a claimed download whose transfer did not complete.
+     */
+    void releaseDownload() {
+        claimed.decrementAndGet();
+    }
+
+    /**
+     * Counts a claimed download as completed.
+     */
+    int recordDownload() {
+        return downloads.incrementAndGet();
+    }
+
+    void restoreDownloads(int count) {
+        downloads.set(count);
+        claimed.set(count);
+    }
+
+    /**
+     * One file of a multi-file share. The CRC-32 is taken while uploading, so the archive
+     * can be laid out without reading the content again.
+     */
+    public static class Member {
+        private final String name;
+        private final String blobId;
+        private final long size;
+        private final int crc32;
+
+        public Member(String name, String blobId, long size, int crc32) {
+            this.name = name;
+            this.blobId = blobId;
+            this.size = size;
+            this.crc32 = crc32;
+        }
+
+        /**
+         * Path inside the archive, with {@code /} separators.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getBlobId() {
+            return blobId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getCrc32() {
+            return crc32;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, persistent copy of the share map: an append-only journal of changes plus a
+ * periodically compacted snapshot.
+ *
+ * <p>Journal writes go through a single writer thread that batches whatever has queued up
+ * into one write and one {@code fsync} (group commit), so concurrent uploads share the cost
+ * of making their shares durable. Recovery maps both files and replays them; replay is
+ * idempotent, which lets the snapshot be taken while changes keep arriving.
+ *
+ * <pre>
+ * journal record:  int length | byte type | payload | int crc32(type + payload)
+ * snapshot:        "PPIX" | int version | int count | count x (int length | share payload)
+ * </pre>
+ */
+public class ShareIndex {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte DOWNLOADS = 3;
+
+    private static final int SNAPSHOT_MAGIC = 0x50504958; // "PPIX"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String JOURNAL_FILE = "journal.log";
+    /** Names and blob ids are stored with an unsigned 16-bit length. */
+    public static final int MAX_FIELD_BYTES = 0xffff;
+
+    private final Path dir;
+    private final long compactAfterBytes;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private FileChannel journal;
+    private long journalRecords;
+    private Supplier<Collection<Share>> liveShares;
+    private Thread writer;
+    private volatile boolean running;
+
+    /**
+     * @param compactAfterBytes journal size after which it is folded into a new snapshot
+     */
+    public ShareIndex(String rootDir, long compactAfterBytes) throws IOException {
+        this.dir = Paths.get(rootDir, "index");
+        this.compactAfterBytes = compactAfterBytes;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Rebuilds the share map from the snapshot and journal. A torn record at the end of the
+     * journal (from a crash mid-write) ends replay and is cut off.
+     */
+    public Map<Integer, Share> recover() throws IOException {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        Map<Integer, Share> shares;
+        if (Files.exists(snapshot)) {
+            shares = readSnapshot(snapshot);
+        } else {
+            shares = new HashMap<>();
+        }
+
+        Path journalPath = dir.resolve(JOURNAL_FILE);
+        long validLength = 0;
+        if (Files.exists(journalPath)) {
+            validLength = replayJournal(journalPath, shares);
+        }
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (journal.size() > validLength) {
+            System.err.println("Share index: discarding " + (journal.size() - validLength) + " bytes of torn journal");
+            journal.truncate(validLength);
+            journal.force(true);
+        }
+        journal.position(validLength);
+        return shares;
+    }
+
+    /**
+     * Starts the writer thread. {@code liveShares} provides the current map for compaction.
+     */
+    public void start(Supplier<Collection<Share>> liveShares) {
+        if (journal == null) {
+            throw new IllegalStateException("recover() must be called before start()");
+        }
+        this.liveShares = liveShares;
+        running = true;
+        writer = new Thread(this::writeLoop, "share-index-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Flushes outstanding records and stops the writer thread.
+     */
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        queue.add(new Pending(null, new CompletableFuture<>()));
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing share index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Journals a new share. The future completes once the record is on disk.
+     */
+    public CompletableFuture<Void> put(Share share) {
+        return enqueue(PUT, encodeShare(share));
+    }
+
+    public CompletableFuture<Void> remove(int code) {
+        ByteBuffer payload = ByteBuffer.allocate(4).putInt(code);
+        return enqueue(REMOVE, payload.array());
+    }
+
+    public CompletableFuture<Void> downloads(int code, int count) {
+        ByteBuffer payload = ByteBuffer.allocate(8).putInt(code).putInt(count);
+        return enqueue(DOWNLOADS, payload.array());
+    }
+
+    private CompletableFuture<Void> enqueue(byte type, byte[] payload) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!running) {
+            done.completeExceptionally(new IOException("Share index is closed"));
+            return done;
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + payload.length + 4);
+        record.putInt(1 + payload.length).put(type).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 1 + payload.length);
+        record.putInt((int) crc.getValue());
+        queue.add(new Pending(record.array(), done));
+        return done;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            try {
+                int total = 0;
+                for (Pending pending : batch) {
+                    if (pending.record != null) total += pending.record.length;
+                }
+                if (total > 0) {
+                    ByteBuffer buffer = ByteBuffer.allocate(total);
+                    for (Pending pending : batch) {
+                        if (pending.record != null) {
+                            buffer.put(pending.record);
+                            journalRecords++;
+                        }
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        journal.write(buffer);
+                    }
+                    journal.force(false);
+                }
+                for (Pending pending : batch) {
+                    pending.done.complete(null);
+                }
+                if (journal.size() > compactAfterBytes) {
+                    compact();
+                }
+            } catch (IOException e) {
+                System.err.println("Share index write failed: " + e.getMessage());
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the live map as a new snapshot and empties the journal. Runs on the writer
+     * thread, so no journal write can interleave with it.
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        Collection<Share> shares = new ArrayList<>(liveShares.get());
+        writeSnapshot(shares);
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(true);
+        long records = journalRecords;
+        journalRecords = 0;
+        System.out.println("Share index compacted " + records + " journal records into a snapshot of "
+                           + shares.size() + " shares in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    void writeSnapshot(Collection<Share> shares) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(shares.size());
+            for (Share share : shares) {
+                byte[] payload = encodeShare(share);
+                if (buffer.remaining() < 4 + payload.length) {
+                    drain(out, buffer);
+                    if (buffer.capacity() < 4 + payload.length) {
+                        buffer = ByteBuffer.allocate(4 + payload.length);
+                    }
+                }
+                buffer.putInt(payload.length).put(payload);
+            }
+            drain(out, buffer);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename itself is only durable once the directory is; the journal is emptied next
+        forceDirectory(dir);
+    }
+
+    /**
+     * Flushes a directory's entries, making renames and new files in it survive a crash.
+     * Platforms that cannot open a directory (Windows) are skipped.
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            // Not supported for directories here
+        }
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static Map<Integer, Share> readSnapshot(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a share index snapshot: " + snapshot);
+            }
+            int version = buffer.getInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported share index snapshot version " + version);
+            }
+            int count = buffer.getInt();
+            // Sized up front: rehashing millions of entries is a large part of recovery time
+            Map<Integer, Share> shares = new HashMap<>((int) Math.min(Integer.MAX_VALUE, count * 4L / 3 + 16));
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                int end = buffer.position() + length;
+                Share share = decodeShare(buffer, end);
+                shares.put(share.getCode(), share);
+                buffer.position(end);
+            }
+            return shares;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated share index snapshot: " + snapshot);
+        }
+    }
+
+    private static long replayJournal(Path journalPath, Map<Integer, Share> shares) throws IOException {
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                if (length < 1 || buffer.remaining() < length + 4) {
+                    return start;
+                }
+                int bodyStart = buffer.position();
+                ByteBuffer body = buffer.slice().limit(length);
+                crc.reset();
+                crc.update(body);
+                buffer.position(bodyStart + length);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    return start;
+                }
+
+                buffer.position(bodyStart);
+                byte type = buffer.get();
+                int end = bodyStart + length;
+                switch (type) {
+                    case PUT:
+                        Share share = decodeShare(buffer, end);
+                        shares.put(share.getCode(), share);
+                        break;
+                    case REMOVE:
+                        shares.remove(buffer.getInt());
+                        break;
+                    case DOWNLOADS:
+                        Share existing = shares.get(buffer.getInt());
+                        int count = buffer.getInt();
+                        if (existing != null) existing.restoreDownloads(count);
+                        break;
+                    default:
+                        // Unknown record types from newer versions are skipped
+                        break;
+                }
+                buffer.position(end + 4);
+            }
+            return buffer.position();
+        }
+    }
+
+    /**
+     * The record a share is journaled as, which also carries shares between cluster nodes.
+     *
+     * @throws IllegalArgumentException if a name or blob id is longer than
+     *         {@value #MAX_FIELD_BYTES} bytes in UTF-8
+     */
+    public static byte[] encodeShare(Share share) {
+        byte[] blobId = share.isArchive() ? new byte[0] : field(share.getBlobId(), "Blob id");
+        byte[] filename = field(share.getFilename(), "Filename");
+        List<Share.Member> members = share.getMembers();
+        List<byte[]> memberFields = new ArrayList<>(2 * members.size());
+        int memberBytes = 4;
+        for (Share.Member member : members) {
+            byte[] name = field(member.getName(), "Filename");
+            byte[] memberBlobId = field(member.getBlobId(), "Blob id");
+            memberFields.add(name);
+            memberFields.add(memberBlobId);
+            memberBytes += 2 + name.length + 2 + memberBlobId.length + 8 + 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + blobId.length + 2 + filename.length + 8 * 4 + 4 * 2 + memberBytes);
+        buffer.putInt(share.getCode());
+        putBytes(buffer, blobId);
+        putBytes(buffer, filename);
+        buffer.putLong(share.getSize())
+              .putLong(share.getCreatedAt())
+              .putLong(share.getExpiresAt())
+              .putLong(share.getLastAccess())
+              .putInt(share.getMaxDownloads())
+              .putInt(share.getDownloads());
+        // Files of a multi-file share; none for a single file
+        buffer.putInt(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            putBytes(buffer, memberFields.get(2 * i));
+            putBytes(buffer, memberFields.get(2 * i + 1));
+            buffer.putLong(members.get(i).getSize())
+                  .putInt(members.get(i).getCrc32());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads a record written by {@link #encodeShare(Share)}.
+     *
+     * @throws java.nio.BufferUnderflowException if the record is truncated
+     */
+    public static Share decodeShare(byte[] record) {
+        return decodeShare(ByteBuffer.wrap(record), record.length);
+    }
+
+    /**
+     * Reads a share payload ending at {@code end}. Fields added by later versions are
+     * appended to the payload, so older fields always come first.
+     */
+    private static Share decodeShare(ByteBuffer buffer, int end) {
+        int code = buffer.getInt();
+        String blobId = getString(buffer);
+        String filename = getString(buffer);
+        long size = buffer.getLong();
+        long createdAt = buffer.getLong();
+        long expiresAt = buffer.getLong();
+        long lastAccess = buffer.getLong();
+        int maxDownloads = buffer.getInt();
+        int downloads = buffer.getInt();
+        int memberCount = buffer.position() < end ? buffer.getInt() : 0;
+        Share share;
+        if (memberCount > 0) {
+            List<Share.Member> members = new ArrayList<>(memberCount);
+            for (int i = 0; i < memberCount; i++) {
+                String name = getString(buffer);
+                String memberBlobId = getString(buffer);
+                members.add(new Share.Member(name, memberBlobId, buffer.getLong(), buffer.getInt()));
+            }
+            share = new Share(code, filename, members, createdAt, expiresAt, maxDownloads);
+        } else {
+            share = new Share(code, blobId, filename, size, createdAt, expiresAt, maxDownloads);
+        }
+        share.touch(lastAccess);
+        share.restoreDownloads(downloads);
+        return share;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static byte[] field(String value, String what) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException(what + " is longer than " + MAX_FIELD_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Pending {
+        final byte[] record;
+        final CompletableFuture<Void> done;
+
+        Pending(byte[] record, CompletableFuture<Void> done) {
+            this.record = record;
+            this.done = done;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background thread that removes expired and used-up shares, abandoned upload sessions
+ * and relay reservations, and, when stored bytes exceed the disk budget, the least recently used shares.
+ *
+ * <p>It only ever works on a snapshot of the share map and removes entries one at a time,
+ * so {@link FileSharer#offerFile} and {@link FileSharer#getShare} never wait for it.
+ */
+public class ShareReaper {
+    private final FileSharer fileSharer;
+    private final UploadSessionManager uploadSessions;
+    private final RelayManager relays;
+    private final long diskBudgetBytes;
+    private final long sessionIdleMillis;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean passPending = new AtomicBoolean();
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder abandonedSessions = new LongAdder();
+    private final LongAdder passes = new LongAdder();
+
+    /**
+     * @param diskBudgetBytes   upper bound for stored blob bytes, or 0 for no budget
+     * @param sessionIdleMillis idle time after which an unfinished upload session, or a relay
+     *                          code whose upload has not started, is dropped; 0 keeps them
+     */
+    public ShareReaper(FileSharer fileSharer, UploadSessionManager uploadSessions, RelayManager relays,
+                       long diskBudgetBytes, long sessionIdleMillis, long intervalMillis) {
+        this.fileSharer = fileSharer;
+        this.uploadSessions = uploadSessions;
+        this.relays = relays;
+        this.diskBudgetBytes = diskBudgetBytes;
+        this.sessionIdleMillis = sessionIdleMillis;
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "share-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts periodic passes. The first task removes blobs and partial uploads that no
+     * recovered share references; it runs in the background so it does not delay startup.
+     */
+    public void start() {
+        long startedAt = System.currentTimeMillis();
+        scheduler.execute(() -> {
+            try {
+                int orphans = fileSharer.getBlobStore().sweepUnreferenced(startedAt);
+                if (orphans > 0) {
+                    System.out.println("Removed " + orphans + " unreferenced blobs");
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error sweeping unreferenced blobs: " + e.getMessage());
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this::runPass, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Asks for an extra pass soon, e.g. after an upload that may have pushed us over budget.
+     * Never blocks; requests that arrive while a pass is pending are folded into it.
+     */
+    public void requestPass() {
+        if (diskBudgetBytes > 0 && passPending.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::runPass);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                passPending.set(false);
+            }
+        }
+    }
+
+    private void runPass() {
+        passPending.set(false);
+        try {
+            reap();
+        } catch (RuntimeException e) {
+            // A failed pass must not cancel the schedule
+            System.err.println("Error in share reaper: " + e.getMessage());
+        }
+    }
+
+    void reap() {
+        passes.increment();
+        long now = System.currentTimeMillis();
+        List<Share> live = new ArrayList<>();
+        for (Share share : fileSharer.getShares()) {
+            if (share.isExpired(now)) {
+                if (fileSharer.removeShare(share)) expired.increment();
+            } else if (share.isExhausted()) {
+                if (fileSharer.removeShare(share)) exhausted.increment();
+            } else {
+                live.add(share);
+            }
+        }
+
+        BlobStore blobStore = fileSharer.getBlobStore();
+        if (diskBudgetBytes > 0 && blobStore.getStoredBytes() > diskBudgetBytes) {
+            // Least recently used first; a share that shares its blob frees nothing on its
+            // own, so keep going until the budget holds or nothing is left
+            live.sort(Comparator.comparingLong(Share::getLastAccess).thenComparingLong(Share::getCreatedAt));
+            for (Share share : live) {
+                if (blobStore.getStoredBytes() <= diskBudgetBytes) break;
+                if (fileSharer.removeShare(share)) overBudget.increment();
+            }
+        }
+
+        if (uploadSessions != null && sessionIdleMillis > 0) {
+            abandonedSessions.add(uploadSessions.removeIdle(now - sessionIdleMillis));
+        }
+        if (relays != null && sessionIdleMillis > 0) {
+            abandonedSessions.add(relays.removeIdle(now - sessionIdleMillis));
+        }
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    public long getOverBudgetCount() {
+        return overBudget.sum();
+    }
+
+    public long getAbandonedSessionCount() {
+        return abandonedSessions.sum();
+    }
+
+    public long getPassCount() {
+        return passes.sum();
+    }
+
+    public String describeStats() {
+        return "expired=" + getExpiredCount() + ", downloadLimit=" + getExhaustedCount()
+               + ", overBudget=" + getOverBudgetCount() + ", abandonedSessions=" + getAbandonedSessionCount();
+    }
+}
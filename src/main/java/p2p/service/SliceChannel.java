@@ -0,0 +1,84 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read-only window onto part of a file, seen as a file of its own: positions start at 0
+ * and the size is the window's length. {@link #transferTo} and {@link #map} go straight
+ * to the underlying channel, so sendfile and mapped reads work as for a whole file.
+ * Closing it closes the underlying channel.
+ */
+class SliceChannel extends ReadOnlyChannel {
+    private final FileChannel file;
+    private final long offset;
+    private final long length;
+
+    SliceChannel(FileChannel file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int max = (int) Math.min(dst.remaining(), length - position);
+        int limit = dst.limit();
+        dst.limit(dst.position() + max);
+        try {
+            return file.read(dst, offset + position);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= length) {
+            return 0;
+        }
+        return file.transferTo(offset + position, Math.min(count, length - position), target);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        if (mode != MapMode.READ_ONLY) {
+            throw new NonWritableChannelException();
+        }
+        if (position < 0 || size < 0 || position + size > length) {
+            throw new IllegalArgumentException("Region outside the blob");
+        }
+        return file.map(mode, offset + position, size);
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return file.lock(offset + position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return file.tryLock(offset + position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,61 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Where the bytes of blobs physically live. {@link BlobStore} decides what is stored and
+ * for how long, through content ids and reference counts; a backend only keeps the content
+ * of each id and must be safe for concurrent use.
+ *
+ * <p>{@link BlobStore} never stores or deletes the same id concurrently, and reads may
+ * overlap with anything.
+ */
+public interface StorageBackend extends Closeable {
+
+    /**
+     * Takes over a complete file as the content of {@code blobId}, by moving it or by copying
+     * and deleting it. The file is on the same filesystem as the store. The content is on
+     * disk when this returns, since the blob is published and its share journaled right after.
+     */
+    void store(String blobId, Path file, long size) throws IOException;
+
+    /**
+     * Opens the content for reading. The channel only covers the blob: it starts at position
+     * 0 and its size is the blob's size, and it supports {@link FileChannel#transferTo} and
+     * {@link FileChannel#map}. It stays readable if the blob is deleted or moved meanwhile.
+     *
+     * @throws java.nio.file.NoSuchFileException if the blob is not stored
+     */
+    FileChannel open(String blobId) throws IOException;
+
+    boolean exists(String blobId);
+
+    /**
+     * Removes the content; deleting a blob that is not stored does nothing.
+     */
+    void delete(String blobId) throws IOException;
+
+    /**
+     * Whether the blob shares a file with others. Files derived from such a blob, like its
+     * chunk manifest, are not worth an inode of their own.
+     */
+    boolean isPacked(String blobId);
+
+    /**
+     * Calls {@code action} with the id of every stored blob, e.g. to find unreferenced ones.
+     * The action may delete the blob it is given.
+     */
+    void forEach(Consumer<String> action) throws IOException;
+
+    /**
+     * A one-line summary for the shutdown log.
+     */
+    String describeStats();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,164 @@
+package p2p.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which peers hold which chunks of a share, so that receivers can fetch chunks
+ * from each other instead of all from this server.
+ *
+ * <p>Peers announce themselves periodically with the chunks they have and get the other
+ * peers of the share back. A peer that stops announcing is forgotten after
+ * {@code peerTtlMillis}. Each share's peers are only touched inside
+ * {@link ConcurrentHashMap#compute}, so an announce never races with the removal of an
+ * emptied swarm.
+ */
+public class SwarmTracker {
+    /**
+     * Peers returned per announce; a random subset when a swarm is larger.
+     */
+    public static final int MAX_PEERS_RETURNED = 50;
+    private static final int MAX_PEERS_PER_SWARM = 1000;
+
+    private final ConcurrentHashMap<Integer, Map<String, Peer>> swarms = new ConcurrentHashMap<>();
+    private final long peerTtlMillis;
+    private final AtomicLong lastPrune = new AtomicLong();
+    private final LongAdder announces = new LongAdder();
+
+    public SwarmTracker(long peerTtlMillis) {
+        this.peerTtlMillis = peerTtlMillis;
+    }
+
+    /**
+     * Records that {@code url} holds the chunks set in {@code have} and returns the other live
+     * peers of the share. A full swarm returns peers without adding new ones.
+     */
+    public List<Peer> announce(int code, String url, BitSet have, long now) {
+        announces.increment();
+        pruneAll(now);
+        List<Peer> result = new ArrayList<>();
+        swarms.compute(code, (c, peers) -> {
+            if (peers == null) {
+                peers = new LinkedHashMap<>();
+            }
+            prune(peers, now);
+            if (peers.containsKey(url) || peers.size() < MAX_PEERS_PER_SWARM) {
+                peers.put(url, new Peer(url, (BitSet) have.clone(), now));
+            }
+            for (Peer peer : peers.values()) {
+                if (!peer.url.equals(url)) {
+                    result.add(peer);
+                }
+            }
+            return peers;
+        });
+        return sample(result);
+    }
+
+    /**
+     * Live peers of a share, without announcing.
+     */
+    public List<Peer> peers(int code, long now) {
+        List<Peer> result = new ArrayList<>();
+        swarms.computeIfPresent(code, (c, peers) -> {
+            prune(peers, now);
+            result.addAll(peers.values());
+            return peers.isEmpty() ? null : peers;
+        });
+        return sample(result);
+    }
+
+    public void leave(int code, String url) {
+        swarms.computeIfPresent(code, (c, peers) -> {
+            peers.remove(url);
+            return peers.isEmpty() ? null : peers;
+        });
+    }
+
+    public int getPeerCount() {
+        int count = 0;
+        for (Map<String, Peer> peers : swarms.values()) {
+            // Unsynchronized read of a size; a gauge tolerates that
+            count += peers.size();
+        }
+        return count;
+    }
+
+    public int getSwarmCount() {
+        return swarms.size();
+    }
+
+    public long getAnnounceCount() {
+        return announces.sum();
+    }
+
+    /**
+     * Drops expired peers and empty swarms everywhere, at most once per TTL, so that shares
+     * nobody announces for any more do not keep their swarm.
+     */
+    private void pruneAll(long now) {
+        long last = lastPrune.get();
+        if (now - last < peerTtlMillis || !lastPrune.compareAndSet(last, now)) {
+            return;
+        }
+        for (Integer code : swarms.keySet()) {
+            swarms.computeIfPresent(code, (c, peers) -> {
+                prune(peers, now);
+                return peers.isEmpty() ? null : peers;
+            });
+        }
+    }
+
+    private void prune(Map<String, Peer> peers, long now) {
+        peers.values().removeIf(peer -> now - peer.lastSeen > peerTtlMillis);
+    }
+
+    private static List<Peer> sample(List<Peer> peers) {
+        if (peers.size() > MAX_PEERS_RETURNED) {
+            Collections.shuffle(peers, ThreadLocalRandom.current());
+            return new ArrayList<>(peers.subList(0, MAX_PEERS_RETURNED));
+        }
+        return peers;
+    }
+
+    /**
+     * A peer as of its last announce. Immutable.
+     */
+    public static class Peer {
+        private final String url;
+        private final BitSet have;
+        private final long lastSeen;
+
+        Peer(String url, BitSet have, long lastSeen) {
+            this.url = url;
+            this.have = have;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * Base URL the peer serves chunks from.
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * The chunks the peer holds; callers must not modify it.
+         */
+        public BitSet getHave() {
+            return have;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+}
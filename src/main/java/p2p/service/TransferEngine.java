@@ -0,0 +1,220 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.BufferPool;
+
+/**
+ * Moves file regions to the network using the cheapest path the target allows:
+ * {@code transferTo} (sendfile) when we own the socket channel, memory-mapped
+ * regions when we only have an {@link OutputStream}, and a pooled buffer copy
+ * as the fallback for everything else. Content already in memory, such as
+ * {@link HotShareCache} entries, is copied straight from its buffer.
+ *
+ * <p>Only {@link Path#TRANSFER_TO} avoids copying through user space. The JDK HTTP server
+ * hands handlers an {@link OutputStream}, so {@link Path#MAPPED} still copies every byte
+ * from the mapping into a heap array and from there into the socket; compared with
+ * {@link Path#BUFFERED} it only skips the read into a temporary direct buffer.
+ */
+public class TransferEngine {
+
+    public enum Path {
+        TRANSFER_TO,
+        MAPPED,
+        BUFFERED,
+        CACHED
+    }
+
+    // Below this size the cost of setting up a mapping outweighs the saved copy
+    private static final long MAP_THRESHOLD = 256 * 1024;
+    private static final long MAP_REGION = 16L * 1024 * 1024;
+
+    private final BufferPool bufferPool;
+    private final LongAdder[] transfers = new LongAdder[Path.values().length];
+    private final LongAdder[] bytes = new LongAdder[Path.values().length];
+
+    public TransferEngine() {
+        this(BufferPool.shared());
+    }
+
+    public TransferEngine(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        for (int i = 0; i < transfers.length; i++) {
+            transfers[i] = new LongAdder();
+            bytes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code source} starting at {@code position} to a channel.
+     * Socket and file targets go through {@code transferTo}; if the kernel path fails before
+     * anything was written the transfer is retried with a buffer copy. The target must be
+     * in blocking mode.
+     */
+    public Path send(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        if (target instanceof SocketChannel || target instanceof FileChannel) {
+            long sent = 0;
+            try {
+                while (sent < count) {
+                    long n = source.transferTo(position + sent, count - sent, target);
+                    if (n <= 0 && position + sent >= source.size()) {
+                        throw new IOException("File truncated during transfer");
+                    }
+                    sent += n;
+                }
+                return record(Path.TRANSFER_TO, sent);
+            } catch (IOException | UnsupportedOperationException e) {
+                if (sent > 0 || !target.isOpen()) {
+                    record(Path.TRANSFER_TO, sent);
+                    throw e;
+                }
+            }
+        }
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            long sent = 0;
+            while (sent < count) {
+                buffer.clear();
+                if (count - sent < buffer.capacity()) {
+                    buffer.limit((int) (count - sent));
+                }
+                int read = source.read(buffer, position + sent);
+                if (read < 0) {
+                    throw new IOException("File truncated during transfer");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                sent += read;
+            }
+            return record(Path.BUFFERED, sent);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * One {@code transferTo} call for a non-blocking socket: sends what fits in the socket
+     * buffer and returns the byte count, which is 0 when the buffer is full. The caller
+     * reports the finished transfer with {@link #recordTransfer}.
+     */
+    public long sendAvailable(FileChannel source, long position, long count, SocketChannel target) throws IOException {
+        long sent = source.transferTo(position, count, target);
+        if (sent == 0 && position >= source.size()) {
+            throw new IOException("File truncated during transfer");
+        }
+        return sent;
+    }
+
+    /**
+     * Counts a transfer that was driven outside this class, e.g. by a selector loop.
+     */
+    public void recordTransfer(Path path, long sent) {
+        record(path, sent);
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code source} starting at {@code position} to a stream.
+     * Large regions are read through a mapping, which skips the intermediate direct buffer
+     * that {@link FileChannel#read(ByteBuffer)} uses for heap targets. This is still a copy
+     * path: the stream only accepts byte arrays.
+     */
+    public Path send(FileChannel source, long position, long count, OutputStream target) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            long sent = 0;
+            if (count >= MAP_THRESHOLD) {
+                try {
+                    while (sent < count) {
+                        long regionSize = Math.min(MAP_REGION, count - sent);
+                        MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY, position + sent, regionSize);
+                        while (region.hasRemaining()) {
+                            int n = Math.min(buffer.capacity(), region.remaining());
+                            region.get(buffer.array(), 0, n);
+                            target.write(buffer.array(), 0, n);
+                            sent += n;
+                        }
+                    }
+                    return record(Path.MAPPED, sent);
+                } catch (IOException | UnsupportedOperationException e) {
+                    // Mapping is not available on every filesystem; only fall back if nothing went out
+                    if (sent > 0) {
+                        record(Path.MAPPED, sent);
+                        throw e;
+                    }
+                }
+            }
+            while (sent < count) {
+                buffer.clear();
+                if (count - sent < buffer.capacity()) {
+                    buffer.limit((int) (count - sent));
+                }
+                int read = source.read(buffer, position + sent);
+                if (read < 0) {
+                    throw new IOException("File truncated during transfer");
+                }
+                target.write(buffer.array(), 0, read);
+                sent += read;
+            }
+            return record(Path.BUFFERED, sent);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of an in-memory buffer starting at {@code position} to a
+     * stream. The buffer's own position and limit are not used or changed.
+     */
+    public Path send(ByteBuffer source, long position, long count, OutputStream target) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            int offset = (int) position;
+            int end = (int) (position + count);
+            while (offset < end) {
+                int n = Math.min(buffer.capacity(), end - offset);
+                source.get(offset, buffer.array(), 0, n);
+                target.write(buffer.array(), 0, n);
+                offset += n;
+            }
+            return record(Path.CACHED, count);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    public long getTransferCount(Path path) {
+        return transfers[path.ordinal()].sum();
+    }
+
+    public long getBytesSent(Path path) {
+        return bytes[path.ordinal()].sum();
+    }
+
+    /**
+     * One-line summary of transfers and bytes per path, e.g. for the shutdown log.
+     */
+    public String describeStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Path path : Path.values()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(path).append('=').append(getTransferCount(path))
+              .append(" (").append(getBytesSent(path)).append(" bytes)");
+        }
+        return sb.toString();
+    }
+
+    private Path record(Path path, long sent) {
+        transfers[path.ordinal()].increment();
+        bytes[path.ordinal()].add(sent);
+        return path;
+    }
+}
@@ -0,0 +1,380 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.AsyncLogger;
+
+/**
+ * Raw TCP download server: one listening port and one selector thread serve any number of
+ * shares to any number of peers.
+ *
+ * <p>A client connects and sends a 9-byte handshake: the magic {@code "PPTX"}, protocol
+ * version 1 and the share code as a big-endian int. The reply uses the framing of the old
+ * per-share socket server, a {@code Filename:} and a {@code Length:} line and an empty
+ * line, followed by the file. The filename is percent-encoded where it holds control
+ * characters or {@code %} (see {@link #encodeFilename}), so it cannot end the line. An unknown or expired code gets an {@code Error:} line
+ * instead and the connection is closed, as does a multi-file share, which is only served
+ * as a ZIP archive over HTTP. So do encrypted blobs and blobs packed into a segment file:
+ * only a plain file per blob can be sent with sendfile without blocking the selector.
+ * Sendfile cannot be rate limited either, so while a bandwidth limit is set every
+ * handshake is refused and running transfers are cut off.
+ *
+ * <p>The file is sent with {@code transferTo} (sendfile) on the non-blocking socket. When
+ * the socket buffer is full a call sends nothing and the connection waits for
+ * {@code OP_WRITE}, so a slow peer holds no thread and costs no buffer memory.
+ */
+public class TransferServer {
+    public static final int MAGIC = 0x50505458; // "PPTX"
+    public static final byte VERSION = 1;
+    public static final int HANDSHAKE_BYTES = 9;
+
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    // Upper bound per transferTo call, so one fast peer cannot starve the others
+    private static final long MAX_SEND_BYTES = 8L * 1024 * 1024;
+
+    private final FileSharer fileSharer;
+    private final TransferEngine transferEngine;
+    private final BandwidthManager bandwidth;
+    private final int port;
+    private final Set<Connection> connections = new HashSet<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public TransferServer(FileSharer fileSharer, TransferEngine transferEngine, int port) {
+        this(fileSharer, transferEngine, new BandwidthManager(0, 0), port);
+    }
+
+    /**
+     * @param bandwidth the HTTP server's limits; while any is set this server refuses
+     *                  transfers, since sendfile cannot be shaped
+     */
+    public TransferServer(FileSharer fileSharer, TransferEngine transferEngine, BandwidthManager bandwidth, int port) {
+        this.fileSharer = fileSharer;
+        this.transferEngine = transferEngine;
+        this.bandwidth = bandwidth;
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this::run, "transfer-server");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Transfer server started on port " + getPort());
+    }
+
+    /**
+     * Percent-encodes the control characters and {@code %} of a filename for the
+     * {@code Filename:} line; everything else is sent as UTF-8.
+     */
+    public static String encodeFilename(String filename) {
+        StringBuilder encoded = new StringBuilder(filename.length());
+        for (int i = 0; i < filename.length(); i++) {
+            char c = filename.charAt(i);
+            if (c < 0x20 || c == 0x7f || c == '%') {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                       .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            } else {
+                encoded.append(c);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Reverses {@link #encodeFilename}.
+     *
+     * @throws IllegalArgumentException if an escape is incomplete or not hexadecimal
+     */
+    public static String decodeFilename(String encoded) {
+        StringBuilder filename = new StringBuilder(encoded.length());
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '%') {
+                int high = i + 2 < encoded.length() ? Character.digit(encoded.charAt(i + 1), 16) : -1;
+                int low = high < 0 ? -1 : Character.digit(encoded.charAt(i + 2), 16);
+                if (low < 0) {
+                    throw new IllegalArgumentException("Bad escape in filename: " + encoded);
+                }
+                filename.append((char) (high << 4 | low));
+                i += 2;
+            } else {
+                filename.append(c);
+            }
+        }
+        return filename.toString();
+    }
+
+    /**
+     * The port the server is bound to, which differs from the requested one when that was 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        } else if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        failed.increment();
+                        connection.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Transfer server stopped: " + e.getMessage());
+            }
+        } finally {
+            for (Connection connection : new HashSet<>(connections)) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing transfer server: " + e.getMessage());
+            }
+            System.out.println("Transfer server stopped (" + describeStats() + ")");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            accepted.increment();
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (Connection connection : new HashSet<>(connections)) {
+            long timeout = connection.file == null && connection.header == null ? HANDSHAKE_TIMEOUT_MILLIS : IDLE_TIMEOUT_MILLIS;
+            if (now - connection.lastActivity > timeout) {
+                failed.increment();
+                connection.close();
+            }
+        }
+    }
+
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    /**
+     * One-line summary of connections, e.g. for the shutdown log.
+     */
+    public String describeStats() {
+        return "accepted=" + accepted.sum() + ", completed=" + completed.sum() + ", failed=" + failed.sum();
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_BYTES);
+        private SelectionKey key;
+        private ByteBuffer header;
+        private Share share;
+        private FileChannel file;
+        // Holds one of the share's downloads until the transfer completes or fails
+        private boolean claimed;
+        private long position;
+        private long length;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(handshake);
+            if (read < 0) {
+                throw new IOException("Peer closed before handshake");
+            }
+            lastActivity = System.currentTimeMillis();
+            if (handshake.hasRemaining()) {
+                return;
+            }
+            handshake.flip();
+            int magic = handshake.getInt();
+            byte version = handshake.get();
+            int code = handshake.getInt();
+            if (magic != MAGIC || version != VERSION) {
+                reply("Error: Unsupported handshake\n\n");
+                return;
+            }
+            if (bandwidth.isLimited()) {
+                reply("Error: Raw transfers are disabled while bandwidth limits are set\n\n");
+                return;
+            }
+            share = fileSharer.getShare(code);
+            if (share == null) {
+                reply("Error: Invalid or expired code\n\n");
+                return;
+            }
+            if (share.isArchive()) {
+                // The archive is assembled per request, which does not fit the sendfile path
+                share = null;
+                reply("Error: Multi-file shares are only available over HTTP\n\n");
+                return;
+            }
+            BlobStore blobStore = fileSharer.getBlobStore();
+            if (blobStore.isEncrypted() || blobStore.isPacked(share.getBlobId())) {
+                // Decrypting or reading through a segment slice would block this thread
+                share = null;
+                reply("Error: This share is only available over HTTP\n\n");
+                return;
+            }
+            if (!fileSharer.claimDownload(share)) {
+                share = null;
+                reply("Error: Invalid or expired code\n\n");
+                return;
+            }
+            claimed = true;
+            try {
+                file = blobStore.openChannel(share.getBlobId());
+            } catch (IOException e) {
+                fileSharer.releaseDownload(share);
+                claimed = false;
+                share = null;
+                reply("Error: Shared file is missing\n\n");
+                return;
+            }
+            length = file.size();
+            reply("Filename: " + encodeFilename(share.getFilename()) + "\n" +
+                  "Length: " + length + "\n" +
+                  "\n");
+        }
+
+        private void reply(String text) {
+            header = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void onWritable() throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                lastActivity = System.currentTimeMillis();
+                if (header.hasRemaining()) {
+                    return;
+                }
+            }
+            if (file == null) {
+                // Error replies end the connection
+                close();
+                return;
+            }
+            if (bandwidth.isLimited()) {
+                // Limits set at runtime end unshaped transfers too
+                throw new IOException("Bandwidth limits were set");
+            }
+            while (position < length) {
+                long sent = transferEngine.sendAvailable(file, position, Math.min(MAX_SEND_BYTES, length - position), channel);
+                if (sent == 0) {
+                    // Socket buffer full; wait for the next OP_WRITE
+                    return;
+                }
+                position += sent;
+                lastActivity = System.currentTimeMillis();
+                if (sent >= MAX_SEND_BYTES) {
+                    // Give other connections a turn
+                    return;
+                }
+            }
+            transferEngine.recordTransfer(TransferEngine.Path.TRANSFER_TO, length);
+            fileSharer.recordDownload(share);
+            claimed = false;
+            completed.increment();
+            AsyncLogger.shared().info("Sent code %d (%d bytes) to %s", share.getCode(), length,
+                                      channel.socket().getRemoteSocketAddress());
+            close();
+        }
+
+        void close() {
+            connections.remove(this);
+            if (claimed) {
+                fileSharer.releaseDownload(share);
+                claimed = false;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignore) {
+                }
+                file = null;
+            }
+        }
+    }
+}
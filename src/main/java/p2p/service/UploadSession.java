@@ -0,0 +1,266 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import p2p.utils.BufferPool;
+
+/**
+ * One resumable upload: a preallocated data file that numbered chunks are written into
+ * with positional writes, in any order, plus a one-byte-per-chunk completion map.
+ *
+ * <p>A chunk is marked complete only after its bytes were forced to disk, so after a
+ * restart every chunk the map claims is really there.
+ */
+public class UploadSession {
+    static final String META_FILE = "session.properties";
+    static final String DATA_FILE = "data";
+    static final String CHUNKS_FILE = "chunks";
+
+    private final String id;
+    private final Path dir;
+    private final String filename;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final long createdAt;
+    private final long ttlMillis;
+    private final int maxDownloads;
+    private final byte[] completed;
+    private final FileChannel data;
+    private final FileChannel chunks;
+    private int completedCount;
+    private volatile long lastActivity;
+    private boolean closed;
+
+    private UploadSession(String id, Path dir, String filename, long size, int chunkSize, long createdAt,
+                          long ttlMillis, int maxDownloads, byte[] completed, FileChannel data, FileChannel chunks) {
+        this.id = id;
+        this.dir = dir;
+        this.filename = filename;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = completed.length;
+        this.createdAt = createdAt;
+        this.ttlMillis = ttlMillis;
+        this.maxDownloads = maxDownloads;
+        this.completed = completed;
+        this.data = data;
+        this.chunks = chunks;
+        this.lastActivity = System.currentTimeMillis();
+        for (byte b : completed) {
+            if (b != 0) completedCount++;
+        }
+    }
+
+    static UploadSession create(String id, Path dir, String filename, long size, int chunkSize,
+                                long ttlMillis, int maxDownloads) throws IOException {
+        Files.createDirectories(dir);
+        int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        long createdAt = System.currentTimeMillis();
+
+        try (RandomAccessFile raf = new RandomAccessFile(dir.resolve(DATA_FILE).toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        Files.write(dir.resolve(CHUNKS_FILE), new byte[chunkCount]);
+
+        Properties meta = new Properties();
+        meta.setProperty("filename", filename);
+        meta.setProperty("size", Long.toString(size));
+        meta.setProperty("chunkSize", Integer.toString(chunkSize));
+        meta.setProperty("createdAt", Long.toString(createdAt));
+        meta.setProperty("ttlMillis", Long.toString(ttlMillis));
+        meta.setProperty("maxDownloads", Integer.toString(maxDownloads));
+        // Written last: a directory without metadata is an incomplete create and is discarded
+        Path tmp = dir.resolve(META_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            meta.store(out, "PeerPass upload session");
+        }
+        Files.move(tmp, dir.resolve(META_FILE), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+
+        return open(id, dir, filename, size, chunkSize, createdAt, ttlMillis, maxDownloads, new byte[chunkCount]);
+    }
+
+    /**
+     * Reopens a session persisted by a previous run, or returns null if the directory
+     * does not hold a complete session.
+     */
+    static UploadSession load(Path dir) throws IOException {
+        Path metaFile = dir.resolve(META_FILE);
+        if (!Files.exists(metaFile) || !Files.exists(dir.resolve(DATA_FILE))) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(metaFile)) {
+            meta.load(in);
+        }
+        long size = Long.parseLong(meta.getProperty("size"));
+        int chunkSize = Integer.parseInt(meta.getProperty("chunkSize"));
+        long createdAt = Long.parseLong(meta.getProperty("createdAt"));
+        long ttlMillis = Long.parseLong(meta.getProperty("ttlMillis", "-1"));
+        int maxDownloads = Integer.parseInt(meta.getProperty("maxDownloads", "-1"));
+        int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        byte[] completed = Files.readAllBytes(dir.resolve(CHUNKS_FILE));
+        if (completed.length != chunkCount) {
+            return null;
+        }
+        return open(dir.getFileName().toString(), dir, meta.getProperty("filename"), size, chunkSize, createdAt,
+                    ttlMillis, maxDownloads, completed);
+    }
+
+    private static UploadSession open(String id, Path dir, String filename, long size, int chunkSize,
+                                      long createdAt, long ttlMillis, int maxDownloads, byte[] completed) throws IOException {
+        FileChannel data = FileChannel.open(dir.resolve(DATA_FILE), StandardOpenOption.WRITE, StandardOpenOption.READ);
+        FileChannel chunks = FileChannel.open(dir.resolve(CHUNKS_FILE), StandardOpenOption.WRITE);
+        return new UploadSession(id, dir, filename, size, chunkSize, createdAt, ttlMillis, maxDownloads,
+                                 completed, data, chunks);
+    }
+
+    public long getChunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    public long getChunkLength(int index) {
+        return Math.min(chunkSize, size - getChunkOffset(index));
+    }
+
+    /**
+     * Reads exactly one chunk from {@code in} and writes it at its offset. Chunks may arrive
+     * in any order and concurrently; a chunk that is sent twice is simply overwritten.
+     */
+    public void writeChunk(int index, InputStream in) throws IOException {
+        if (index < 0 || index >= chunkCount) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        lastActivity = System.currentTimeMillis();
+        long offset = getChunkOffset(index);
+        long remaining = getChunkLength(index);
+
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try {
+            while (remaining > 0) {
+                int want = (int) Math.min(buffer.capacity(), remaining);
+                int read = in.read(buffer.array(), 0, want);
+                if (read == -1) {
+                    throw new IllegalArgumentException("Chunk " + index + " is " + remaining + " bytes short");
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    offset += data.write(buffer, offset);
+                }
+                remaining -= read;
+            }
+            if (in.read() != -1) {
+                throw new IllegalArgumentException("Chunk " + index + " is longer than " + getChunkLength(index) + " bytes");
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+
+        data.force(false);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Upload session " + id + " is closed");
+            }
+            if (completed[index] == 0) {
+                completed[index] = 1;
+                completedCount++;
+                chunks.write(ByteBuffer.wrap(new byte[] {1}), index);
+            }
+        }
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public synchronized boolean isComplete() {
+        return completedCount == chunkCount;
+    }
+
+    public synchronized List<Integer> getCompletedChunks() {
+        List<Integer> done = new ArrayList<>(completedCount);
+        for (int i = 0; i < chunkCount; i++) {
+            if (completed[i] != 0) done.add(i);
+        }
+        return done;
+    }
+
+    public synchronized List<Integer> getMissingChunks() {
+        List<Integer> missing = new ArrayList<>(chunkCount - completedCount);
+        for (int i = 0; i < chunkCount; i++) {
+            if (completed[i] == 0) missing.add(i);
+        }
+        return missing;
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            data.close();
+            chunks.close();
+        } catch (IOException e) {
+            System.err.println("Error closing upload session " + id + ": " + e.getMessage());
+        }
+    }
+
+    Path getDataFile() {
+        return dir.resolve(DATA_FILE);
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Lifetime of the resulting share; negative means the server default.
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Download limit of the resulting share; negative means the server default.
+     */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+}
@@ -0,0 +1,220 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps track of resumable uploads. Sessions live in their own directories under
+ * {@code sessions/} and are reloaded on startup, so an upload interrupted by a server
+ * restart continues where it stopped.
+ *
+ * <p>A session preallocates its declared size, so sizes are bounded before anything is
+ * written: by a per-session maximum, by the disk budget together with the other open
+ * sessions, and by a cap on the number of open sessions.
+ */
+public class UploadSessionManager {
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final Path sessionDir;
+    private final BlobStore blobStore;
+    private final FileSharer fileSharer;
+    private final long maxSessionBytes;
+    private final int maxSessions;
+    private final long diskBudgetBytes;
+    private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    // Sessions and preallocated bytes, including creates still in progress; guarded by this
+    private int reservedSessions;
+    private long reservedBytes;
+
+    public UploadSessionManager(String rootDir, BlobStore blobStore, FileSharer fileSharer) throws IOException {
+        this(rootDir, blobStore, fileSharer, 0, 0, 0);
+    }
+
+    /**
+     * @param maxSessionBytes largest size a session may declare, or 0 for no limit
+     * @param maxSessions     open sessions allowed at once, or 0 for no limit
+     * @param diskBudgetBytes bytes all open sessions may preallocate together, or 0 for no limit
+     */
+    public UploadSessionManager(String rootDir, BlobStore blobStore, FileSharer fileSharer,
+                                long maxSessionBytes, int maxSessions, long diskBudgetBytes) throws IOException {
+        this.sessionDir = Paths.get(rootDir, "sessions");
+        this.blobStore = blobStore;
+        this.fileSharer = fileSharer;
+        this.maxSessionBytes = maxSessionBytes;
+        this.maxSessions = maxSessions;
+        this.diskBudgetBytes = diskBudgetBytes;
+        Files.createDirectories(sessionDir);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(sessionDir)) {
+            for (Path dir : dirs) {
+                UploadSession session = null;
+                try {
+                    session = UploadSession.load(dir);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Discarding unreadable upload session " + dir.getFileName() + ": " + e.getMessage());
+                }
+                if (session == null) {
+                    deleteRecursively(dir);
+                } else {
+                    // Counted even beyond the limits, which only apply to new sessions
+                    sessions.put(session.getId(), session);
+                    reservedSessions++;
+                    reservedBytes += session.getSize();
+                }
+            }
+        }
+        if (!sessions.isEmpty()) {
+            System.out.println("Recovered " + sessions.size() + " resumable upload sessions");
+        }
+    }
+
+    /**
+     * Opens a new session. {@code ttlMillis} and {@code maxDownloads} are applied to the share
+     * created on completion, as in {@link FileSharer#offerFile(String, String, long, int)}.
+     */
+    public UploadSession create(String filename, long size, int chunkSize, long ttlMillis, int maxDownloads)
+            throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        int effectiveChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+        if ((size + effectiveChunkSize - 1) / effectiveChunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks; use a larger chunk size");
+        }
+        if (maxSessionBytes > 0 && size > maxSessionBytes) {
+            throw new LimitExceededException("Size " + size + " exceeds the limit of " + maxSessionBytes + " bytes", false);
+        }
+        if (diskBudgetBytes > 0 && size > diskBudgetBytes) {
+            throw new LimitExceededException("Size " + size + " exceeds the disk budget of " + diskBudgetBytes + " bytes", false);
+        }
+        reserve(size);
+        String id = UUID.randomUUID().toString().replace("-", "");
+        UploadSession session;
+        try {
+            session = UploadSession.create(id, sessionDir.resolve(id), filename, size, effectiveChunkSize,
+                                           ttlMillis, maxDownloads);
+        } catch (IOException | RuntimeException e) {
+            unreserve(size);
+            deleteRecursively(sessionDir.resolve(id));
+            throw e;
+        }
+        sessions.put(id, session);
+        return session;
+    }
+
+    private synchronized void reserve(long size) {
+        if (maxSessions > 0 && reservedSessions >= maxSessions) {
+            throw new LimitExceededException("Too many open upload sessions", true);
+        }
+        if (diskBudgetBytes > 0 && reservedBytes + size > diskBudgetBytes) {
+            throw new LimitExceededException("Open upload sessions already take the disk budget", true);
+        }
+        reservedSessions++;
+        reservedBytes += size;
+    }
+
+    private synchronized void unreserve(long size) {
+        reservedSessions--;
+        reservedBytes -= size;
+    }
+
+    public UploadSession get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Turns a fully uploaded session into a share and returns its code. The data file is
+     * moved into the blob store rather than copied.
+     */
+    public int complete(String id) throws IOException {
+        UploadSession session = sessions.get(id);
+        if (session == null) {
+            throw new IllegalArgumentException("Unknown upload session: " + id);
+        }
+        if (!session.isComplete()) {
+            throw new IllegalStateException("Upload session " + id + " is missing " + session.getMissingChunks().size() + " chunks");
+        }
+        // Only one caller may finish a session
+        if (!sessions.remove(id, session)) {
+            throw new IllegalArgumentException("Unknown upload session: " + id);
+        }
+        session.close();
+        unreserve(session.getSize());
+        String blobId = blobStore.importFile(session.getDataFile());
+        deleteRecursively(session.getDir());
+        return fileSharer.offerFile(blobId, session.getFilename(), session.getTtlMillis(), session.getMaxDownloads());
+    }
+
+    public boolean abort(String id) {
+        UploadSession session = sessions.remove(id);
+        if (session == null) {
+            return false;
+        }
+        session.close();
+        unreserve(session.getSize());
+        deleteRecursively(session.getDir());
+        return true;
+    }
+
+    /**
+     * Drops sessions with no chunk activity since {@code idleSince} and returns how many.
+     */
+    public int removeIdle(long idleSince) {
+        int removed = 0;
+        for (UploadSession session : sessions.values()) {
+            if (session.getLastActivity() < idleSince && abort(session.getId())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int getActiveCount() {
+        return sessions.size();
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Error deleting " + path + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error deleting " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Thrown when a new session would exceed a limit. Retryable refusals clear up as other
+     * sessions complete or are abandoned; the others will never succeed.
+     */
+    public static class LimitExceededException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean retryable;
+
+        public LimitExceededException(String message, boolean retryable) {
+            super(message);
+            this.retryable = retryable;
+        }
+
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+
+import p2p.utils.MerkleTree;
+
+/**
+ * The ZIP archive a multi-file share is downloaded as, laid out without reading any content.
+ *
+ * <p>Members are stored uncompressed with sizes and CRC-32 in the local headers, so every
+ * header, the central directory and therefore the archive length are known up front. The
+ * archive is never written anywhere: {@link #send} produces any byte range on the fly from
+ * the precomputed headers and the member blobs, which is what lets archive downloads have a
+ * Content-Length and be resumed or fetched in parallel like single files. Zip64 records are
+ * added only where a size, offset or entry count needs them.
+ */
+public class ZipArchive {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+
+    private static final long MAX_32 = 0xffffffffL;
+    private static final int MAX_16 = 0xffff;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_ZIP64 = 45;
+    // Unix host, so that the external attributes carry file permissions
+    private static final int VERSION_MADE_BY = 3 << 8 | VERSION_ZIP64;
+    // Names are UTF-8
+    private static final int FLAGS = 1 << 11;
+    private static final int UNIX_FILE_ATTRIBUTES = 0100644 << 16;
+
+    private final List<Share.Member> members;
+    // Offset of each member's local header, ascending
+    private final long[] offsets;
+    private final byte[][] localHeaders;
+    // Central directory and end records
+    private final byte[] trailer;
+    private final long trailerOffset;
+    private volatile String contentId;
+
+    /**
+     * @param members        the files in archive order; not copied
+     * @param modifiedMillis modification time recorded for every member
+     */
+    public ZipArchive(List<Share.Member> members, long modifiedMillis) {
+        this.members = members;
+        this.offsets = new long[members.size()];
+        this.localHeaders = new byte[members.size()][];
+        int dosTime = dosTime(modifiedMillis);
+
+        byte[][] names = new byte[members.size()][];
+        long offset = 0;
+        int centralSize = 0;
+        for (int i = 0; i < members.size(); i++) {
+            Share.Member member = members.get(i);
+            names[i] = member.getName().getBytes(StandardCharsets.UTF_8);
+            offsets[i] = offset;
+            localHeaders[i] = localHeader(member, names[i], dosTime);
+            offset += localHeaders[i].length + member.getSize();
+            centralSize += 46 + names[i].length + centralExtraLength(member, offsets[i]);
+        }
+        this.trailerOffset = offset;
+
+        boolean zip64End = members.size() >= MAX_16 || offset >= MAX_32 || centralSize >= MAX_32;
+        ByteBuffer out = little(centralSize + (zip64End ? 56 + 20 : 0) + 22);
+        for (int i = 0; i < members.size(); i++) {
+            centralHeader(out, members.get(i), names[i], offsets[i], dosTime);
+        }
+        if (zip64End) {
+            long zip64EndOffset = offset + centralSize;
+            out.putInt(ZIP64_END).putLong(56 - 12)
+               .putShort((short) VERSION_MADE_BY).putShort((short) VERSION_ZIP64)
+               .putInt(0).putInt(0)
+               .putLong(members.size()).putLong(members.size())
+               .putLong(centralSize).putLong(offset);
+            out.putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64EndOffset).putInt(1);
+        }
+        short entries = (short) Math.min(members.size(), MAX_16);
+        out.putInt(END).putShort((short) 0).putShort((short) 0)
+           .putShort(entries).putShort(entries)
+           .putInt((int) Math.min(centralSize, MAX_32)).putInt((int) Math.min(offset, MAX_32))
+           .putShort((short) 0);
+        this.trailer = out.array();
+    }
+
+    public List<Share.Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * Hex SHA-256 over the layout and the member blob ids, which changes whenever any byte
+     * of the archive would; a strong validator without hashing the content.
+     */
+    public String getContentId() {
+        String id = contentId;
+        if (id == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+            for (Share.Member member : members) {
+                digest.update(member.getBlobId().getBytes(StandardCharsets.US_ASCII));
+            }
+            digest.update(trailer);
+            id = MerkleTree.toHex(digest.digest());
+            contentId = id;
+        }
+        return id;
+    }
+
+    public long length() {
+        return trailerOffset + trailer.length;
+    }
+
+    /**
+     * Offset of a member's content in the archive.
+     */
+    long dataOffset(int member) {
+        return offsets[member] + localHeaders[member].length;
+    }
+
+    /**
+     * Sends {@code count} bytes of the archive starting at {@code position}, reading member
+     * content from the blob store. Returns the send path of the last member content sent.
+     */
+    public TransferEngine.Path send(long position, long count, OutputStream target, BlobStore blobStore,
+                                    TransferEngine engine) throws IOException {
+        if (position < 0 || count < 0 || position + count > length()) {
+            throw new IllegalArgumentException("Range outside the archive");
+        }
+        TransferEngine.Path path = TransferEngine.Path.BUFFERED;
+        long end = position + count;
+        int i = Arrays.binarySearch(offsets, position);
+        if (i < 0) {
+            i = Math.max(0, -i - 2);
+        }
+        while (position < end) {
+            if (i == members.size()) {
+                target.write(trailer, (int) (position - trailerOffset), (int) (end - position));
+                break;
+            }
+            Share.Member member = members.get(i);
+            long dataStart = offsets[i] + localHeaders[i].length;
+            long dataEnd = dataStart + member.getSize();
+            if (position < dataStart) {
+                int n = (int) (Math.min(dataStart, end) - position);
+                target.write(localHeaders[i], (int) (position - offsets[i]), n);
+                position += n;
+            }
+            if (position < end && position < dataEnd) {
+                long n = Math.min(dataEnd, end) - position;
+                try (FileChannel channel = blobStore.openChannel(member.getBlobId())) {
+                    path = engine.send(channel, position - dataStart, n, target);
+                }
+                position += n;
+            }
+            if (position >= dataEnd) {
+                i++;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Turns a client-side path into a member name: {@code /} separators, and no empty,
+     * {@code .} or {@code ..} segments, so that extracting cannot escape the target
+     * directory. Directory structure is kept, e.g. for folder uploads.
+     */
+    public static String memberName(String clientPath) {
+        StringBuilder name = new StringBuilder();
+        for (String segment : clientPath.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                continue;
+            }
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(segment);
+        }
+        return name.length() == 0 ? "unnamed-file" : name.toString();
+    }
+
+    private static byte[] localHeader(Share.Member member, byte[] name, int dosTime) {
+        boolean zip64 = member.getSize() >= MAX_32;
+        ByteBuffer out = little(30 + name.length + (zip64 ? 20 : 0));
+        int size = (int) Math.min(member.getSize(), MAX_32);
+        out.putInt(LOCAL_HEADER)
+           .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_STORED))
+           .putShort((short) FLAGS)
+           .putShort((short) 0)
+           .putInt(dosTime)
+           .putInt(member.getCrc32())
+           .putInt(size).putInt(size)
+           .putShort((short) name.length)
+           .putShort((short) (zip64 ? 20 : 0))
+           .put(name);
+        if (zip64) {
+            out.putShort((short) 1).putShort((short) 16).putLong(member.getSize()).putLong(member.getSize());
+        }
+        return out.array();
+    }
+
+    private static int centralExtraLength(Share.Member member, long offset) {
+        int fields = (member.getSize() >= MAX_32 ? 2 : 0) + (offset >= MAX_32 ? 1 : 0);
+        return fields == 0 ? 0 : 4 + 8 * fields;
+    }
+
+    private static void centralHeader(ByteBuffer out, Share.Member member, byte[] name, long offset, int dosTime) {
+        boolean zip64Size = member.getSize() >= MAX_32;
+        boolean zip64Offset = offset >= MAX_32;
+        int extra = centralExtraLength(member, offset);
+        int size = (int) Math.min(member.getSize(), MAX_32);
+        out.putInt(CENTRAL_HEADER)
+           .putShort((short) VERSION_MADE_BY)
+           .putShort((short) (extra > 0 ? VERSION_ZIP64 : VERSION_STORED))
+           .putShort((short) FLAGS)
+           .putShort((short) 0)
+           .putInt(dosTime)
+           .putInt(member.getCrc32())
+           .putInt(size).putInt(size)
+           .putShort((short) name.length)
+           .putShort((short) extra)
+           .putShort((short) 0)
+           .putShort((short) 0)
+           .putShort((short) 0)
+           .putInt(UNIX_FILE_ATTRIBUTES)
+           .putInt((int) Math.min(offset, MAX_32))
+           .put(name);
+        if (extra > 0) {
+            // Only the fields saturated above, in this order
+            out.putShort((short) 1).putShort((short) (extra - 4));
+            if (zip64Size) {
+                out.putLong(member.getSize()).putLong(member.getSize());
+            }
+            if (zip64Offset) {
+                out.putLong(offset);
+            }
+        }
+    }
+
+    /**
+     * MS-DOS date and time in the local time zone, as ZIP tools expect; time in the low half.
+     */
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+               | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static ByteBuffer little(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
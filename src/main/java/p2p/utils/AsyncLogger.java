@@ -0,0 +1,141 @@
+package p2p.utils;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Console logger for per-request messages. Callers only enqueue the format string and its
+ * arguments; a background thread formats and prints them, so a slow terminal or a full
+ * pipe never stalls a transfer.
+ *
+ * <p>Lines beyond the queue capacity are dropped, and at most {@value #MAX_LINES_PER_SECOND}
+ * lines are printed per second, with a summary of how many were suppressed.
+ * Lifecycle messages that must not be lost keep using {@code System.out} directly.
+ */
+public class AsyncLogger {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int MAX_LINES_PER_SECOND = 200;
+
+    private static final AsyncLogger SHARED = new AsyncLogger();
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Object flushLock = new Object();
+    private long windowStart;
+    private int windowLines;
+    private long suppressed;
+
+    private AsyncLogger() {
+        Thread thread = new Thread(this::run, "async-logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static AsyncLogger shared() {
+        return SHARED;
+    }
+
+    /**
+     * Logs to standard output. The arguments are formatted later, so they should not be
+     * mutated after the call.
+     */
+    public void info(String format, Object... args) {
+        enqueue(new Entry(false, format, args));
+    }
+
+    /**
+     * Logs to standard error.
+     */
+    public void error(String format, Object... args) {
+        enqueue(new Entry(true, format, args));
+    }
+
+    private void enqueue(Entry entry) {
+        if (!queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Lines lost to a full queue or the rate limit.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits up to a second for queued lines to be printed, e.g. before shutdown.
+     */
+    public void flush() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        synchronized (flushLock) {
+            while (!queue.isEmpty() && System.nanoTime() < deadline) {
+                try {
+                    flushLock.wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                if (suppressed > 0) {
+                    System.err.println("Log rate limit: suppressed " + suppressed + " lines");
+                    suppressed = 0;
+                }
+                windowStart = now;
+                windowLines = 0;
+            }
+            if (entry == null) {
+                continue;
+            }
+            if (windowLines >= MAX_LINES_PER_SECOND) {
+                suppressed++;
+                dropped.increment();
+            } else {
+                windowLines++;
+                print(entry);
+            }
+            if (queue.isEmpty()) {
+                synchronized (flushLock) {
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void print(Entry entry) {
+        PrintStream out = entry.error ? System.err : System.out;
+        try {
+            out.println(entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args));
+        } catch (RuntimeException e) {
+            System.err.println("Bad log format \"" + entry.format + "\": " + e.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private final boolean error;
+        private final String format;
+        private final Object[] args;
+
+        Entry(boolean error, String format, Object[] args) {
+            this.error = error;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
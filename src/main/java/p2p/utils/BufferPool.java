@@ -0,0 +1,51 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Small bounded pool of fixed-size byte buffers, so that transfers do not
+ * allocate a fresh multi-megabyte array for every request.
+ */
+public class BufferPool {
+    private static final BufferPool SHARED = new BufferPool(256 * 1024, 64);
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Pool shared by the HTTP handlers and the transfer engine.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared heap buffer; callers must hand it back with {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        // Dropped on the floor when the pool is already full
+        free.offer(buffer);
+    }
+}
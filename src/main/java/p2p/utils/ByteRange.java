@@ -0,0 +1,116 @@
+package p2p.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Inclusive byte range of a representation, as used by the HTTP {@code Range} header.
+ */
+public class ByteRange {
+    // Guards against requests that ask for thousands of tiny ranges
+    private static final int MAX_RANGES = 32;
+
+    private final long first;
+    private final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    public String toContentRange(long totalLength) {
+        return "bytes " + first + "-" + last + "/" + totalLength;
+    }
+
+    /**
+     * Parses a {@code Range} header against a representation of {@code totalLength} bytes.
+     * Returns null when the header is absent, malformed or not worth honouring (the caller
+     * should then send the full body), and an empty list when no range is satisfiable (416).
+     * Overlapping and adjacent ranges are merged.
+     */
+    public static List<ByteRange> parse(String header, long totalLength) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            try {
+                if (start.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    if (end.isEmpty()) {
+                        return null;
+                    }
+                    long suffix = Long.parseLong(end);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && totalLength > 0) {
+                        ranges.add(new ByteRange(Math.max(0, totalLength - suffix), totalLength - 1));
+                    }
+                } else {
+                    long first = Long.parseLong(start);
+                    long last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    if (first < totalLength) {
+                        ranges.add(new ByteRange(first, Math.min(last, totalLength - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.first, b.first));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            ByteRange next = sorted.get(i);
+            if (next.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, next.last));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -0,0 +1,249 @@
+package p2p.utils;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out unique share codes from a fixed range without locks.
+ *
+ * <p>Every code owns one bit in a bitmap of 64-bit words that are claimed and cleared with
+ * CAS. A second, much smaller bitmap marks words that are full so that a search skips them,
+ * and a free counter is reserved before searching, so an allocation either fails at once
+ * when the space is exhausted or is guaranteed to find a free bit. Both the starting word
+ * and the bit within it are random, so consecutive codes are not sequential; with
+ * {@code secure} the randomness comes from a per-thread {@link SecureRandom}.
+ */
+public class CodeAllocator {
+
+    private final int min;
+    private final int capacity;
+    private final AtomicLongArray words;
+    private final AtomicLongArray fullWords;
+    private final AtomicInteger free;
+    private final ThreadLocal<Random> secureRandom;
+
+    /**
+     * Allocates codes of exactly {@code digits} decimal digits, e.g. 100000-999999 for 6.
+     */
+    public static CodeAllocator forDigits(int digits, boolean secure) {
+        // 8 digits already take an 11 MB bitmap
+        if (digits < 2 || digits > 8) {
+            throw new IllegalArgumentException("Share codes must have 2 to 8 digits, not " + digits);
+        }
+        int min = 1;
+        for (int i = 1; i < digits; i++) {
+            min *= 10;
+        }
+        return new CodeAllocator(min, min * 10 - 1, secure);
+    }
+
+    /**
+     * @param min    smallest code, inclusive
+     * @param max    largest code, inclusive
+     * @param secure draw codes from a cryptographically strong source instead of
+     *               {@link ThreadLocalRandom}
+     */
+    public CodeAllocator(int min, int max, boolean secure) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid code range " + min + "-" + max);
+        }
+        this.min = min;
+        this.capacity = max - min + 1;
+        int wordCount = (capacity + 63) >>> 6;
+        this.words = new AtomicLongArray(wordCount);
+        this.fullWords = new AtomicLongArray((wordCount + 63) >>> 6);
+        this.free = new AtomicInteger(capacity);
+        this.secureRandom = secure ? ThreadLocal.withInitial(SecureRandom::new) : null;
+
+        // Bits past the end of the range are permanently taken, so a full word is always -1
+        int tail = capacity & 63;
+        if (tail != 0) {
+            words.set(wordCount - 1, -1L << tail);
+        }
+    }
+
+    /**
+     * Claims a random free code.
+     *
+     * @throws CodeSpaceExhaustedException if every code is in use
+     */
+    public int allocate() {
+        if (free.getAndDecrement() <= 0) {
+            free.getAndIncrement();
+            throw new CodeSpaceExhaustedException("All " + capacity + " share codes are in use");
+        }
+        Random random = random();
+        int wordCount = words.length();
+        int start = random.nextInt(wordCount);
+        // The reservation above guarantees a free bit exists, though a racing allocation may
+        // take the one we saw, so keep scanning until we win one
+        while (true) {
+            int index = nextCandidate(start);
+            long word = words.get(index);
+            while (word != -1L) {
+                // Start at a random bit and take the first free one from there
+                int offset = random.nextInt(64);
+                long rotated = ~Long.rotateRight(word, offset);
+                int bit = (Long.numberOfTrailingZeros(rotated) + offset) & 63;
+                long claimed = word | (1L << bit);
+                if (words.compareAndSet(index, word, claimed)) {
+                    if (claimed == -1L) {
+                        markFull(index);
+                    }
+                    return min + (index << 6) + bit;
+                }
+                word = words.get(index);
+            }
+            start = index + 1 == wordCount ? 0 : index + 1;
+        }
+    }
+
+    /**
+     * Claims a specific code, e.g. one recovered from a previous run. Returns false if the
+     * code is outside the range or already taken.
+     */
+    public boolean reserve(int code) {
+        int slot = code - min;
+        if (slot < 0 || slot >= capacity) {
+            return false;
+        }
+        // Take the count first, as allocate() does, so a search never waits for a bit we took
+        if (free.getAndDecrement() <= 0) {
+            free.getAndIncrement();
+            return false;
+        }
+        int index = slot >>> 6;
+        long mask = 1L << (slot & 63);
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                free.getAndIncrement();
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                if ((word | mask) == -1L) {
+                    markFull(index);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a code to the pool. Codes outside the range or not currently allocated are
+     * ignored, so releasing twice is harmless.
+     */
+    public void release(int code) {
+        int slot = code - min;
+        if (slot < 0 || slot >= capacity) {
+            return;
+        }
+        int index = slot >>> 6;
+        long mask = 1L << (slot & 63);
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) == 0) {
+                return;
+            }
+            if (words.compareAndSet(index, word, word & ~mask)) {
+                if (word == -1L) {
+                    clearFull(index);
+                }
+                free.getAndIncrement();
+                return;
+            }
+        }
+    }
+
+    public boolean isAllocated(int code) {
+        int slot = code - min;
+        return slot >= 0 && slot < capacity && (words.get(slot >>> 6) & (1L << (slot & 63))) != 0;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return min + capacity - 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFreeCount() {
+        return Math.max(0, free.get());
+    }
+
+    /**
+     * First word at or after {@code start}, wrapping around, that is not marked full.
+     */
+    private int nextCandidate(int start) {
+        int groups = fullWords.length();
+        int wordCount = words.length();
+        // Words that do not exist in the last group must never look like candidates
+        long lastGroupMask = (wordCount & 63) == 0 ? -1L : ~(-1L << (wordCount & 63));
+        int group = start >>> 6;
+        // Words before start in the first group are covered when the scan wraps around
+        long mask = -1L << (start & 63);
+        for (int scanned = 0; scanned <= groups; scanned++) {
+            long notFull = ~fullWords.get(group) & mask;
+            if (group == groups - 1) {
+                notFull &= lastGroupMask;
+            }
+            if (notFull != 0) {
+                return (group << 6) + Long.numberOfTrailingZeros(notFull);
+            }
+            group = group + 1 == groups ? 0 : group + 1;
+            mask = -1L;
+        }
+        // Every word looked full; a release is racing with us, so just retry from the start
+        return start;
+    }
+
+    private void markFull(int index) {
+        int group = index >>> 6;
+        long mask = 1L << (index & 63);
+        setBits(group, mask);
+        // A release may have cleared a bit before we set the flag; do not hide that slot
+        if (words.get(index) != -1L) {
+            clearFull(index);
+        }
+    }
+
+    private void clearFull(int index) {
+        int group = index >>> 6;
+        long mask = 1L << (index & 63);
+        long flags;
+        do {
+            flags = fullWords.get(group);
+        } while ((flags & mask) != 0 && !fullWords.compareAndSet(group, flags, flags & ~mask));
+    }
+
+    private void setBits(int group, long mask) {
+        long flags;
+        do {
+            flags = fullWords.get(group);
+        } while ((flags & mask) == 0 && !fullWords.compareAndSet(group, flags, flags | mask));
+    }
+
+    private Random random() {
+        return secureRandom != null ? secureRandom.get() : ThreadLocalRandom.current();
+    }
+
+    /**
+     * Thrown when no share code is free. Callers should answer 503 rather than retry
+     * immediately, since codes only come back as shares expire or are removed.
+     */
+    public static class CodeSpaceExhaustedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public CodeSpaceExhaustedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package p2p.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 Merkle tree over the fixed-size chunks of a file, shared by the server that
+ * publishes chunk manifests and the clients that check downloads against them.
+ *
+ * <p>Leaves are {@code SHA-256(0x00 || chunk)} and inner nodes
+ * {@code SHA-256(0x01 || left || right)}; the prefixes keep a leaf from being passed off
+ * as an inner node. A node without a sibling moves up a level unchanged. An empty file
+ * has a single empty chunk.
+ */
+public final class MerkleTree {
+    public static final int HASH_BYTES = 32;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private MerkleTree() {
+    }
+
+    /**
+     * A digest primed for one leaf: feed it the chunk and call {@link MessageDigest#digest()}.
+     */
+    public static MessageDigest newLeafDigest() {
+        MessageDigest digest = sha256();
+        digest.update((byte) 0);
+        return digest;
+    }
+
+    public static byte[] leaf(byte[] data, int offset, int length) {
+        MessageDigest digest = newLeafDigest();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public static byte[] root(List<byte[]> leaves) {
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf");
+        }
+        MessageDigest digest = sha256();
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    next.add(level.get(i));
+                    break;
+                }
+                digest.update((byte) 1);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                next.add(digest.digest());
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Number of chunks a file of {@code size} bytes is split into.
+     */
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex digit in " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
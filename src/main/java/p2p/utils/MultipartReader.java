@@ -0,0 +1,404 @@
+package p2p.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming reader for {@code multipart/form-data} bodies.
+ *
+ * <p>The body is read into one pooled buffer and part bodies are handed to the caller as
+ * slices of it, so a part of any size costs no memory beyond that buffer and no copies
+ * beyond the one out of the socket. Delimiters are found with a Boyer-Moore-Horspool scan,
+ * which inspects about one byte in every delimiter length of ordinary content. The last
+ * few bytes of the buffer are held back until more input arrives, so a delimiter split
+ * across two reads is still found.
+ *
+ * <pre>
+ * try (MultipartReader reader = new MultipartReader(in, boundary)) {
+ *     MultipartReader.Part part;
+ *     while ((part = reader.next()) != null) {
+ *         part.transferTo(channel);
+ *     }
+ * }
+ * </pre>
+ */
+public class MultipartReader implements Closeable {
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BOUNDARY_LENGTH = 200;
+    // Smallest piece of body handed out while the buffer has room for more
+    private static final int MIN_CHUNK_BYTES = 64 * 1024;
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private final ByteBuffer pooled;
+    private final byte[] buf;
+    // The whole buffer, for handing slices to channels without allocating a wrapper each time
+    private final ByteBuffer view;
+    private final byte[] delimiter;
+    private final int[] skip;
+    private int start;
+    private int end;
+    private boolean started;
+    private boolean done;
+    private boolean closed;
+    private Part current;
+
+    public MultipartReader(InputStream in, String boundary) {
+        this(in, boundary, BufferPool.shared());
+    }
+
+    public MultipartReader(InputStream in, String boundary, BufferPool pool) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        if (pool.getBufferSize() < 2 * MIN_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Pool buffers are too small for multipart parsing");
+        }
+        this.in = in;
+        this.pool = pool;
+        this.pooled = pool.acquire();
+        this.buf = pooled.array();
+        this.view = ByteBuffer.wrap(buf);
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.skip = skipTable(delimiter);
+        // The first delimiter has no line break in front; pretend there was one
+        buf[0] = '\r';
+        buf[1] = '\n';
+        end = 2;
+    }
+
+    /**
+     * The boundary parameter of a {@code multipart/form-data} content type, or null.
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon < 0 || !contentType.substring(0, semicolon).trim().equalsIgnoreCase("multipart/form-data")) {
+            return null;
+        }
+        String boundary = parseParameters(contentType.substring(semicolon + 1)).get("boundary");
+        return boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH ? null : boundary;
+    }
+
+    /**
+     * Moves to the next part, skipping whatever is left of the current one. Returns null
+     * after the closing delimiter.
+     *
+     * @throws MalformedMultipartException if the body ends early or a header is invalid
+     */
+    public Part next() throws IOException {
+        if (current != null) {
+            current.skip();
+            current = null;
+        } else if (!started) {
+            // Preamble before the first delimiter
+            int n;
+            while ((n = nextChunk()) >= 0) {
+                start += n;
+            }
+        }
+        started = true;
+        if (done) {
+            return null;
+        }
+        while (end - start < 2) {
+            if (!fill()) {
+                throw new MalformedMultipartException("Multipart body ended after a delimiter");
+            }
+        }
+        if (buf[start] == '-' && buf[start + 1] == '-') {
+            // The epilogue after the closing delimiter is ignored
+            done = true;
+            return null;
+        }
+        // Rest of the delimiter line, which may only hold padding
+        if (!readLine().trim().isEmpty()) {
+            throw new MalformedMultipartException("Unexpected data after a multipart delimiter");
+        }
+        Map<String, String> headers = new HashMap<>();
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new MalformedMultipartException("Multipart headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new MalformedMultipartException("Invalid multipart header line");
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        current = new Part(headers);
+        return current;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            pool.release(pooled);
+        }
+    }
+
+    /**
+     * Makes the next piece of the current body available at {@code buf[start, start + n)}
+     * and returns n, which the caller consumes by advancing {@code start}. Returns -1 and
+     * consumes the delimiter when the body is complete.
+     */
+    private int nextChunk() throws IOException {
+        // Bytes after start already known not to begin a delimiter; survives compaction
+        int checked = 0;
+        while (true) {
+            int found = indexOf(buf, start + checked, end, delimiter, skip);
+            if (found == start) {
+                start += delimiter.length;
+                return -1;
+            }
+            if (found > start) {
+                return found - start;
+            }
+            // A delimiter may begin in the last bytes; keep them until more input arrives
+            checked = Math.max(0, end - start - (delimiter.length - 1));
+            // Without a delimiter more input must follow, so wait for it rather than hand
+            // out the small pieces a socket read returns
+            if (checked >= MIN_CHUNK_BYTES) {
+                return checked;
+            }
+            if (!fill()) {
+                throw new MalformedMultipartException("Multipart body ended before the closing delimiter");
+            }
+        }
+    }
+
+    private String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = start + scanned; i + 1 < end; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                    String line = new String(buf, start, i - start, StandardCharsets.UTF_8);
+                    start = i + 2;
+                    return line;
+                }
+            }
+            scanned = Math.max(0, end - start - 1);
+            if (scanned > MAX_HEADER_BYTES) {
+                throw new MalformedMultipartException("Multipart header line too long");
+            }
+            if (!fill()) {
+                throw new MalformedMultipartException("Multipart body ended inside the part headers");
+            }
+        }
+    }
+
+    /**
+     * Moves unread bytes to the front of the buffer and reads more behind them. Returns
+     * false at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0) {
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+    /**
+     * Horspool shift table: how far the window may move when its last byte is {@code b}.
+     */
+    public static int[] skipTable(byte[] pattern) {
+        int[] table = new int[256];
+        Arrays.fill(table, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++) {
+            table[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+        return table;
+    }
+
+    /**
+     * First occurrence of {@code pattern} in {@code data[from, to)}, or -1.
+     */
+    public static int indexOf(byte[] data, int from, int to, byte[] pattern, int[] skip) {
+        int last = pattern.length - 1;
+        int i = from;
+        while (i <= to - pattern.length) {
+            byte tail = data[i + last];
+            if (tail == pattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skip[tail & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Parameters of a header value such as {@code form-data; name="file"; filename="a.txt"},
+     * keyed by lower-case name. Only {@code \"} is unescaped inside quotes, because
+     * browsers send Windows paths with unescaped backslashes.
+     */
+    static Map<String, String> parseParameters(String text) {
+        Map<String, String> params = new HashMap<>();
+        int i = 0;
+        int n = text.length();
+        while (i < n) {
+            while (i < n && (text.charAt(i) == ';' || Character.isWhitespace(text.charAt(i)))) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < n && text.charAt(i) != '=' && text.charAt(i) != ';') {
+                i++;
+            }
+            String name = text.substring(nameStart, i).trim().toLowerCase(Locale.ROOT);
+            if (i >= n || text.charAt(i) == ';') {
+                continue;
+            }
+            i++;
+            while (i < n && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            String value;
+            if (i < n && text.charAt(i) == '"') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < n && text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\' && i + 1 < n && text.charAt(i + 1) == '"') {
+                        i++;
+                    }
+                    sb.append(text.charAt(i++));
+                }
+                i++;
+                value = sb.toString();
+            } else {
+                int valueStart = i;
+                while (i < n && text.charAt(i) != ';') {
+                    i++;
+                }
+                value = text.substring(valueStart, i).trim();
+            }
+            if (!name.isEmpty()) {
+                params.put(name, value);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * One part. Its body can be read once, and only until {@link MultipartReader#next()}
+     * is called again.
+     */
+    public class Part {
+        private final Map<String, String> headers;
+        private final Map<String, String> disposition;
+        private boolean finished;
+
+        private Part(Map<String, String> headers) {
+            this.headers = headers;
+            String value = headers.get("content-disposition");
+            this.disposition = value == null ? new HashMap<>() : parseParameters(value);
+        }
+
+        /**
+         * A header of this part by case-insensitive name, or null.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String getName() {
+            return disposition.get("name");
+        }
+
+        /**
+         * The client-side file name, possibly empty, or null for a plain form field.
+         */
+        public String getFilename() {
+            return disposition.get("filename");
+        }
+
+        public String getContentType() {
+            String type = getHeader("content-type");
+            return type == null ? "application/octet-stream" : type;
+        }
+
+        /**
+         * Writes the rest of the body to a channel straight from the read buffer and returns
+         * the number of bytes written.
+         */
+        public long transferTo(WritableByteChannel target) throws IOException {
+            long total = 0;
+            int n;
+            while (!finished && (n = chunk()) > 0) {
+                view.limit(start + n).position(start);
+                while (view.hasRemaining()) {
+                    target.write(view);
+                }
+                start += n;
+                total += n;
+            }
+            return total;
+        }
+
+        /**
+         * Writes the rest of the body to a stream and returns the number of bytes written.
+         */
+        public long writeTo(OutputStream target) throws IOException {
+            long total = 0;
+            int n;
+            while (!finished && (n = chunk()) > 0) {
+                target.write(buf, start, n);
+                start += n;
+                total += n;
+            }
+            return total;
+        }
+
+        private int chunk() throws IOException {
+            int n = nextChunk();
+            if (n < 0) {
+                finished = true;
+            }
+            return n;
+        }
+
+        private void skip() throws IOException {
+            int n;
+            while (!finished && (n = chunk()) > 0) {
+                start += n;
+            }
+        }
+    }
+
+    /**
+     * The body does not follow the multipart format, or ended early.
+     */
+    public static class MalformedMultipartException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedMultipartException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package p2p.utils;
+
+/**
+ * Reads configuration from system properties, falling back to environment variables.
+ * A key such as {@code peerpass.executor.mode} may also be given as
+ * {@code PEERPASS_EXECUTOR_MODE} in the environment.
+ */
+public class Settings {
+
+    private Settings() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase().replace('.', '_').replace('-', '_'));
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
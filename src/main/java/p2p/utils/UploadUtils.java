@@ -1,14 +1,17 @@
 package p2p.utils;
 
-import java.util.Random;
 public class UploadUtils {
 
-    public static int generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535; // highest valid port
+    /**
+     * Share codes are six digits (100000-999999) unless configured otherwise.
+     */
+    public static final int DEFAULT_CODE_DIGITS = 6;
 
-        Random random = new Random();
-        int range = (DYNAMIC_ENDING_PORT - DYNAMIC_STARTING_PORT) + 1;
-        return DYNAMIC_STARTING_PORT + random.nextInt(range);
+    /**
+     * The allocator used when no code space is configured: six-digit codes drawn from a
+     * secure random source, so that a code cannot be predicted from the previous one.
+     */
+    public static CodeAllocator newCodeAllocator() {
+        return CodeAllocator.forDigits(DEFAULT_CODE_DIGITS, true);
     }
 }
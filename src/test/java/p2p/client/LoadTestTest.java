@@ -0,0 +1,123 @@
+package p2p.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class LoadTestTest {
+
+    /**
+     * A short run against a server of its own uploads and downloads without errors and
+     * reports every operation.
+     */
+    @Test
+    public void runsAgainstOwnServer() throws Exception {
+        String report = new LoadTest(new LoadTest.Workload()
+                .setUploaders(1)
+                .setDownloaders(2)
+                .setSizes("4k:3,200k:1")
+                .setFanout(2)
+                .setRampSeconds(0.2)
+                .setDurationSeconds(1.5)
+                .setUploadRate(5)
+                .setDownloadRate(10)).run();
+
+        for (String operation : new String[] {"upload", "download"}) {
+            String section = section(report, operation);
+            assertTrue(number(section, "count") > 0, report);
+            assertEquals(0, number(section, "errors"), report);
+            assertTrue(number(section, "bytes") > 0, report);
+            for (String times : new String[] {"latencyMs", "serviceTimeMs", "ttfbMs"}) {
+                assertTrue(section.contains("\"" + times + "\": {\"p50\": "), report);
+                assertTrue(section.contains("\"p999\": "), report);
+            }
+        }
+    }
+
+    /**
+     * When the server stalls once, the operations that were due during the stall are charged
+     * for it, while their service time stays short.
+     */
+    @Test
+    public void chargesStallToWaitingOperations() throws Exception {
+        byte[] content = new byte[1024];
+        AtomicInteger downloads = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/upload", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            byte[] body = "{\"port\": 123456}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/download/", exchange -> {
+            if (downloads.incrementAndGet() == 5) {
+                sleep(1000);
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+        });
+        server.start();
+        try {
+            String report = new LoadTest(new LoadTest.Workload()
+                    .setTarget("http://localhost:" + server.getAddress().getPort())
+                    .setUploaders(0)
+                    .setDownloaders(1)
+                    .setSizes("1k")
+                    .setRampSeconds(0)
+                    .setDurationSeconds(3)
+                    .setDownloadRate(20)).run();
+
+            String section = section(report, "download");
+            assertEquals(0, number(section, "errors"), report);
+            double latency = mean(section, "latencyMs");
+            double service = mean(section, "serviceTimeMs");
+            assertTrue(latency > 3 * service, report);
+            assertTrue(latency > 100, report);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static String section(String report, String operation) {
+        int start = report.indexOf("\"" + operation + "\": {");
+        assertTrue(start >= 0, report);
+        return report.substring(start, report.indexOf("\n    }", start));
+    }
+
+    private static long number(String section, String field) {
+        Matcher matcher = Pattern.compile("\"" + field + "\": (\\d+)").matcher(section);
+        assertTrue(matcher.find(), section);
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static double mean(String section, String times) {
+        Matcher matcher = Pattern.compile("\"" + times + "\": \\{[^}]*\"mean\": ([0-9.]+)").matcher(section);
+        assertTrue(matcher.find(), section);
+        return Double.parseDouble(matcher.group(1));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package p2p.client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ParallelDownloaderTest {
+    private static final int SIZE = 1024 * 1024 + 11;
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+
+    @AfterEach
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * A server that honours ranges but sends no validator, and drops the first connections
+     * halfway through: every segment still lands at its offset and resumes where it broke.
+     */
+    @Test
+    public void resumesRangesWithoutValidator() throws Exception {
+        byte[] content = content();
+        AtomicInteger drops = new AtomicInteger(2);
+        start(exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Math.min(SIZE - 1, Integer.parseInt(bounds[1]));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + SIZE);
+            send(exchange, 206, content, first, last - first + 1, last > first && drops.getAndDecrement() > 0);
+        });
+
+        File output = dir.resolve("ranged.bin").toFile();
+        new ParallelDownloader(url(), 4).download(output);
+        assertArrayEquals(content, Files.readAllBytes(output.toPath()));
+        assertTrue(drops.get() < 0);
+    }
+
+    /**
+     * A server without range support that drops the first response halfway: the retry
+     * starts the file over instead of appending the new body after the broken one.
+     */
+    @Test
+    public void restartsWholeBodyWithoutRanges() throws Exception {
+        byte[] content = content();
+        AtomicInteger drops = new AtomicInteger(1);
+        AtomicInteger requests = new AtomicInteger();
+        start(exchange -> {
+            // The first request is the probe
+            boolean drop = requests.incrementAndGet() > 1 && drops.getAndDecrement() > 0;
+            send(exchange, 200, content, 0, SIZE, drop);
+        });
+
+        File output = dir.resolve("whole.bin").toFile();
+        new ParallelDownloader(url(), 4).download(output);
+        assertArrayEquals(content, Files.readAllBytes(output.toPath()));
+        assertEquals(3, requests.get());
+    }
+
+    private void start(HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/download/", exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (IOException e) {
+                // A dropped response ends here
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    private String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/download/1";
+    }
+
+    /**
+     * Sends {@code length} bytes from {@code offset}, or only half of them before closing the
+     * connection when {@code drop} is set.
+     */
+    private static void send(HttpExchange exchange, int status, byte[] content, int offset, int length, boolean drop)
+            throws IOException {
+        exchange.sendResponseHeaders(status, length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content, offset, drop ? length / 2 : length);
+        out.flush();
+        if (drop) {
+            throw new IOException("dropped");
+        }
+        out.close();
+    }
+
+    private static byte[] content() {
+        byte[] content = new byte[SIZE];
+        new Random(23).nextBytes(content);
+        return content;
+    }
+}
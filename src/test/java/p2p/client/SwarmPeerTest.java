@@ -0,0 +1,128 @@
+package p2p.client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.controller.FileController;
+import p2p.controller.ServerConfig;
+
+public class SwarmPeerTest {
+    private static final Pattern CODE = Pattern.compile("\"port\":\\s*(\\d+)");
+
+    @TempDir
+    Path dir;
+
+    private FileController controller;
+
+    @AfterEach
+    public void stopServer() {
+        if (controller != null) {
+            controller.stop();
+        }
+    }
+
+    /**
+     * A lone peer downloads everything from the server; the next one gets every chunk from
+     * the first, which serves them while seeding.
+     */
+    @Test
+    public void secondPeerDownloadsFromFirst() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        controller = new FileController(port, new ServerConfig()
+                .setTransferPort(-1)
+                .setUploadDir(dir.resolve("uploads").toString()));
+        controller.start();
+
+        byte[] content = new byte[3 * 1024 * 1024 + 12345];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 131 + (i >> 12));
+        }
+        String url = "http://localhost:" + port + "/download/" + upload(port, content);
+
+        Path first = dir.resolve("first.bin");
+        Path second = dir.resolve("second.bin");
+        try (SwarmPeer seeder = new SwarmPeer(url, first.toFile(), 0)) {
+            seeder.start();
+            seeder.download();
+            assertEquals(4, seeder.getChunksFromServer());
+            assertEquals(0, seeder.getChunksFromPeers());
+
+            try (SwarmPeer leecher = new SwarmPeer(url, second.toFile(), 0)) {
+                leecher.start();
+                leecher.download();
+                assertEquals(4, leecher.getChunksFromPeers());
+                assertEquals(0, leecher.getChunksFromServer());
+            }
+            assertEquals(4, seeder.getChunksServed());
+        }
+        assertArrayEquals(content, Files.readAllBytes(first));
+        assertArrayEquals(content, Files.readAllBytes(second));
+    }
+
+    /**
+     * Forwarding headers from an ordinary client do not change the address a peer is
+     * recorded under.
+     */
+    @Test
+    public void ignoresSpoofedForwardedFor() throws Exception {
+        controller = new FileController(0, new ServerConfig()
+                .setTransferPort(-1)
+                .setUploadDir(dir.resolve("uploads").toString()));
+        controller.start();
+        int port = controller.getPort();
+        int code = upload(port, new byte[1000]);
+
+        HttpURLConnection announce = (HttpURLConnection) new URL("http://localhost:" + port + "/swarm/" + code + "?port=4000").openConnection();
+        announce.setRequestProperty("X-Forwarded-For", "203.0.113.9");
+        announce.setRequestProperty("X-PeerPass-Forwarded", "http://evil.example");
+        announce.setRequestProperty("X-PeerPass-Cluster-Auth", "Bearer guess");
+        assertEquals(200, announce.getResponseCode());
+        announce.getInputStream().readAllBytes();
+
+        HttpURLConnection list = (HttpURLConnection) new URL("http://localhost:" + port + "/swarm/" + code).openConnection();
+        String peers = new String(list.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(peers.contains("\"url\": \"http://127.0.0.1:4000\""), peers);
+        assertTrue(!peers.contains("203.0.113.9"), peers);
+    }
+
+    private static int upload(int port, byte[] content) throws IOException {
+        String boundary = "swarm-test-boundary";
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/upload").openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(("--" + boundary + "\r\n"
+                       + "Content-Disposition: form-data; name=\"file\"; filename=\"swarm.bin\"\r\n"
+                       + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(content);
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            Matcher matcher = CODE.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertTrue(matcher.find());
+            return Integer.parseInt(matcher.group(1));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package p2p.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class HashRingTest {
+    private static final int CODES = 100_000;
+    private static final int FIRST_CODE = 100_000;
+
+    @Test
+    public void spreadsCodesEvenly() {
+        List<String> nodes = nodes(4);
+        HashRing ring = new HashRing(nodes, 128);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int code = FIRST_CODE; code < FIRST_CODE + CODES; code++) {
+            counts.merge(ring.ownerOf(code), 1, Integer::sum);
+        }
+        for (String node : nodes) {
+            double share = counts.getOrDefault(node, 0) / (double) CODES;
+            assertTrue(Math.abs(share - 0.25) < 0.05, node + " owns " + share + " of the codes");
+        }
+    }
+
+    /**
+     * A joining node only takes codes from others, about its fair share, and a leaving node
+     * only gives away its own; every other code keeps its owner.
+     */
+    @Test
+    public void joinAndLeaveMoveOnlyTheirOwnCodes() {
+        HashRing four = new HashRing(nodes(4), 128);
+        HashRing five = new HashRing(nodes(5), 128);
+        String joined = nodes(5).get(4);
+        int moved = 0;
+        for (int code = FIRST_CODE; code < FIRST_CODE + CODES; code++) {
+            String before = four.ownerOf(code);
+            String after = five.ownerOf(code);
+            if (!before.equals(after)) {
+                assertEquals(joined, after);
+                moved++;
+            }
+        }
+        double fraction = moved / (double) CODES;
+        assertTrue(Math.abs(fraction - 0.2) < 0.05, fraction + " of the codes moved");
+
+        List<String> withoutSecond = new ArrayList<>(nodes(4));
+        String left = withoutSecond.remove(1);
+        HashRing three = new HashRing(withoutSecond, 128);
+        for (int code = FIRST_CODE; code < FIRST_CODE + CODES; code++) {
+            String before = four.ownerOf(code);
+            if (!before.equals(left)) {
+                assertEquals(before, three.ownerOf(code));
+            }
+        }
+    }
+
+    @Test
+    public void ownersDoNotDependOnListOrder() {
+        List<String> reversed = new ArrayList<>(nodes(3));
+        Collections.reverse(reversed);
+        HashRing a = new HashRing(nodes(3), 64);
+        HashRing b = new HashRing(reversed, 64);
+        for (int code = FIRST_CODE; code < FIRST_CODE + 10_000; code++) {
+            assertEquals(a.ownerOf(code), b.ownerOf(code));
+        }
+    }
+
+    private static List<String> nodes(int count) {
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add("http://10.0.0." + (i + 1) + ":8080");
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,252 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.cluster.HashRing;
+
+/**
+ * Several nodes in one JVM, each on its own port and upload directory, as separate
+ * processes would run them.
+ */
+public class ClusterTest {
+    private static final Pattern CODE = Pattern.compile("\"port\":\\s*(\\d+)");
+    private static final String SECRET = "cluster-test-secret";
+
+    @TempDir
+    Path dir;
+
+    private final List<FileController> running = new ArrayList<>();
+
+    @AfterEach
+    public void stopNodes() {
+        for (FileController controller : running) {
+            controller.stop();
+        }
+    }
+
+    /**
+     * Uploads get codes their node owns, and every node serves every code: by proxy, or by
+     * redirect on a node configured for it.
+     */
+    @Test
+    public void anyNodeServesAnyCode() throws IOException {
+        List<String> nodes = List.of(url(freePort()), url(freePort()), url(freePort()));
+        HashRing ring = new HashRing(nodes, 128);
+        for (int i = 0; i < nodes.size(); i++) {
+            start(nodes, i, "node" + i, i == 2);
+        }
+
+        byte[] content = new byte[200_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        for (int i = 0; i < 5; i++) {
+            int code = upload(nodes.get(0), "file" + i + ".bin", content);
+            assertEquals(nodes.get(0), ring.ownerOf(code));
+            assertArrayEquals(content, download(nodes.get(0) + "/download/" + code));
+            assertArrayEquals(content, download(nodes.get(1) + "/download/" + code));
+
+            HttpURLConnection redirect = (HttpURLConnection) new URL(nodes.get(2) + "/download/" + code).openConnection();
+            redirect.setInstanceFollowRedirects(false);
+            assertEquals(307, redirect.getResponseCode());
+            assertEquals(nodes.get(0) + "/download/" + code, redirect.getHeaderField("Location"));
+            redirect.disconnect();
+        }
+
+        HttpURLConnection missing = (HttpURLConnection) new URL(nodes.get(1) + "/download/" + unusedCode(ring, nodes.get(0))).openConnection();
+        assertEquals(404, missing.getResponseCode());
+        missing.disconnect();
+    }
+
+    /**
+     * A node restarted with a longer node list hands the shares the new node owns over to
+     * it, and they stay downloadable from both.
+     */
+    @Test
+    public void joiningNodeTakesOverItsShares() throws Exception {
+        String first = url(freePort());
+        String second = url(freePort());
+        List<String> both = List.of(first, second);
+        HashRing ring = new HashRing(both, 128);
+
+        FileController alone = start(List.of(first), 0, "first", false);
+        Map<Integer, byte[]> shares = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] content = ("share " + i).getBytes(StandardCharsets.UTF_8);
+            shares.put(upload(first, "share" + i + ".txt", content), content);
+        }
+        alone.stop();
+        running.remove(alone);
+
+        start(both, 1, "second", false);
+        start(both, 0, "first", false);
+        List<Integer> moving = new ArrayList<>();
+        for (int code : shares.keySet()) {
+            if (ring.ownerOf(code).equals(second)) {
+                moving.add(code);
+            }
+        }
+        assertTrue(!moving.isEmpty(), "No share moves to the new node");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (int code : moving) {
+            while (status(second + "/download/" + code) != 200) {
+                assertTrue(System.currentTimeMillis() < deadline, "Share " + code + " was not handed over");
+                Thread.sleep(50);
+            }
+        }
+        for (Map.Entry<Integer, byte[]> share : shares.entrySet()) {
+            assertArrayEquals(share.getValue(), download(first + "/download/" + share.getKey()));
+            assertArrayEquals(share.getValue(), download(second + "/download/" + share.getKey()));
+        }
+    }
+
+    /**
+     * A swarm announce proxied by another node is recorded under the client's address;
+     * forwarding headers sent straight to the owner without the secret are ignored.
+     */
+    @Test
+    public void swarmTrustsOnlyClusterForwarding() throws IOException {
+        List<String> nodes = List.of(url(freePort()), url(freePort()));
+        start(nodes, 0, "node0", false);
+        start(nodes, 1, "node1", false);
+        int code = upload(nodes.get(0), "swarm.bin", new byte[1000]);
+
+        announce(nodes.get(1) + "/swarm/" + code + "?port=4001", null);
+        announce(nodes.get(0) + "/swarm/" + code + "?port=4002", "Bearer " + SECRET + "x");
+        String peers = new String(download(nodes.get(0) + "/swarm/" + code), StandardCharsets.UTF_8);
+        assertTrue(peers.contains("\"http://127.0.0.1:4001\""), peers);
+        assertTrue(peers.contains("\"http://127.0.0.1:4002\""), peers);
+        assertTrue(!peers.contains("198.51.100.7"), peers);
+    }
+
+    private static void announce(String url, String clusterAuth) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestProperty("X-Forwarded-For", "198.51.100.7");
+        if (clusterAuth != null) {
+            conn.setRequestProperty(ClusterFilter.FORWARDED_HEADER, "http://elsewhere");
+            conn.setRequestProperty(ClusterFilter.AUTH_HEADER, clusterAuth);
+        }
+        assertEquals(200, conn.getResponseCode(), url);
+        conn.getInputStream().readAllBytes();
+    }
+
+    /**
+     * A node with a node list but no secret does not start, and share pushes without the
+     * secret are refused.
+     */
+    @Test
+    public void requiresClusterSecret() throws IOException {
+        String node = url(freePort());
+        assertThrows(IllegalArgumentException.class, () -> new FileController(0, new ServerConfig()
+                .setTransferPort(-1)
+                .setUploadDir(dir.resolve("nosecret").toString())
+                .setClusterNodes(List.of(node))));
+
+        start(List.of(node), 0, "node", false);
+        HttpURLConnection conn = (HttpURLConnection) new URL(node + "/cluster/shares").openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Authorization", "Bearer wrong");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(new byte[4]);
+        }
+        assertEquals(401, conn.getResponseCode());
+        conn.disconnect();
+    }
+
+    private FileController start(List<String> nodes, int self, String name, boolean redirect) throws IOException {
+        String node = nodes.get(self);
+        ServerConfig config = new ServerConfig()
+                .setTransferPort(-1)
+                .setUploadDir(dir.resolve(name).toString())
+                .setClusterNodes(nodes)
+                .setClusterSelf(node)
+                .setClusterRedirect(redirect)
+                .setClusterSecret(SECRET);
+        FileController controller = new FileController(Integer.parseInt(node.substring(node.lastIndexOf(':') + 1)), config);
+        controller.start();
+        running.add(controller);
+        return controller;
+    }
+
+    private static int upload(String node, String filename, byte[] content) throws IOException {
+        String boundary = "cluster-test-boundary";
+        HttpURLConnection conn = (HttpURLConnection) new URL(node + "/upload").openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(("--" + boundary + "\r\n"
+                       + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                       + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(content);
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            Matcher matcher = CODE.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertTrue(matcher.find());
+            return Integer.parseInt(matcher.group(1));
+        }
+    }
+
+    private static byte[] download(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(200, conn.getResponseCode(), url);
+        try (InputStream in = conn.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int status(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in != null) {
+            in.readAllBytes();
+            in.close();
+        }
+        return status;
+    }
+
+    private static int unusedCode(HashRing ring, String owner) {
+        int code = 100_000;
+        while (!ring.ownerOf(code).equals(owner)) {
+            code++;
+        }
+        return code;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String url(int port) {
+        return "http://localhost:" + port;
+    }
+}
@@ -0,0 +1,168 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that stalled transfers do not starve new requests, in virtual-thread mode and in
+ * the default thread-pool mode.
+ */
+public class FileControllerConcurrencyTest {
+    private static final int STALLED_CLIENTS = 2000;
+
+    @TempDir
+    Path uploadDir;
+
+    private FileController controller;
+    private final List<Socket> stalled = new ArrayList<>();
+
+    private void startServer(ServerConfig config) throws IOException {
+        controller = new FileController(0, config
+                .setTransferPort(-1)
+                .setUploadDir(uploadDir.toString()));
+        controller.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        for (Socket socket : stalled) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+        controller.stop();
+    }
+
+    @Test
+    public void stalledUploadsDoNotStarveNewRequests() throws Exception {
+        startServer(new ServerConfig()
+                .setExecutorMode(ExecutorMode.VIRTUAL)
+                .setUploadConcurrency(STALLED_CLIENTS * 2));
+        int port = controller.getPort();
+        stallUploads(port, STALLED_CLIENTS);
+
+        // Give the server time to dispatch every stalled exchange to a handler
+        Thread.sleep(1000);
+
+        long start = System.nanoTime();
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/download/1").openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(5000);
+        int status = conn.getResponseCode();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        conn.disconnect();
+
+        assertEquals(404, status);
+        assertTrue(elapsedMillis < 5000, "request took " + elapsedMillis + " ms");
+        // Every stalled upload holds a permit or waits for one; none was shed or dropped
+        String metrics = metrics(port);
+        assertEquals(STALLED_CLIENTS, metric(metrics, "peerpass_admission_in_flight{limiter=\"uploads\"}")
+                                      + metric(metrics, "peerpass_admission_waiting{limiter=\"uploads\"}"));
+        assertEquals(0, metric(metrics, "peerpass_admission_rejected_total{limiter=\"uploads\"}"));
+    }
+
+    /**
+     * With a small pool and the default limits, stalled uploads take the two upload permits
+     * and the wait slot rather than a pool thread each: further uploads are refused with 503 and
+     * Retry-After at once, well before the admission deadline, and downloads are still
+     * served.
+     */
+    @Test
+    public void poolModeShedsUploadsPromptly() throws Exception {
+        startServer(new ServerConfig()
+                .setExecutorMode(ExecutorMode.POOL)
+                .setPoolSize(5)
+                .setAdmissionTimeoutMillis(10_000));
+        int port = controller.getPort();
+        stallUploads(port, 3);
+        Thread.sleep(500);
+
+        for (int i = 0; i < 8; i++) {
+            long start = System.nanoTime();
+            HttpURLConnection upload = (HttpURLConnection) new URL("http://localhost:" + port + "/upload").openConnection();
+            upload.setRequestMethod("POST");
+            upload.setDoOutput(true);
+            upload.setReadTimeout(5000);
+            upload.setRequestProperty("Content-Type", "multipart/form-data; boundary=b");
+            try (OutputStream out = upload.getOutputStream()) {
+                out.write(("--b\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                           + "hello\r\n--b--\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            assertEquals(503, upload.getResponseCode());
+            long uploadMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals("10", upload.getHeaderField("Retry-After"));
+            upload.disconnect();
+            assertTrue(uploadMillis < 1000, "503 took " + uploadMillis + " ms");
+        }
+
+        long start = System.nanoTime();
+        HttpURLConnection download = (HttpURLConnection) new URL("http://localhost:" + port + "/download/1").openConnection();
+        download.setReadTimeout(5000);
+        assertEquals(404, download.getResponseCode());
+        download.disconnect();
+        long downloadMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(downloadMillis < 1000, "download took " + downloadMillis + " ms");
+
+        String metrics = metrics(port);
+        assertEquals(8, metric(metrics, "peerpass_admission_rejected_total{limiter=\"uploads\"}"));
+        assertEquals(3, metric(metrics, "peerpass_admission_in_flight{limiter=\"uploads\"}")
+                        + metric(metrics, "peerpass_admission_waiting{limiter=\"uploads\"}"));
+    }
+
+    private static String metrics(int port) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+        conn.setReadTimeout(5000);
+        try (InputStream in = conn.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static long metric(String metrics, String series) {
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(series + " ")) {
+                return (long) Double.parseDouble(line.substring(series.length() + 1));
+            }
+        }
+        throw new AssertionError("No " + series + " in /metrics");
+    }
+
+    /**
+     * Each client promises a large body, sends the start of a part header and goes quiet,
+     * which parks one handler in a blocking read for as long as the socket stays open.
+     */
+    private void stallUploads(int port, int clients) throws IOException {
+        String request = "POST /upload HTTP/1.1\r\n" +
+                         "Host: localhost\r\n" +
+                         "Content-Type: multipart/form-data; boundary=stall\r\n" +
+                         "Content-Length: 1073741824\r\n" +
+                         "\r\n" +
+                         "--stall\r\n" +
+                         "Content-Disposition: form-data; name=\"file\"";
+        byte[] requestBytes = request.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket("localhost", port);
+            OutputStream out = socket.getOutputStream();
+            out.write(requestBytes);
+            out.flush();
+            stalled.add(socket);
+        }
+    }
+}
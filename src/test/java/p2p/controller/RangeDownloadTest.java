@@ -0,0 +1,129 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RangeDownloadTest {
+    private static final Pattern CODE = Pattern.compile("\"port\":\\s*(\\d+)");
+    private static final int SIZE = 100_000;
+
+    @TempDir
+    Path dir;
+
+    private FileController controller;
+    private byte[] content;
+    private String url;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        controller = new FileController(0, new ServerConfig()
+                .setTransferPort(-1)
+                .setUploadDir(dir.toString()));
+        controller.start();
+        content = new byte[SIZE];
+        new Random(5).nextBytes(content);
+        url = "http://localhost:" + controller.getPort() + "/download/" + upload("data.bin", content);
+    }
+
+    @AfterEach
+    public void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void servesSingleRange() throws IOException {
+        HttpURLConnection conn = request("bytes=100-199");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 100-199/" + SIZE, conn.getHeaderField("Content-Range"));
+        assertEquals("100", conn.getHeaderField("Content-Length"));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), body(conn));
+    }
+
+    /**
+     * Two ranges come back as multipart/byteranges, each part with its own Content-Range.
+     */
+    @Test
+    public void servesMultipleRangesAsMultipart() throws IOException {
+        HttpURLConnection conn = request("bytes=-10,0-9");
+        assertEquals(206, conn.getResponseCode());
+        String contentType = conn.getHeaderField("Content-Type");
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        // ISO-8859-1 maps every byte to one char, so the parts can be cut out as text
+        String body = new String(body(conn), StandardCharsets.ISO_8859_1);
+        String[] parts = body.split("\r\n--" + boundary);
+        assertEquals(4, parts.length, body);
+        assertEquals("", parts[0]);
+        assertPart(parts[1], 0, 9);
+        assertPart(parts[2], SIZE - 10, SIZE - 1);
+        assertEquals("--\r\n", parts[3]);
+    }
+
+    @Test
+    public void refusesUnsatisfiableRange() throws IOException {
+        HttpURLConnection conn = request("bytes=" + SIZE + "-");
+        assertEquals(416, conn.getResponseCode());
+        assertEquals("bytes */" + SIZE, conn.getHeaderField("Content-Range"));
+    }
+
+    private void assertPart(String part, int first, int last) {
+        int headerEnd = part.indexOf("\r\n\r\n");
+        assertTrue(headerEnd > 0, part);
+        assertTrue(part.contains("\r\nContent-Range: bytes " + first + "-" + last + "/" + SIZE + "\r\n"), part);
+        assertArrayEquals(Arrays.copyOfRange(content, first, last + 1),
+                          part.substring(headerEnd + 4).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private HttpURLConnection request(String range) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestProperty("Range", range);
+        return conn;
+    }
+
+    private static byte[] body(HttpURLConnection conn) throws IOException {
+        try (InputStream in = conn.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private int upload(String filename, byte[] body) throws IOException {
+        String boundary = "range-test-boundary";
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + controller.getPort() + "/upload")
+                .openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(("--" + boundary + "\r\n"
+                       + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                       + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            Matcher matcher = CODE.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertTrue(matcher.find());
+            return Integer.parseInt(matcher.group(1));
+        }
+    }
+}
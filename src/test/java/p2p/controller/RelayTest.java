@@ -0,0 +1,182 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RelayTest {
+    private static final Pattern RESERVED = Pattern.compile("\"port\":\\s*(\\d+), \"token\":\\s*\"(\\w+)\"");
+
+    @TempDir
+    Path dir;
+
+    private FileController controller;
+    private String base;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        controller = new FileController(0, new ServerConfig()
+                .setTransferPort(-1)
+                .setUploadDir(dir.toString()));
+        controller.start();
+        base = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        controller.stop();
+    }
+
+    /**
+     * A receiver that starts before the upload gets the first half while the second is
+     * still held back, then the rest; afterwards the code is an ordinary share.
+     */
+    @Test
+    public void receiverFollowsUpload() throws Exception {
+        byte[] content = new byte[3_000_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7 + (i >> 10));
+        }
+        String[] reserved = reserve("live.bin", -1);
+        String code = reserved[0];
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        CompletableFuture<Void> receiver = CompletableFuture.runAsync(() -> {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + code).openConnection();
+                assertEquals(200, conn.getResponseCode());
+                try (InputStream in = conn.getInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        synchronized (received) {
+                            received.write(buffer, 0, read);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        HttpURLConnection upload = (HttpURLConnection) new URL(base + "/relay/" + code).openConnection();
+        upload.setDoOutput(true);
+        upload.setRequestMethod("PUT");
+        upload.setRequestProperty("Authorization", "Bearer " + reserved[1]);
+        upload.setChunkedStreamingMode(64 * 1024);
+        int half = content.length / 2;
+        try (OutputStream out = upload.getOutputStream()) {
+            out.write(content, 0, half);
+            out.flush();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (size(received) < half) {
+                assertTrue(System.currentTimeMillis() < deadline, "Receiver got " + size(received) + " bytes of the first half");
+                Thread.sleep(10);
+            }
+            assertEquals(half, size(received));
+            out.write(content, half, content.length - half);
+        }
+        assertEquals(200, upload.getResponseCode());
+        receiver.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(content, received.toByteArray());
+
+        HttpURLConnection later = (HttpURLConnection) new URL(base + "/download/" + code).openConnection();
+        assertEquals(200, later.getResponseCode());
+        assertTrue(later.getHeaderField("ETag") != null);
+        try (InputStream in = later.getInputStream()) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    /**
+     * An upload that breaks off cuts its receivers off short of the announced length, and
+     * frees the code.
+     */
+    @Test
+    public void abortedUploadFailsReceivers() throws Exception {
+        String[] reserved = reserve("broken.bin", 1_000_000);
+        String code = reserved[0];
+
+        CompletableFuture<byte[]> receiver = CompletableFuture.supplyAsync(() -> {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + code).openConnection();
+                assertEquals(200, conn.getResponseCode());
+                assertEquals(1_000_000, conn.getContentLengthLong());
+                try (InputStream in = conn.getInputStream()) {
+                    return in.readAllBytes();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // Promises the announced size, sends part of it and hangs up
+        try (Socket socket = new Socket("localhost", controller.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /relay/" + code + "?token=" + reserved[1] + " HTTP/1.1\r\n"
+                       + "Host: localhost\r\nContent-Length: 1000000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[300_000]);
+            out.flush();
+            Thread.sleep(200);
+        }
+
+        // The connection is dropped short of the Content-Length; HttpURLConnection reports
+        // that as an early end rather than an error
+        byte[] received = receiver.get(10, TimeUnit.SECONDS);
+        assertTrue(received.length < 1_000_000, "Received " + received.length + " bytes");
+        long deadline = System.currentTimeMillis() + 5_000;
+        int status;
+        while ((status = status(base + "/download/" + code)) != 404) {
+            assertTrue(System.currentTimeMillis() < deadline, "Code still answers " + status);
+            Thread.sleep(20);
+        }
+    }
+
+    private String[] reserve(String filename, long size) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/relay?filename=" + filename
+                + (size >= 0 ? "&size=" + size : "")).openConnection();
+        conn.setRequestMethod("POST");
+        assertEquals(201, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            Matcher matcher = RESERVED.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertTrue(matcher.find());
+            return new String[] {matcher.group(1), matcher.group(2)};
+        }
+    }
+
+    private static int size(ByteArrayOutputStream received) {
+        synchronized (received) {
+            return received.size();
+        }
+    }
+
+    private static int status(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in != null) {
+            in.readAllBytes();
+            in.close();
+        }
+        return status;
+    }
+}
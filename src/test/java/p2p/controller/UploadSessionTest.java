@@ -0,0 +1,214 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.client.ChunkedUploader;
+
+public class UploadSessionTest {
+    private static final Pattern SESSION = Pattern.compile("\"session\": \"(\\w+)\"");
+    private static final Pattern CODE = Pattern.compile("\"port\":\\s*(\\d+)");
+    private static final int CHUNK = 64 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private FileController controller;
+    private String base;
+
+    @AfterEach
+    public void stopServer() {
+        if (controller != null) {
+            controller.stop();
+        }
+    }
+
+    private void startServer(ServerConfig config) throws IOException {
+        controller = new FileController(0, config
+                .setTransferPort(-1)
+                .setUploadDir(dir.toString()));
+        controller.start();
+        base = "http://localhost:" + controller.getPort();
+    }
+
+    /**
+     * Chunks sent out of order and one sent twice add up to the original file, which can
+     * only be completed once every chunk is in.
+     */
+    @Test
+    public void completesFromChunksInAnyOrder() throws IOException {
+        startServer(new ServerConfig());
+        byte[] content = new byte[2 * CHUNK + 100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 13 + (i >> 9));
+        }
+        Response created = request("POST", "/uploads?filename=big.bin&size=" + content.length + "&chunkSize=" + CHUNK, null);
+        assertEquals(201, created.status, created.body);
+        assertTrue(created.body.contains("\"chunks\": 3"), created.body);
+        String id = match(SESSION, created.body);
+
+        assertEquals(204, request("PUT", "/uploads/" + id + "/chunks/2", chunk(content, 2)).status);
+        assertEquals(204, request("PUT", "/uploads/" + id + "/chunks/0", chunk(content, 0)).status);
+        assertEquals(204, request("PUT", "/uploads/" + id + "/chunks/0", chunk(content, 0)).status);
+        Response status = request("GET", "/uploads/" + id, null);
+        assertTrue(status.body.contains("\"completed\": [0,2]") && status.body.contains("\"missing\": [1]"), status.body);
+        assertEquals(409, request("POST", "/uploads/" + id + "/complete", null).status);
+        assertEquals(400, request("PUT", "/uploads/" + id + "/chunks/1", Arrays.copyOf(chunk(content, 1), 10)).status);
+
+        assertEquals(204, request("PUT", "/uploads/" + id + "/chunks/1", chunk(content, 1)).status);
+        Response completed = request("POST", "/uploads/" + id + "/complete", null);
+        assertEquals(200, completed.status, completed.body);
+        Response download = request("GET", "/download/" + match(CODE, completed.body), null);
+        assertEquals(200, download.status);
+        assertArrayEquals(content, download.bytes);
+        assertEquals(404, request("GET", "/uploads/" + id, null).status);
+    }
+
+    /**
+     * Every operation on a session that does not exist is a 404, with a body that says so.
+     */
+    @Test
+    public void unknownSessionIsNotFound() throws IOException {
+        startServer(new ServerConfig());
+        for (Response response : new Response[] {
+                request("GET", "/uploads/nosuchsession", null),
+                request("PUT", "/uploads/nosuchsession/chunks/0", new byte[10]),
+                request("POST", "/uploads/nosuchsession/complete", null),
+                request("DELETE", "/uploads/nosuchsession", null)}) {
+            assertEquals(404, response.status);
+            assertTrue(response.body.startsWith("Not Found"), response.body);
+        }
+    }
+
+    /**
+     * Declared sizes are bounded by the per-session limit and the disk budget, and open
+     * sessions by their count; room comes back when a session is abandoned.
+     */
+    @Test
+    public void enforcesSessionLimits() throws IOException {
+        startServer(new ServerConfig()
+                .setSessionMaxBytes(1_000_000)
+                .setDiskBudgetBytes(1_500_000)
+                .setMaxSessions(2));
+        assertEquals(413, request("POST", "/uploads?filename=a&size=1000001", null).status);
+        assertEquals(413, request("POST", "/uploads?filename=a&size=99999999999999", null).status);
+
+        Response first = request("POST", "/uploads?filename=a&size=1000000", null);
+        assertEquals(201, first.status);
+        Response overBudget = request("POST", "/uploads?filename=b&size=600000", null);
+        assertEquals(503, overBudget.status);
+        assertEquals("60", overBudget.retryAfter);
+
+        assertEquals(201, request("POST", "/uploads?filename=c&size=1000", null).status);
+        Response tooMany = request("POST", "/uploads?filename=d&size=1000", null);
+        assertEquals(503, tooMany.status);
+        assertEquals("60", tooMany.retryAfter);
+
+        assertEquals(204, request("DELETE", "/uploads/" + match(SESSION, first.body), null).status);
+        assertEquals(201, request("POST", "/uploads?filename=b&size=600000", null).status);
+    }
+
+    /**
+     * The command-line uploader's default parallelism fits the chunk limit of a server with
+     * the default pool, so no chunk is shed and retried.
+     */
+    @Test
+    public void parallelChunkedUploadFitsDefaultPool() throws Exception {
+        startServer(new ServerConfig());
+        byte[] content = new byte[16 * 256 * 1024 + 7];
+        new java.util.Random(17).nextBytes(content);
+        Path file = Files.createDirectories(dir.resolve("source")).resolve("parallel.bin");
+        Files.write(file, content);
+
+        int code = new ChunkedUploader(base, 4, 256 * 1024).upload(file.toFile());
+        Response download = request("GET", "/download/" + code, null);
+        assertEquals(200, download.status);
+        assertArrayEquals(content, download.bytes);
+        String metrics = request("GET", "/metrics", null).body;
+        assertTrue(metrics.contains("peerpass_admission_rejected_total{limiter=\"chunks\"} 0\n"), metrics);
+    }
+
+    /**
+     * Share limits that are not numbers, negative or so large that they would overflow are
+     * refused with 400 by every upload endpoint, before anything is stored.
+     */
+    @Test
+    public void rejectsInvalidShareLimits() throws IOException {
+        startServer(new ServerConfig());
+        byte[] form = ("--b\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                       + "hello\r\n--b--\r\n").getBytes(StandardCharsets.US_ASCII);
+        for (String limits : new String[] {"ttl=abc", "ttl=-1", "ttl=9223372036854775", "ttl=", "maxDownloads=-2",
+                                           "maxDownloads=1.5", "maxDownloads=99999999999"}) {
+            Response upload = request("POST", "/upload?" + limits, form, "multipart/form-data; boundary=b");
+            assertEquals(400, upload.status, limits);
+            assertTrue(upload.body.startsWith("Bad Request: "), upload.body);
+            assertEquals(400, request("POST", "/uploads?filename=a&size=10&" + limits, null).status, limits);
+            assertEquals(400, request("POST", "/relay?filename=a&" + limits, null).status, limits);
+        }
+        Response upload = request("POST", "/upload?ttl=3600&maxDownloads=2", form, "multipart/form-data; boundary=b");
+        assertEquals(200, upload.status, upload.body);
+    }
+
+    private static byte[] chunk(byte[] content, int index) {
+        return Arrays.copyOfRange(content, index * CHUNK, Math.min(content.length, (index + 1) * CHUNK));
+    }
+
+    private static String match(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        assertTrue(matcher.find(), text);
+        return matcher.group(1);
+    }
+
+    private Response request(String method, String path, byte[] body) throws IOException {
+        return request(method, path, body, null);
+    }
+
+    private Response request(String method, String path, byte[] body, String contentType) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+        conn.setRequestMethod(method);
+        if (contentType != null) {
+            conn.setRequestProperty("Content-Type", contentType);
+        }
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        Response response = new Response();
+        response.status = conn.getResponseCode();
+        response.retryAfter = conn.getHeaderField("Retry-After");
+        InputStream in = response.status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        response.bytes = in == null ? new byte[0] : in.readAllBytes();
+        if (in != null) {
+            in.close();
+        }
+        response.body = new String(response.bytes, StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static class Response {
+        int status;
+        String retryAfter;
+        byte[] bytes;
+        String body;
+    }
+}
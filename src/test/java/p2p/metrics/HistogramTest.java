@@ -0,0 +1,34 @@
+package p2p.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithBoundedError() {
+        long[] samples = {0, 1, 63, 64, 65, 127, 128, 1_000, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : samples) {
+            int index = Histogram.indexOf(value);
+            long upper = Histogram.upperBound(index);
+            assertTrue(upper >= value, "upper bound below " + value);
+            assertTrue(index == 0 || Histogram.upperBound(index - 1) < value, "wrong bucket for " + value);
+            assertTrue(upper - value <= value / 32 + 1, "bucket too wide for " + value);
+        }
+    }
+
+    @Test
+    public void quantilesFollowTheRecordedDistribution() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_000, histogram.valueAtQuantile(0.5), 5_000_000 * 0.04);
+        assertEquals(9_900_000, histogram.valueAtQuantile(0.99), 9_900_000 * 0.04);
+        assertEquals(10_000_000, histogram.valueAtQuantile(1.0));
+    }
+}
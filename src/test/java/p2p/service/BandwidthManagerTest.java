@@ -0,0 +1,89 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class BandwidthManagerTest {
+    private static final long RATE = 32L * 1024 * 1024;
+    private static final long BIG = 4L * 1024 * 1024;
+    private static final long SMALL = 256 * 1024;
+
+    /**
+     * Eight large transfers saturate the global limit; four small ones arrive later. The
+     * small ones must finish close to the time they would take alone instead of getting a
+     * twelfth of the bandwidth, the large ones must share the rest evenly, and the limit
+     * must be both enforced and fully used.
+     */
+    @Test
+    public void smallTransfersOvertakeLargeOnesWithoutStarvingThem() throws Exception {
+        BandwidthManager bandwidth = new BandwidthManager(RATE, 0);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        long start = System.nanoTime();
+        List<Future<Long>> bigs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            bigs.add(pool.submit(transfer(bandwidth, BIG)));
+        }
+        Thread.sleep(250);
+        List<Future<Long>> smalls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            smalls.add(pool.submit(transfer(bandwidth, SMALL)));
+        }
+
+        // Alone at the full rate the four together would need ~31 ms; an equal share ~94 ms each
+        long aloneNanos = TimeUnit.SECONDS.toNanos(4 * SMALL) / RATE;
+        for (Future<Long> small : smalls) {
+            long took = small.get(10, TimeUnit.SECONDS);
+            assertTrue(took < 3 * aloneNanos + TimeUnit.MILLISECONDS.toNanos(20),
+                       "small transfer took " + took / 1_000_000 + " ms");
+        }
+
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        for (Future<Long> big : bigs) {
+            long took = big.get(10, TimeUnit.SECONDS);
+            first = Math.min(first, took);
+            last = Math.max(last, took);
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        long idealNanos = TimeUnit.SECONDS.toNanos(8 * BIG + 4 * SMALL) / RATE;
+        assertTrue(first > last * 0.8, "large transfers finished " + first / 1_000_000 + "-" + last / 1_000_000 + " ms");
+        // The initial burst allowance lets the total come in slightly under the ideal
+        assertTrue(elapsed > idealNanos * 0.85, "limit not enforced: " + elapsed / 1_000_000 + " ms");
+        assertTrue(elapsed < idealNanos * 1.3, "bandwidth left unused: " + elapsed / 1_000_000 + " ms");
+        assertEquals(0, bandwidth.getWaitingCount());
+    }
+
+    @Test
+    public void connectionLimitAppliesPerTransferAndCanBeLifted() throws Exception {
+        BandwidthManager bandwidth = new BandwidthManager(0, 2L * 1024 * 1024);
+        long took = transfer(bandwidth, 1024 * 1024).call();
+        assertTrue(took > TimeUnit.MILLISECONDS.toNanos(400), "took " + took / 1_000_000 + " ms");
+
+        bandwidth.setLimits(0, 0);
+        took = transfer(bandwidth, 64L * 1024 * 1024).call();
+        assertTrue(took < TimeUnit.MILLISECONDS.toNanos(200), "took " + took / 1_000_000 + " ms");
+    }
+
+    private static Callable<Long> transfer(BandwidthManager bandwidth, long size) {
+        return () -> {
+            long start = System.nanoTime();
+            BandwidthManager.Transfer transfer = bandwidth.open();
+            for (long done = 0; done < size; done += BandwidthManager.CHUNK_BYTES) {
+                transfer.acquire((int) Math.min(BandwidthManager.CHUNK_BYTES, size - done));
+            }
+            return System.nanoTime() - start;
+        };
+    }
+}
@@ -0,0 +1,194 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlobEncryptionTest {
+    private static final int CHUNK = BlobEncryption.CHUNK_BYTES;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Content of every size around the chunk boundaries is stored without its plaintext and
+     * reads back whole, by arbitrary ranges and through transferTo.
+     */
+    @Test
+    public void roundTripsAndReadsRanges() throws IOException {
+        Random random = new Random(3);
+        BlobStore store = open(key(1));
+        try {
+            for (int size : new int[] {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 5 * CHUNK + 17}) {
+                byte[] content = new byte[size];
+                random.nextBytes(content);
+                String id = write(store, content, random);
+
+                byte[] stored = Files.readAllBytes(store.pathOf(id));
+                assertEquals(BlobEncryption.storedLength(size), stored.length);
+                if (size > 16) {
+                    assertEquals(-1, indexOf(stored, Arrays.copyOfRange(content, 0, 16)));
+                }
+
+                try (FileChannel channel = store.openChannel(id)) {
+                    assertEquals(size, channel.size());
+                    assertArrayEquals(content, readRange(channel, 0, size));
+                    for (int i = 0; i < 20 && size > 0; i++) {
+                        int from = random.nextInt(size);
+                        int length = random.nextInt(size - from + 1);
+                        assertArrayEquals(Arrays.copyOfRange(content, from, from + length), readRange(channel, from, length));
+                    }
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    long position = 0;
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, Channels.newChannel(out));
+                    }
+                    assertArrayEquals(content, out.toByteArray());
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A reader opened on an upload in progress sees the chunks that are done, before the
+     * upload is committed.
+     */
+    @Test
+    public void readsUploadInProgress() throws Exception {
+        byte[] content = new byte[20 * CHUNK + 5];
+        new Random(4).nextBytes(content);
+        BlobStore store = open(key(1));
+        try (BlobStore.Writer writer = store.newWriter(); FileChannel reader = writer.openReader()) {
+            writer.write(content, 0, 12 * CHUNK);
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (writer.getWrittenSize() < 4 * CHUNK) {
+                assertTrue(System.currentTimeMillis() < deadline, "Only " + writer.getWrittenSize() + " bytes written");
+                writer.write(new byte[0], 0, 0);
+                Thread.sleep(5);
+            }
+            int visible = (int) writer.getWrittenSize();
+            assertArrayEquals(Arrays.copyOfRange(content, 0, visible), readRange(reader, 0, visible));
+            writer.write(content, 12 * CHUNK, content.length - 12 * CHUNK);
+            writer.commit();
+            assertArrayEquals(content, readRange(reader, 0, content.length));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A damaged chunk fails only the reads that cover it; a wrong master key and a cut-off
+     * file are noticed on open.
+     */
+    @Test
+    public void detectsTamperingAndWrongKeys() throws IOException {
+        byte[] content = new byte[4 * CHUNK];
+        new Random(5).nextBytes(content);
+        BlobStore store = open(key(1));
+        String id;
+        try {
+            id = write(store, content, new Random(6));
+            try (FileChannel file = FileChannel.open(store.pathOf(id), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long offset = BlobEncryption.HEADER_BYTES + 2L * (CHUNK + BlobEncryption.TAG_BYTES) + 100;
+                ByteBuffer b = ByteBuffer.allocate(1);
+                file.read(b, offset);
+                b.put(0, (byte) (b.get(0) ^ 1)).rewind();
+                file.write(b, offset);
+            }
+            try (FileChannel channel = store.openChannel(id)) {
+                assertArrayEquals(Arrays.copyOfRange(content, 0, 2 * CHUNK), readRange(channel, 0, 2 * CHUNK));
+                assertArrayEquals(Arrays.copyOfRange(content, 3 * CHUNK, 4 * CHUNK), readRange(channel, 3 * CHUNK, CHUNK));
+                assertThrows(IOException.class, () -> readRange(channel, 2 * CHUNK + 10, 10));
+                assertThrows(IOException.class, () -> readRange(channel, 0, content.length));
+            }
+        } finally {
+            store.close();
+        }
+
+        BlobStore other = open(key(2));
+        try {
+            other.restore(id, content.length);
+            assertThrows(IOException.class, () -> other.openChannel(id));
+        } finally {
+            other.close();
+        }
+
+        try (FileChannel file = FileChannel.open(store.pathOf(id), StandardOpenOption.WRITE)) {
+            file.truncate(BlobEncryption.storedLength(3L * CHUNK));
+        }
+        BlobStore reopened = open(key(1));
+        try {
+            reopened.restore(id, content.length);
+            assertThrows(IOException.class, () -> reopened.openChannel(id));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private BlobStore open(byte[] key) throws IOException {
+        return new BlobStore(dir.toString(), new FileBlobBackend(dir.resolve("blobs")), new BlobEncryption(key, 2));
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Writes in uneven pieces, so chunks are filled across calls.
+     */
+    private static String write(BlobStore store, byte[] content, Random random) throws IOException {
+        try (BlobStore.Writer writer = store.newWriter()) {
+            int offset = 0;
+            while (offset < content.length) {
+                int n = Math.min(content.length - offset, 1 + random.nextInt(3 * CHUNK));
+                if (random.nextBoolean()) {
+                    writer.write(content, offset, n);
+                } else {
+                    writer.write(ByteBuffer.wrap(content, offset, n));
+                }
+                offset += n;
+            }
+            return writer.commit();
+        }
+    }
+
+    private static byte[] readRange(FileChannel channel, long from, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
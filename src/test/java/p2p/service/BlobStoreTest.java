@@ -0,0 +1,163 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Identical uploads share one file, which goes away with the last reference.
+     */
+    @Test
+    public void deduplicatesAndDeletesOnLastRelease() throws IOException {
+        BlobStore store = new BlobStore(dir.toString());
+        AtomicInteger deletes = new AtomicInteger();
+        store.setOnDelete(id -> deletes.incrementAndGet());
+        byte[] content = content(50_000, 1);
+
+        String first = store(store, content);
+        String second = store(store, content);
+        assertEquals(first, second);
+        assertEquals(1, store.getBlobCount());
+        assertEquals(content.length, store.getStoredBytes());
+        assertEquals(1, store.getDedupedUploads());
+        assertArrayEquals(content, Files.readAllBytes(store.pathOf(first)));
+        try (Stream<Path> files = Files.list(dir.resolve("tmp"))) {
+            assertEquals(0, files.count());
+        }
+
+        store.release(first);
+        assertTrue(store.exists(first));
+        assertEquals(0, deletes.get());
+        store.release(first);
+        assertFalse(store.exists(first));
+        assertFalse(store.contains(first));
+        assertFalse(store.acquire(first));
+        assertEquals(0, store.getStoredBytes());
+        assertEquals(1, deletes.get());
+    }
+
+    /**
+     * Readers taking and dropping references, and an upload of the same content, race the
+     * release of the last original reference. Whoever wins, a successful acquire always
+     * finds the file, and once every reference is gone so is the file.
+     */
+    @Test
+    public void acquireAndReleaseRaceDelete() throws Exception {
+        BlobStore store = new BlobStore(dir.toString());
+        AtomicInteger deletes = new AtomicInteger();
+        store.setOnDelete(id -> deletes.incrementAndGet());
+        byte[] content = content(4096, 2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int round = 0; round < 200; round++) {
+            String id = store(store, content);
+            CountDownLatch go = new CountDownLatch(1);
+            Thread reader = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int i = 0; i < 50; i++) {
+                        if (store.acquire(id)) {
+                            try (FileChannel channel = store.openChannel(id)) {
+                                ByteBuffer buffer = ByteBuffer.allocate(content.length);
+                                channel.read(buffer, 0);
+                                assertArrayEquals(content, buffer.array());
+                            } finally {
+                                store.release(id);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            String[] uploaded = new String[1];
+            Thread uploader = new Thread(() -> {
+                try {
+                    go.await();
+                    uploaded[0] = store(store, content);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            uploader.start();
+            go.countDown();
+            store.release(id);
+            reader.join();
+            uploader.join();
+            if (failure.get() != null) {
+                throw new AssertionError("round " + round, failure.get());
+            }
+
+            // Only the upload's reference is left, whether it revived the blob or not
+            assertTrue(store.exists(id));
+            store.release(uploaded[0]);
+            assertFalse(store.exists(id));
+            assertFalse(store.contains(id));
+            assertEquals(0, store.getStoredBytes());
+        }
+        assertTrue(deletes.get() >= 200);
+    }
+
+    /**
+     * After a restart only blobs that a recovered share restores survive the sweep; derived
+     * files of the others and stale partial uploads go too.
+     */
+    @Test
+    public void sweepsOrphansAfterRestart() throws IOException {
+        BlobStore before = new BlobStore(dir.toString());
+        byte[] keptContent = content(1000, 3);
+        String kept = store(before, keptContent);
+        String orphan = store(before, content(2000, 4));
+        Files.write(before.variantPath(kept, "gz"), new byte[10]);
+        Files.write(before.variantPath(orphan, "gz"), new byte[10]);
+        Path stalePart = Files.write(before.newTempPath(), new byte[10]);
+        Files.setLastModifiedTime(stalePart, FileTime.fromMillis(System.currentTimeMillis() - 3_600_000));
+        Path freshPart = Files.write(before.newTempPath(), new byte[10]);
+
+        BlobStore after = new BlobStore(dir.toString());
+        after.restore(kept, keptContent.length);
+        assertEquals(2, after.sweepUnreferenced(System.currentTimeMillis() - 60_000));
+
+        assertTrue(after.exists(kept));
+        assertTrue(Files.exists(after.variantPath(kept, "gz")));
+        assertFalse(after.exists(orphan));
+        assertFalse(Files.exists(after.variantPath(orphan, "gz")));
+        assertFalse(Files.exists(stalePart));
+        assertTrue(Files.exists(freshPart));
+        assertEquals(keptContent.length, after.getStoredBytes());
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static String store(BlobStore store, byte[] content) throws IOException {
+        BlobStore.Writer writer = store.newWriter();
+        writer.write(content);
+        return writer.commit();
+    }
+}
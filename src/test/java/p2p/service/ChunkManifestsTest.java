@@ -0,0 +1,100 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.MerkleTree;
+
+public class ChunkManifestsTest {
+    private static final int CHUNK = ChunkManifests.CHUNK_BYTES;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * The pipelined hasher, fed in uneven writes, must agree with hashing each chunk in turn,
+     * including for an empty upload and one that ends on a chunk boundary.
+     */
+    @Test
+    public void pipelinedHashesMatchSequentialOnes() throws IOException {
+        ChunkManifests manifests = new ChunkManifests(new BlobStore(dir.toString()), 2);
+        Random random = new Random(11);
+        try {
+            for (int size : new int[] {0, 1, CHUNK, 3 * CHUNK, 5 * CHUNK / 2 + 17}) {
+                byte[] content = new byte[size];
+                random.nextBytes(content);
+
+                ChunkManifests.Hasher hasher = manifests.newHasher();
+                int offset = 0;
+                while (offset < size) {
+                    int n = Math.min(size - offset, 1 + random.nextInt(300_000));
+                    hasher.update(ByteBuffer.wrap(content, offset, n));
+                    offset += n;
+                }
+                ChunkManifests.Manifest manifest = hasher.finish();
+
+                List<byte[]> expected = new ArrayList<>();
+                for (int i = 0; i < MerkleTree.chunkCount(size, CHUNK); i++) {
+                    int start = i * CHUNK;
+                    expected.add(MerkleTree.leaf(content, start, Math.min(size, start + CHUNK) - start));
+                }
+                assertEquals(size, manifest.getSize());
+                assertEquals(expected.size(), manifest.getChunks().size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertArrayEquals(expected.get(i), manifest.getChunks().get(i));
+                }
+                assertArrayEquals(MerkleTree.root(expected), manifest.getRoot());
+
+                ChunkManifests.Manifest decoded = ChunkManifests.Manifest.decode(ByteBuffer.wrap(manifest.encode()));
+                assertArrayEquals(manifest.getRoot(), decoded.getRoot());
+                assertEquals(manifest.getSize(), decoded.getSize());
+            }
+        } finally {
+            manifests.close();
+        }
+    }
+
+    /**
+     * A manifest built from the blob on disk matches the one hashed while uploading, and a
+     * damaged sidecar is rebuilt rather than served.
+     */
+    @Test
+    public void buildsMissingAndDamagedManifestsFromDisk() throws IOException {
+        BlobStore blobStore = new BlobStore(dir.toString());
+        ChunkManifests manifests = new ChunkManifests(blobStore, 2);
+        try {
+            byte[] content = new byte[2 * CHUNK + 5];
+            new Random(5).nextBytes(content);
+            ChunkManifests.Hasher hasher = manifests.newHasher();
+            String blobId;
+            try (BlobStore.Writer out = blobStore.newWriter()) {
+                out.write(content);
+                hasher.update(ByteBuffer.wrap(content));
+                blobId = out.commit();
+            }
+            ChunkManifests.Manifest uploaded = hasher.finish();
+
+            assertArrayEquals(uploaded.getRoot(), manifests.get(blobId).getRoot());
+            assertEquals(1, manifests.getBuiltFromDisk());
+
+            Files.write(blobStore.variantPath(blobId, "mf"), new byte[] {1, 2, 3});
+            assertArrayEquals(uploaded.getRoot(), manifests.get(blobId).getRoot());
+            assertEquals(2, manifests.getBuiltFromDisk());
+            assertArrayEquals(uploaded.getRoot(), manifests.get(blobId).getRoot());
+            assertEquals(2, manifests.getBuiltFromDisk());
+        } finally {
+            manifests.close();
+        }
+    }
+}
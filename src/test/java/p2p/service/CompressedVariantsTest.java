@@ -0,0 +1,161 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CompressedVariantsTest {
+
+    @TempDir
+    Path dir;
+
+    private BlobStore blobStore;
+    private CompressedVariants variants;
+
+    @BeforeEach
+    public void createStore() throws IOException {
+        blobStore = new BlobStore(dir.toString());
+        variants = new CompressedVariants(blobStore, 1024);
+    }
+
+    @AfterEach
+    public void close() {
+        variants.close();
+    }
+
+    @Test
+    public void negotiatesCoding() {
+        assertEquals(CompressedVariants.Coding.GZIP, CompressedVariants.negotiate("gzip"));
+        assertEquals(CompressedVariants.Coding.GZIP, CompressedVariants.negotiate("deflate, GZIP;q=0.5"));
+        assertEquals(CompressedVariants.Coding.GZIP, CompressedVariants.negotiate("*"));
+        assertEquals(CompressedVariants.Coding.DEFLATE, CompressedVariants.negotiate("deflate"));
+        assertEquals(CompressedVariants.Coding.DEFLATE, CompressedVariants.negotiate("gzip;q=0, deflate"));
+        assertNull(CompressedVariants.negotiate(null));
+        assertNull(CompressedVariants.negotiate("identity"));
+        assertNull(CompressedVariants.negotiate("br, gzip;q=0"));
+        assertNull(CompressedVariants.negotiate("gzip;q=high"));
+    }
+
+    /**
+     * Both codings of a built variant decompress to the original bytes, in exactly the
+     * advertised length, and the variant is found again after a restart.
+     */
+    @Test
+    public void roundTripsBothCodings() throws Exception {
+        byte[] content = text(300_000);
+        String id = store(content);
+        CompressedVariants.Variant variant = awaitVariant(variants, id, content.length, "notes.txt", "text/plain");
+
+        for (CompressedVariants.Coding coding : CompressedVariants.Coding.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            variants.send(variant, coding, new TransferEngine(), out);
+            assertEquals(variant.length(coding), out.size());
+            assertTrue(out.size() < content.length / 2);
+            ByteArrayInputStream encoded = new ByteArrayInputStream(out.toByteArray());
+            try (InputStream in = coding == CompressedVariants.Coding.GZIP
+                    ? new GZIPInputStream(encoded) : new InflaterInputStream(encoded)) {
+                assertArrayEquals(content, in.readAllBytes(), coding.getToken());
+            }
+        }
+
+        CompressedVariants restarted = new CompressedVariants(blobStore, 1024);
+        try {
+            assertNotNull(restarted.find(id, content.length, "notes.txt", "text/plain"));
+        } finally {
+            restarted.close();
+        }
+    }
+
+    /**
+     * Small blobs, compressed formats and content that does not shrink are served raw; the
+     * last is remembered with a marker file.
+     */
+    @Test
+    public void skipsIncompressibleBlobs() throws Exception {
+        byte[] small = text(1000);
+        assertNull(variants.find(store(small), small.length, "a.txt", "text/plain"));
+
+        byte[] content = text(100_000);
+        String id = store(content);
+        for (int i = 0; i < 3; i++) {
+            assertNull(variants.find(id, content.length, "photo.png", "image/png"));
+            assertNull(variants.find(id, content.length, "archive.zip", null));
+        }
+
+        byte[] random = new byte[200_000];
+        new Random(9).nextBytes(random);
+        String randomId = store(random);
+        assertNull(variants.find(randomId, random.length, "data.txt", "text/plain"));
+        Path marker = blobStore.variantPath(randomId, "nz");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Files.exists(marker) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.exists(marker));
+        assertFalse(Files.exists(blobStore.variantPath(randomId, "z")));
+        assertNull(variants.find(randomId, random.length, "data.txt", "text/plain"));
+    }
+
+    /**
+     * Deleting the blob removes its variant, and a later lookup does not bring it back.
+     */
+    @Test
+    public void invalidatesDeletedBlobs() throws Exception {
+        blobStore.setOnDelete(variants::invalidate);
+        byte[] content = text(50_000);
+        String id = store(content);
+        awaitVariant(variants, id, content.length, "a.txt", "text/plain");
+        Path path = blobStore.variantPath(id, "z");
+        assertTrue(Files.exists(path));
+
+        blobStore.release(id);
+        assertFalse(Files.exists(path));
+        assertNull(variants.find(id, content.length, "a.txt", "text/plain"));
+    }
+
+    private static CompressedVariants.Variant awaitVariant(CompressedVariants variants, String id, long size,
+                                                           String filename, String mime) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            CompressedVariants.Variant variant = variants.find(id, size, filename, mime);
+            if (variant != null) {
+                return variant;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("no variant built for " + id);
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int line = 0; text.length() < size; line++) {
+            text.append("line ").append(line).append(" of a compressible text file\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String store(byte[] content) throws IOException {
+        BlobStore.Writer writer = blobStore.newWriter();
+        writer.write(content);
+        return writer.commit();
+    }
+}
@@ -0,0 +1,130 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HotShareCacheTest {
+    private static final int SIZE = 1000;
+
+    @TempDir
+    Path dir;
+
+    private BlobStore blobStore;
+    private HotShareCache cache;
+
+    @BeforeEach
+    public void createStore() throws IOException {
+        blobStore = new BlobStore(dir.toString());
+    }
+
+    @AfterEach
+    public void closeCache() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * A blob is loaded on its second request and served from memory afterwards; blobs over
+     * the entry limit are never cached.
+     */
+    @Test
+    public void admitsBlobsRequestedMoreThanOnce() throws Exception {
+        cache = new HotShareCache(blobStore, 10_000, 5000);
+        byte[] content = content(1);
+        String id = store(content);
+
+        assertNull(cache.get(id, SIZE));
+        assertEquals(0, cache.getEntryCount());
+        ByteBuffer cached = awaitCached(id);
+        byte[] read = new byte[SIZE];
+        cached.get(read);
+        assertEquals(ByteBuffer.wrap(content), ByteBuffer.wrap(read));
+        assertEquals(SIZE, cache.getUsedBytes());
+
+        String large = store(new byte[6000]);
+        for (int i = 0; i < 5; i++) {
+            assertNull(cache.get(large, 6000));
+        }
+        Thread.sleep(100);
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    /**
+     * When the budget is full, a blob requested more often than the least recently used
+     * entry takes its place.
+     */
+    @Test
+    public void evictsLeastRecentlyUsedForMorePopularBlob() throws Exception {
+        cache = new HotShareCache(blobStore, 2500, 2500);
+        String first = store(content(1));
+        String second = store(content(2));
+        String popular = store(content(3));
+        awaitCached(first);
+        awaitCached(second);
+        assertNotNull(cache.get(second, SIZE));
+
+        for (int i = 0; i < 20; i++) {
+            cache.get(popular, SIZE);
+        }
+        awaitCached(popular);
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2 * SIZE, cache.getUsedBytes());
+        assertNotNull(cache.get(second, SIZE));
+    }
+
+    /**
+     * Deleting a blob drops it from the cache through the store's delete hook.
+     */
+    @Test
+    public void invalidatesDeletedBlobs() throws Exception {
+        cache = new HotShareCache(blobStore, 10_000, 5000);
+        blobStore.setOnDelete(cache::invalidate);
+        String id = store(content(1));
+        awaitCached(id);
+
+        blobStore.release(id);
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getUsedBytes());
+        assertEquals(1, cache.getInvalidationCount());
+    }
+
+    /**
+     * Requests a blob until it is served from the cache.
+     */
+    private ByteBuffer awaitCached(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            ByteBuffer cached = cache.get(id, SIZE);
+            if (cached != null) {
+                return cached;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("blob " + id + " was not cached");
+    }
+
+    private static byte[] content(int seed) {
+        byte[] content = new byte[SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private String store(byte[] content) throws IOException {
+        BlobStore.Writer writer = blobStore.newWriter();
+        writer.write(content);
+        return writer.commit();
+    }
+}
@@ -0,0 +1,164 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SegmentBackendTest {
+    private static final long THRESHOLD = 64 * 1024;
+    private static final long SEGMENT_BYTES = 256 * 1024;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Small blobs share segment files and read back exactly, positionally and mapped; a large
+     * one gets a file of its own. After a restart the index is rebuilt from the segments.
+     */
+    @Test
+    public void packsSmallBlobsAndRecoversThem() throws IOException {
+        Random random = new Random(5);
+        List<byte[]> contents = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        BlobStore store = open();
+        try {
+            for (int i = 0; i < 20; i++) {
+                byte[] content = new byte[i == 7 ? 0 : 1 + random.nextInt((int) THRESHOLD)];
+                random.nextBytes(content);
+                contents.add(content);
+                ids.add(write(store, content));
+            }
+            byte[] large = new byte[(int) THRESHOLD + 1];
+            random.nextBytes(large);
+            String largeId = write(store, large);
+            assertFalse(store.isPacked(largeId));
+            assertTrue(Files.isRegularFile(store.pathOf(largeId)));
+            assertArrayEquals(large, read(store, largeId));
+
+            for (int i = 0; i < ids.size(); i++) {
+                assertTrue(store.isPacked(ids.get(i)));
+                assertFalse(Files.exists(store.pathOf(ids.get(i))));
+                assertArrayEquals(contents.get(i), read(store, ids.get(i)));
+            }
+            byte[] sample = contents.get(3);
+            try (FileChannel channel = store.openChannel(ids.get(3))) {
+                assertEquals(sample.length, channel.size());
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 10, 100);
+                byte[] region = new byte[100];
+                mapped.get(region);
+                assertArrayEquals(Arrays.copyOfRange(sample, 10, 110), region);
+            }
+            assertTrue(segmentFiles() > 1);
+        } finally {
+            store.close();
+        }
+
+        store = open();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                store.restore(ids.get(i), contents.get(i).length);
+                assertTrue(store.isPacked(ids.get(i)));
+                assertArrayEquals(contents.get(i), read(store, ids.get(i)));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Deleting most blobs gets their segments compacted away, while the survivors, moved to
+     * another segment, stay readable throughout; a channel opened before the move keeps
+     * reading the old copy.
+     */
+    @Test
+    public void compactionReclaimsDeletedBlobs() throws Exception {
+        Random random = new Random(9);
+        BlobStore store = open();
+        SegmentBackend segments = (SegmentBackend) store.getBackend();
+        try {
+            List<byte[]> contents = new ArrayList<>();
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 60; i++) {
+                byte[] content = new byte[16 * 1024 + random.nextInt(16 * 1024)];
+                random.nextBytes(content);
+                contents.add(content);
+                ids.add(write(store, content));
+            }
+            long before = segments.getSegmentBytes();
+            Set<Integer> kept = new HashSet<>();
+            FileChannel early = store.openChannel(ids.get(0));
+            for (int i = 0; i < ids.size(); i++) {
+                if (i % 4 == 0) {
+                    kept.add(i);
+                } else {
+                    store.release(ids.get(i));
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (segments.getSegmentBytes() > before / 2) {
+                assertTrue(System.currentTimeMillis() < deadline, "Segments still hold " + segments.getSegmentBytes() + " bytes");
+                Thread.sleep(20);
+            }
+            assertTrue(segments.getCompactionCount() > 0);
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(kept.contains(i), store.exists(ids.get(i)));
+                if (kept.contains(i)) {
+                    assertArrayEquals(contents.get(i), read(store, ids.get(i)));
+                }
+            }
+            ByteBuffer all = ByteBuffer.allocate(contents.get(0).length);
+            while (all.hasRemaining() && early.read(all) > 0) {
+            }
+            early.close();
+            assertArrayEquals(contents.get(0), all.array());
+        } finally {
+            store.close();
+        }
+    }
+
+    private BlobStore open() throws IOException {
+        return new BlobStore(dir.toString(), new SegmentBackend(dir.resolve("segments"),
+                new FileBlobBackend(dir.resolve("blobs")), THRESHOLD, SEGMENT_BYTES));
+    }
+
+    private static String write(BlobStore store, byte[] content) throws IOException {
+        BlobStore.Writer writer = store.newWriter();
+        writer.write(content);
+        return writer.commit();
+    }
+
+    private static byte[] read(BlobStore store, String blobId) throws IOException {
+        try (FileChannel channel = store.openChannel(blobId)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            }
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            return buffer.array();
+        }
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve("segments"))) {
+            return files.count();
+        }
+    }
+}
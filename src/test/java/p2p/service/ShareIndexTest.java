@@ -0,0 +1,162 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareIndexTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Puts, removals and download counts written to the journal come back on restart.
+     */
+    @Test
+    public void replaysJournal() throws Exception {
+        ShareIndex index = open(Long.MAX_VALUE, new ConcurrentHashMap<>());
+        await(index.put(share(1, "a.bin")));
+        await(index.put(share(2, "b.bin")));
+        await(index.put(share(3, "c.bin")));
+        await(index.remove(2));
+        await(index.downloads(3, 4));
+        index.close();
+
+        Map<Integer, Share> shares = new ShareIndex(dir.toString(), Long.MAX_VALUE).recover();
+        assertEquals(2, shares.size());
+        assertEquals("a.bin", shares.get(1).getFilename());
+        assertNull(shares.get(2));
+        assertEquals(4, shares.get(3).getDownloads());
+    }
+
+    /**
+     * A last record cut short by a crash is dropped and cut off, so records appended after
+     * the restart are not stuck behind it.
+     */
+    @Test
+    public void discardsTornLastRecord() throws Exception {
+        ShareIndex index = open(Long.MAX_VALUE, new ConcurrentHashMap<>());
+        await(index.put(share(1, "a.bin")));
+        await(index.put(share(2, "b.bin")));
+        index.close();
+
+        Path journal = dir.resolve("index").resolve("journal.log");
+        long intact;
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            intact = channel.size();
+            channel.truncate(intact - 3);
+        }
+
+        Map<Integer, Share> live = new ConcurrentHashMap<>();
+        index = open(Long.MAX_VALUE, live);
+        assertEquals(1, live.size());
+        assertEquals("a.bin", live.get(1).getFilename());
+        assertTrue(Files.size(journal) < intact - 3);
+
+        await(index.put(share(4, "d.bin")));
+        index.close();
+        Map<Integer, Share> shares = new ShareIndex(dir.toString(), Long.MAX_VALUE).recover();
+        assertEquals(2, shares.size());
+        assertEquals("d.bin", shares.get(4).getFilename());
+    }
+
+    /**
+     * A record whose checksum does not match ends replay like a truncated one.
+     */
+    @Test
+    public void discardsCorruptLastRecord() throws Exception {
+        ShareIndex index = open(Long.MAX_VALUE, new ConcurrentHashMap<>());
+        await(index.put(share(1, "a.bin")));
+        await(index.put(share(2, "b.bin")));
+        index.close();
+
+        Path journal = dir.resolve("index").resolve("journal.log");
+        byte[] bytes = Files.readAllBytes(journal);
+        bytes[bytes.length - 10] ^= 0x5a;
+        Files.write(journal, bytes);
+
+        Map<Integer, Share> shares = new ShareIndex(dir.toString(), Long.MAX_VALUE).recover();
+        assertEquals(1, shares.size());
+        assertEquals("a.bin", shares.get(1).getFilename());
+    }
+
+    /**
+     * Once the journal outgrows its limit it is folded into a snapshot and emptied; a
+     * restart reads the snapshot and then replays what was journaled after it.
+     */
+    @Test
+    public void restartsFromCompactedSnapshot() throws Exception {
+        Map<Integer, Share> live = new ConcurrentHashMap<>();
+        ShareIndex index = open(1, live);
+        for (int code = 1; code <= 5; code++) {
+            Share share = share(code, "file-" + code + ".bin");
+            live.put(code, share);
+            await(index.put(share));
+        }
+        index.close();
+        Path snapshot = dir.resolve("index").resolve("snapshot.bin");
+        Path journal = dir.resolve("index").resolve("journal.log");
+        assertTrue(Files.exists(snapshot));
+        assertEquals(0, Files.size(journal));
+        assertFalse(Files.exists(dir.resolve("index").resolve("snapshot.bin.tmp")));
+
+        live = new ConcurrentHashMap<>();
+        index = open(Long.MAX_VALUE, live);
+        assertEquals(5, live.size());
+        await(index.remove(1));
+        await(index.put(share(6, "file-6.bin")));
+        index.close();
+
+        Map<Integer, Share> shares = new ShareIndex(dir.toString(), Long.MAX_VALUE).recover();
+        assertEquals(5, shares.size());
+        assertNull(shares.get(1));
+        assertEquals("file-5.bin", shares.get(5).getFilename());
+        assertEquals("file-6.bin", shares.get(6).getFilename());
+    }
+
+    /**
+     * Names are stored with a 16-bit length; longer ones are refused instead of written
+     * with a wrapped length that would corrupt the rest of the record.
+     */
+    @Test
+    public void rejectsOverlongNames() {
+        char[] name = new char[ShareIndex.MAX_FIELD_BYTES + 1];
+        Arrays.fill(name, 'x');
+        assertThrows(IllegalArgumentException.class, () -> ShareIndex.encodeShare(share(1, new String(name))));
+
+        String longest = new String(name, 0, ShareIndex.MAX_FIELD_BYTES);
+        Share decoded = ShareIndex.decodeShare(ShareIndex.encodeShare(share(1, longest)));
+        assertEquals(longest, decoded.getFilename());
+    }
+
+    private ShareIndex open(long compactAfterBytes, Map<Integer, Share> live) throws IOException {
+        ShareIndex index = new ShareIndex(dir.toString(), compactAfterBytes);
+        live.putAll(index.recover());
+        index.start(live::values);
+        return index;
+    }
+
+    private static Share share(int code, String filename) {
+        return new Share(code, "blob-" + code, filename, 1000 + code, 1_700_000_000_000L, 0, 0);
+    }
+
+    private static void await(CompletableFuture<Void> write) throws Exception {
+        write.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,105 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareReaperTest {
+
+    @TempDir
+    Path dir;
+
+    private BlobStore blobStore;
+    private FileSharer fileSharer;
+
+    @BeforeEach
+    public void createStore() throws IOException {
+        blobStore = new BlobStore(dir.toString());
+        fileSharer = new FileSharer(blobStore);
+    }
+
+    /**
+     * An expired share is gone at once and its blob is deleted by the next pass.
+     */
+    @Test
+    public void removesExpiredShares() throws Exception {
+        String blobId = store(1000, 1);
+        int code = fileSharer.offerFile(blobId, "a.bin", 1, 0);
+        int kept = fileSharer.offerFile(store(1000, 2), "b.bin", 0, 0);
+        Thread.sleep(10);
+
+        assertNull(fileSharer.getShare(code));
+        ShareReaper reaper = new ShareReaper(fileSharer, null, null, 0, 0, 1000);
+        reaper.reap();
+        assertEquals(1, reaper.getExpiredCount());
+        assertEquals(1, fileSharer.getShareCount());
+        assertFalse(blobStore.exists(blobId));
+        assertNotNull(fileSharer.getShare(kept));
+    }
+
+    /**
+     * Downloads are claimed before they start, so transfers running at the same time cannot
+     * exceed the limit; a failed transfer hands its claim back, and the share is reaped once
+     * its downloads have completed.
+     */
+    @Test
+    public void removesExhaustedShares() throws Exception {
+        int code = fileSharer.offerFile(store(1000, 3), "a.bin", 0, 2);
+        Share share = fileSharer.getShare(code);
+
+        assertTrue(fileSharer.claimDownload(share));
+        assertTrue(fileSharer.claimDownload(share));
+        assertFalse(fileSharer.claimDownload(share));
+        fileSharer.releaseDownload(share);
+        assertTrue(fileSharer.claimDownload(share));
+        fileSharer.recordDownload(share);
+        assertNotNull(fileSharer.getShare(code));
+        fileSharer.recordDownload(share);
+        assertNull(fileSharer.getShare(code));
+
+        ShareReaper reaper = new ShareReaper(fileSharer, null, null, 0, 0, 1000);
+        reaper.reap();
+        assertEquals(1, reaper.getExhaustedCount());
+        assertEquals(0, fileSharer.getShareCount());
+    }
+
+    /**
+     * Over the disk budget the least recently used shares go first, until the budget holds.
+     */
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() throws Exception {
+        int first = fileSharer.offerFile(store(1000, 4), "a.bin", 0, 0);
+        Thread.sleep(5);
+        int second = fileSharer.offerFile(store(1000, 5), "b.bin", 0, 0);
+        Thread.sleep(5);
+        int third = fileSharer.offerFile(store(1000, 6), "c.bin", 0, 0);
+        Thread.sleep(5);
+        fileSharer.getShare(first);
+
+        ShareReaper reaper = new ShareReaper(fileSharer, null, null, 2500, 0, 1000);
+        reaper.reap();
+        assertEquals(1, reaper.getOverBudgetCount());
+        assertNotNull(fileSharer.getShare(first));
+        assertNull(fileSharer.getShare(second));
+        assertNotNull(fileSharer.getShare(third));
+        assertTrue(blobStore.getStoredBytes() <= 2500);
+    }
+
+    private String store(int size, int fill) throws IOException {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) fill);
+        BlobStore.Writer writer = blobStore.newWriter();
+        writer.write(content);
+        return writer.commit();
+    }
+}
@@ -0,0 +1,213 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TransferEngineTest {
+    private static final int SIZE = 1024 * 1024 + 123;
+    // Full file, a region large enough to be mapped, and a small tail
+    private static final long[][] REGIONS = {{0, SIZE}, {12_345, 600_000}, {SIZE - 1000, 1000}};
+
+    @TempDir
+    Path dir;
+
+    private final TransferEngine engine = new TransferEngine();
+    private byte[] content;
+    private Path file;
+
+    @BeforeEach
+    public void writeFile() throws IOException {
+        content = new byte[SIZE];
+        new Random(3).nextBytes(content);
+        file = Files.write(dir.resolve("source.bin"), content);
+    }
+
+    /**
+     * transferTo to a file channel, and a buffer copy to any other channel.
+     */
+    @Test
+    public void channelTargetsGetIdenticalBytes() throws IOException {
+        for (long[] region : REGIONS) {
+            try (FileChannel source = FileChannel.open(file)) {
+                Path copy = dir.resolve("copy.bin");
+                try (FileChannel target = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                           StandardOpenOption.TRUNCATE_EXISTING)) {
+                    assertEquals(TransferEngine.Path.TRANSFER_TO, engine.send(source, region[0], region[1], target));
+                }
+                assertArrayEquals(expected(region), Files.readAllBytes(copy));
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                WritableByteChannel target = Channels.newChannel(out);
+                assertEquals(TransferEngine.Path.BUFFERED, engine.send(source, region[0], region[1], target));
+                assertArrayEquals(expected(region), out.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Streams get large regions through a mapping, small ones through a buffer, and cached
+     * content from memory, all with the same bytes.
+     */
+    @Test
+    public void streamTargetsGetIdenticalBytes() throws IOException {
+        ByteBuffer cached = ByteBuffer.wrap(content).asReadOnlyBuffer();
+        for (long[] region : REGIONS) {
+            try (FileChannel source = FileChannel.open(file)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                TransferEngine.Path expectedPath = region[1] >= 256 * 1024 ? TransferEngine.Path.MAPPED
+                        : TransferEngine.Path.BUFFERED;
+                assertEquals(expectedPath, engine.send(source, region[0], region[1], out));
+                assertArrayEquals(expected(region), out.toByteArray());
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(TransferEngine.Path.CACHED, engine.send(cached, region[0], region[1], out));
+            assertArrayEquals(expected(region), out.toByteArray());
+        }
+    }
+
+    /**
+     * When neither transferTo nor mapping is available, both sends fall back to a buffer
+     * copy without losing or repeating bytes.
+     */
+    @Test
+    public void fallbacksGetIdenticalBytes() throws IOException {
+        for (long[] region : REGIONS) {
+            try (FileChannel source = new NoKernelPaths(FileChannel.open(file))) {
+                Path copy = dir.resolve("copy.bin");
+                try (FileChannel target = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                           StandardOpenOption.TRUNCATE_EXISTING)) {
+                    assertEquals(TransferEngine.Path.BUFFERED, engine.send(source, region[0], region[1], target));
+                }
+                assertArrayEquals(expected(region), Files.readAllBytes(copy));
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(TransferEngine.Path.BUFFERED, engine.send(source, region[0], region[1], out));
+                assertArrayEquals(expected(region), out.toByteArray());
+            }
+        }
+        assertEquals(0, engine.getTransferCount(TransferEngine.Path.MAPPED));
+        assertEquals(0, engine.getTransferCount(TransferEngine.Path.TRANSFER_TO));
+        assertEquals(2 * REGIONS.length, engine.getTransferCount(TransferEngine.Path.BUFFERED));
+    }
+
+    private byte[] expected(long[] region) {
+        return Arrays.copyOfRange(content, (int) region[0], (int) (region[0] + region[1]));
+    }
+
+    /**
+     * A file channel on a filesystem that supports neither transferTo nor mapping.
+     */
+    private static class NoKernelPaths extends FileChannel {
+        private final FileChannel delegate;
+
+        NoKernelPaths(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            throw new IOException("transferTo not supported");
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            throw new UnsupportedOperationException("map not supported");
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
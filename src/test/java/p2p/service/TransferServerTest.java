@@ -0,0 +1,154 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.client.TransferClient;
+
+public class TransferServerTest {
+
+    @TempDir
+    Path dir;
+
+    private BlobStore blobStore;
+    private FileSharer fileSharer;
+    private TransferServer server;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        blobStore = new BlobStore(dir.resolve("store").toString());
+        fileSharer = new FileSharer(blobStore);
+        server = new TransferServer(fileSharer, new TransferEngine(), 0);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * The client receives the file byte for byte over loopback, and an unknown code ends in
+     * the server's error.
+     */
+    @Test
+    public void transfersOverLoopback() throws IOException {
+        byte[] content = new byte[3 * 1024 * 1024 + 5];
+        new Random(7).nextBytes(content);
+        int code = fileSharer.offerFile(store(content), "data.bin");
+
+        Path output = dir.resolve("received.bin");
+        TransferClient.download("localhost", server.getPort(), code, output);
+        assertArrayEquals(content, Files.readAllBytes(output));
+
+        IOException unknown = assertThrows(IOException.class,
+                () -> TransferClient.download("localhost", server.getPort(), code + 1, dir.resolve("none")));
+        assertEquals("Invalid or expired code", unknown.getMessage());
+    }
+
+    /**
+     * A filename with line breaks cannot add lines to the reply; it arrives percent-encoded
+     * and decodes back to the original.
+     */
+    @Test
+    public void encodesControlCharactersInFilename() throws IOException {
+        String filename = "a\r\nLength: 1\n\n%b.txt";
+        int code = fileSharer.offerFile(store("hello".getBytes(StandardCharsets.UTF_8)), filename);
+
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(TransferServer.MAGIC);
+            out.writeByte(TransferServer.VERSION);
+            out.writeInt(code);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String nameLine = readLine(in);
+            assertEquals("Filename: a%0D%0ALength: 1%0A%0A%25b.txt", nameLine);
+            assertEquals(filename, TransferServer.decodeFilename(nameLine.substring("Filename: ".length())));
+            assertEquals("Length: 5", readLine(in));
+            assertEquals("", readLine(in));
+            byte[] body = new byte[5];
+            in.readFully(body);
+            assertEquals("hello", new String(body, StandardCharsets.UTF_8));
+        }
+        assertThrows(IllegalArgumentException.class, () -> TransferServer.decodeFilename("a%4"));
+    }
+
+    /**
+     * Packed blobs are read through a segment slice, which would block the selector thread,
+     * so they are refused and left to HTTP.
+     */
+    @Test
+    public void refusesPackedBlobs() throws IOException {
+        server.stop();
+        blobStore = new BlobStore(dir.resolve("packed").toString(), new SegmentBackend(dir.resolve("segments"),
+                new FileBlobBackend(dir.resolve("blobs")), 64 * 1024, 1024 * 1024));
+        fileSharer = new FileSharer(blobStore);
+        server = new TransferServer(fileSharer, new TransferEngine(), 0);
+        server.start();
+        try {
+            int code = fileSharer.offerFile(store("small".getBytes(StandardCharsets.UTF_8)), "small.txt");
+            IOException refused = assertThrows(IOException.class,
+                    () -> TransferClient.download("localhost", server.getPort(), code, dir.resolve("small.txt")));
+            assertEquals("This share is only available over HTTP", refused.getMessage());
+            assertEquals(0, fileSharer.getShare(code).getDownloads());
+        } finally {
+            blobStore.close();
+        }
+    }
+
+    /**
+     * Sendfile cannot be shaped, so transfers are refused while a bandwidth limit is set and
+     * resume once it is lifted.
+     */
+    @Test
+    public void refusesWhileBandwidthLimited() throws IOException {
+        server.stop();
+        BandwidthManager bandwidth = new BandwidthManager(0, 1024 * 1024);
+        server = new TransferServer(fileSharer, new TransferEngine(), bandwidth, 0);
+        server.start();
+        int code = fileSharer.offerFile(store("hello".getBytes(StandardCharsets.UTF_8)), "hello.txt");
+
+        IOException refused = assertThrows(IOException.class,
+                () -> TransferClient.download("localhost", server.getPort(), code, dir.resolve("limited.txt")));
+        assertEquals("Raw transfers are disabled while bandwidth limits are set", refused.getMessage());
+
+        bandwidth.setLimits(0, 0);
+        Path output = dir.resolve("hello.txt");
+        TransferClient.download("localhost", server.getPort(), code, output);
+        assertEquals("hello", Files.readString(output));
+    }
+
+    private String store(byte[] content) throws IOException {
+        BlobStore.Writer writer = blobStore.newWriter();
+        writer.write(content);
+        return writer.commit();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,128 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ZipArchiveTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * The streamed archive must read back with the JDK's stream reader, which checks every
+     * CRC, and any split into ranges must reassemble to the same bytes.
+     */
+    @Test
+    public void streamsReadableArchiveInAnyRanges() throws IOException {
+        BlobStore blobStore = new BlobStore(dir.toString());
+        byte[][] contents = {new byte[300_000], new byte[0], "hello".getBytes(StandardCharsets.UTF_8)};
+        new Random(7).nextBytes(contents[0]);
+        String[] names = {"photos/big.bin", "empty.txt", "notes/\u00fcber.txt"};
+        List<Share.Member> members = new ArrayList<>();
+        for (int i = 0; i < contents.length; i++) {
+            members.add(store(blobStore, names[i], contents[i]));
+        }
+        ZipArchive archive = new ZipArchive(members, System.currentTimeMillis());
+        TransferEngine engine = new TransferEngine();
+
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        archive.send(0, archive.length(), whole, blobStore, engine);
+        byte[] bytes = whole.toByteArray();
+        assertEquals(archive.length(), bytes.length);
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes))) {
+            for (int i = 0; i < contents.length; i++) {
+                ZipEntry entry = in.getNextEntry();
+                assertEquals(names[i], entry.getName());
+                assertArrayEquals(contents[i], in.readAllBytes());
+            }
+            assertNull(in.getNextEntry());
+        }
+
+        Random random = new Random(3);
+        for (int round = 0; round < 50; round++) {
+            ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+            long position = 0;
+            while (position < archive.length()) {
+                long count = Math.min(archive.length() - position, 1 + random.nextInt(random.nextBoolean() ? 64 : 200_000));
+                archive.send(position, count, pieces, blobStore, engine);
+                position += count;
+            }
+            assertArrayEquals(bytes, pieces.toByteArray());
+        }
+    }
+
+    /**
+     * A member over 4 GB needs Zip64 sizes, and the member after it a Zip64 offset. The
+     * large content is never read: only headers and the small member are written into a
+     * sparse file, which is enough for {@link ZipFile} to check the layout.
+     */
+    @Test
+    public void usesZip64ForLargeMembersAndOffsets() throws IOException {
+        BlobStore blobStore = new BlobStore(dir.toString());
+        long large = 5L * 1024 * 1024 * 1024;
+        byte[] small = "after the large one".getBytes(StandardCharsets.UTF_8);
+        List<Share.Member> members = List.of(new Share.Member("large.bin", "0".repeat(64), large, 0),
+                                             store(blobStore, "small.txt", small));
+        ZipArchive archive = new ZipArchive(members, System.currentTimeMillis());
+        TransferEngine engine = new TransferEngine();
+
+        Path file = dir.resolve("archive.zip");
+        long skipFrom = archive.dataOffset(0);
+        long skipTo = skipFrom + large;
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            out.setLength(archive.length());
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            archive.send(0, skipFrom, head, blobStore, engine);
+            out.write(head.toByteArray());
+            ByteArrayOutputStream tail = new ByteArrayOutputStream();
+            archive.send(skipTo, archive.length() - skipTo, tail, blobStore, engine);
+            out.seek(skipTo);
+            out.write(tail.toByteArray());
+        }
+
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            assertEquals(2, zip.size());
+            assertEquals(large, zip.getEntry("large.bin").getSize());
+            ZipEntry entry = zip.getEntry("small.txt");
+            try (InputStream in = zip.getInputStream(entry)) {
+                assertArrayEquals(small, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void memberNamesCannotEscapeTheArchive() {
+        assertEquals("a/b.txt", ZipArchive.memberName("../a/./b.txt"));
+        assertEquals("C:/dir/file", ZipArchive.memberName("C:\\dir\\..\\file"));
+        assertEquals("etc/passwd", ZipArchive.memberName("/etc/passwd"));
+        assertEquals("unnamed-file", ZipArchive.memberName("../.."));
+    }
+
+    private static Share.Member store(BlobStore blobStore, String name, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        try (BlobStore.Writer out = blobStore.newWriter()) {
+            out.write(content);
+            return new Share.Member(name, out.commit(), content.length, (int) crc.getValue());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void parsesSuffixAndOpenRanges() {
+        assertRanges("500-999", ByteRange.parse("bytes=-500", 1000));
+        assertRanges("0-999", ByteRange.parse("bytes=-5000", 1000));
+        assertRanges("900-999", ByteRange.parse("bytes=900-", 1000));
+        assertRanges("0-999", ByteRange.parse("bytes=0-5000", 1000));
+        assertRanges("10-19", ByteRange.parse(" Bytes=10 - 19 ", 1000));
+        assertEquals(1000, ByteRange.parse("bytes=0-", 1000).get(0).length());
+        assertEquals("bytes 10-19/1000", ByteRange.parse("bytes=10-19", 1000).get(0).toContentRange(1000));
+    }
+
+    /**
+     * Overlapping and adjacent ranges become one, in ascending order; disjoint ones stay
+     * apart.
+     */
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        assertRanges("0-149", ByteRange.parse("bytes=0-99,50-149", 1000));
+        assertRanges("0-199", ByteRange.parse("bytes=100-199,0-99", 1000));
+        assertRanges("0-9,500-599", ByteRange.parse("bytes=500-599, 0-9", 1000));
+        assertRanges("0-999", ByteRange.parse("bytes=0-9,5-,-995", 1000));
+        assertRanges("0-9,990-999", ByteRange.parse("bytes=0-9,-10,992-", 1000));
+    }
+
+    @Test
+    public void ignoresTooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 32; i++) {
+            header.append(',').append(i * 10).append('-').append(i * 10);
+        }
+        assertEquals(32, ByteRange.parse(header.toString(), 1000).size());
+        assertNull(ByteRange.parse(header.append(",500-500").toString(), 1000));
+    }
+
+    /**
+     * Ranges that lie wholly past the end are dropped; if none is left the result is empty,
+     * which the server answers with 416.
+     */
+    @Test
+    public void reportsUnsatisfiableRanges() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=1000-2000,5000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-9", 0).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-10", 0).isEmpty());
+        assertRanges("990-999", ByteRange.parse("bytes=2000-,990-", 1000));
+    }
+
+    /**
+     * Anything malformed means the header is ignored and the full body is sent.
+     */
+    @Test
+    public void ignoresMalformedHeaders() {
+        for (String header : new String[] {null, "", "bytes=", "items=0-9", "bytes 0-9", "bytes=9", "bytes=-",
+                                           "bytes=a-9", "bytes=0-b", "bytes=9-0", "bytes=1-2-3", "bytes=--5",
+                                           "bytes=0-9,,20-29", "bytes=0-99999999999999999999"}) {
+            assertNull(ByteRange.parse(header, 1000), header);
+        }
+    }
+
+    private static void assertRanges(String expected, List<ByteRange> ranges) {
+        StringBuilder actual = new StringBuilder();
+        for (ByteRange range : ranges) {
+            actual.append(actual.length() == 0 ? "" : ",").append(range.getFirst()).append('-').append(range.getLast());
+        }
+        assertEquals(expected, actual.toString());
+    }
+}
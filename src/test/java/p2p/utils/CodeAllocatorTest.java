@@ -0,0 +1,66 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+public class CodeAllocatorTest {
+
+    /**
+     * Fills a small space from many threads: every code must come out exactly once, and
+     * the next allocation must fail instead of spinning.
+     */
+    @Test
+    public void allocatesEveryCodeOnceThenRefuses() throws Exception {
+        CodeAllocator allocator = new CodeAllocator(1000, 1000 + 9_999, false);
+        BitSet seen = new BitSet();
+        int[] duplicates = new int[1];
+        Thread[] workers = new Thread[16];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread(() -> {
+                while (true) {
+                    int code;
+                    try {
+                        code = allocator.allocate();
+                    } catch (CodeAllocator.CodeSpaceExhaustedException e) {
+                        return;
+                    }
+                    synchronized (seen) {
+                        if (seen.get(code - 1000)) {
+                            duplicates[0]++;
+                        }
+                        seen.set(code - 1000);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, duplicates[0]);
+        assertEquals(allocator.getCapacity(), seen.cardinality());
+        assertEquals(0, allocator.getFreeCount());
+        assertThrows(CodeAllocator.CodeSpaceExhaustedException.class, allocator::allocate);
+
+        allocator.release(5000);
+        assertEquals(5000, allocator.allocate());
+    }
+
+    @Test
+    public void reserveClaimsOnlyFreeCodesInRange() {
+        CodeAllocator allocator = CodeAllocator.forDigits(6, true);
+        assertTrue(allocator.reserve(123456));
+        assertFalse(allocator.reserve(123456));
+        assertFalse(allocator.reserve(65535));
+        assertTrue(allocator.isAllocated(123456));
+        allocator.release(123456);
+        allocator.release(123456);
+        assertEquals(allocator.getCapacity(), allocator.getFreeCount());
+    }
+}
@@ -0,0 +1,120 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MultipartReaderTest {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    /**
+     * Content full of near-misses of the delimiter, delivered a few bytes at a time so that
+     * delimiters and headers are split across reads at every possible offset.
+     */
+    @Test
+    public void readsPartsSplitAcrossArbitraryReads() throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (int i = 0; i < 3000; i++) {
+            byte[] noise = new byte[random.nextInt(600)];
+            random.nextBytes(noise);
+            content.write(noise);
+            String prefix = "\r\n--" + BOUNDARY;
+            content.write(prefix.substring(0, random.nextInt(prefix.length())).getBytes(StandardCharsets.US_ASCII));
+        }
+        byte[] file = content.toByteArray();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("preamble to ignore\r\n" +
+                    "--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"note\"\r\n" +
+                    "\r\n" +
+                    "hello\r\n" +
+                    "--" + BOUNDARY + "  \r\n" +
+                    "Content-Disposition: form-data; name=\"file\"; filename=\"C:\\\\dir\\\\r\\\"ep\\\"ort.bin\"\r\n" +
+                    "Content-Type: application/x-test\r\n" +
+                    "\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(file);
+        body.write(("\r\n--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.US_ASCII));
+
+        for (int maxRead : new int[] {1, 7, 1500, 1 << 20}) {
+            InputStream in = new TricklingInputStream(body.toByteArray(), maxRead, new Random(maxRead));
+            try (MultipartReader reader = new MultipartReader(in, BOUNDARY)) {
+                MultipartReader.Part note = reader.next();
+                assertEquals("note", note.getName());
+                assertNull(note.getFilename());
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                note.writeTo(value);
+                assertEquals("hello", value.toString(StandardCharsets.UTF_8));
+
+                MultipartReader.Part part = reader.next();
+                assertEquals("C:\\\\dir\\\\r\"ep\"ort.bin", part.getFilename());
+                assertEquals("application/x-test", part.getContentType());
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                assertEquals(file.length, part.transferTo(Channels.newChannel(received)));
+                assertArrayEquals(file, received.toByteArray());
+
+                assertNull(reader.next());
+                assertNull(reader.next());
+            }
+        }
+    }
+
+    @Test
+    public void skipsUnreadPartsAndRejectsTruncatedBodies() throws IOException {
+        String body = "--" + BOUNDARY + "\r\n\r\nfirst\r\n" +
+                      "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=b\r\n\r\nsecond\r\n" +
+                      "--" + BOUNDARY + "--";
+        try (MultipartReader reader = new MultipartReader(stream(body), BOUNDARY)) {
+            assertNull(reader.next().getName());
+            assertEquals("b", reader.next().getName());
+            assertNull(reader.next());
+        }
+
+        String truncated = "--" + BOUNDARY + "\r\n\r\nno closing delimiter";
+        try (MultipartReader reader = new MultipartReader(stream(truncated), BOUNDARY)) {
+            MultipartReader.Part part = reader.next();
+            assertThrows(MultipartReader.MalformedMultipartException.class,
+                         () -> part.writeTo(new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    public void extractsBoundaryFromContentType() {
+        assertEquals("abc", MultipartReader.boundaryOf("multipart/form-data; boundary=abc"));
+        assertEquals("a b;c", MultipartReader.boundaryOf("Multipart/Form-Data; charset=utf-8; boundary=\"a b;c\""));
+        assertNull(MultipartReader.boundaryOf("multipart/form-data"));
+        assertNull(MultipartReader.boundaryOf("application/json; boundary=abc"));
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        private final int maxRead;
+        private final Random random;
+
+        TricklingInputStream(byte[] data, int maxRead, Random random) {
+            super(data);
+            this.maxRead = maxRead;
+            this.random = random;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(maxRead)));
+        }
+    }
+}
@@ -16,11 +16,12 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
     e.preventDefault();
     setError('');
     
-    const port = parseInt(inviteCode.trim(), 10);
-    if (isNaN(port) || port <= 0 || port > 65535) {
-      setError('Please enter a valid invite code (1-65535)');
+    const code = inviteCode.trim();
+    if (!/^\d{2,8}$/.test(code)) {
+      setError('Please enter a valid invite code (digits only)');
       return;
     }
+    const port = parseInt(code, 10);
     
     try {
       await onDownload(port);
@@ -80,7 +81,7 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
               }}
               onFocus={() => setIsFocused(true)}
               onBlur={() => setIsFocused(false)}
-              placeholder="Enter 5-digit code"
+              placeholder="Enter 6-digit code"
               className={`
                 input-field pr-12 font-mono text-lg tracking-wider
                 ${error ? 'border-destructive focus:ring-destructive' : ''}
@@ -88,8 +89,8 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
               `}
               disabled={isDownloading}
               required
-              maxLength={5}
-              pattern="[0-9]{1,5}"
+              maxLength={8}
+              pattern="[0-9]{2,8}"
             />
             <div className={`
               absolute right-3 top-1/2 -translate-y-1/2 transition-opacity duration-200